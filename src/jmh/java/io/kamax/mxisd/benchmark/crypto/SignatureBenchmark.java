@@ -0,0 +1,109 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.benchmark.crypto;
+
+import io.kamax.matrix.codec.MxBase64;
+import io.kamax.mxisd.config.MxisdConfig;
+import io.kamax.mxisd.crypto.Key;
+import io.kamax.mxisd.crypto.SignatureManager;
+import io.kamax.mxisd.crypto.ed25519.Ed25519Key;
+import io.kamax.mxisd.crypto.ed25519.Ed25519KeyManager;
+import io.kamax.mxisd.crypto.ed25519.Ed25519RegularKeyIdentifier;
+import io.kamax.mxisd.crypto.ed25519.Ed25519SignatureManager;
+import io.kamax.mxisd.storage.crypto.FileKeyStore;
+import io.kamax.mxisd.storage.crypto.KeyStore;
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPrivateKey;
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signatures per second, per core, of a typical v1 lookup response using a file-based key store.
+ * <p>
+ * <code>uncached</code> reproduces the previous behaviour: reading the key from the store, decoding it and creating a new
+ * signing engine for every signature.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(1)
+public class SignatureBenchmark {
+
+    private static final String Seed = "YJDBA9Xnr2sVqXD9Vj7XVUnmFZcZrlw8Md7kMW+3XA1";
+
+    private final byte[] data = ("{\"address\":\"john.doe@example.org\",\"medium\":\"email\",\"mxid\":\"@john.doe:example.org\"," +
+            "\"not_after\":253402300799000,\"not_before\":0,\"ts\":1523482030147}").getBytes(StandardCharsets.UTF_8);
+
+    private File keyDir;
+    private KeyStore store;
+    private SignatureManager signMgr;
+    private EdDSAParameterSpec keySpecs;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        keyDir = Files.createTempDirectory("ma1sd-bench-keys").toFile();
+        store = new FileKeyStore(keyDir.toString());
+        store.add(new Ed25519Key(new Ed25519RegularKeyIdentifier("0"), Seed));
+        Ed25519KeyManager keyMgr = new Ed25519KeyManager(store);
+        signMgr = new Ed25519SignatureManager(MxisdConfig.forDomain("localhost").inMemory().build(), keyMgr);
+        keySpecs = EdDSANamedCurveTable.ED_25519_CURVE_SPEC;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(keyDir);
+    }
+
+    @Benchmark
+    public String cached() {
+        return signMgr.sign(data).getSignature();
+    }
+
+    @Benchmark
+    public String uncached() throws Exception {
+        Key key = store.get(store.getCurrentKey().orElseThrow(IllegalStateException::new));
+        EdDSAPrivateKey privKey = new EdDSAPrivateKey(new EdDSAPrivateKeySpec(Base64.decodeBase64(key.getPrivateKeyBase64()), keySpecs));
+        EdDSAEngine engine = new EdDSAEngine(MessageDigest.getInstance(keySpecs.getHashAlgorithm()));
+        engine.initSign(privKey);
+        return MxBase64.encode(engine.signOneShot(data));
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.benchmark.directory;
+
+import io.kamax.mxisd.directory.DirectoryEntry;
+import io.kamax.mxisd.directory.DirectoryIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory directory index, with users having a display name made of common first and last names, and an email address.
+ * <p>
+ * <code>search</code> is the average time of a search while a client types a name, then an unknown user ID. The index is
+ * built once per amount of users, whatever the search term.
+ * <p>
+ * <code>build</code> is the time taken to index all the users. Run it with the <code>gc</code> profiler for the memory
+ * footprint: <code>gc.alloc.rate.norm</code> is the amount of bytes allocated by one build, an upper bound of what the
+ * index keeps on the heap.
+ */
+@State(Scope.Benchmark)
+@Threads(1)
+public class DirectoryIndexBenchmark {
+
+    private static final String[] FirstNames = {
+            "James", "Mary", "John", "Patricia", "Robert", "Jennifer", "Michael", "Linda", "William", "Elizabeth",
+            "David", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Charles", "Karen"
+    };
+
+    private static final String[] LastNames = {
+            "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+            "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin"
+    };
+
+    // Must match the operations per invocation of search()
+    private static final String[] Queries = {"j", "jo", "john", "john smi", "user12345"};
+
+    @Param({"100000", "1000000"})
+    public int users;
+
+    private List<DirectoryEntry> entries;
+    private DirectoryIndex index;
+
+    @Setup
+    public void setup() {
+        entries = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            String first = FirstNames[i % FirstNames.length];
+            String last = LastNames[(i / FirstNames.length) % LastNames.length];
+            String email = first.toLowerCase() + "." + last.toLowerCase() + i + "@example.org";
+            entries.add(new DirectoryEntry("@user" + i + ":example.org", first + " " + last,
+                    Collections.emptyList(), Collections.singletonList(email)));
+        }
+
+        index = DirectoryIndex.build(entries, true);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @OperationsPerInvocation(5)
+    public void search(Blackhole bh) {
+        for (String query : Queries) {
+            bh.consume(index.search(query, 10));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public DirectoryIndex build() {
+        return DirectoryIndex.build(entries, true);
+    }
+
+}
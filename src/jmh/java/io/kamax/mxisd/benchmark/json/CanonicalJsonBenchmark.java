@@ -0,0 +1,113 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.benchmark.json;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import io.kamax.matrix.json.CanonicalJsonEncoder;
+import io.kamax.matrix.json.MatrixJson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Canonical encodings per second, per core, of a typical invite signing payload, down to the bytes given to the signer.
+ * <p>
+ * <code>legacy</code> reproduces the previous behaviour: a Gson writer over a byte stream, decoded to a String and then
+ * encoded again to bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(1)
+public class CanonicalJsonBenchmark {
+
+    private JsonObject payload;
+
+    @Setup
+    public void setup() {
+        payload = new JsonParser().parse("{\"mxid\":\"@john.doe:example.org\",\"token\":\"ZGkqjZmGHRqQVGJjJCmUNgFhzqCWOUfH\"," +
+                "\"sender\":\"@alice:example.org\",\"room_id\":\"!abcdefghijklmnop:example.org\",\"medium\":\"email\"," +
+                "\"address\":\"john.doe@example.org\",\"room_name\":\"D\u00e9j\u00e0 vu\",\"signed\":{\"mxid\":\"@john.doe:example.org\"," +
+                "\"token\":\"ZGkqjZmGHRqQVGJjJCmUNgFhzqCWOUfH\",\"signatures\":{\"example.org\":{\"ed25519:0\":\"" +
+                "eP1ZfvLyJhzLjB6z5FwALFk4NoASgXJDmR3PgnFC5wt1wmM4eKGBh4o8L7BQ7AYqjLsG1rHHE6ms4ZWIBCzUBA\"}}}," +
+                "\"public_keys\":[{\"key_validity_url\":\"https://example.org/_matrix/identity/api/v1/pubkey/isvalid\"," +
+                "\"public_key\":\"serverPublicKeyBase64\"}],\"ts\":1523482030147}").getAsJsonObject();
+    }
+
+    private static void legacyEncode(JsonElement el, JsonWriter writer) throws IOException {
+        if (el.isJsonObject()) {
+            writer.beginObject();
+            List<Map.Entry<String, JsonElement>> entries = el.getAsJsonObject().entrySet().stream()
+                    .sorted(Comparator.comparing(Map.Entry::getKey)).collect(Collectors.toList());
+            for (Map.Entry<String, JsonElement> entry : entries) {
+                writer.name(entry.getKey());
+                legacyEncode(entry.getValue(), writer);
+            }
+            writer.endObject();
+        } else if (el.isJsonArray()) {
+            writer.beginArray();
+            for (JsonElement item : el.getAsJsonArray()) {
+                legacyEncode(item, writer);
+            }
+            writer.endArray();
+        } else if (el.isJsonPrimitive()) {
+            writer.jsonValue(el.toString());
+        } else {
+            writer.nullValue();
+        }
+    }
+
+    @Benchmark
+    public byte[] legacy() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.setIndent("");
+        writer.setHtmlSafe(false);
+        legacyEncode(payload, writer);
+        writer.close();
+        return out.toString(StandardCharsets.UTF_8.name()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int encoder() {
+        CanonicalJsonEncoder encoder = MatrixJson.canonicalEncoder().encode(payload);
+        return encoder.getBuffer()[encoder.size() - 1];
+    }
+
+}
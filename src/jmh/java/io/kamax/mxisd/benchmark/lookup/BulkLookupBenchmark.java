@@ -0,0 +1,162 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.benchmark.lookup;
+
+import io.kamax.mxisd.config.HashingConfig;
+import io.kamax.mxisd.config.MxisdConfig;
+import io.kamax.mxisd.hash.HashManager;
+import io.kamax.mxisd.lookup.BulkLookupRequest;
+import io.kamax.mxisd.lookup.SingleLookupReply;
+import io.kamax.mxisd.lookup.SingleLookupRequest;
+import io.kamax.mxisd.lookup.ThreePidMapping;
+import io.kamax.mxisd.lookup.provider.IThreePidProvider;
+import io.kamax.mxisd.lookup.strategy.RecursivePriorityLookupStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken by a bulk lookup going through four identity stores, each holding a quarter of the requested 3PIDs, so
+ * every store gets the 3PIDs left by the previous ones.
+ * <p>
+ * The stores answer from memory, so what is measured is the work of the cascade itself. <code>legacy</code> reproduces
+ * the previous behaviour: a fresh list given to each store, and <code>removeAll()</code> of the found mappings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(1)
+public class BulkLookupBenchmark {
+
+    private static final int Stores = 4;
+
+    private static class MemoryProvider implements IThreePidProvider {
+
+        private final int priority;
+        private final Map<String, String> mxids = new HashMap<>();
+
+        private MemoryProvider(int priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public boolean isLocal() {
+            return true;
+        }
+
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+
+        @Override
+        public Optional<SingleLookupReply> find(SingleLookupRequest request) {
+            return Optional.empty();
+        }
+
+        @Override
+        public List<ThreePidMapping> populate(List<ThreePidMapping> mappings) {
+            List<ThreePidMapping> found = new ArrayList<>();
+            for (ThreePidMapping mapping : mappings) {
+                String mxid = mxids.get(mapping.getValue());
+                if (mxid != null) {
+                    found.add(new ThreePidMapping(mapping.getMedium(), mapping.getValue(), mxid));
+                }
+            }
+            return found;
+        }
+    }
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    @Param({"legacy", "pending"})
+    public String cascade;
+
+    private List<MemoryProvider> providers;
+    private RecursivePriorityLookupStrategy strategy;
+    private BulkLookupRequest request;
+
+    @Setup
+    public void setup() {
+        providers = new ArrayList<>();
+        for (int i = 0; i < Stores; i++) {
+            providers.add(new MemoryProvider(Stores - i));
+        }
+
+        List<ThreePidMapping> mappings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ThreePidMapping mapping = new ThreePidMapping();
+            mapping.setMedium("email");
+            mapping.setValue("user" + i + "@example.org");
+            mappings.add(mapping);
+            providers.get(i % Stores).mxids.put(mapping.getValue(), "@user" + i + ":example.org");
+        }
+
+        request = new BulkLookupRequest();
+        request.setRequester("127.0.0.1");
+        request.setMappings(mappings);
+
+        MxisdConfig.Lookup cfg = new MxisdConfig.Lookup();
+        cfg.getBulk().setEnabled(true);
+        HashManager hashManager = new HashManager();
+        hashManager.init(new HashingConfig(), providers, null);
+        strategy = new RecursivePriorityLookupStrategy(cfg, providers, null, hashManager);
+    }
+
+    private List<ThreePidMapping> legacy() {
+        List<ThreePidMapping> mapToDo = new ArrayList<>(request.getMappings());
+        List<ThreePidMapping> mapFoundAll = new ArrayList<>();
+        for (IThreePidProvider provider : providers) {
+            if (mapToDo.isEmpty()) {
+                break;
+            }
+
+            List<ThreePidMapping> mapFound = provider.populate(new ArrayList<>(mapToDo));
+            mapFoundAll.addAll(mapFound);
+            mapToDo.removeAll(mapFound);
+        }
+        return mapFoundAll;
+    }
+
+    @Benchmark
+    public int lookup() {
+        if ("legacy".equals(cascade)) {
+            return legacy().size();
+        }
+
+        return strategy.find(request).join().size();
+    }
+
+}
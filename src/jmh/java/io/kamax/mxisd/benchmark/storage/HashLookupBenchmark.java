@@ -0,0 +1,112 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.benchmark.storage;
+
+import io.kamax.mxisd.config.PostgresqlStorageConfig;
+import io.kamax.mxisd.config.StorageConfig;
+import io.kamax.mxisd.storage.IStorage;
+import io.kamax.mxisd.storage.jdbc.PostgresqlJdbcStorage;
+import io.kamax.mxisd.storage.ormlite.OrmLiteSqlStorage;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed lookups per second against a PostgreSQL database, with the ORMLite and the plain JDBC storage.
+ * <p>
+ * The database is given with system properties, e.g.
+ * <code>-PjmhJvmArgs="-Dma1sd.bench.postgresql.database=//localhost/ma1sd_bench -Dma1sd.bench.postgresql.username=ma1sd
+ * -Dma1sd.bench.postgresql.password=ma1sd"</code>. Its hashes table is replaced by the benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+public class HashLookupBenchmark {
+
+    @Param({"ormlite", "jdbc"})
+    public String storage;
+
+    @Param({"10000"})
+    public int rows;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    private IStorage store;
+    private List<String> hashes;
+
+    @Setup
+    public void setup() {
+        PostgresqlStorageConfig cfg = new PostgresqlStorageConfig();
+        cfg.setDatabase(System.getProperty("ma1sd.bench.postgresql.database", "//localhost/ma1sd_bench"));
+        cfg.setUsername(System.getProperty("ma1sd.bench.postgresql.username", "ma1sd"));
+        cfg.setPassword(System.getProperty("ma1sd.bench.postgresql.password", "ma1sd"));
+        cfg.setPool(true);
+        cfg.setMaxConnectionsFree(4);
+        StorageConfig.Provider provider = new StorageConfig.Provider();
+        provider.setPostgresql(cfg);
+
+        if ("jdbc".equals(storage)) {
+            store = new PostgresqlJdbcStorage(provider);
+        } else {
+            store = new OrmLiteSqlStorage(StorageConfig.BackendEnum.postgresql, provider);
+        }
+
+        store.clearHashes();
+        hashes = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            String address = "user" + i + "@example.org";
+            String hash = DigestUtils.sha256Hex(address + " email pepper");
+            store.addHash("@user" + i + ":example.org", "email", address, hash);
+            hashes.add(hash);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.clearHashes();
+    }
+
+    @Benchmark
+    public int lookup() {
+        ThreadLocalRandom rng = ThreadLocalRandom.current();
+        List<String> batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(hashes.get(rng.nextInt(hashes.size())));
+        }
+        return store.findHashes(batch).size();
+    }
+
+}
@@ -0,0 +1,243 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.matrix.json;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Canonical JSON encoder writing UTF-8 bytes directly into a reusable buffer.
+ * <p>
+ * The output is identical to the one produced by Gson's <code>JsonWriter</code> with HTML escaping disabled, with object
+ * keys sorted. NaN and infinite numbers have no JSON representation and are rejected with a
+ * {@link JsonCanonicalException}. An instance is not thread-safe and the buffer is overwritten on each call to {@link #encode(JsonObject)},
+ * see {@link MatrixJson#canonicalEncoder()} for a per-thread instance.
+ */
+public class CanonicalJsonEncoder {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_KEPT_CAPACITY = 1024 * 1024;
+
+    private byte[] buffer;
+    private int size;
+
+    public CanonicalJsonEncoder() {
+        this(1024);
+    }
+
+    public CanonicalJsonEncoder(int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * Encode the object, replacing the previous content of the buffer.
+     *
+     * @param obj The object to encode
+     * @return This encoder, to access the encoded bytes
+     */
+    public CanonicalJsonEncoder encode(JsonObject obj) {
+        if (buffer.length > MAX_KEPT_CAPACITY) {
+            // We do not want to keep a huge buffer around because of a single big payload
+            buffer = new byte[1024];
+        }
+        size = 0;
+        writeObject(obj);
+        return this;
+    }
+
+    /**
+     * The internal buffer, valid from 0 to {@link #size()}, until the next call to {@link #encode(JsonObject)}.
+     *
+     * @return The internal buffer
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    private void write(byte b) {
+        ensureCapacity(1);
+        buffer[size++] = b;
+    }
+
+    private void writeAscii(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeElement(JsonElement el) {
+        if (el.isJsonObject()) writeObject(el.getAsJsonObject());
+        else if (el.isJsonPrimitive()) writePrimitive(el.getAsJsonPrimitive());
+        else if (el.isJsonArray()) writeArray(el.getAsJsonArray());
+        else if (el.isJsonNull()) writeAscii("null");
+        else throw new JsonCanonicalException("Unexpected JSON type, this is a bug, report!");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeObject(JsonObject obj) {
+        Map.Entry<String, JsonElement>[] entries = obj.entrySet().toArray(new Map.Entry[0]);
+        Arrays.sort(entries, Map.Entry.comparingByKey());
+
+        write((byte) '{');
+        for (int i = 0; i < entries.length; i++) {
+            if (i > 0) {
+                write((byte) ',');
+            }
+            writeString(entries[i].getKey());
+            write((byte) ':');
+            writeElement(entries[i].getValue());
+        }
+        write((byte) '}');
+    }
+
+    private void writeArray(JsonArray array) {
+        write((byte) '[');
+        for (int i = 0; i < array.size(); i++) {
+            if (i > 0) {
+                write((byte) ',');
+            }
+            writeElement(array.get(i));
+        }
+        write((byte) ']');
+    }
+
+    private void writePrimitive(JsonPrimitive p) {
+        if (p.isString()) {
+            writeString(p.getAsString());
+        } else if (p.isBoolean()) {
+            writeAscii(p.getAsBoolean() ? "true" : "false");
+        } else {
+            String value = p.getAsNumber().toString();
+            if (isNonFinite(value)) {
+                throw new JsonCanonicalException("JSON cannot represent the number " + value);
+            }
+            writeAscii(value);
+        }
+    }
+
+    private static boolean isNonFinite(String number) {
+        // Double and Float print non-finite values this way, and lenient parsing keeps them as is
+        return "NaN".equals(number) || "Infinity".equals(number) || "-Infinity".equals(number);
+    }
+
+    private void writeUnicodeEscape(char c) {
+        ensureCapacity(6);
+        buffer[size++] = '\\';
+        buffer[size++] = 'u';
+        buffer[size++] = HEX[(c >> 12) & 0xF];
+        buffer[size++] = HEX[(c >> 8) & 0xF];
+        buffer[size++] = HEX[(c >> 4) & 0xF];
+        buffer[size++] = HEX[c & 0xF];
+    }
+
+    private void writeEscape(char c) {
+        ensureCapacity(2);
+        buffer[size++] = '\\';
+        buffer[size++] = (byte) c;
+    }
+
+    private void writeString(String s) {
+        // Worst case is 3 bytes per UTF-16 char, plus quotes. Escapes are handled separately.
+        ensureCapacity(s.length() * 3 + 2);
+        buffer[size++] = '"';
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"':
+                    case '\\':
+                        writeEscape(c);
+                        break;
+                    case '\t':
+                        writeEscape('t');
+                        break;
+                    case '\b':
+                        writeEscape('b');
+                        break;
+                    case '\n':
+                        writeEscape('n');
+                        break;
+                    case '\r':
+                        writeEscape('r');
+                        break;
+                    case '\f':
+                        writeEscape('f');
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            writeUnicodeEscape(c);
+                        } else {
+                            write((byte) c);
+                        }
+                }
+            } else if (c == '\u2028' || c == '\u2029') {
+                writeUnicodeEscape(c);
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                buffer[size++] = (byte) (0xC0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                ensureCapacity(4);
+                buffer[size++] = (byte) (0xF0 | (cp >> 18));
+                buffer[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buffer[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // Same replacement as the JDK UTF-8 encoder for malformed input
+                write((byte) '?');
+            } else {
+                ensureCapacity(3);
+                buffer[size++] = (byte) (0xE0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        write((byte) '"');
+    }
+
+}
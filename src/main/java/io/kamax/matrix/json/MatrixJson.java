@@ -20,83 +20,33 @@
 
 package io.kamax.matrix.json;
 
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import com.google.gson.stream.JsonWriter;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.nio.charset.StandardCharsets;
-import java.util.Comparator;
-import java.util.Map;
 
 public class MatrixJson {
 
-    // Needed to avoid silly try/catch block in lambdas
-    // We only use ByteArray streams, so IOException will not happen (unless irrecoverable situation like OOM)
-    private static class JsonWriterUnchecked extends JsonWriter {
-
-        public JsonWriterUnchecked(Writer out) {
-            super(out);
-        }
-
-        @Override
-        public JsonWriter name(String value) {
-            try {
-                return super.name(value);
-            } catch (IOException e) {
-                throw new JsonCanonicalException(e);
-            }
-        }
-    }
-
     private static JsonParser parser = new JsonParser();
 
-    private static void encodeCanonical(JsonObject el, JsonWriterUnchecked writer) throws IOException {
-        writer.beginObject();
-        el.entrySet().stream().sorted(Comparator.comparing(Map.Entry::getKey)).forEachOrdered(entry -> {
-            writer.name(entry.getKey());
-            encodeCanonicalElement(entry.getValue(), writer);
-        });
-        writer.endObject();
-    }
+    private static final ThreadLocal<CanonicalJsonEncoder> encoders = ThreadLocal.withInitial(CanonicalJsonEncoder::new);
 
-    private static void encodeCanonicalArray(JsonArray array, JsonWriterUnchecked writer) throws IOException {
-        writer.beginArray();
-        array.forEach(el -> encodeCanonicalElement(el, writer));
-        writer.endArray();
+    /**
+     * Get the canonical JSON encoder of the current thread.
+     * <p>
+     * Its buffer is reused by the next encoding in the same thread, so it must be consumed before encoding again.
+     *
+     * @return The encoder for the current thread
+     */
+    public static CanonicalJsonEncoder canonicalEncoder() {
+        return encoders.get();
     }
 
-    private static void encodeCanonicalElement(JsonElement el, JsonWriterUnchecked writer) {
-        try {
-            if (el.isJsonObject()) encodeCanonical(el.getAsJsonObject(), writer);
-            else if (el.isJsonPrimitive()) writer.jsonValue(el.toString());
-            else if (el.isJsonArray()) encodeCanonicalArray(el.getAsJsonArray(), writer);
-            else if (el.isJsonNull()) writer.nullValue();
-            else throw new JsonCanonicalException("Unexpected JSON type, this is a bug, report!");
-        } catch (IOException e) {
-            throw new JsonCanonicalException(e);
-        }
+    public static byte[] encodeCanonicalBytes(JsonObject obj) {
+        return canonicalEncoder().encode(obj).toByteArray();
     }
 
     public static String encodeCanonical(JsonObject obj) {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            JsonWriterUnchecked writer = new JsonWriterUnchecked(new OutputStreamWriter(out, StandardCharsets.UTF_8));
-            writer.setIndent("");
-            writer.setHtmlSafe(false);
-            writer.setLenient(false);
-
-            encodeCanonical(obj, writer);
-            writer.close();
-            return out.toString(StandardCharsets.UTF_8.name());
-        } catch (IOException e) {
-            throw new JsonCanonicalException(e);
-        }
+        return canonicalEncoder().encode(obj).toString();
     }
 
     public static String encodeCanonical(String data) {
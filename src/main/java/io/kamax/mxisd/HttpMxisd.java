@@ -24,6 +24,7 @@ import io.kamax.mxisd.config.MatrixConfig;
 import io.kamax.mxisd.config.MxisdConfig;
 import io.kamax.mxisd.config.PolicyConfig;
 import io.kamax.mxisd.config.ServerConfig;
+import io.kamax.mxisd.exception.ConfigurationException;
 import io.kamax.mxisd.http.undertow.handler.ApiHandler;
 import io.kamax.mxisd.http.undertow.handler.AuthorizationHandler;
 import io.kamax.mxisd.http.undertow.handler.CheckTermsHandler;
@@ -70,12 +71,26 @@ import io.kamax.mxisd.http.undertow.handler.term.v2.GetTermsHandler;
 import io.kamax.mxisd.matrix.IdentityServiceAPI;
 import io.undertow.Handlers;
 import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.predicate.Predicate;
+import io.undertow.predicate.Predicates;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.RoutingHandler;
+import io.undertow.server.handlers.encoding.ContentEncodingRepository;
+import io.undertow.server.handlers.encoding.DeflateEncodingProvider;
+import io.undertow.server.handlers.encoding.EncodingHandler;
+import io.undertow.server.handlers.encoding.GzipEncodingProvider;
 import io.undertow.util.HttpString;
 import io.undertow.util.Methods;
 import org.jetbrains.annotations.NotNull;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -111,7 +126,7 @@ public class HttpMxisd {
 
             // Status endpoints
             .get(StatusHandler.Path, sane(new StatusHandler()))
-            .get(VersionHandler.Path, sane(new VersionHandler()))
+            .get(VersionHandler.Path, sane(new VersionHandler(m.getConfig().getServer().getHttp().getCacheMaxAgeInSeconds())))
 
             // Authentication endpoints
             .get(LoginHandler.Path, sane(new LoginGetHandler(m.getAuth(), m.getHttpClient())))
@@ -154,11 +169,79 @@ public class HttpMxisd {
         }
 
         ServerConfig serverConfig = m.getConfig().getServer();
-        httpSrv = Undertow.builder().addHttpListener(serverConfig.getPort(), serverConfig.getHostname()).setHandler(handler).build();
+        httpSrv = buildServer(serverConfig, handler);
 
         httpSrv.start();
     }
 
+    private Undertow buildServer(ServerConfig serverConfig, HttpHandler handler) {
+        ServerConfig.Http cfg = serverConfig.getHttp();
+        Undertow.Builder builder = Undertow.builder().addHttpListener(serverConfig.getPort(), serverConfig.getHostname());
+
+        // Undertow picks its own defaults from the amount of CPUs and memory when these are not set
+        if (cfg.getIoThreads() > 0) {
+            builder.setIoThreads(cfg.getIoThreads());
+        }
+        if (cfg.getWorkerThreads() > 0) {
+            builder.setWorkerThreads(cfg.getWorkerThreads());
+        }
+        if (cfg.getBufferSize() > 0) {
+            builder.setBufferSize(cfg.getBufferSize());
+        }
+        if (Objects.nonNull(cfg.getDirectBuffers())) {
+            builder.setDirectBuffers(cfg.getDirectBuffers());
+        }
+        if (cfg.getMaxEntitySize() > 0) {
+            builder.setServerOption(UndertowOptions.MAX_ENTITY_SIZE, cfg.getMaxEntitySize());
+        }
+        if (cfg.getIdleTimeoutInSeconds() > 0) {
+            builder.setServerOption(UndertowOptions.IDLE_TIMEOUT, (int) Math.min(Integer.MAX_VALUE, cfg.getIdleTimeoutInSeconds() * 1000));
+        }
+        builder.setServerOption(UndertowOptions.ENABLE_HTTP2, cfg.isHttp2());
+        builder.setServerOption(UndertowOptions.ALWAYS_SET_KEEP_ALIVE, cfg.isKeepAlive());
+
+        if (cfg.getTls().isEnabled()) {
+            builder.addHttpsListener(cfg.getTls().getPort(), cfg.getTls().getHostname(), createSslContext(cfg.getTls()));
+        }
+
+        if (cfg.getCompression().isEnabled()) {
+            // Only responses with a known size above the threshold are compressed, small ones would not gain anything
+            Predicate largeEnough = Predicates.maxContentSize(cfg.getCompression().getMinSize());
+            ContentEncodingRepository encodings = new ContentEncodingRepository()
+                .addEncodingHandler("gzip", new GzipEncodingProvider(), 50, largeEnough)
+                .addEncodingHandler("deflate", new DeflateEncodingProvider(), 10, largeEnough);
+            handler = new EncodingHandler(handler, encodings);
+        }
+
+        if (!cfg.isKeepAlive()) {
+            HttpHandler next = handler;
+            handler = exchange -> {
+                exchange.setPersistent(false);
+                next.handleRequest(exchange);
+            };
+        }
+
+        return builder.setHandler(handler).build();
+    }
+
+    private SSLContext createSslContext(ServerConfig.Tls cfg) {
+        char[] keyStorePassword = Objects.isNull(cfg.getKeyStorePassword()) ? null : cfg.getKeyStorePassword().toCharArray();
+        char[] keyPassword = Objects.isNull(cfg.getKeyPassword()) ? null : cfg.getKeyPassword().toCharArray();
+        try (InputStream is = new FileInputStream(cfg.getKeyStore())) {
+            KeyStore keyStore = KeyStore.getInstance(cfg.getKeyStoreType());
+            keyStore.load(is, keyStorePassword);
+
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, keyPassword);
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            return context;
+        } catch (IOException | GeneralSecurityException e) {
+            throw new ConfigurationException("server.http.tls.keyStore", e.getMessage());
+        }
+    }
+
     public void stop() {
         // Because it might have never been initialized if an exception is thrown early
         if (Objects.nonNull(httpSrv)) {
@@ -170,7 +253,7 @@ public class HttpMxisd {
 
     private void keyEndpoints(RoutingHandler routingHandler) {
         addEndpoints(routingHandler, Methods.GET, false,
-            new KeyGetHandler(m.getKeyManager()),
+            new KeyGetHandler(m.getKeyManager(), m.getConfig().getServer().getHttp().getCacheMaxAgeInSeconds()),
             new RegularKeyIsValidHandler(m.getKeyManager()),
             new EphemeralKeyIsValidHandler(m.getKeyManager())
         );
@@ -178,8 +261,8 @@ public class HttpMxisd {
 
     private void identityEndpoints(RoutingHandler routingHandler) {
         // Legacy v1
-        routingHandler.get(SingleLookupHandler.Path, sane(new SingleLookupHandler(m.getConfig(), m.getIdentity(), m.getSign())));
-        routingHandler.post(BulkLookupHandler.Path, sane(new BulkLookupHandler(m.getIdentity())));
+        routingHandler.get(SingleLookupHandler.Path, saneAsync(new SingleLookupHandler(m.getConfig(), m.getIdentity(), m.getSign())));
+        routingHandler.post(BulkLookupHandler.Path, saneAsync(new BulkLookupHandler(m.getIdentity(), m.getConfig().getLookup().getBulk().getMaxItems())));
 
         addEndpoints(routingHandler, Methods.GET, false, new HelloHandler());
 
@@ -211,7 +294,7 @@ public class HttpMxisd {
     private void termsEndpoints(RoutingHandler routingHandler) {
         MatrixConfig matrixConfig = m.getConfig().getMatrix();
         if (matrixConfig.isV2()) {
-            routingHandler.get(GetTermsHandler.PATH, sane(new GetTermsHandler(m.getConfig().getPolicy())));
+            routingHandler.get(GetTermsHandler.PATH, sane(new GetTermsHandler(m.getConfig().getPolicy(), m.getConfig().getServer().getHttp().getCacheMaxAgeInSeconds())));
             routingHandler.post(AcceptTermsHandler.PATH, sane(new AcceptTermsHandler(m.getAccMgr())));
         }
     }
@@ -222,7 +305,7 @@ public class HttpMxisd {
             wrapWithTokenAndAuthorizationHandlers(routingHandler, Methods.GET, new HashDetailsHandler(m.getHashManager()),
                 HashDetailsHandler.PATH, true);
             wrapWithTokenAndAuthorizationHandlers(routingHandler, Methods.POST,
-                new HashLookupHandler(m.getIdentity(), m.getHashManager()), HashLookupHandler.Path, true);
+                new HashLookupHandler(m.getIdentity(), m.getHashManager(), m.getConfig().getLookup().getBulk().getMaxItems()), HashLookupHandler.Path, true, true);
         }
     }
 
@@ -246,6 +329,11 @@ public class HttpMxisd {
 
     private void wrapWithTokenAndAuthorizationHandlers(RoutingHandler routingHandler, HttpString method, HttpHandler httpHandler,
                                                        String url, boolean useAuthorization) {
+        wrapWithTokenAndAuthorizationHandlers(routingHandler, method, httpHandler, url, useAuthorization, false);
+    }
+
+    private void wrapWithTokenAndAuthorizationHandlers(RoutingHandler routingHandler, HttpString method, HttpHandler httpHandler,
+                                                       String url, boolean useAuthorization, boolean async) {
         List<PolicyConfig.PolicyObject> policyObjects = getPolicyObjects(url);
         HttpHandler wrappedHandler;
         if (useAuthorization) {
@@ -254,7 +342,7 @@ public class HttpMxisd {
         } else {
             wrappedHandler = httpHandler;
         }
-        routingHandler.add(method, url, sane(wrappedHandler));
+        routingHandler.add(method, url, async ? saneAsync(wrappedHandler) : sane(wrappedHandler));
     }
 
     @NotNull
@@ -274,7 +362,14 @@ public class HttpMxisd {
     }
 
     private HttpHandler sane(HttpHandler httpHandler) {
-        SaneHandler handler = SaneHandler.around(httpHandler);
+        return dump(SaneHandler.around(httpHandler));
+    }
+
+    private HttpHandler saneAsync(HttpHandler httpHandler) {
+        return dump(SaneHandler.aroundAsync(httpHandler));
+    }
+
+    private HttpHandler dump(HttpHandler handler) {
         if (m.getConfig().getLogging().isRequests()) {
             return new RequestDumpingHandler(handler);
         } else {
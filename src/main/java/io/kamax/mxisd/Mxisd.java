@@ -44,7 +44,9 @@ import io.kamax.mxisd.lookup.provider.BridgeFetcher;
 import io.kamax.mxisd.lookup.provider.RemoteIdentityServerFetcher;
 import io.kamax.mxisd.lookup.strategy.LookupStrategy;
 import io.kamax.mxisd.lookup.strategy.RecursivePriorityLookupStrategy;
+import io.kamax.mxisd.matrix.FederationClients;
 import io.kamax.mxisd.matrix.HomeserverFederationResolver;
+import io.kamax.mxisd.matrix.ServerKeyCache;
 import io.kamax.mxisd.matrix.IdentityServerUtils;
 import io.kamax.mxisd.notification.NotificationHandlerSupplier;
 import io.kamax.mxisd.notification.NotificationHandlers;
@@ -54,6 +56,8 @@ import io.kamax.mxisd.profile.ProfileProviders;
 import io.kamax.mxisd.registration.RegistrationManager;
 import io.kamax.mxisd.session.SessionManager;
 import io.kamax.mxisd.storage.IStorage;
+import io.kamax.mxisd.storage.RetentionManager;
+import io.kamax.mxisd.storage.jdbc.PostgresqlJdbcStorage;
 import io.kamax.mxisd.storage.ormlite.OrmLiteSqlStorage;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -67,12 +71,17 @@ public class Mxisd {
     public static final String Version = StringUtils.defaultIfBlank(Mxisd.class.getPackage().getImplementationVersion(), "UNKNOWN");
     public static final String Agent = Name + "/" + Version;
 
+    // Homeservers use a handful of keys at a time, this covers many more servers than we usually talk to
+    private static final long ServerKeysCacheSize = 10000;
+
     private final MxisdConfig cfg;
 
     private CloseableHttpClient httpClient;
+    private FederationClients fedClients;
     private IRemoteIdentityServerFetcher srvFetcher;
 
     private IStorage store;
+    private RetentionManager retentionMgr;
 
     private Ed25519KeyManager keyMgr;
     private SignatureManager signMgr;
@@ -106,15 +115,23 @@ public class Mxisd {
                 .build();
 
         FederationDnsOverwrite fedDns = new FederationDnsOverwrite(cfg.getDns().getOverwrite());
-        HomeserverFederationResolver resolver = new HomeserverFederationResolver(fedDns, httpClient);
+        HomeserverFederationResolver resolver = new HomeserverFederationResolver(fedDns, httpClient, cfg.getDns().getCache());
+        fedClients = new FederationClients();
+        ServerKeyCache serverKeys = new ServerKeyCache(fedClients, ServerKeysCacheSize);
         IdentityServerUtils.setHttpClient(httpClient);
         srvFetcher = new RemoteIdentityServerFetcher(httpClient);
 
         StorageConfig.BackendEnum storageBackend = cfg.getStorage().getBackend();
         StorageConfig.Provider storageProvider = cfg.getStorage().getProvider();
-        store = new OrmLiteSqlStorage(storageBackend, storageProvider);
-
-        keyMgr = CryptoFactory.getKeyManager(cfg.getKey());
+        if (StorageConfig.BackendEnum.postgresql_jdbc == storageBackend) {
+            store = new PostgresqlJdbcStorage(storageProvider);
+        } else {
+            store = new OrmLiteSqlStorage(storageBackend, storageProvider);
+        }
+        retentionMgr = new RetentionManager(cfg.getStorage().getRetention(), store);
+        retentionMgr.start();
+
+        keyMgr = CryptoFactory.getKeyManager(cfg.getKey(), store);
         signMgr = CryptoFactory.getSignatureManager(cfg, keyMgr);
         clientDns = new ClientDnsOverwrite(cfg.getDns().getOverwrite());
 
@@ -127,15 +144,15 @@ public class Mxisd {
         hashManager.init(cfg.getHashing(), ThreePidProviders.get(), store);
 
         idStrategy = new RecursivePriorityLookupStrategy(cfg.getLookup(), ThreePidProviders.get(), bridgeFetcher, hashManager);
-        pMgr = new ProfileManager(ProfileProviders.get(), clientDns, httpClient);
+        pMgr = new ProfileManager(ProfileProviders.get(), clientDns, httpClient, cfg.getProfile().getCache());
         notifMgr = new NotificationManager(cfg.getNotification(), NotificationHandlers.get());
-        sessMgr = new SessionManager(cfg, store, notifMgr, resolver, signMgr);
-        invMgr = new InvitationManager(cfg, store, idStrategy, keyMgr, signMgr, resolver, notifMgr, pMgr);
+        sessMgr = new SessionManager(cfg, store, notifMgr, resolver, signMgr, serverKeys);
+        invMgr = new InvitationManager(cfg, store, idStrategy, keyMgr, signMgr, resolver, fedClients, notifMgr, pMgr);
         authMgr = new AuthManager(cfg, AuthProviders.get(), idStrategy, invMgr, clientDns, httpClient);
         dirMgr = new DirectoryManager(cfg.getDirectory(), clientDns, httpClient, DirectoryProviders.get());
         regMgr = new RegistrationManager(cfg.getRegister(), httpClient, clientDns, invMgr);
         asHander = new AppSvcManager(this);
-        accMgr = new AccountManager(store, resolver, cfg.getAccountConfig(), cfg.getMatrix());
+        accMgr = new AccountManager(store, resolver, fedClients, cfg.getAccountConfig(), cfg.getMatrix());
     }
 
     public MxisdConfig getConfig() {
@@ -202,6 +219,10 @@ public class Mxisd {
         return store;
     }
 
+    public RetentionManager getRetention() {
+        return retentionMgr;
+    }
+
     public Synapse getSynapse() {
         return synapse;
     }
@@ -219,7 +240,17 @@ public class Mxisd {
     }
 
     public void stop() {
-        // no-op
+        if (retentionMgr != null) {
+            retentionMgr.stop();
+        }
+
+        if (fedClients != null) {
+            fedClients.close();
+        }
+
+        if (dirMgr != null) {
+            dirMgr.stop();
+        }
     }
 
 }
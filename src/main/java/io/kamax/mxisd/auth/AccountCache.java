@@ -0,0 +1,129 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.auth;
+
+import io.kamax.mxisd.storage.ormlite.dao.AccountDao;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded cache of accounts by access token, with the URLs of the terms accepted by their user.
+ * <p>
+ * Entries expire after the TTL, or when the account itself expires if sooner.
+ */
+public class AccountCache {
+
+    public static class Entry {
+
+        private final AccountDao account;
+        private final long expiresAt;
+        private volatile Set<String> acceptedTerms;
+
+        private Entry(AccountDao account, long expiresAt) {
+            this.account = account;
+            this.expiresAt = expiresAt;
+        }
+
+        public AccountDao getAccount() {
+            return account;
+        }
+
+        /**
+         * The lowercase URLs of the terms accepted by the user of the account, if already loaded.
+         *
+         * @return The accepted terms URLs, or empty if not loaded yet.
+         */
+        public Optional<Set<String>> getAcceptedTerms() {
+            return Optional.ofNullable(acceptedTerms);
+        }
+
+        public void setAcceptedTerms(Set<String> acceptedTerms) {
+            this.acceptedTerms = acceptedTerms;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+    }
+
+    private final long maxSize;
+    private final long ttlMillis;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public AccountCache(long maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public Optional<Entry> get(String token) {
+        Entry entry = entries.get(token);
+        if (entry == null) {
+            return Optional.empty();
+        }
+
+        if (entry.isExpired(System.currentTimeMillis())) {
+            entries.remove(token, entry);
+            return Optional.empty();
+        }
+
+        return Optional.of(entry);
+    }
+
+    public Entry put(String token, AccountDao account) {
+        long now = System.currentTimeMillis();
+        long accountExpiresAt = (account.getCreatedAt() + account.getExpiresIn()) * 1000; // account timestamps are in seconds
+        Entry entry = new Entry(account, Math.min(now + ttlMillis, accountExpiresAt));
+
+        if (entries.size() >= maxSize) {
+            evict(now);
+        }
+        entries.put(token, entry);
+        return entry;
+    }
+
+    // Expired entries go first, then arbitrary ones until there is room for a new entry
+    private void evict(long now) {
+        entries.values().removeIf(entry -> entry.isExpired(now));
+
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() >= maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public void invalidate(String token) {
+        entries.remove(token);
+    }
+
+    public void invalidateUser(String userId) {
+        entries.values().removeIf(entry -> entry.getAccount().getUserId().equals(userId));
+    }
+
+    public long size() {
+        return entries.size();
+    }
+
+}
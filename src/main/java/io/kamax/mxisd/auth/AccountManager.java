@@ -9,15 +9,13 @@ import io.kamax.mxisd.config.PolicyConfig;
 import io.kamax.mxisd.exception.BadRequestException;
 import io.kamax.mxisd.exception.InvalidCredentialsException;
 import io.kamax.mxisd.exception.NotFoundException;
+import io.kamax.mxisd.matrix.FederationClients;
 import io.kamax.mxisd.matrix.HomeserverFederationResolver;
-import io.kamax.mxisd.matrix.HomeserverVerifier;
 import io.kamax.mxisd.storage.IStorage;
 import io.kamax.mxisd.storage.ormlite.dao.AccountDao;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,8 +23,12 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 public class AccountManager {
 
@@ -34,14 +36,37 @@ public class AccountManager {
 
     private final IStorage storage;
     private final HomeserverFederationResolver resolver;
+    private final FederationClients clients;
     private final AccountConfig accountConfig;
     private final MatrixConfig matrixConfig;
+    private final AccountCache cache;
 
-    public AccountManager(IStorage storage, HomeserverFederationResolver resolver, AccountConfig accountConfig, MatrixConfig matrixConfig) {
+    public AccountManager(IStorage storage, HomeserverFederationResolver resolver, FederationClients clients, AccountConfig accountConfig,
+                          MatrixConfig matrixConfig) {
         this.storage = storage;
         this.resolver = resolver;
+        this.clients = clients;
         this.accountConfig = accountConfig;
         this.matrixConfig = matrixConfig;
+
+        AccountConfig.Cache cacheCfg = accountConfig.getCache();
+        this.cache = cacheCfg.isEnabled() ? new AccountCache(cacheCfg.getMaxSize(), cacheCfg.getTtlInSeconds() * 1000) : null;
+    }
+
+    // Only used when the cache is enabled
+    private Optional<AccountCache.Entry> findEntry(String token) {
+        Optional<AccountCache.Entry> entry = cache.get(token);
+        if (entry.isPresent()) {
+            return entry;
+        }
+
+        return storage.findAccount(token).map(account -> cache.put(token, account));
+    }
+
+    private void invalidateUser(String userId) {
+        if (Objects.nonNull(cache)) {
+            cache.invalidateUser(userId);
+        }
     }
 
     public String register(OpenIdToken openIdToken) {
@@ -72,25 +97,19 @@ public class AccountManager {
         HttpGet getUserInfo = new HttpGet(
             homeserverURL + "/_matrix/federation/v1/openid/userinfo?access_token=" + openIdToken.getAccessToken());
         String userId;
-        try (CloseableHttpClient httpClient = HttpClients.custom()
-            .setSSLHostnameVerifier(new HomeserverVerifier(homeserverTarget.getDomain())).build()) {
-            try (CloseableHttpResponse response = httpClient.execute(getUserInfo)) {
-                int statusCode = response.getStatusLine().getStatusCode();
-                if (statusCode == HttpStatus.SC_OK) {
-                    String content = EntityUtils.toString(response.getEntity());
-                    LOGGER.trace("Response: {}", content);
-                    JsonObject body = GsonUtil.parseObj(content);
-                    userId = GsonUtil.getStringOrThrow(body, "sub");
-                } else {
-                    LOGGER.error("Wrong response status: {}", statusCode);
-                    throw new InvalidCredentialsException();
-                }
-            } catch (IOException e) {
-                LOGGER.error("Unable to get user info.", e);
+        try (CloseableHttpResponse response = clients.get(homeserverTarget).execute(getUserInfo)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_OK) {
+                String content = EntityUtils.toString(response.getEntity());
+                LOGGER.trace("Response: {}", content);
+                JsonObject body = GsonUtil.parseObj(content);
+                userId = GsonUtil.getStringOrThrow(body, "sub");
+            } else {
+                LOGGER.error("Wrong response status: {}", statusCode);
                 throw new InvalidCredentialsException();
             }
         } catch (IOException e) {
-            LOGGER.error("Unable to create a connection to host: " + homeserverURL, e);
+            LOGGER.error("Unable to get user info from " + homeserverURL, e);
             throw new InvalidCredentialsException();
         }
 
@@ -125,7 +144,12 @@ public class AccountManager {
     }
 
     public AccountDao findAccount(String token) {
-        AccountDao accountDao = storage.findAccount(token).orElse(null);
+        AccountDao accountDao;
+        if (Objects.isNull(cache)) {
+            accountDao = storage.findAccount(token).orElse(null);
+        } else {
+            accountDao = findEntry(token).map(AccountCache.Entry::getAccount).orElse(null);
+        }
 
         if (LOGGER.isInfoEnabled()) {
             if (accountDao != null) {
@@ -144,16 +168,54 @@ public class AccountManager {
     }
 
     public void deleteAccount(String token) {
-        storage.deleteAccepts(token);
-        storage.deleteToken(token);
+        Optional<String> userId = storage.findAccount(token).map(AccountDao::getUserId);
+        try {
+            storage.deleteAccepts(token);
+            storage.deleteToken(token);
+        } finally {
+            if (Objects.nonNull(cache)) {
+                cache.invalidate(token);
+            }
+            // Accepted terms are per user, so other tokens of the same user are affected too
+            userId.ifPresent(this::invalidateUser);
+        }
     }
 
     public void acceptTerm(String token, String url) {
         storage.acceptTerm(token, url);
+        if (Objects.nonNull(cache)) {
+            cache.invalidate(token);
+            // Accepted terms are per user, other tokens of the user may be cached even if this one is not
+            storage.findAccount(token).map(AccountDao::getUserId).ifPresent(this::invalidateUser);
+        }
     }
 
     public boolean isTermAccepted(String token, List<PolicyConfig.PolicyObject> policies) {
-        return policies.isEmpty() || storage.isTermAccepted(token, policies);
+        if (policies.isEmpty()) {
+            return true;
+        }
+
+        if (Objects.isNull(cache)) {
+            return storage.isTermAccepted(token, policies);
+        }
+
+        AccountCache.Entry entry = findEntry(token).orElseThrow(InvalidCredentialsException::new);
+        Set<String> acceptedTerms = entry.getAcceptedTerms().orElseGet(() -> {
+            Set<String> terms = storage.getAcceptedTerms(entry.getAccount().getUserId()).stream()
+                .map(url -> url.toLowerCase(Locale.ROOT))
+                .collect(Collectors.toSet());
+            entry.setAcceptedTerms(terms);
+            return terms;
+        });
+
+        for (PolicyConfig.PolicyObject policy : policies) {
+            for (PolicyConfig.TermObject term : policy.getTerms().values()) {
+                if (acceptedTerms.contains(term.getUrl().toLowerCase(Locale.ROOT))) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     public AccountConfig getAccountConfig() {
@@ -22,26 +22,44 @@ package io.kamax.mxisd.backend.ldap;
 
 import io.kamax.mxisd.config.MatrixConfig;
 import io.kamax.mxisd.config.ldap.LdapConfig;
+import io.kamax.mxisd.directory.DirectoryEntry;
 import io.kamax.mxisd.directory.DirectoryProvider;
 import io.kamax.mxisd.exception.InternalServerError;
 import io.kamax.mxisd.http.io.UserDirectorySearchResult;
 import io.kamax.mxisd.util.GsonUtil;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
-import org.apache.directory.api.ldap.model.cursor.CursorLdapReferralException;
-import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.cursor.SearchCursor;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.message.Control;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
+import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
 import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.api.ldap.model.message.controls.PagedResultsImpl;
+import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.ldap.client.api.LdapConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
 
 public class LdapDirectoryProvider extends LdapBackend implements DirectoryProvider {
 
+    // Entries asked for at once when listing all users, below the usual server size limits
+    private static final int ListPageSize = 500;
+
+    private static final DateTimeFormatter GeneralizedTime = DateTimeFormatter.ofPattern("yyyyMMddHHmmss'Z'").withZone(ZoneOffset.UTC);
+
     private transient final Logger log = LoggerFactory.getLogger(LdapDirectoryProvider.class);
 
     public LdapDirectoryProvider(LdapConfig cfg, MatrixConfig mxCfg) {
@@ -49,6 +67,18 @@ public class LdapDirectoryProvider extends LdapBackend implements DirectoryProvi
     }
 
     protected UserDirectorySearchResult search(String query, List<String> attributes) {
+        return search(query, attributes, 0);
+    }
+
+    /**
+     * Search the users matching the query on any of the attributes.
+     *
+     * @param query      The search term.
+     * @param attributes The attributes to match.
+     * @param limit      The maximum amount of users to return, or 0 for no limit, as for LDAP size limits.
+     * @return The matching users.
+     */
+    protected UserDirectorySearchResult search(String query, List<String> attributes, int limit) {
         UserDirectorySearchResult result = new UserDirectorySearchResult();
         result.setLimited(false);
 
@@ -66,11 +96,34 @@ public class LdapDirectoryProvider extends LdapBackend implements DirectoryProvi
             log.debug("Attributes: {}", GsonUtil.build().toJson(attArray));
 
             for (String baseDN : getBaseDNs()) {
+                if (limit > 0 && result.getResults().size() >= limit) {
+                    break;
+                }
+
                 log.debug("Base DN: {}", baseDN);
 
-                try (EntryCursor cursor = conn.search(baseDN, searchQuery, SearchScope.SUBTREE, attArray)) {
-                    while (cursor.next()) {
-                        Entry entry = cursor.get();
+                SearchRequest request = new SearchRequestImpl();
+                request.setBase(new Dn(baseDN));
+                request.setFilter(searchQuery);
+                request.setScope(SearchScope.SUBTREE);
+                request.addAttributes(attArray);
+                if (limit > 0) {
+                    // The server stops once it has enough, the result code then says so and is not an error for a search
+                    request.setSizeLimit(limit - result.getResults().size());
+                }
+
+                try (SearchCursor cursor = conn.search(request)) {
+                    while ((limit < 1 || result.getResults().size() < limit) && cursor.next()) {
+                        if (cursor.isReferral()) {
+                            log.warn("An entry is only available via referral, skipping");
+                            continue;
+                        }
+
+                        if (!cursor.isEntry()) {
+                            continue;
+                        }
+
+                        Entry entry = cursor.getEntry();
                         log.info("Found possible match, DN: {}", entry.getDn().getName());
                         getAttribute(entry, getUidAtt()).ifPresent(uid -> {
                             log.info("DN {} is a valid match", entry.getDn().getName());
@@ -86,8 +139,6 @@ public class LdapDirectoryProvider extends LdapBackend implements DirectoryProvi
                     }
                 }
             }
-        } catch (CursorLdapReferralException e) {
-            log.warn("An entry is only available via referral, skipping");
         } catch (IOException | LdapException | CursorException e) {
             throw new InternalServerError(e);
         }
@@ -95,22 +146,132 @@ public class LdapDirectoryProvider extends LdapBackend implements DirectoryProvi
         return result;
     }
 
-    @Override
-    public UserDirectorySearchResult searchByDisplayName(String query) {
-        log.info("Performing LDAP directory search on display name using '{}'", query);
+    private List<String> getDisplayNameAttributes() {
         List<String> attributes = new ArrayList<>();
         attributes.add(getAt().getName());
         attributes.addAll(getCfg().getDirectory().getAttribute().getOther());
-        return search(query, attributes);
+        return attributes;
+    }
+
+    private List<String> getThreepidAttributes() {
+        List<String> attributes = new ArrayList<>();
+        attributes.add(getAt().getName());
+        getCfg().getAttribute().getThreepid().forEach((k, v) -> attributes.addAll(v));
+        return attributes;
+    }
+
+    @Override
+    public UserDirectorySearchResult searchByDisplayName(String query) {
+        return searchByDisplayName(query, 0);
+    }
+
+    @Override
+    public UserDirectorySearchResult searchByDisplayName(String query, int limit) {
+        log.info("Performing LDAP directory search on display name using '{}'", query);
+        return search(query, getDisplayNameAttributes(), limit);
     }
 
     @Override
     public UserDirectorySearchResult searchBy3pid(String query) {
+        return searchBy3pid(query, 0);
+    }
+
+    @Override
+    public UserDirectorySearchResult searchBy3pid(String query, int limit) {
         log.info("Performing LDAP directory search on 3PIDs using '{}'", query);
+        return search(query, getThreepidAttributes(), limit);
+    }
+
+    @Override
+    public Optional<List<DirectoryEntry>> listUsers(Instant changedSince) {
+        LdapConfig.Attribute atCfg = getCfg().getAttribute();
+        List<String> otherAtts = getCfg().getDirectory().getAttribute().getOther();
+        List<String> threepidAtts = new ArrayList<>();
+        atCfg.getThreepid().forEach((k, v) -> threepidAtts.addAll(v));
+
         List<String> attributes = new ArrayList<>();
-        attributes.add(getAt().getName());
-        getCfg().getAttribute().getThreepid().forEach((k, v) -> attributes.addAll(v));
-        return search(query, attributes);
+        attributes.add(getUidAtt());
+        attributes.add(atCfg.getName());
+        attributes.addAll(otherAtts);
+        attributes.addAll(threepidAtts);
+        String[] attArray = new String[attributes.size()];
+        attributes.toArray(attArray);
+
+        String filter = getCfg().getDirectory().getFilter();
+        if (Objects.nonNull(changedSince)) {
+            filter = buildWithFilter("(modifyTimestamp>=" + GeneralizedTime.format(changedSince) + ")", filter);
+        }
+        String searchQuery = buildWithFilter("(" + getUidAtt() + "=*)", filter);
+        log.info("Listing LDAP users for the directory index using {}", searchQuery);
+
+        List<DirectoryEntry> users = new ArrayList<>();
+        try (LdapConnection conn = getConn()) {
+            bind(conn);
+
+            for (String baseDN : getBaseDNs()) {
+                log.debug("Base DN: {}", baseDN);
+
+                SearchRequest request = new SearchRequestImpl();
+                request.setBase(new Dn(baseDN));
+                request.setFilter(searchQuery);
+                request.setScope(SearchScope.SUBTREE);
+                request.addAttributes(attArray);
+
+                // Directories cap the size of a single search, so all users are listed page by page
+                byte[] cookie = null;
+                do {
+                    PagedResults paging = new PagedResultsImpl();
+                    paging.setSize(ListPageSize);
+                    paging.setCookie(cookie);
+                    request.addControl(paging);
+
+                    try (SearchCursor cursor = conn.search(request)) {
+                        while (cursor.next()) {
+                            if (cursor.isReferral()) {
+                                log.warn("An entry is only available via referral, skipping");
+                                continue;
+                            }
+
+                            if (cursor.isEntry()) {
+                                toDirectoryEntry(cursor.getEntry(), otherAtts, threepidAtts).ifPresent(users::add);
+                            }
+                        }
+
+                        // Searches cut short, e.g. by a size limit when paging is not supported, are not the whole list
+                        SearchResultDone done = cursor.getSearchResultDone();
+                        ResultCodeEnum code = done.getLdapResult().getResultCode();
+                        if (code != ResultCodeEnum.SUCCESS) {
+                            throw new InternalServerError("Unable to list all LDAP users in " + baseDN + ": " + code);
+                        }
+
+                        Control control = done.getControl(PagedResults.OID);
+                        cookie = control instanceof PagedResults ? ((PagedResults) control).getCookie() : null;
+                    }
+                } while (Objects.nonNull(cookie) && cookie.length > 0);
+            }
+        } catch (IOException | LdapException | CursorException e) {
+            // A partial list would drop users from the index, so it is given up as a whole
+            throw new InternalServerError(e);
+        }
+
+        return Optional.of(users);
+    }
+
+    private Optional<DirectoryEntry> toDirectoryEntry(Entry entry, List<String> otherAtts, List<String> threepidAtts) {
+        LdapConfig.Attribute atCfg = getCfg().getAttribute();
+        return getAttribute(entry, getUidAtt()).flatMap(uid -> {
+            try {
+                List<String> otherNames = new ArrayList<>();
+                otherAtts.forEach(at -> otherNames.addAll(getAttributes(entry, at)));
+                List<String> threepids = new ArrayList<>();
+                threepidAtts.forEach(at -> threepids.addAll(getAttributes(entry, at)));
+                String displayName = getAttribute(entry, atCfg.getName()).orElse(null);
+                return Optional.of(new DirectoryEntry(buildMatrixIdFromUid(uid), displayName, otherNames, threepids));
+            } catch (IllegalArgumentException e) {
+                log.warn("Bind was found but type {} is not supported", atCfg.getUid().getType());
+                return Optional.empty();
+            }
+        });
     }
 
 }
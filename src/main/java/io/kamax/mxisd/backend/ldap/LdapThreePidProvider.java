@@ -44,6 +44,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class LdapThreePidProvider extends LdapBackend implements IThreePidProvider {
@@ -117,18 +118,22 @@ public class LdapThreePidProvider extends LdapBackend implements IThreePidProvid
 
     @Override
     public List<ThreePidMapping> populate(List<ThreePidMapping> mappings) {
-        log.info("Looking up {} mappings", mappings.size());
         List<ThreePidMapping> mappingsFound = new ArrayList<>();
+        populate(mappings, mappingsFound::add);
+        return mappingsFound;
+    }
+
+    @Override
+    public void populate(List<ThreePidMapping> mappings, Consumer<ThreePidMapping> onFound) {
+        log.info("Looking up {} mappings", mappings.size());
 
         try (LdapConnection conn = getConn()) {
             bind(conn);
 
             for (ThreePidMapping mapping : mappings) {
                 try {
-                    lookup(conn, mapping.getMedium(), mapping.getValue()).ifPresent(id -> {
-                        mapping.setMxid(id);
-                        mappingsFound.add(mapping);
-                    });
+                    lookup(conn, mapping.getMedium(), mapping.getValue())
+                            .ifPresent(id -> onFound.accept(new ThreePidMapping(mapping.getMedium(), mapping.getValue(), id)));
                 } catch (IllegalArgumentException e) {
                     log.warn("{} is not a supported 3PID type for LDAP lookup", mapping.getMedium());
                 }
@@ -136,8 +141,6 @@ public class LdapThreePidProvider extends LdapBackend implements IThreePidProvid
         } catch (LdapException | IOException e) {
             throw new InternalServerError(e);
         }
-
-        return mappingsFound;
     }
 
     private List<String> getAttributes() {
@@ -31,6 +31,7 @@ import io.kamax.mxisd.exception.InternalServerError;
 import io.kamax.mxisd.profile.JsonProfileRequest;
 import io.kamax.mxisd.profile.JsonProfileResult;
 import io.kamax.mxisd.profile.ProfileProvider;
+import io.kamax.mxisd.profile.UserProfile;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.client.methods.CloseableHttpResponse;
@@ -65,8 +66,12 @@ public class RestProfileProvider extends RestProvider implements ProfileProvider
             return Optional.empty();
         }
 
+        return fetch(userId, url.get()).flatMap(value);
+    }
+
+    private Optional<JsonProfileResult> fetch(_MatrixID userId, String url) {
         try {
-            URIBuilder builder = new URIBuilder(url.get());
+            URIBuilder builder = new URIBuilder(url);
             HttpPost req = new HttpPost(builder.build());
             req.setEntity(new StringEntity(GsonUtil.get().toJson(new JsonProfileRequest(userId)), ContentType.APPLICATION_JSON));
             try (CloseableHttpResponse res = client.execute(req)) {
@@ -92,8 +97,7 @@ public class RestProfileProvider extends RestProvider implements ProfileProvider
                     return Optional.empty();
                 }
 
-                JsonProfileResult profile = gson.fromJson(pJson.get(), JsonProfileResult.class);
-                return value.apply(profile);
+                return Optional.ofNullable(gson.fromJson(pJson.get(), JsonProfileResult.class));
             }
         } catch (JsonSyntaxException | InvalidJsonException e) {
             log.error("Unable to parse backend response as JSON", e);
@@ -149,4 +153,33 @@ public class RestProfileProvider extends RestProvider implements ProfileProvider
         }).orElseGet(Collections::emptyList);
     }
 
+    @Override
+    public UserProfile getProfile(_MatrixID userId) {
+        // Attributes served by the same endpoint are fetched with a single request
+        Map<String, Optional<JsonProfileResult>> results = new HashMap<>();
+        Function<String, Optional<JsonProfileResult>> fetch = url -> {
+            if (StringUtils.isBlank(url)) {
+                return Optional.empty();
+            }
+            // A failing endpoint only leaves the attributes it serves empty
+            return results.computeIfAbsent(url, u -> UserProfile.fetchAttribute("profile from " + u, userId,
+                    () -> fetch(userId, u), Optional.empty()));
+        };
+
+        RestBackendConfig.ProfileEndpoints endpoints = cfg.getEndpoints().getProfile();
+        String displayName = fetch.apply(endpoints.getDisplayName())
+                .map(JsonProfileResult::getDisplayName)
+                .filter(StringUtils::isNotBlank)
+                .orElse(null);
+        List<_ThreePid> threepids = fetch.apply(endpoints.getThreepids())
+                .map(JsonProfileResult::getThreepids)
+                .<List<_ThreePid>>map(ArrayList::new)
+                .orElseGet(Collections::emptyList);
+        List<String> roles = fetch.apply(endpoints.getRoles())
+                .map(JsonProfileResult::getRoles)
+                .<List<String>>map(ArrayList::new)
+                .orElseGet(Collections::emptyList);
+        return new UserProfile(displayName, threepids, roles);
+    }
+
 }
@@ -27,6 +27,7 @@ import io.kamax.mxisd.UserIdType;
 import io.kamax.mxisd.config.sql.SqlConfig;
 import io.kamax.mxisd.exception.InternalServerError;
 import io.kamax.mxisd.profile.ProfileProvider;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,6 +60,10 @@ public abstract class SqlProfileProvider implements ProfileProvider {
     @Override
     public Optional<String> getDisplayName(_MatrixID user) {
         String stmtSql = cfg.getDisplayName().getQuery();
+        if (StringUtils.isBlank(stmtSql)) {
+            return Optional.empty();
+        }
+
         try (Connection conn = pool.get()) {
             try (PreparedStatement stmt = conn.prepareStatement(stmtSql)) {
                 stmt.setString(1, user.getId());
@@ -81,6 +86,10 @@ public abstract class SqlProfileProvider implements ProfileProvider {
         List<_ThreePid> threepids = new ArrayList<>();
 
         String stmtSql = cfg.getThreepid().getQuery();
+        if (StringUtils.isBlank(stmtSql)) {
+            return threepids;
+        }
+
         try (Connection conn = pool.get()) {
             PreparedStatement stmt = conn.prepareStatement(stmtSql);
             stmt.setString(1, user.getId());
@@ -100,11 +109,15 @@ public abstract class SqlProfileProvider implements ProfileProvider {
 
     @Override
     public List<String> getRoles(_MatrixID user) {
-        log.info("Querying roles for {}", user.getId());
-
         List<String> roles = new ArrayList<>();
 
         String stmtSql = cfg.getRole().getQuery();
+        if (StringUtils.isBlank(stmtSql)) {
+            // Roles are optional, no query means none
+            return roles;
+        }
+
+        log.info("Querying roles for {}", user.getId());
         try (Connection conn = pool.get()) {
             PreparedStatement stmt = conn.prepareStatement(stmtSql);
             if (UserIdType.Localpart.is(cfg.getRole().getType())) {
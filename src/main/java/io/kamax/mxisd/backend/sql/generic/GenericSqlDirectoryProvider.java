@@ -69,10 +69,24 @@ public class GenericSqlDirectoryProvider implements DirectoryProvider {
     }
 
     public UserDirectorySearchResult search(String searchTerm, GenericSqlProviderConfig.Query query) {
+        return search(searchTerm, query, 0);
+    }
+
+    /**
+     * Run a directory query.
+     *
+     * @param searchTerm The search term.
+     * @param query      The query to run.
+     * @param limit      The maximum amount of rows to read, or 0 for no limit, as for JDBC max rows.
+     * @return The users found.
+     */
+    public UserDirectorySearchResult search(String searchTerm, GenericSqlProviderConfig.Query query, int limit) {
         try (Connection conn = pool.get()) {
             log.info("Will execute query: {}", query.getValue());
             try (PreparedStatement stmt = conn.prepareStatement(query.getValue())) {
                 setParameters(stmt, searchTerm);
+                // Lets the database stop once it has enough rows, instead of sending all the matches
+                stmt.setMaxRows(Math.max(0, limit));
 
                 try (ResultSet rSet = stmt.executeQuery()) {
                     UserDirectorySearchResult result = new UserDirectorySearchResult();
@@ -97,14 +111,24 @@ public class GenericSqlDirectoryProvider implements DirectoryProvider {
 
     @Override
     public UserDirectorySearchResult searchByDisplayName(String searchTerm) {
+        return searchByDisplayName(searchTerm, 0);
+    }
+
+    @Override
+    public UserDirectorySearchResult searchByDisplayName(String searchTerm, int limit) {
         log.info("Searching users by display name using '{}'", searchTerm);
-        return search(searchTerm, cfg.getDirectory().getQuery().getName());
+        return search(searchTerm, cfg.getDirectory().getQuery().getName(), limit);
     }
 
     @Override
     public UserDirectorySearchResult searchBy3pid(String searchTerm) {
+        return searchBy3pid(searchTerm, 0);
+    }
+
+    @Override
+    public UserDirectorySearchResult searchBy3pid(String searchTerm, int limit) {
         log.info("Searching users by 3PID using '{}'", searchTerm);
-        return search(searchTerm, cfg.getDirectory().getQuery().getThreepid());
+        return search(searchTerm, cfg.getDirectory().getQuery().getThreepid(), limit);
     }
 
 }
@@ -1,5 +1,6 @@
 package io.kamax.mxisd.config;
 
+import io.kamax.mxisd.exception.ConfigurationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -7,7 +8,63 @@ public class AccountConfig {
 
     private final static Logger log = LoggerFactory.getLogger(DirectoryConfig.class);
 
+    public static class Cache {
+
+        private boolean enabled = true;
+        private long maxSize = 10000;
+        private String ttl = "5m";
+        private transient long ttlInSeconds = 300;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public String getTtl() {
+            return ttl;
+        }
+
+        public void setTtl(String ttl) {
+            this.ttl = ttl;
+        }
+
+        public long getTtlInSeconds() {
+            return ttlInSeconds;
+        }
+
+        public void setTtlInSeconds(long ttlInSeconds) {
+            this.ttlInSeconds = ttlInSeconds;
+        }
+
+        public void build() {
+            if (!isEnabled()) {
+                return;
+            }
+
+            if (getMaxSize() < 1) {
+                throw new ConfigurationException("accountConfig.cache.maxSize");
+            }
+
+            setTtlInSeconds(new DurationDeserializer().deserialize(getTtl()));
+            if (getTtlInSeconds() < 1) {
+                throw new ConfigurationException("accountConfig.cache.ttl");
+            }
+        }
+    }
+
     private boolean allowOnlyTrustDomains = true;
+    private Cache cache = new Cache();
 
     public boolean isAllowOnlyTrustDomains() {
         return allowOnlyTrustDomains;
@@ -17,8 +74,22 @@ public class AccountConfig {
         this.allowOnlyTrustDomains = allowOnlyTrustDomains;
     }
 
+    public Cache getCache() {
+        return cache;
+    }
+
+    public void setCache(Cache cache) {
+        this.cache = cache;
+    }
+
     public void build() {
+        getCache().build();
         log.info("--- Account config ---");
         log.info("Allow registration only for trust domain: {}", isAllowOnlyTrustDomains());
+        log.info("Token cache enabled: {}", getCache().isEnabled());
+        if (getCache().isEnabled()) {
+            log.info("Token cache max size: {}", getCache().getMaxSize());
+            log.info("Token cache TTL: {}", getCache().getTtl());
+        }
     }
 }
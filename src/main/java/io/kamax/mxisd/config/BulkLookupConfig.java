@@ -20,11 +20,14 @@
 
 package io.kamax.mxisd.config;
 
+import io.kamax.mxisd.exception.ConfigurationException;
+
 import java.util.Objects;
 
 public class BulkLookupConfig {
 
     private Boolean enabled;
+    private int maxItems = 100000;
 
     public Boolean getEnabled() {
         return enabled;
@@ -34,11 +37,22 @@ public class BulkLookupConfig {
         this.enabled = enabled;
     }
 
+    public int getMaxItems() {
+        return maxItems;
+    }
+
+    public void setMaxItems(int maxItems) {
+        this.maxItems = maxItems;
+    }
+
     public void build() {
         if (Objects.isNull(enabled)) {
             enabled = true;
         }
 
+        if (maxItems < 1) {
+            throw new ConfigurationException("lookup.bulk.maxItems");
+        }
     }
 
 }
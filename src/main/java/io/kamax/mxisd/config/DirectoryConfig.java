@@ -20,6 +20,7 @@
 
 package io.kamax.mxisd.config;
 
+import io.kamax.mxisd.exception.ConfigurationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,7 +51,65 @@ public class DirectoryConfig {
 
     }
 
+    public static class Index {
+
+        private boolean enabled = false;
+        private String refresh = "1m";
+        private transient long refreshInSeconds;
+        private String fullRefresh = "1h";
+        private transient long fullRefreshInSeconds;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getRefresh() {
+            return refresh;
+        }
+
+        public void setRefresh(String refresh) {
+            this.refresh = refresh;
+        }
+
+        public long getRefreshInSeconds() {
+            return refreshInSeconds;
+        }
+
+        public String getFullRefresh() {
+            return fullRefresh;
+        }
+
+        public void setFullRefresh(String fullRefresh) {
+            this.fullRefresh = fullRefresh;
+        }
+
+        public long getFullRefreshInSeconds() {
+            return fullRefreshInSeconds;
+        }
+
+        public void build() {
+            refreshInSeconds = new DurationDeserializer().deserialize(getRefresh());
+            if (refreshInSeconds < 1) {
+                throw new ConfigurationException("directory.index.refresh");
+            }
+
+            fullRefreshInSeconds = new DurationDeserializer().deserialize(getFullRefresh());
+            if (fullRefreshInSeconds < refreshInSeconds) {
+                throw new ConfigurationException("directory.index.fullRefresh", "Must be at least the refresh interval");
+            }
+        }
+
+    }
+
     private Exclude exclude = new Exclude();
+    private Index index = new Index();
+    private int threads = 8;
+    private String timeout = "10s";
+    private transient long timeoutInSeconds;
 
     public Exclude getExclude() {
         return exclude;
@@ -60,11 +119,56 @@ public class DirectoryConfig {
         this.exclude = exclude;
     }
 
+    public Index getIndex() {
+        return index;
+    }
+
+    public void setIndex(Index index) {
+        this.index = index;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public String getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(String timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTimeoutInSeconds() {
+        return timeoutInSeconds;
+    }
+
     public void build() {
+        if (getThreads() < 1) {
+            throw new ConfigurationException("directory.threads");
+        }
+
+        timeoutInSeconds = new DurationDeserializer().deserialize(getTimeout());
+        if (timeoutInSeconds < 1) {
+            throw new ConfigurationException("directory.timeout");
+        }
+
+        getIndex().build();
+
         log.info("--- Directory config ---");
         log.info("Exclude:");
         log.info("  Homeserver: {}", getExclude().getHomeserver());
         log.info("  3PID: {}", getExclude().getThreepid());
+        log.info("Threads: {}", getThreads());
+        log.info("Timeout: {}", getTimeout());
+        log.info("Index:");
+        log.info("  Enabled: {}", getIndex().isEnabled());
+        log.info("  Refresh: {}", getIndex().getRefresh());
+        log.info("  Full refresh: {}", getIndex().getFullRefresh());
     }
 
 }
@@ -94,6 +94,28 @@ public class InvitationConfig {
         }
     }
 
+    public static class Loading {
+
+        private long pageSize = 1000;
+        private boolean background = false;
+
+        public long getPageSize() {
+            return pageSize;
+        }
+
+        public void setPageSize(long pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        public boolean isBackground() {
+            return background;
+        }
+
+        public void setBackground(boolean background) {
+            this.background = background;
+        }
+    }
+
     public static class SenderPolicy {
 
         private List<String> hasRole = new ArrayList<>();
@@ -122,6 +144,7 @@ public class InvitationConfig {
 
     private Expiration expiration = new Expiration();
     private Resolution resolution = new Resolution();
+    private Loading loading = new Loading();
     private Policies policy = new Policies();
     private boolean fullDisplayName = false;
 
@@ -141,6 +164,14 @@ public class InvitationConfig {
         this.resolution = resolution;
     }
 
+    public Loading getLoading() {
+        return loading;
+    }
+
+    public void setLoading(Loading loading) {
+        this.loading = loading;
+    }
+
     public Policies getPolicy() {
         return policy;
     }
@@ -161,6 +192,7 @@ public class InvitationConfig {
         log.info("--- Invite config ---");
         log.info("Expiration: {}", GsonUtil.get().toJson(getExpiration()));
         log.info("Resolution: {}", GsonUtil.get().toJson(getResolution()));
+        log.info("Loading: {}", GsonUtil.get().toJson(getLoading()));
         log.info("Policies: {}", GsonUtil.get().toJson(getPolicy()));
         log.info("Print full display name on invitation: {}", isFullDisplayName());
     }
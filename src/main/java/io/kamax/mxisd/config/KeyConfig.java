@@ -22,10 +22,86 @@ package io.kamax.mxisd.config;
 
 import io.kamax.mxisd.exception.ConfigurationException;
 import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class KeyConfig {
 
+    private static final Logger log = LoggerFactory.getLogger(KeyConfig.class);
+
+    public enum EphemeralStorageEnum {
+        file,
+        sql
+    }
+
+    public static class Ephemeral {
+
+        private EphemeralStorageEnum storage = EphemeralStorageEnum.file;
+        private String cleanupDelay = "1h";
+        private transient long cleanupDelayInSeconds = 3600;
+        private String maxAge;
+        private transient long maxAgeInSeconds = 0;
+
+        public EphemeralStorageEnum getStorage() {
+            return storage;
+        }
+
+        public void setStorage(EphemeralStorageEnum storage) {
+            this.storage = storage;
+        }
+
+        public String getCleanupDelay() {
+            return cleanupDelay;
+        }
+
+        public void setCleanupDelay(String cleanupDelay) {
+            this.cleanupDelay = cleanupDelay;
+        }
+
+        public long getCleanupDelayInSeconds() {
+            return cleanupDelayInSeconds;
+        }
+
+        public void setCleanupDelayInSeconds(long cleanupDelayInSeconds) {
+            this.cleanupDelayInSeconds = cleanupDelayInSeconds;
+        }
+
+        public String getMaxAge() {
+            return maxAge;
+        }
+
+        public void setMaxAge(String maxAge) {
+            this.maxAge = maxAge;
+        }
+
+        public long getMaxAgeInSeconds() {
+            return maxAgeInSeconds;
+        }
+
+        public void setMaxAgeInSeconds(long maxAgeInSeconds) {
+            this.maxAgeInSeconds = maxAgeInSeconds;
+        }
+
+        public void build() {
+            if (storage == null) {
+                throw new ConfigurationException("key.ephemeral.storage");
+            }
+
+            if (EphemeralStorageEnum.sql == storage) {
+                setCleanupDelayInSeconds(new DurationDeserializer().deserialize(getCleanupDelay()));
+                if (getCleanupDelayInSeconds() < 1) {
+                    throw new ConfigurationException("key.ephemeral.cleanupDelay");
+                }
+
+                if (StringUtils.isNotBlank(getMaxAge())) {
+                    setMaxAgeInSeconds(new DurationDeserializer().deserialize(getMaxAge()));
+                }
+            }
+        }
+    }
+
     private String path;
+    private Ephemeral ephemeral = new Ephemeral();
 
     public void setPath(String path) {
         this.path = path;
@@ -35,10 +111,26 @@ public class KeyConfig {
         return path;
     }
 
+    public Ephemeral getEphemeral() {
+        return ephemeral;
+    }
+
+    public void setEphemeral(Ephemeral ephemeral) {
+        this.ephemeral = ephemeral;
+    }
+
     public void build() {
         if (StringUtils.isBlank(getPath())) {
             throw new ConfigurationException("key.path");
         }
+
+        getEphemeral().build();
+        log.info("--- Key config ---");
+        log.info("Ephemeral keys storage: {}", getEphemeral().getStorage());
+        if (EphemeralStorageEnum.sql == getEphemeral().getStorage()) {
+            log.info("Ephemeral keys cleanup delay: {}", getEphemeral().getCleanupDelay());
+            log.info("Ephemeral keys max age: {}", StringUtils.defaultIfBlank(getEphemeral().getMaxAge(), "unlimited"));
+        }
     }
 
 }
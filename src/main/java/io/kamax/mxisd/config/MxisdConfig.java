@@ -29,6 +29,7 @@ import io.kamax.mxisd.config.sql.synapse.SynapseSqlProviderConfig;
 import io.kamax.mxisd.config.threepid.ThreePidConfig;
 import io.kamax.mxisd.config.threepid.notification.NotificationConfig;
 import io.kamax.mxisd.config.wordpress.WordpressConfig;
+import io.kamax.mxisd.exception.ConfigurationException;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,7 +40,110 @@ public class MxisdConfig {
 
     public static class Dns {
 
+        public static class Cache {
+
+            private boolean enabled = true;
+            private long maxSize = 1000;
+            private String minTtl = "1m";
+            private String maxTtl = "24h";
+            private String errorTtl = "1m";
+            private String maxErrorTtl = "1h";
+            private transient long minTtlInSeconds;
+            private transient long maxTtlInSeconds;
+            private transient long errorTtlInSeconds;
+            private transient long maxErrorTtlInSeconds;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public long getMaxSize() {
+                return maxSize;
+            }
+
+            public void setMaxSize(long maxSize) {
+                this.maxSize = maxSize;
+            }
+
+            public String getMinTtl() {
+                return minTtl;
+            }
+
+            public void setMinTtl(String minTtl) {
+                this.minTtl = minTtl;
+            }
+
+            public String getMaxTtl() {
+                return maxTtl;
+            }
+
+            public void setMaxTtl(String maxTtl) {
+                this.maxTtl = maxTtl;
+            }
+
+            public String getErrorTtl() {
+                return errorTtl;
+            }
+
+            public void setErrorTtl(String errorTtl) {
+                this.errorTtl = errorTtl;
+            }
+
+            public String getMaxErrorTtl() {
+                return maxErrorTtl;
+            }
+
+            public void setMaxErrorTtl(String maxErrorTtl) {
+                this.maxErrorTtl = maxErrorTtl;
+            }
+
+            public long getMinTtlInSeconds() {
+                return minTtlInSeconds;
+            }
+
+            public long getMaxTtlInSeconds() {
+                return maxTtlInSeconds;
+            }
+
+            public long getErrorTtlInSeconds() {
+                return errorTtlInSeconds;
+            }
+
+            public long getMaxErrorTtlInSeconds() {
+                return maxErrorTtlInSeconds;
+            }
+
+            public void build() {
+                if (!isEnabled()) {
+                    return;
+                }
+
+                if (getMaxSize() < 1) {
+                    throw new ConfigurationException("dns.cache.maxSize");
+                }
+
+                DurationDeserializer durations = new DurationDeserializer();
+                minTtlInSeconds = durations.deserialize(getMinTtl());
+                maxTtlInSeconds = durations.deserialize(getMaxTtl());
+                if (maxTtlInSeconds < minTtlInSeconds) {
+                    throw new ConfigurationException("dns.cache.maxTtl");
+                }
+
+                errorTtlInSeconds = durations.deserialize(getErrorTtl());
+                maxErrorTtlInSeconds = durations.deserialize(getMaxErrorTtl());
+                if (maxErrorTtlInSeconds < errorTtlInSeconds) {
+                    throw new ConfigurationException("dns.cache.maxErrorTtl");
+                }
+            }
+
+        }
+
         private DnsOverwriteConfig overwrite = new DnsOverwriteConfig();
+        private Cache cache = new Cache();
 
         public DnsOverwriteConfig getOverwrite() {
             return overwrite;
@@ -49,8 +153,17 @@ public class MxisdConfig {
             this.overwrite = overwrite;
         }
 
+        public Cache getCache() {
+            return cache;
+        }
+
+        public void setCache(Cache cache) {
+            this.cache = cache;
+        }
+
         public void build() {
             overwrite.build();
+            cache.build();
         }
 
     }
@@ -59,6 +172,7 @@ public class MxisdConfig {
 
         private BulkLookupConfig bulk = new BulkLookupConfig();
         private RecursiveLookupConfig recursive = new RecursiveLookupConfig();
+        private int threads = 32;
 
         public BulkLookupConfig getBulk() {
             return bulk;
@@ -76,9 +190,88 @@ public class MxisdConfig {
             this.recursive = recursive;
         }
 
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+
         public void build() {
             getBulk().build();
             getRecursive().build();
+
+            if (getThreads() < 1) {
+                throw new ConfigurationException("lookup.threads");
+            }
+        }
+
+    }
+
+    public static class Profile {
+
+        public static class Cache {
+
+            private boolean enabled = true;
+            private long maxSize = 10000;
+            private String ttl = "1m";
+            private transient long ttlInSeconds;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public long getMaxSize() {
+                return maxSize;
+            }
+
+            public void setMaxSize(long maxSize) {
+                this.maxSize = maxSize;
+            }
+
+            public String getTtl() {
+                return ttl;
+            }
+
+            public void setTtl(String ttl) {
+                this.ttl = ttl;
+            }
+
+            public long getTtlInSeconds() {
+                return ttlInSeconds;
+            }
+
+            public void build() {
+                if (!isEnabled()) {
+                    return;
+                }
+
+                if (getMaxSize() < 1) {
+                    throw new ConfigurationException("profile.cache.maxSize");
+                }
+
+                ttlInSeconds = new DurationDeserializer().deserialize(getTtl());
+            }
+
+        }
+
+        private Cache cache = new Cache();
+
+        public Cache getCache() {
+            return cache;
+        }
+
+        public void setCache(Cache cache) {
+            this.cache = cache;
+        }
+
+        public void build() {
+            cache.build();
         }
 
     }
@@ -116,6 +309,7 @@ public class MxisdConfig {
     private ViewConfig view = new ViewConfig();
     private WordpressConfig wordpress = new WordpressConfig();
     private PolicyConfig policy = new PolicyConfig();
+    private Profile profile = new Profile();
     private HashingConfig hashing = new HashingConfig();
     private LoggingConfig logging = new LoggingConfig();
     private InternalAPIConfig internal = new InternalAPIConfig();
@@ -208,6 +402,14 @@ public class MxisdConfig {
         this.ldap = ldap;
     }
 
+    public Profile getProfile() {
+        return profile;
+    }
+
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
     public Lookup getLookup() {
         return lookup;
     }
@@ -385,6 +587,7 @@ public class MxisdConfig {
         getForward().build();
         getInvite().build();
         getKey().build();
+        validateEphemeralKeysMaxAge();
         getLdap().build();
         getLookup().build();
         getMatrix().build();
@@ -402,10 +605,30 @@ public class MxisdConfig {
         getView().build();
         getWordpress().build();
         getPolicy().build();
+        getProfile().build();
         getHashing().build(getMatrix());
         getInternal().build();
 
         return this;
     }
 
+    // Ephemeral keys sign pending invites, so they must not be purged before the invites expire
+    private void validateEphemeralKeysMaxAge() {
+        long maxAge = getKey().getEphemeral().getMaxAgeInSeconds();
+        if (maxAge < 1) {
+            return;
+        }
+
+        if (Boolean.FALSE.equals(getInvite().getExpiration().isEnabled())) {
+            throw new ConfigurationException("key.ephemeral.maxAge", "Cannot be set while invite expiration is disabled, " +
+                    "keys of pending invites would be purged");
+        }
+
+        long inviteExpiry = getInvite().getExpiration().getAfter() * 60;
+        if (maxAge < inviteExpiry) {
+            throw new ConfigurationException("key.ephemeral.maxAge", "Cannot be shorter than the invite expiration delay of " +
+                    getInvite().getExpiration().getAfter() + " minutes");
+        }
+    }
+
 }
@@ -20,6 +20,9 @@
 
 package io.kamax.mxisd.config;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class PostgresqlStorageConfig implements DatabaseStorageConfig {
 
     private String database;
@@ -38,6 +41,14 @@ public class PostgresqlStorageConfig implements DatabaseStorageConfig {
 
     private boolean testBeforeGetFromPool = false;
 
+    private int maxPoolSize = 10;
+
+    private List<String> replicas = new ArrayList<>();
+
+    private long replicaStalenessMillis = 10 * 1000;
+
+    private boolean replicaMissFallback = true;
+
     @Override
     public String getDatabase() {
         return database;
@@ -102,4 +113,36 @@ public class PostgresqlStorageConfig implements DatabaseStorageConfig {
     public void setTestBeforeGetFromPool(boolean testBeforeGetFromPool) {
         this.testBeforeGetFromPool = testBeforeGetFromPool;
     }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public void setMaxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public List<String> getReplicas() {
+        return replicas;
+    }
+
+    public void setReplicas(List<String> replicas) {
+        this.replicas = replicas;
+    }
+
+    public long getReplicaStalenessMillis() {
+        return replicaStalenessMillis;
+    }
+
+    public void setReplicaStalenessMillis(long replicaStalenessMillis) {
+        this.replicaStalenessMillis = replicaStalenessMillis;
+    }
+
+    public boolean isReplicaMissFallback() {
+        return replicaMissFallback;
+    }
+
+    public void setReplicaMissFallback(boolean replicaMissFallback) {
+        this.replicaMissFallback = replicaMissFallback;
+    }
 }
@@ -20,14 +20,72 @@
 
 package io.kamax.mxisd.config;
 
+import io.kamax.mxisd.exception.ConfigurationException;
+
 import java.util.ArrayList;
 import java.util.List;
 
 public class RecursiveLookupConfig {
 
+    public static class Remote {
+
+        private int threads = 16;
+        private int maxPerServer = 4;
+        private String timeout = "30s";
+        private transient long timeoutInSeconds = 30;
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public void setThreads(int threads) {
+            this.threads = threads;
+        }
+
+        public int getMaxPerServer() {
+            return maxPerServer;
+        }
+
+        public void setMaxPerServer(int maxPerServer) {
+            this.maxPerServer = maxPerServer;
+        }
+
+        public String getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(String timeout) {
+            this.timeout = timeout;
+        }
+
+        public long getTimeoutInSeconds() {
+            return timeoutInSeconds;
+        }
+
+        public void setTimeoutInSeconds(long timeoutInSeconds) {
+            this.timeoutInSeconds = timeoutInSeconds;
+        }
+
+        public void build() {
+            if (getThreads() < 1) {
+                throw new ConfigurationException("lookup.recursive.remote.threads");
+            }
+
+            if (getMaxPerServer() < 1) {
+                throw new ConfigurationException("lookup.recursive.remote.maxPerServer");
+            }
+
+            setTimeoutInSeconds(new DurationDeserializer().deserialize(getTimeout()));
+            if (getTimeoutInSeconds() < 1) {
+                throw new ConfigurationException("lookup.recursive.remote.timeout");
+            }
+        }
+    }
+
     private boolean enabled = true;
     private List<String> allowedCidr = new ArrayList<>();
     private RecursiveLookupBridgeConfig bridge = new RecursiveLookupBridgeConfig();
+    private Remote remote = new Remote();
 
     public RecursiveLookupConfig() {
         allowedCidr.add("127.0.0.0/8");
@@ -61,8 +119,17 @@ public class RecursiveLookupConfig {
         this.bridge = bridge;
     }
 
+    public Remote getRemote() {
+        return remote;
+    }
+
+    public void setRemote(Remote remote) {
+        this.remote = remote;
+    }
+
     public void build() {
         bridge.build();
+        remote.build();
     }
 
 }
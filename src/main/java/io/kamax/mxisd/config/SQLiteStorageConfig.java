@@ -23,6 +23,10 @@ package io.kamax.mxisd.config;
 public class SQLiteStorageConfig implements DatabaseStorageConfig {
 
     private String database;
+    private String journalMode = "WAL";
+    private String synchronous = "NORMAL";
+    private int busyTimeout = 5000;
+    private int readConnections = 4;
 
     @Override
     public String getDatabase() {
@@ -33,4 +37,36 @@ public class SQLiteStorageConfig implements DatabaseStorageConfig {
         this.database = database;
     }
 
+    public String getJournalMode() {
+        return journalMode;
+    }
+
+    public void setJournalMode(String journalMode) {
+        this.journalMode = journalMode;
+    }
+
+    public String getSynchronous() {
+        return synchronous;
+    }
+
+    public void setSynchronous(String synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    public int getBusyTimeout() {
+        return busyTimeout;
+    }
+
+    public void setBusyTimeout(int busyTimeout) {
+        this.busyTimeout = busyTimeout;
+    }
+
+    public int getReadConnections() {
+        return readConnections;
+    }
+
+    public void setReadConnections(int readConnections) {
+        this.readConnections = readConnections;
+    }
+
 }
@@ -20,6 +20,7 @@
 
 package io.kamax.mxisd.config;
 
+import io.kamax.mxisd.exception.ConfigurationException;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,10 +32,274 @@ public class ServerConfig {
 
     private transient final Logger log = LoggerFactory.getLogger(ServerConfig.class);
 
+    public static class Tls {
+
+        private boolean enabled = false;
+        private int port = 8443;
+        private String hostname;
+        private String keyStore;
+        private String keyStoreType = "PKCS12";
+        private String keyStorePassword;
+        private String keyPassword;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public String getHostname() {
+            return hostname;
+        }
+
+        public void setHostname(String hostname) {
+            this.hostname = hostname;
+        }
+
+        public String getKeyStore() {
+            return keyStore;
+        }
+
+        public void setKeyStore(String keyStore) {
+            this.keyStore = keyStore;
+        }
+
+        public String getKeyStoreType() {
+            return keyStoreType;
+        }
+
+        public void setKeyStoreType(String keyStoreType) {
+            this.keyStoreType = keyStoreType;
+        }
+
+        public String getKeyStorePassword() {
+            return keyStorePassword;
+        }
+
+        public void setKeyStorePassword(String keyStorePassword) {
+            this.keyStorePassword = keyStorePassword;
+        }
+
+        public String getKeyPassword() {
+            return keyPassword;
+        }
+
+        public void setKeyPassword(String keyPassword) {
+            this.keyPassword = keyPassword;
+        }
+
+        public void build(String defaultHostname) {
+            if (!isEnabled()) {
+                return;
+            }
+
+            if (StringUtils.isBlank(getKeyStore())) {
+                throw new ConfigurationException("server.http.tls.keyStore");
+            }
+
+            if (StringUtils.isBlank(getKeyStoreType())) {
+                throw new ConfigurationException("server.http.tls.keyStoreType");
+            }
+
+            if (StringUtils.isBlank(getHostname())) {
+                setHostname(defaultHostname);
+            }
+
+            if (getKeyPassword() == null) {
+                setKeyPassword(getKeyStorePassword());
+            }
+        }
+    }
+
+    public static class Compression {
+
+        private boolean enabled = false;
+        private long minSize = 1024;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getMinSize() {
+            return minSize;
+        }
+
+        public void setMinSize(long minSize) {
+            this.minSize = minSize;
+        }
+
+        public void build() {
+            if (getMinSize() < 0) {
+                throw new ConfigurationException("server.http.compression.minSize");
+            }
+        }
+    }
+
+    public static class Http {
+
+        private int ioThreads = 0;
+        private int workerThreads = 0;
+        private int bufferSize = 0;
+        private Boolean directBuffers;
+        private boolean http2 = false;
+        private boolean keepAlive = true;
+        private long maxEntitySize = 0;
+        private String idleTimeout;
+        private transient long idleTimeoutInSeconds = 0;
+        private Tls tls = new Tls();
+        private Compression compression = new Compression();
+        private String cacheMaxAge = "1h";
+        private transient long cacheMaxAgeInSeconds = 0;
+
+        public int getIoThreads() {
+            return ioThreads;
+        }
+
+        public void setIoThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+        }
+
+        public int getWorkerThreads() {
+            return workerThreads;
+        }
+
+        public void setWorkerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+        }
+
+        public int getBufferSize() {
+            return bufferSize;
+        }
+
+        public void setBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+        }
+
+        public Boolean getDirectBuffers() {
+            return directBuffers;
+        }
+
+        public void setDirectBuffers(Boolean directBuffers) {
+            this.directBuffers = directBuffers;
+        }
+
+        public boolean isHttp2() {
+            return http2;
+        }
+
+        public void setHttp2(boolean http2) {
+            this.http2 = http2;
+        }
+
+        public boolean isKeepAlive() {
+            return keepAlive;
+        }
+
+        public void setKeepAlive(boolean keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+
+        public long getMaxEntitySize() {
+            return maxEntitySize;
+        }
+
+        public void setMaxEntitySize(long maxEntitySize) {
+            this.maxEntitySize = maxEntitySize;
+        }
+
+        public String getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(String idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+
+        public long getIdleTimeoutInSeconds() {
+            return idleTimeoutInSeconds;
+        }
+
+        public void setIdleTimeoutInSeconds(long idleTimeoutInSeconds) {
+            this.idleTimeoutInSeconds = idleTimeoutInSeconds;
+        }
+
+        public Tls getTls() {
+            return tls;
+        }
+
+        public void setTls(Tls tls) {
+            this.tls = tls;
+        }
+
+        public Compression getCompression() {
+            return compression;
+        }
+
+        public void setCompression(Compression compression) {
+            this.compression = compression;
+        }
+
+        public String getCacheMaxAge() {
+            return cacheMaxAge;
+        }
+
+        public void setCacheMaxAge(String cacheMaxAge) {
+            this.cacheMaxAge = cacheMaxAge;
+        }
+
+        public long getCacheMaxAgeInSeconds() {
+            return cacheMaxAgeInSeconds;
+        }
+
+        public void setCacheMaxAgeInSeconds(long cacheMaxAgeInSeconds) {
+            this.cacheMaxAgeInSeconds = cacheMaxAgeInSeconds;
+        }
+
+        public void build(String defaultHostname) {
+            if (getIoThreads() < 0) {
+                throw new ConfigurationException("server.http.ioThreads");
+            }
+
+            if (getWorkerThreads() < 0) {
+                throw new ConfigurationException("server.http.workerThreads");
+            }
+
+            if (getBufferSize() < 0) {
+                throw new ConfigurationException("server.http.bufferSize");
+            }
+
+            if (StringUtils.isNotBlank(getIdleTimeout())) {
+                setIdleTimeoutInSeconds(new DurationDeserializer().deserialize(getIdleTimeout()));
+            }
+
+            if (StringUtils.isNotBlank(getCacheMaxAge())) {
+                setCacheMaxAgeInSeconds(new DurationDeserializer().deserialize(getCacheMaxAge()));
+            }
+
+            getTls().build(defaultHostname);
+            getCompression().build();
+        }
+    }
+
     private String name;
     private int port = 8090;
     private String publicUrl;
     private String hostname;
+    private Http http = new Http();
 
     public String getName() {
         return name;
@@ -68,6 +333,14 @@ public class ServerConfig {
         this.hostname = hostname;
     }
 
+    public Http getHttp() {
+        return http;
+    }
+
+    public void setHttp(Http http) {
+        this.http = http;
+    }
+
     public void build() {
         log.info("--- Server config ---");
 
@@ -92,5 +365,17 @@ public class ServerConfig {
         log.info("Port: {}", getPort());
         log.info("Public URL: {}", getPublicUrl());
         log.info("Hostname: {}", getHostname());
+
+        getHttp().build(getHostname());
+        log.info("IO threads: {}", getHttp().getIoThreads() > 0 ? getHttp().getIoThreads() : "default");
+        log.info("Worker threads: {}", getHttp().getWorkerThreads() > 0 ? getHttp().getWorkerThreads() : "default");
+        log.info("Buffer size: {}", getHttp().getBufferSize() > 0 ? getHttp().getBufferSize() : "default");
+        log.info("HTTP/2: {}", getHttp().isHttp2());
+        log.info("Keep-alive: {}", getHttp().isKeepAlive());
+        log.info("Compression: {}", getHttp().getCompression().isEnabled());
+        log.info("Cache max age: {}s", getHttp().getCacheMaxAgeInSeconds());
+        if (getHttp().getTls().isEnabled()) {
+            log.info("TLS: {}:{}", getHttp().getTls().getHostname(), getHttp().getTls().getPort());
+        }
     }
 }
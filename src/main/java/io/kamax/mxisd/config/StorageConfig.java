@@ -21,13 +21,20 @@
 package io.kamax.mxisd.config;
 
 import io.kamax.mxisd.exception.ConfigurationException;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class StorageConfig {
 
+    private static final Logger log = LoggerFactory.getLogger(StorageConfig.class);
+
     public enum BackendEnum {
         sqlite,
 
-        postgresql
+        postgresql,
+
+        postgresql_jdbc
     }
 
     public static class Provider {
@@ -53,8 +60,183 @@ public class StorageConfig {
         }
     }
 
-    private BackendEnum backend = BackendEnum.sqlite; // or postgresql
+    public static class Retention {
+
+        private boolean enabled = false;
+        private String delay = "1h";
+        private transient long delayInSeconds = 3600;
+        private long batchSize = 500;
+        private String sessions = "7d";
+        private transient long sessionsInSeconds;
+        private String transactions = "7d";
+        private transient long transactionsInSeconds;
+        private String inviteHistory;
+        private transient long inviteHistoryInSeconds;
+        private String accounts = "1d";
+        private transient long accountsInSeconds;
+        private String accepted;
+        private transient long acceptedInSeconds;
+        private boolean vacuum = false;
+        private boolean analyze = true;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getDelay() {
+            return delay;
+        }
+
+        public void setDelay(String delay) {
+            this.delay = delay;
+        }
+
+        public long getDelayInSeconds() {
+            return delayInSeconds;
+        }
+
+        public void setDelayInSeconds(long delayInSeconds) {
+            this.delayInSeconds = delayInSeconds;
+        }
+
+        public long getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(long batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public String getSessions() {
+            return sessions;
+        }
+
+        public void setSessions(String sessions) {
+            this.sessions = sessions;
+        }
+
+        public long getSessionsInSeconds() {
+            return sessionsInSeconds;
+        }
+
+        public void setSessionsInSeconds(long sessionsInSeconds) {
+            this.sessionsInSeconds = sessionsInSeconds;
+        }
+
+        public String getTransactions() {
+            return transactions;
+        }
+
+        public void setTransactions(String transactions) {
+            this.transactions = transactions;
+        }
+
+        public long getTransactionsInSeconds() {
+            return transactionsInSeconds;
+        }
+
+        public void setTransactionsInSeconds(long transactionsInSeconds) {
+            this.transactionsInSeconds = transactionsInSeconds;
+        }
+
+        public String getInviteHistory() {
+            return inviteHistory;
+        }
+
+        public void setInviteHistory(String inviteHistory) {
+            this.inviteHistory = inviteHistory;
+        }
+
+        public long getInviteHistoryInSeconds() {
+            return inviteHistoryInSeconds;
+        }
+
+        public void setInviteHistoryInSeconds(long inviteHistoryInSeconds) {
+            this.inviteHistoryInSeconds = inviteHistoryInSeconds;
+        }
+
+        public String getAccounts() {
+            return accounts;
+        }
+
+        public void setAccounts(String accounts) {
+            this.accounts = accounts;
+        }
+
+        public long getAccountsInSeconds() {
+            return accountsInSeconds;
+        }
+
+        public void setAccountsInSeconds(long accountsInSeconds) {
+            this.accountsInSeconds = accountsInSeconds;
+        }
+
+        public String getAccepted() {
+            return accepted;
+        }
+
+        public void setAccepted(String accepted) {
+            this.accepted = accepted;
+        }
+
+        public long getAcceptedInSeconds() {
+            return acceptedInSeconds;
+        }
+
+        public void setAcceptedInSeconds(long acceptedInSeconds) {
+            this.acceptedInSeconds = acceptedInSeconds;
+        }
+
+        public boolean isVacuum() {
+            return vacuum;
+        }
+
+        public void setVacuum(boolean vacuum) {
+            this.vacuum = vacuum;
+        }
+
+        public boolean isAnalyze() {
+            return analyze;
+        }
+
+        public void setAnalyze(boolean analyze) {
+            this.analyze = analyze;
+        }
+
+        // A blank value disables the purge of the table
+        private long toSeconds(String value) {
+            return StringUtils.isBlank(value) ? 0 : new DurationDeserializer().deserialize(value);
+        }
+
+        public void build() {
+            if (!isEnabled()) {
+                return;
+            }
+
+            setDelayInSeconds(toSeconds(getDelay()));
+            if (getDelayInSeconds() < 1) {
+                throw new ConfigurationException("storage.retention.delay");
+            }
+
+            if (getBatchSize() < 1) {
+                throw new ConfigurationException("storage.retention.batchSize");
+            }
+
+            setSessionsInSeconds(toSeconds(getSessions()));
+            setTransactionsInSeconds(toSeconds(getTransactions()));
+            setInviteHistoryInSeconds(toSeconds(getInviteHistory()));
+            setAccountsInSeconds(toSeconds(getAccounts()));
+            setAcceptedInSeconds(toSeconds(getAccepted()));
+        }
+    }
+
+    private BackendEnum backend = BackendEnum.sqlite; // or postgresql, postgresql_jdbc
     private Provider provider = new Provider();
+    private Retention retention = new Retention();
 
     public BackendEnum getBackend() {
         return backend;
@@ -72,10 +254,34 @@ public class StorageConfig {
         this.provider = provider;
     }
 
+    public Retention getRetention() {
+        return retention;
+    }
+
+    public void setRetention(Retention retention) {
+        this.retention = retention;
+    }
+
     public void build() {
         if (getBackend() == null) {
             throw new ConfigurationException("storage.backend");
         }
+
+        getRetention().build();
+        log.info("--- Storage config ---");
+        log.info("Backend: {}", getBackend());
+        log.info("Retention enabled: {}", getRetention().isEnabled());
+        if (getRetention().isEnabled()) {
+            log.info("Retention delay: {}", getRetention().getDelay());
+            log.info("Retention batch size: {}", getRetention().getBatchSize());
+            log.info("Sessions kept for: {}", StringUtils.defaultIfBlank(getRetention().getSessions(), "ever"));
+            log.info("AS transactions kept for: {}", StringUtils.defaultIfBlank(getRetention().getTransactions(), "ever"));
+            log.info("Invite history kept for: {}", StringUtils.defaultIfBlank(getRetention().getInviteHistory(), "ever"));
+            log.info("Expired accounts kept for: {}", StringUtils.defaultIfBlank(getRetention().getAccounts(), "ever"));
+            log.info("Accepted terms without account kept for: {}", StringUtils.defaultIfBlank(getRetention().getAccepted(), "ever"));
+            log.info("Vacuum after purge: {}", getRetention().isVacuum());
+            log.info("Analyze after purge: {}", getRetention().isAnalyze());
+        }
     }
 
 }
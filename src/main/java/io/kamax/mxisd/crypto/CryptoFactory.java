@@ -24,9 +24,11 @@ import io.kamax.mxisd.config.KeyConfig;
 import io.kamax.mxisd.config.MxisdConfig;
 import io.kamax.mxisd.crypto.ed25519.Ed25519KeyManager;
 import io.kamax.mxisd.crypto.ed25519.Ed25519SignatureManager;
+import io.kamax.mxisd.storage.IStorage;
 import io.kamax.mxisd.storage.crypto.FileKeyStore;
 import io.kamax.mxisd.storage.crypto.KeyStore;
 import io.kamax.mxisd.storage.crypto.MemoryKeyStore;
+import io.kamax.mxisd.storage.crypto.SqlKeyStore;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 
@@ -35,7 +37,7 @@ import java.io.IOException;
 
 public class CryptoFactory {
 
-    public static Ed25519KeyManager getKeyManager(KeyConfig keyCfg) {
+    public static Ed25519KeyManager getKeyManager(KeyConfig keyCfg, IStorage storage) {
         KeyStore store;
         if (StringUtils.equals(":memory:", keyCfg.getPath())) {
             store = new MemoryKeyStore();
@@ -52,6 +54,15 @@ public class CryptoFactory {
             store = new FileKeyStore(keyCfg.getPath());
         }
 
+        if (KeyConfig.EphemeralStorageEnum.sql == keyCfg.getEphemeral().getStorage()) {
+            SqlKeyStore sqlStore = new SqlKeyStore(storage, store);
+            Ed25519KeyManager keyMgr = new Ed25519KeyManager(sqlStore);
+            // Purged keys are dropped from the index of the manager, which answers isvalid requests from memory
+            sqlStore.addPurgeListener(keyMgr::forget);
+            sqlStore.schedulePurge(keyCfg.getEphemeral().getCleanupDelayInSeconds(), keyCfg.getEphemeral().getMaxAgeInSeconds());
+            return keyMgr;
+        }
+
         return new Ed25519KeyManager(store);
     }
 
@@ -23,10 +23,10 @@ package io.kamax.mxisd.crypto;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import io.kamax.matrix.event.EventKey;
-import io.kamax.matrix.json.MatrixJson;
 
 import java.nio.charset.StandardCharsets;
 import java.security.PublicKey;
+import java.util.Arrays;
 import java.util.Objects;
 
 public interface SignatureManager {
@@ -65,7 +65,7 @@ public interface SignatureManager {
             oldSigns = signEl.getAsJsonObject();
         }
 
-        JsonObject newSigns = signMessageGson(domain, MatrixJson.encodeCanonical(message));
+        JsonObject newSigns = signMessageGson(domain, sign(message));
         oldSigns.entrySet().forEach(entry -> newSigns.add(entry.getKey(), entry.getValue()));
         message.add(EventKey.Signatures.get(), newSigns);
 
@@ -81,6 +81,22 @@ public interface SignatureManager {
      */
     JsonObject signMessageGson(String domain, String message);
 
+    /**
+     * Produce a <code>signatures</code> object from an existing signature.
+     *
+     * @param domain    The domain under which the signature should be added
+     * @param signature The signature to add
+     * @return The <code>signatures</code> object
+     */
+    default JsonObject signMessageGson(String domain, Signature signature) {
+        JsonObject keySignature = new JsonObject();
+        keySignature.addProperty(signature.getKey().getAlgorithm() + ":" + signature.getKey().getSerial(), signature.getSignature());
+        JsonObject signatures = new JsonObject();
+        signatures.add(domain, keySignature);
+
+        return signatures;
+    }
+
     /**
      * Sign the canonical form of a JSON object.
      *
@@ -107,6 +123,18 @@ public interface SignatureManager {
      */
     Signature sign(byte[] data);
 
+    /**
+     * Sign a range of the data.
+     *
+     * @param data   The buffer holding the data to sign
+     * @param offset The offset of the data in the buffer
+     * @param length The length of the data
+     * @return The signature
+     */
+    default Signature sign(byte[] data, int offset, int length) {
+        return sign(Arrays.copyOfRange(data, offset, offset + length));
+    }
+
     /**
      * Verify the data.
      *
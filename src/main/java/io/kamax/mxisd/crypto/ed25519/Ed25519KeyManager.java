@@ -39,7 +39,13 @@ import org.slf4j.LoggerFactory;
 import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class Ed25519KeyManager implements KeyManager {
@@ -49,6 +55,35 @@ public class Ed25519KeyManager implements KeyManager {
     private final EdDSAParameterSpec keySpecs;
     private final KeyStore store;
 
+    // Decoded regular keys, which are used for every signature. Ephemeral keys are single-use and are not kept.
+    private final Map<KeyIdentifier, EdDSAPrivateKey> privateKeys = new ConcurrentHashMap<>();
+    private final Map<KeyIdentifier, String> publicKeys = new ConcurrentHashMap<>();
+    private volatile Key signingKey;
+
+    // The store can be shared with other instances, so the index is rebuilt after this long to pick up their changes
+    private static final long IndexTtlMillis = 60 * 1000L;
+    // Unknown public keys make the index be rebuilt, at most this often so random keys cannot hammer the store
+    private static final long IndexMissRefreshMillis = 1000L;
+
+    // Public key (Base64) to key ID and validity, to answer the isvalid endpoints without going through the store
+    private volatile Map<String, IndexEntry> publicKeyIndex = new ConcurrentHashMap<>();
+    // Public keys are derived once per key, rebuilding the index only derives the ones of new keys
+    private final Map<KeyIdentifier, String> indexedPublicKeys = new ConcurrentHashMap<>();
+    private final Object indexLock = new Object();
+    private volatile long indexedAt = 0;
+
+    private static class IndexEntry {
+
+        private final KeyIdentifier id;
+        private final boolean valid;
+
+        IndexEntry(KeyIdentifier id, boolean valid) {
+            this.id = id;
+            this.valid = valid;
+        }
+
+    }
+
     public Ed25519KeyManager(KeyStore store) {
         this.keySpecs = EdDSANamedCurveTable.ED_25519_CURVE_SPEC;
         this.store = store;
@@ -93,7 +128,12 @@ public class Ed25519KeyManager implements KeyManager {
         String keyEncoded = getPrivateKeyBase64((EdDSAPrivateKey) pair.getPrivate());
 
         Key key = new GenericKey(id, true, keyEncoded);
-        store.add(key);
+        String publicKey = MxBase64.encode(((EdDSAPublicKey) pair.getPublic()).getAbyte());
+        synchronized (indexLock) {
+            store.add(key);
+            indexedPublicKeys.put(new GenericKeyIdentifier(id), publicKey);
+            publicKeyIndex.put(publicKey, new IndexEntry(key.getId(), true));
+        }
 
         return id;
     }
@@ -105,7 +145,13 @@ public class Ed25519KeyManager implements KeyManager {
 
     @Override
     public Key getServerSigningKey() {
-        return store.get(store.getCurrentKey().orElseThrow(IllegalStateException::new));
+        Key key = signingKey;
+        if (Objects.isNull(key)) {
+            key = store.get(store.getCurrentKey().orElseThrow(IllegalStateException::new));
+            signingKey = key;
+        }
+
+        return key;
     }
 
     @Override
@@ -117,32 +163,131 @@ public class Ed25519KeyManager implements KeyManager {
         return new EdDSAPrivateKeySpec(Base64.decodeBase64(getKey(id).getPrivateKeyBase64()), keySpecs);
     }
 
+    private boolean isCacheable(KeyIdentifier id) {
+        return KeyType.Regular.equals(id.getType());
+    }
+
     EdDSAPrivateKey getPrivateKey(KeyIdentifier id) {
-        return new EdDSAPrivateKey(getPrivateKeySpecs(id));
+        if (!isCacheable(id)) {
+            return new EdDSAPrivateKey(getPrivateKeySpecs(id));
+        }
+
+        return privateKeys.computeIfAbsent(new GenericKeyIdentifier(id), k -> new EdDSAPrivateKey(getPrivateKeySpecs(k)));
+    }
+
+    private String getPublicKeyBase64(Key key) {
+        EdDSAPrivateKeySpec privKeySpec = new EdDSAPrivateKeySpec(Base64.decodeBase64(key.getPrivateKeyBase64()), keySpecs);
+        return MxBase64.encode(privKeySpec.getA().toByteArray());
     }
 
     private EdDSAPublicKey getPublicKey(KeyIdentifier id) {
-        EdDSAPrivateKeySpec privKeySpec = getPrivateKeySpecs(id);
-        EdDSAPublicKeySpec pubKeySpec = new EdDSAPublicKeySpec(privKeySpec.getA(), keySpecs);
+        EdDSAPublicKeySpec pubKeySpec = new EdDSAPublicKeySpec(getPrivateKey(id).getA(), keySpecs);
         return new EdDSAPublicKey(pubKeySpec);
     }
 
+    // Stores and callers can use any implementation of key IDs, so they are compared on what identifies a key
+    private static boolean isSameKey(KeyIdentifier a, KeyIdentifier b) {
+        return a.getType() == b.getType() &&
+                StringUtils.equals(a.getAlgorithm(), b.getAlgorithm()) &&
+                StringUtils.equals(a.getSerial(), b.getSerial());
+    }
+
+    private void invalidate(KeyIdentifier id) {
+        KeyIdentifier cacheId = new GenericKeyIdentifier(id);
+        privateKeys.remove(cacheId);
+        publicKeys.remove(cacheId);
+
+        Key key = signingKey;
+        if (Objects.nonNull(key) && isSameKey(id, key.getId())) {
+            signingKey = null;
+        }
+    }
+
     @Override
     public void disableKey(KeyIdentifier id) {
         Key key = store.get(id);
         key = new GenericKey(id, false, key.getPrivateKeyBase64());
-        store.update(key);
+        synchronized (indexLock) {
+            store.update(key);
+            publicKeyIndex.put(getPublicKeyBase64(id), new IndexEntry(key.getId(), false));
+        }
+        invalidate(id);
     }
 
     @Override
     public String getPublicKeyBase64(KeyIdentifier id) {
-        return MxBase64.encode(getPublicKey(id).getAbyte());
+        if (!isCacheable(id)) {
+            return MxBase64.encode(getPublicKey(id).getAbyte());
+        }
+
+        return publicKeys.computeIfAbsent(new GenericKeyIdentifier(id), k -> MxBase64.encode(getPublicKey(k).getAbyte()));
+    }
+
+    /**
+     * Rebuild the index from the store, unless another thread did it since the index was last seen.
+     *
+     * @param seenAt When the index was built, as seen by the caller.
+     */
+    private void refreshIndex(long seenAt) {
+        synchronized (indexLock) {
+            if (indexedAt != seenAt) {
+                return;
+            }
+
+            log.debug("Building public keys index");
+            Map<String, IndexEntry> index = new ConcurrentHashMap<>();
+            Set<KeyIdentifier> stored = new HashSet<>();
+            for (KeyType type : KeyType.values()) {
+                for (Key key : store.getAll(type)) {
+                    KeyIdentifier id = new GenericKeyIdentifier(key.getId());
+                    stored.add(id);
+                    String publicKey = indexedPublicKeys.computeIfAbsent(id, k -> getPublicKeyBase64(key));
+                    index.put(publicKey, new IndexEntry(id, key.isValid()));
+                }
+            }
+            indexedPublicKeys.keySet().retainAll(stored);
+            publicKeyIndex = index;
+            indexedAt = System.currentTimeMillis();
+            log.debug("Indexed {} public keys", index.size());
+        }
     }
 
     @Override
     public boolean isValid(KeyType type, String publicKeyBase64) {
-        // TODO caching?
-        return getKeys(type).stream().anyMatch(id -> StringUtils.equals(getPublicKeyBase64(id), publicKeyBase64));
+        if (StringUtils.isBlank(publicKeyBase64)) {
+            return false;
+        }
+
+        long seenAt = indexedAt;
+        if (seenAt == 0 || System.currentTimeMillis() - seenAt > IndexTtlMillis) {
+            refreshIndex(seenAt);
+        }
+
+        IndexEntry entry = publicKeyIndex.get(publicKeyBase64);
+        if (Objects.isNull(entry)) {
+            // The key might have been created by another instance sharing the store since the index was built
+            seenAt = indexedAt;
+            if (System.currentTimeMillis() - seenAt >= IndexMissRefreshMillis) {
+                refreshIndex(seenAt);
+                entry = publicKeyIndex.get(publicKeyBase64);
+            }
+        }
+
+        return Objects.nonNull(entry) && type.equals(entry.id.getType()) && entry.valid;
+    }
+
+    /**
+     * Drop keys which were deleted from the store without going through this manager, e.g. by a purge.
+     *
+     * @param ids The IDs of the deleted keys.
+     */
+    public void forget(Collection<KeyIdentifier> ids) {
+        Set<GenericKeyIdentifier> deleted = ids.stream().map(GenericKeyIdentifier::new).collect(Collectors.toSet());
+        synchronized (indexLock) {
+            publicKeyIndex.values().removeIf(entry -> deleted.contains(new GenericKeyIdentifier(entry.id)));
+            indexedPublicKeys.keySet().removeAll(deleted);
+        }
+        deleted.forEach(this::invalidate);
     }
 
 }
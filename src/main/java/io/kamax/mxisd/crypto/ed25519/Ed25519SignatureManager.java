@@ -22,6 +22,7 @@ package io.kamax.mxisd.crypto.ed25519;
 
 import com.google.gson.JsonObject;
 import io.kamax.matrix.codec.MxBase64;
+import io.kamax.matrix.json.CanonicalJsonEncoder;
 import io.kamax.matrix.json.MatrixJson;
 import io.kamax.mxisd.config.MxisdConfig;
 import io.kamax.mxisd.config.ServerConfig;
@@ -42,9 +43,21 @@ public class Ed25519SignatureManager implements SignatureManager {
     private final ServerConfig cfg;
     private final Ed25519KeyManager keyMgr;
 
+    // EdDSAEngine is not thread-safe but is fully re-initialized on each use, so we keep one per thread
+    private final ThreadLocal<EdDSAEngine> engines;
+
     public Ed25519SignatureManager(MxisdConfig cfg, Ed25519KeyManager keyMgr) {
         this.cfg = cfg.getServer();
         this.keyMgr = keyMgr;
+        this.engines = ThreadLocal.withInitial(this::createEngine);
+    }
+
+    private EdDSAEngine createEngine() {
+        try {
+            return new EdDSAEngine(MessageDigest.getInstance(keyMgr.getKeySpecs().getHashAlgorithm()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
@@ -54,28 +67,28 @@ public class Ed25519SignatureManager implements SignatureManager {
 
     @Override
     public JsonObject signMessageGson(String domain, String message) {
-        Signature sign = sign(message);
-
-        JsonObject keySignature = new JsonObject();
-        keySignature.addProperty(sign.getKey().getAlgorithm() + ":" + sign.getKey().getSerial(), sign.getSignature());
-        JsonObject signature = new JsonObject();
-        signature.add(domain, keySignature);
-
-        return signature;
+        return signMessageGson(domain, sign(message));
     }
 
     @Override
     public Signature sign(JsonObject obj) {
-        return sign(MatrixJson.encodeCanonical(obj));
+        // The encoder buffer is only valid until the next encoding on this thread, which cannot happen while signing
+        CanonicalJsonEncoder encoder = MatrixJson.canonicalEncoder().encode(obj);
+        return sign(encoder.getBuffer(), 0, encoder.size());
     }
 
     @Override
     public Signature sign(byte[] data) {
+        return sign(data, 0, data.length);
+    }
+
+    @Override
+    public Signature sign(byte[] data, int offset, int length) {
         try {
             KeyIdentifier signingKeyId = keyMgr.getServerSigningKey().getId();
-            EdDSAEngine signEngine = new EdDSAEngine(MessageDigest.getInstance(keyMgr.getKeySpecs().getHashAlgorithm()));
+            EdDSAEngine signEngine = engines.get();
             signEngine.initSign(keyMgr.getPrivateKey(signingKeyId));
-            byte[] signRaw = signEngine.signOneShot(data);
+            byte[] signRaw = signEngine.signOneShot(data, offset, length);
             String sign = MxBase64.encode(signRaw);
 
             return new Signature() {
@@ -89,7 +102,7 @@ public class Ed25519SignatureManager implements SignatureManager {
                     return sign;
                 }
             };
-        } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
+        } catch (InvalidKeyException | SignatureException e) {
             throw new RuntimeException(e);
         }
     }
@@ -97,11 +110,11 @@ public class Ed25519SignatureManager implements SignatureManager {
     @Override
     public boolean verify(PublicKey publicKey, String signature, byte[] data) {
         try {
-            EdDSAEngine signEngine = new EdDSAEngine(MessageDigest.getInstance(keyMgr.getKeySpecs().getHashAlgorithm()));
+            EdDSAEngine signEngine = engines.get();
             signEngine.initVerify(publicKey);
             signEngine.update(data);
             return signEngine.verify(Base64.getDecoder().decode(signature));
-        } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
+        } catch (InvalidKeyException | SignatureException e) {
             throw new RuntimeException(e);
         }
     }
@@ -0,0 +1,68 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.directory;
+
+import io.kamax.mxisd.http.io.UserDirectorySearchResult;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A user of an identity store, with the values the user can be searched by in the directory.
+ */
+public class DirectoryEntry {
+
+    private final String userId;
+    private final String displayName;
+    private final List<String> otherNames;
+    private final List<String> threepids;
+
+    public DirectoryEntry(String userId, String displayName, List<String> otherNames, List<String> threepids) {
+        this.userId = userId;
+        this.displayName = displayName;
+        this.otherNames = Collections.unmodifiableList(otherNames);
+        this.threepids = Collections.unmodifiableList(threepids);
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public List<String> getOtherNames() {
+        return otherNames;
+    }
+
+    public List<String> getThreepids() {
+        return threepids;
+    }
+
+    public UserDirectorySearchResult.Result toResult() {
+        UserDirectorySearchResult.Result result = new UserDirectorySearchResult.Result();
+        result.setUserId(userId);
+        result.setDisplayName(displayName);
+        return result;
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.directory;
+
+import io.kamax.mxisd.http.io.UserDirectorySearchResult;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * An immutable prefix index of directory entries, to search users without querying their identity store.
+ * <p>
+ * Matrix IDs, display names, other names and 3PID addresses are lower-cased and cut into terms: the parts between
+ * spaces, and the parts between any other non-alphanumeric characters. Terms are kept sorted, each with the entries
+ * having it, so the terms starting with a search word are found with a binary search. An entry matches when each word
+ * of the search starts one of its terms.
+ */
+public class DirectoryIndex {
+
+    private static class Term implements Comparable<Term> {
+
+        private final String value;
+        private int count;
+        private int index;
+        private int filled;
+
+        private Term(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(Term o) {
+            return value.compareTo(o.value);
+        }
+    }
+
+    /**
+     * Index entries.
+     *
+     * @param entries       The entries, with one entry per user.
+     * @param withThreepids If the 3PID addresses of the entries should be indexed.
+     * @return The index.
+     */
+    public static DirectoryIndex build(Collection<DirectoryEntry> entries, boolean withThreepids) {
+        DirectoryEntry[] all = entries.toArray(new DirectoryEntry[0]);
+
+        // Terms are shared among entries, and counted so each list of entries is allocated at the right size
+        Map<String, Term> pool = new HashMap<>();
+        Term[][] termsOf = new Term[all.length][];
+        for (int i = 0; i < all.length; i++) {
+            Set<String> values = getTerms(all[i], withThreepids);
+            Term[] terms = new Term[values.size()];
+            int j = 0;
+            for (String value : values) {
+                Term term = pool.computeIfAbsent(value, Term::new);
+                term.count++;
+                terms[j++] = term;
+            }
+            termsOf[i] = terms;
+        }
+
+        Term[] sorted = pool.values().toArray(new Term[0]);
+        Arrays.sort(sorted);
+        String[] terms = new String[sorted.length];
+        int[][] postings = new int[sorted.length][];
+        for (int t = 0; t < sorted.length; t++) {
+            sorted[t].index = t;
+            terms[t] = sorted[t].value;
+            postings[t] = new int[sorted[t].count];
+        }
+
+        String[][] entryTerms = new String[all.length][];
+        for (int i = 0; i < all.length; i++) {
+            entryTerms[i] = new String[termsOf[i].length];
+            for (int j = 0; j < termsOf[i].length; j++) {
+                Term term = termsOf[i][j];
+                postings[term.index][term.filled++] = i;
+                entryTerms[i][j] = term.value;
+            }
+        }
+
+        return new DirectoryIndex(all, entryTerms, terms, postings);
+    }
+
+    private static Set<String> getTerms(DirectoryEntry entry, boolean withThreepids) {
+        Set<String> terms = new HashSet<>();
+        addTerms(terms, StringUtils.removeStart(entry.getUserId(), "@"));
+        addTerms(terms, entry.getDisplayName());
+        entry.getOtherNames().forEach(name -> addTerms(terms, name));
+        if (withThreepids) {
+            entry.getThreepids().forEach(address -> addTerms(terms, address));
+        }
+        return terms;
+    }
+
+    private static void addTerms(Set<String> terms, String value) {
+        if (StringUtils.isBlank(value)) {
+            return;
+        }
+
+        String normalized = value.toLowerCase(Locale.ROOT);
+        split(normalized, false, terms);
+        split(normalized, true, terms);
+    }
+
+    // Done by hand rather than with regular expressions, as this runs for every value of every user on each refresh
+    private static void split(String value, boolean onAnySymbol, Collection<String> parts) {
+        int start = -1;
+        for (int i = 0; i <= value.length(); i++) {
+            boolean separator = i == value.length() || (onAnySymbol
+                    ? !Character.isLetterOrDigit(value.charAt(i))
+                    : Character.isWhitespace(value.charAt(i)));
+            if (!separator) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                parts.add(value.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    private static List<String> getWords(String query) {
+        List<String> words = new ArrayList<>();
+        split(StringUtils.trimToEmpty(query).toLowerCase(Locale.ROOT), false, words);
+        return words;
+    }
+
+    private final DirectoryEntry[] entries;
+    private final String[][] entryTerms;
+    private final String[] terms;
+    private final int[][] postings;
+
+    private DirectoryIndex(DirectoryEntry[] entries, String[][] entryTerms, String[] terms, int[][] postings) {
+        this.entries = entries;
+        this.entryTerms = entryTerms;
+        this.terms = terms;
+        this.postings = postings;
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    public List<DirectoryEntry> getEntries() {
+        return Collections.unmodifiableList(Arrays.asList(entries));
+    }
+
+    public UserDirectorySearchResult search(String query, int limit) {
+        return search(query, limit, userId -> false);
+    }
+
+    /**
+     * Search the entries matching all the words of a query.
+     *
+     * @param query The search term, as given by the client.
+     * @param limit The maximum number of results.
+     * @param skip  Which users to leave out of the results.
+     * @return The matching entries, marked as limited if there were more.
+     */
+    public UserDirectorySearchResult search(String query, int limit, Predicate<String> skip) {
+        UserDirectorySearchResult result = new UserDirectorySearchResult();
+        result.setResults(new LinkedHashSet<>());
+        List<String> words = getWords(query);
+        if (words.isEmpty()) {
+            return result;
+        }
+
+        // The longest word is the one starting the fewest terms, other words are checked on the entries it gives
+        String first = words.stream().max(Comparator.comparingInt(String::length)).orElseThrow(IllegalStateException::new);
+        Set<Integer> seen = new HashSet<>();
+        int from = Arrays.binarySearch(terms, first);
+        for (int t = from >= 0 ? from : -from - 1; t < terms.length && terms[t].startsWith(first); t++) {
+            for (int id : postings[t]) {
+                if (!seen.add(id) || !matches(entryTerms[id], words) || skip.test(entries[id].getUserId())) {
+                    continue;
+                }
+
+                if (result.getResults().size() >= limit) {
+                    result.setLimited(true);
+                    return result;
+                }
+
+                result.addResult(entries[id].toResult());
+            }
+        }
+
+        return result;
+    }
+
+    private boolean matches(String[] terms, List<String> words) {
+        for (String word : words) {
+            boolean found = false;
+            for (String term : terms) {
+                if (term.startsWith(word)) {
+                    found = true;
+                    break;
+                }
+            }
+
+            if (!found) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
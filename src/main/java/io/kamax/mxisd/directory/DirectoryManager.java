@@ -32,6 +32,7 @@ import io.kamax.mxisd.http.io.UserDirectorySearchResult;
 import io.kamax.mxisd.util.RestClientUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
@@ -44,16 +45,51 @@ import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DirectoryManager {
 
     private transient final Logger log = LoggerFactory.getLogger(DirectoryManager.class);
 
+    // As per the Client-Server API, when the client does not give any limit
+    public static final int DefaultLimit = 10;
+
+    // Clients asking for more get this many, so a short search term cannot pull whole directories into one response
+    public static final int MaxLimit = 1000;
+
+    private static class Source {
+
+        private final String label;
+        private final Future<UserDirectorySearchResult> task;
+
+        private Source(String label, Future<UserDirectorySearchResult> task) {
+            this.label = label;
+            this.task = task;
+        }
+    }
+
     private DirectoryConfig cfg;
     private ClientDnsOverwrite dns;
     private CloseableHttpClient client;
     private List<DirectoryProvider> providers;
+    private ExecutorService executor;
+    private ScheduledExecutorService indexer;
+    private Map<DirectoryProvider, IndexedDirectory> indexes = new HashMap<>();
 
     public DirectoryManager(DirectoryConfig cfg, ClientDnsOverwrite dns, CloseableHttpClient client, List<? extends DirectoryProvider> providers) {
         this.cfg = cfg;
@@ -61,79 +97,197 @@ public class DirectoryManager {
         this.client = client;
         this.providers = new ArrayList<>(providers);
 
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(cfg.getThreads(), r -> {
+            Thread t = new Thread(r, "ma1sd-directory-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
         log.info("Directory providers:");
         this.providers.forEach(p -> log.info("  - {}", p.getClass().getName()));
+
+        if (cfg.getIndex().isEnabled()) {
+            indexer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "ma1sd-directory-index");
+                t.setDaemon(true);
+                return t;
+            });
+
+            for (DirectoryProvider provider : this.providers) {
+                IndexedDirectory index = new IndexedDirectory(provider, !cfg.getExclude().getThreepid(), cfg.getIndex().getFullRefreshInSeconds());
+                indexes.put(provider, index);
+                indexer.scheduleWithFixedDelay(() -> {
+                    try {
+                        index.refresh();
+                    } catch (RuntimeException e) {
+                        // Not rethrown, as it would stop further refreshes
+                        log.warn("{}: unable to refresh the directory index", index.getName(), e);
+                    }
+                }, 0, cfg.getIndex().getRefreshInSeconds(), TimeUnit.SECONDS);
+            }
+        }
     }
 
-    public UserDirectorySearchResult search(URI target, String accessToken, String query) {
+    /**
+     * Search the homeserver and all providers at once, and merge their results.
+     * <p>
+     * Results are merged in order: homeserver first, then providers by priority, keeping the first result of each user.
+     * Sources not done by the deadline are given up, and the search is then marked as limited. Providers with an
+     * in-memory index ready are not queried, the index answers for them.
+     *
+     * @param target      The original request URL, to query the homeserver.
+     * @param accessToken The access token of the user.
+     * @param query       The search term.
+     * @param limit       The maximum number of results the client wants, or null for the default.
+     * @return The merged results.
+     */
+    public UserDirectorySearchResult search(URI target, String accessToken, String query, Integer limit) {
         if (StringUtils.startsWith(query, "@")) {
             query = query.substring(1);
         }
 
-        log.info("Performing search for '{}'", query);
+        int max = Objects.isNull(limit) || limit < 1 ? DefaultLimit : Math.min(limit, MaxLimit);
+        log.info("Performing search for '{}' with a limit of {}", query, max);
         log.info("Original request URL: {}", target);
-        UserDirectorySearchResult result = new UserDirectorySearchResult();
 
+        String term = query;
+        List<Source> sources = new ArrayList<>();
         if (cfg.getExclude().getHomeserver()) {
             log.info("Skipping HS directory data, disabled in config");
         } else {
-            URIBuilder builder = dns.transform(target);
-            log.info("Querying HS at {}", builder);
-            builder.setParameter("access_token", accessToken);
-            HttpPost req = RestClientUtils.post(
-                    builder.toString(),
-                    new UserDirectorySearchRequest(query));
-            try (CloseableHttpResponse res = client.execute(req)) {
-                int status = res.getStatusLine().getStatusCode();
-                Charset charset = ContentType.getOrDefault(res.getEntity()).getCharset();
-                String body = IOUtils.toString(res.getEntity().getContent(), charset);
-
-                if (status != 200) {
-                    MatrixErrorInfo info = GsonUtil.get().fromJson(body, MatrixErrorInfo.class);
-                    if (StringUtils.equals("M_UNRECOGNIZED", info.getErrcode())) { // FIXME no hardcoding, use Enum
-                        log.warn("Homeserver does not support Directory feature, skipping");
-                    } else {
-                        log.error("Homeserver returned an error while performing directory search");
-                        throw new HttpMatrixException(status, info.getErrcode(), info.getError());
-                    }
-                }
-
-                UserDirectorySearchResult resultHs = GsonUtil.get().fromJson(body, UserDirectorySearchResult.class);
-                log.info("Found {} match(es) in HS for '{}'", resultHs.getResults().size(), query);
-                result.getResults().addAll(resultHs.getResults());
-                if (resultHs.isLimited()) {
-                    result.setLimited(true);
-                }
-            } catch (JsonSyntaxException e) {
-                throw new InternalServerError("Invalid JSON reply from the HS: " + e.getMessage());
-            } catch (IOException e) {
-                throw new InternalServerError("Unable to query the HS: I/O error: " + e.getMessage());
-            }
+            sources.add(submit("HS", () -> searchHomeserver(target, accessToken, term, max)));
         }
 
         for (DirectoryProvider provider : providers) {
-            log.info("Using Directory provider {}", provider.getClass().getSimpleName());
-            UserDirectorySearchResult resultProvider = provider.searchByDisplayName(query);
-            log.info("Display name: found {} match(es) for '{}'", resultProvider.getResults().size(), query);
-            result.getResults().addAll(resultProvider.getResults());
-            if (resultProvider.isLimited()) {
-                result.setLimited(true);
+            String name = provider.getClass().getSimpleName();
+            IndexedDirectory index = indexes.get(provider);
+            if (Objects.nonNull(index) && index.isReady()) {
+                sources.add(new Source(name + " index", CompletableFuture.completedFuture(index.search(term, max))));
+                continue;
             }
 
+            // One more than needed, so the search is known to be limited if a provider has that many
+            sources.add(submit(name + " display name", () -> provider.searchByDisplayName(term, max + 1)));
             if (cfg.getExclude().getThreepid()) {
-                log.info("Skipping 3PID data, disabled in config");
+                log.debug("Skipping 3PID data of {}, disabled in config", name);
             } else {
-                resultProvider = provider.searchBy3pid(query);
-                log.info("Threepid: found {} match(es) for '{}'", resultProvider.getResults().size(), query);
-                result.getResults().addAll(resultProvider.getResults());
-                if (resultProvider.isLimited()) {
-                    result.setLimited(true);
+                sources.add(submit(name + " 3PID", () -> provider.searchBy3pid(term, max + 1)));
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + cfg.getTimeoutInSeconds() * 1000;
+        Map<String, UserDirectorySearchResult.Result> merged = new LinkedHashMap<>();
+        boolean limited = false;
+        try {
+            for (Source source : sources) {
+                if (merged.size() >= max) {
+                    // Enough results already, the remaining sources would only be cut off
+                    limited = true;
+                    break;
+                }
+
+                UserDirectorySearchResult result;
+                try {
+                    result = source.task.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    log.warn("{}: no answer in time for '{}', skipping", source.label, term);
+                    limited = true;
+                    continue;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof HttpMatrixException) {
+                        throw (HttpMatrixException) e.getCause();
+                    }
+
+                    // Users this source would have given may be missing, so clients should not take the results as complete
+                    log.warn("{}: unable to search for '{}', skipping", source.label, term, e.getCause());
+                    limited = true;
+                    continue;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InternalServerError("Interrupted while searching the directory");
+                }
+
+                if (Objects.isNull(result)) {
+                    continue;
+                }
+
+                log.info("{}: found {} match(es) for '{}'", source.label, result.getResults().size(), term);
+                limited |= result.isLimited();
+                for (UserDirectorySearchResult.Result entry : result.getResults()) {
+                    if (Objects.isNull(entry.getUserId()) || merged.containsKey(entry.getUserId())) {
+                        continue;
+                    }
+
+                    if (merged.size() >= max) {
+                        limited = true;
+                        break;
+                    }
+
+                    merged.put(entry.getUserId(), entry);
                 }
             }
+        } finally {
+            sources.forEach(source -> source.task.cancel(true));
         }
 
+        UserDirectorySearchResult result = new UserDirectorySearchResult();
+        result.setResults(new LinkedHashSet<>(merged.values()));
+        result.setLimited(limited);
         log.info("Total matches: {} - limited? {}", result.getResults().size(), result.isLimited());
         return result;
     }
 
+    /**
+     * Stop the search threads and the index refreshes.
+     */
+    public void stop() {
+        executor.shutdownNow();
+        if (Objects.nonNull(indexer)) {
+            indexer.shutdownNow();
+        }
+    }
+
+    private Source submit(String label, Callable<UserDirectorySearchResult> search) {
+        return new Source(label, executor.submit(search));
+    }
+
+    private UserDirectorySearchResult searchHomeserver(URI target, String accessToken, String query, int limit) {
+        URIBuilder builder = dns.transform(target);
+        log.info("Querying HS at {}", builder);
+        builder.setParameter("access_token", accessToken);
+        UserDirectorySearchRequest request = new UserDirectorySearchRequest(query);
+        request.setLimit(limit);
+        HttpPost req = RestClientUtils.post(builder.toString(), request);
+        // The search gives up on the homeserver at the timeout, and the request must not keep a thread past it
+        int timeout = (int) Math.min(Integer.MAX_VALUE, cfg.getTimeoutInSeconds() * 1000);
+        req.setConfig(RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build());
+        try (CloseableHttpResponse res = client.execute(req)) {
+            int status = res.getStatusLine().getStatusCode();
+            Charset charset = ContentType.getOrDefault(res.getEntity()).getCharset();
+            String body = IOUtils.toString(res.getEntity().getContent(), charset);
+
+            if (status != 200) {
+                MatrixErrorInfo info = GsonUtil.get().fromJson(body, MatrixErrorInfo.class);
+                if (StringUtils.equals("M_UNRECOGNIZED", info.getErrcode())) { // FIXME no hardcoding, use Enum
+                    log.warn("Homeserver does not support Directory feature, skipping");
+                    return UserDirectorySearchResult.empty();
+                } else {
+                    log.error("Homeserver returned an error while performing directory search");
+                    throw new HttpMatrixException(status, info.getErrcode(), info.getError());
+                }
+            }
+
+            return GsonUtil.get().fromJson(body, UserDirectorySearchResult.class);
+        } catch (JsonSyntaxException e) {
+            throw new InternalServerError("Invalid JSON reply from the HS: " + e.getMessage());
+        } catch (IOException e) {
+            throw new InternalServerError("Unable to query the HS: I/O error: " + e.getMessage());
+        }
+    }
+
 }
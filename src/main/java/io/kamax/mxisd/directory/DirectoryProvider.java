@@ -22,10 +22,50 @@ package io.kamax.mxisd.directory;
 
 import io.kamax.mxisd.http.io.UserDirectorySearchResult;
 
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
 public interface DirectoryProvider {
 
     UserDirectorySearchResult searchByDisplayName(String query);
 
     UserDirectorySearchResult searchBy3pid(String query);
 
+    /**
+     * Search by display name, for at most the given amount of users.
+     * <p>
+     * Providers able to stop their backend search early should override this. The default searches all matches.
+     *
+     * @param query The search term.
+     * @param limit The maximum amount of users needed.
+     * @return The users found, which can be more than the limit.
+     */
+    default UserDirectorySearchResult searchByDisplayName(String query, int limit) {
+        return searchByDisplayName(query);
+    }
+
+    /**
+     * Search by 3PID, for at most the given amount of users.
+     * <p>
+     * Providers able to stop their backend search early should override this. The default searches all matches.
+     *
+     * @param query The search term.
+     * @param limit The maximum amount of users needed.
+     * @return The users found, which can be more than the limit.
+     */
+    default UserDirectorySearchResult searchBy3pid(String query, int limit) {
+        return searchBy3pid(query);
+    }
+
+    /**
+     * List the users of the provider, to be indexed in memory.
+     *
+     * @param changedSince Only list users changed since then, or null to list them all.
+     * @return The users, or empty if the provider cannot list them and must be searched instead.
+     */
+    default Optional<List<DirectoryEntry>> listUsers(Instant changedSince) {
+        return Optional.empty();
+    }
+
 }
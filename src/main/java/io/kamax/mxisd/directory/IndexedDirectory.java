@@ -0,0 +1,169 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.directory;
+
+import io.kamax.mxisd.http.io.UserDirectorySearchResult;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * The in-memory index of the users of a directory provider, kept up to date in the background.
+ * <p>
+ * All the users are loaded on the first refresh, and again on each full refresh so users removed from the store are
+ * dropped. In between, only the users changed since the previous refresh are loaded, and indexed on their own: searches
+ * go through both indexes, changed users taking precedence. Changes are merged into the main index once they are many.
+ */
+public class IndexedDirectory {
+
+    private static final Logger log = LoggerFactory.getLogger(IndexedDirectory.class);
+
+    // Changes are asked for since the previous refresh minus this, in case the clock of the store is behind ours
+    private static final long ClockMarginInSeconds = 60;
+
+    // Changes are merged into the main index past this many, or past a twentieth of the users if more
+    private static final int ChangesToMerge = 1000;
+
+    private static class State {
+
+        private final DirectoryIndex users;
+        private final Map<String, DirectoryEntry> changes;
+        private final DirectoryIndex changed;
+
+        private State(DirectoryIndex users, Map<String, DirectoryEntry> changes, boolean withThreepids) {
+            this.users = users;
+            this.changes = changes;
+            this.changed = DirectoryIndex.build(changes.values(), withThreepids);
+        }
+    }
+
+    private final DirectoryProvider provider;
+    private final String name;
+    private final boolean withThreepids;
+    private final long fullRefreshInSeconds;
+
+    private volatile State state;
+    private volatile boolean supported = true;
+    private Instant lastRefresh;
+    private Instant lastFullRefresh;
+
+    public IndexedDirectory(DirectoryProvider provider, boolean withThreepids, long fullRefreshInSeconds) {
+        this.provider = provider;
+        this.name = provider.getClass().getSimpleName();
+        this.withThreepids = withThreepids;
+        this.fullRefreshInSeconds = fullRefreshInSeconds;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * If the provider can list its users, and they were loaded.
+     *
+     * @return true if searches can be answered from the index, false if the provider must be searched directly.
+     */
+    public boolean isReady() {
+        return supported && Objects.nonNull(state);
+    }
+
+    public UserDirectorySearchResult search(String query, int limit) {
+        State current = state;
+        if (Objects.isNull(current)) {
+            return UserDirectorySearchResult.empty();
+        }
+
+        UserDirectorySearchResult result = current.changed.search(query, limit);
+        if (result.isLimited()) {
+            return result;
+        }
+
+        UserDirectorySearchResult others = current.users.search(query, limit - result.getResults().size(), current.changes::containsKey);
+        others.getResults().forEach(result::addResult);
+        result.setLimited(others.isLimited());
+        return result;
+    }
+
+    /**
+     * Load all the users if a full refresh is due, or else only the users changed since the previous refresh.
+     * <p>
+     * Only one refresh runs at a time. Searches are not blocked, they use the previous state until the refresh is done.
+     */
+    public synchronized void refresh() {
+        if (!supported) {
+            return;
+        }
+
+        Instant now = Instant.now();
+        boolean full = Objects.isNull(state) || !now.isBefore(lastFullRefresh.plusSeconds(fullRefreshInSeconds));
+        Optional<List<DirectoryEntry>> users = provider.listUsers(full ? null : lastRefresh.minusSeconds(ClockMarginInSeconds));
+        if (!users.isPresent()) {
+            log.info("{} cannot list its users, it will be searched directly", name);
+            supported = false;
+            return;
+        }
+
+        State current = state;
+        if (full) {
+            state = new State(index(users.get()), Collections.emptyMap(), withThreepids);
+            lastFullRefresh = now;
+            log.info("{}: indexed {} user(s)", name, state.users.size());
+        } else if (!users.get().isEmpty()) {
+            Map<String, DirectoryEntry> changes = new HashMap<>(current.changes);
+            users.get().stream()
+                    .filter(user -> StringUtils.isNotBlank(user.getUserId()))
+                    .forEach(user -> changes.put(user.getUserId(), user));
+
+            if (changes.size() >= Math.max(ChangesToMerge, current.users.size() / 20)) {
+                Map<String, DirectoryEntry> all = new LinkedHashMap<>();
+                current.users.getEntries().forEach(user -> all.put(user.getUserId(), user));
+                all.putAll(changes);
+                state = new State(DirectoryIndex.build(all.values(), withThreepids), Collections.emptyMap(), withThreepids);
+                log.info("{}: merged {} changed user(s) into the index", name, changes.size());
+            } else {
+                state = new State(current.users, changes, withThreepids);
+                log.info("{}: indexed {} changed user(s)", name, users.get().size());
+            }
+        }
+
+        lastRefresh = now;
+    }
+
+    private DirectoryIndex index(Collection<DirectoryEntry> users) {
+        // A store can give the same user more than once, e.g. from several LDAP base DNs
+        Map<String, DirectoryEntry> byUserId = new LinkedHashMap<>();
+        users.stream()
+                .filter(user -> StringUtils.isNotBlank(user.getUserId()))
+                .forEach(user -> byUserId.putIfAbsent(user.getUserId(), user));
+        return DirectoryIndex.build(byUserId.values(), withThreepids);
+    }
+
+}
@@ -4,4 +4,11 @@ public interface Engine {
     void updateHashes();
 
     String getPepper();
+
+    /**
+     * A number which changes each time the pepper does, so anything derived from the pepper can be cached until then.
+     *
+     * @return The current pepper generation.
+     */
+    long getPepperGeneration();
 }
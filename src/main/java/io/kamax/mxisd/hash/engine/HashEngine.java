@@ -21,6 +21,7 @@ public class HashEngine implements Engine {
     private final HashingConfig config;
     private final Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
     private String pepper;
+    private long pepperGeneration;
 
     public HashEngine(List<? extends IThreePidProvider> providers, HashStorage hashStorage, HashingConfig config) {
         this.providers = providers;
@@ -33,6 +34,7 @@ public class HashEngine implements Engine {
         LOGGER.info("Start update hashes.");
         synchronized (hashStorage) {
             this.pepper = newPepper();
+            this.pepperGeneration++;
             hashStorage.clear();
             for (IThreePidProvider provider : providers) {
                 try {
@@ -56,6 +58,13 @@ public class HashEngine implements Engine {
         }
     }
 
+    @Override
+    public long getPepperGeneration() {
+        synchronized (hashStorage) {
+            return pepperGeneration;
+        }
+    }
+
     protected String hash(ThreePidMapping pidMapping) {
         return base64.encodeToString(DigestUtils.sha256(pidMapping.getValue() + " " + pidMapping.getMedium() + " " + getPepper()));
     }
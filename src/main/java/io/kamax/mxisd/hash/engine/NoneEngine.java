@@ -16,4 +16,9 @@ public class NoneEngine implements Engine {
     public String getPepper() {
         return "";
     }
+
+    @Override
+    public long getPepperGeneration() {
+        return 0;
+    }
 }
@@ -24,6 +24,7 @@ public class UserDirectorySearchRequest {
 
     private String by;
     private String searchTerm;
+    private Integer limit;
 
     public UserDirectorySearchRequest(String searchTerm) {
         setSearchTerm(searchTerm);
@@ -50,4 +51,12 @@ public class UserDirectorySearchRequest {
         this.searchTerm = searchTerm;
     }
 
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+
 }
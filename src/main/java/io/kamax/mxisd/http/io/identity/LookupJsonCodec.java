@@ -0,0 +1,206 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.http.io.identity;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import io.kamax.mxisd.exception.BadRequestException;
+import io.kamax.mxisd.lookup.ThreePidMapping;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming JSON codec of the bulk lookup requests and answers.
+ * <p>
+ * Requests are read straight from the body bytes into their final objects, and stop as soon as there are more items than
+ * allowed. Answers are written item per item.
+ */
+public class LookupJsonCodec {
+
+    @FunctionalInterface
+    private interface Parser<T> {
+
+        T parse(JsonReader reader) throws IOException;
+
+    }
+
+    private static <T> T parse(byte[] data, Parser<T> parser) {
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.UTF_8))) {
+            reader.setLenient(true); // Same as Gson
+            return parser.parse(reader);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e.getMessage(), e);
+        }
+    }
+
+    private static void checkCount(int count, int maxItems) {
+        if (count >= maxItems) {
+            throw new BadRequestException("Too many items in the request, maximum is " + maxItems);
+        }
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (!reader.hasNext()) {
+            throw new JsonSyntaxException("Missing value at " + reader.getPath());
+        }
+
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        return reader.nextString();
+    }
+
+    private static boolean skipNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Read a <code>/bulk_lookup</code> request body: <code>{"threepids": [["medium", "address"], ...]}</code>.
+     *
+     * @param data     The UTF-8 body.
+     * @param maxItems The maximum amount of 3PIDs.
+     * @return The 3PIDs to lookup.
+     */
+    public static List<ThreePidMapping> readBulkLookupRequest(byte[] data, int maxItems) {
+        return parse(data, reader -> {
+            List<ThreePidMapping> mappings = new ArrayList<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"threepids".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                if (skipNull(reader)) {
+                    continue;
+                }
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    checkCount(mappings.size(), maxItems);
+
+                    ThreePidMapping mapping = new ThreePidMapping();
+                    reader.beginArray();
+                    mapping.setMedium(nextString(reader));
+                    mapping.setValue(nextString(reader));
+                    while (reader.hasNext()) {
+                        reader.skipValue();
+                    }
+                    reader.endArray();
+                    mappings.add(mapping);
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+            return mappings;
+        });
+    }
+
+    /**
+     * Read a <code>/v2/lookup</code> request body.
+     *
+     * @param data     The UTF-8 body.
+     * @param maxItems The maximum amount of addresses.
+     * @return The request.
+     */
+    public static ClientHashLookupRequest readHashLookupRequest(byte[] data, int maxItems) {
+        return parse(data, reader -> {
+            ClientHashLookupRequest request = new ClientHashLookupRequest();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (skipNull(reader)) {
+                    continue;
+                }
+
+                switch (name) {
+                    case "algorithm":
+                        request.setAlgorithm(reader.nextString());
+                        break;
+                    case "pepper":
+                        request.setPepper(reader.nextString());
+                        break;
+                    case "addresses":
+                        List<String> addresses = new ArrayList<>();
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            checkCount(addresses.size(), maxItems);
+                            addresses.add(nextString(reader));
+                        }
+                        reader.endArray();
+                        request.setAddresses(addresses);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return request;
+        });
+    }
+
+    /**
+     * Write a <code>/bulk_lookup</code> answer: <code>{"threepids": [["medium", "address", "mxid"], ...]}</code>.
+     *
+     * @param writer   The writer to use.
+     * @param mappings The found mappings.
+     * @throws IOException If the writer fails.
+     */
+    public static void writeBulkLookupAnswer(JsonWriter writer, Collection<ThreePidMapping> mappings) throws IOException {
+        writer.beginObject().name("threepids").beginArray();
+        for (ThreePidMapping mapping : mappings) {
+            writer.beginArray().value(mapping.getMedium()).value(mapping.getValue()).value(mapping.getMxid()).endArray();
+        }
+        writer.endArray().endObject();
+    }
+
+    /**
+     * Write a <code>/v2/lookup</code> answer: <code>{"mappings": {"address": "mxid", ...}}</code>.
+     *
+     * @param writer   The writer to use.
+     * @param mappings The found mappings, by hashed or plain address.
+     * @throws IOException If the writer fails.
+     */
+    public static void writeHashLookupAnswer(JsonWriter writer, Map<String, String> mappings) throws IOException {
+        writer.beginObject().name("mappings").beginObject();
+        for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+            writer.name(mapping.getKey()).value(mapping.getValue());
+        }
+        writer.endObject().endObject();
+    }
+
+}
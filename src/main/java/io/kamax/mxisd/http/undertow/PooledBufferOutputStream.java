@@ -0,0 +1,104 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.http.undertow;
+
+import io.undertow.connector.ByteBufferPool;
+import io.undertow.connector.PooledByteBuffer;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output stream writing into buffers taken from an Undertow buffer pool, so a response can be built without copying it
+ * into a growing array first.
+ * <p>
+ * The buffers go back to the pool on {@link #close()}, which must only happen once they were sent.
+ */
+public class PooledBufferOutputStream extends OutputStream {
+
+    private final ByteBufferPool pool;
+    private final List<PooledByteBuffer> buffers = new ArrayList<>();
+    private ByteBuffer current;
+    private long size;
+
+    public PooledBufferOutputStream(ByteBufferPool pool) {
+        this.pool = pool;
+    }
+
+    private void ensureRemaining() {
+        if (current == null || !current.hasRemaining()) {
+            PooledByteBuffer pooled = pool.allocate();
+            buffers.add(pooled);
+            current = pooled.getBuffer();
+            current.clear();
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining();
+        current.put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            ensureRemaining();
+            int count = Math.min(len, current.remaining());
+            current.put(b, off, count);
+            off += count;
+            len -= count;
+            size += count;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * The written data, as views over the pooled buffers.
+     *
+     * @return The buffers, ready to be sent.
+     */
+    public ByteBuffer[] getBuffers() {
+        ByteBuffer[] result = new ByteBuffer[buffers.size()];
+        for (int i = 0; i < result.length; i++) {
+            ByteBuffer buffer = buffers.get(i).getBuffer().duplicate();
+            buffer.flip();
+            result[i] = buffer;
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        for (PooledByteBuffer buffer : buffers) {
+            buffer.close();
+        }
+        buffers.clear();
+        current = null;
+    }
+
+}
@@ -22,19 +22,28 @@ package io.kamax.mxisd.http.undertow.handler;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 import io.kamax.matrix.json.GsonUtil;
 import io.kamax.mxisd.dns.ClientDnsOverwrite;
 import io.kamax.mxisd.exception.AccessTokenNotFoundException;
 import io.kamax.mxisd.exception.HttpMatrixException;
 import io.kamax.mxisd.exception.InternalServerError;
+import io.kamax.mxisd.http.io.JsonWritable;
+import io.kamax.mxisd.http.undertow.PooledBufferOutputStream;
 import io.kamax.mxisd.proxy.Response;
 import io.kamax.mxisd.util.OptionalUtil;
 import io.kamax.mxisd.util.RestClientUtils;
+import io.undertow.io.IoCallback;
+import io.undertow.io.Sender;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.handlers.form.FormData;
+import io.undertow.util.ETag;
+import io.undertow.util.ETagUtils;
 import io.undertow.util.Headers;
 import io.undertow.util.HttpString;
+import io.undertow.util.StatusCodes;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Header;
@@ -46,6 +55,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.net.URI;
@@ -180,6 +190,89 @@ public abstract class BasicHttpHandler implements HttpHandler {
         respondJson(ex, GsonUtil.get().toJson(body));
     }
 
+    /**
+     * Respond with a body written straight into pooled buffers, which are released once sent.
+     *
+     * @param ex   The exchange to respond on.
+     * @param body The body to write.
+     */
+    protected void respondJson(HttpServerExchange ex, JsonWritable body) {
+        PooledBufferOutputStream out = new PooledBufferOutputStream(ex.getConnection().getByteBufferPool());
+        try {
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            body.write(writer);
+            writer.flush();
+        } catch (IOException e) {
+            out.close();
+            throw new InternalServerError(e);
+        } catch (RuntimeException e) {
+            out.close();
+            throw e;
+        }
+
+        ex.setStatusCode(200);
+        ex.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        ex.getResponseHeaders().put(Headers.CONTENT_LENGTH, out.size());
+        ex.getResponseSender().send(out.getBuffers(), new IoCallback() {
+
+            @Override
+            public void onComplete(HttpServerExchange exchange, Sender sender) {
+                out.close();
+                IoCallback.END_EXCHANGE.onComplete(exchange, sender);
+            }
+
+            @Override
+            public void onException(HttpServerExchange exchange, Sender sender, IOException exception) {
+                out.close();
+                IoCallback.END_EXCHANGE.onException(exchange, sender, exception);
+            }
+
+        });
+    }
+
+    /**
+     * Build the tag of a response body, to be used as its ETag.
+     *
+     * @param body The response body.
+     * @return A short tag which changes with the body.
+     */
+    protected static String tagOf(String body) {
+        return DigestUtils.sha256Hex(body).substring(0, 32);
+    }
+
+    /**
+     * Build the Cache-Control value of a public response.
+     *
+     * @param maxAgeInSeconds For how long the response can be reused without asking, or 0 to always revalidate.
+     * @return The Cache-Control header value.
+     */
+    protected static String publicCacheControl(long maxAgeInSeconds) {
+        return maxAgeInSeconds > 0 ? "public, max-age=" + maxAgeInSeconds : "no-cache";
+    }
+
+    /**
+     * Set the caching headers of a response, and answer with 304 if the client already has it.
+     * <p>
+     * The ETag is weak as the body can be sent compressed or not.
+     *
+     * @param ex           The exchange to respond on.
+     * @param tag          The tag of the response body.
+     * @param cacheControl The Cache-Control header value.
+     * @return true if the client was told its copy is not modified and nothing else must be sent, false otherwise.
+     */
+    protected boolean respondIfNotModified(HttpServerExchange ex, String tag, String cacheControl) {
+        ETag etag = new ETag(true, tag);
+        ex.getResponseHeaders().put(Headers.ETAG, etag.toString());
+        ex.getResponseHeaders().put(Headers.CACHE_CONTROL, cacheControl);
+        if (ETagUtils.handleIfNoneMatch(ex, etag, true)) {
+            return false;
+        }
+
+        ex.setStatusCode(StatusCodes.NOT_MODIFIED);
+        ex.endExchange();
+        return true;
+    }
+
     protected JsonObject buildErrorBody(HttpServerExchange exchange, String errCode, String error) {
         JsonObject obj = new JsonObject();
         obj.addProperty("errcode", errCode);
@@ -27,12 +27,14 @@ import io.kamax.matrix.json.InvalidJsonException;
 import io.kamax.mxisd.exception.*;
 import io.undertow.server.HttpHandler;
 import io.undertow.server.HttpServerExchange;
+import io.undertow.util.AttachmentKey;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.Instant;
+import java.util.concurrent.CompletionException;
 
 public class SaneHandler extends BasicHttpHandler {
 
@@ -45,19 +47,46 @@ public class SaneHandler extends BasicHttpHandler {
     private static final String CorsHeadersName = "Access-Control-Allow-Headers";
     private static final String CorsHeadersValue = "Origin, X-Requested-With, Content-Type, Accept, Authorization";
 
+    /**
+     * The handler of the exchange, used by asynchronous handlers to report their failure once the exchange was dispatched.
+     */
+    public static final AttachmentKey<SaneHandler> Key = AttachmentKey.create(SaneHandler.class);
+
+    @FunctionalInterface
+    private interface Action {
+
+        void run() throws Exception;
+
+    }
+
     public static SaneHandler around(HttpHandler h) {
-        return new SaneHandler(h);
+        return new SaneHandler(h, true);
+    }
+
+    /**
+     * Wrap a handler which reads the request body and completes the exchange without blocking, e.g. with a
+     * {@link io.undertow.io.Receiver}, after dispatching the exchange.
+     *
+     * @param h The handler to wrap.
+     * @return The wrapping handler.
+     */
+    public static SaneHandler aroundAsync(HttpHandler h) {
+        return new SaneHandler(h, false);
     }
 
     private final HttpHandler child;
+    private final boolean blocking;
 
-    private SaneHandler(HttpHandler child) {
+    private SaneHandler(HttpHandler child, boolean blocking) {
         this.child = child;
+        this.blocking = blocking;
     }
 
     @Override
     public void handleRequest(HttpServerExchange exchange) throws Exception {
-        exchange.startBlocking();
+        if (blocking) {
+            exchange.startBlocking();
+        }
 
         if (exchange.isInIoThread()) {
             exchange.dispatch(this);
@@ -68,65 +97,101 @@ public class SaneHandler extends BasicHttpHandler {
                 putHeader(exchange, CorsMethodsName, CorsMethodsValue);
                 putHeader(exchange, CorsHeadersName, CorsHeadersValue);
 
-                child.handleRequest(exchange);
-            } catch (IllegalArgumentException e) {
-                respond(exchange, HttpStatus.SC_BAD_REQUEST, GsonUtil.makeObj("error", e.getMessage()));
-            } catch (BadRequestException e) {
-                respond(exchange, HttpStatus.SC_BAD_REQUEST, "M_BAD_REQUEST", e.getMessage());
-            } catch (MappingAlreadyExistsException e) {
-                respond(exchange, HttpStatus.SC_BAD_REQUEST, "M_ALREADY_EXISTS", e.getMessage());
-            } catch (JsonMemberNotFoundException e) {
-                respond(exchange, HttpStatus.SC_BAD_REQUEST, "M_JSON_MISSING_KEYS", e.getMessage());
-            } catch (InvalidResponseJsonException | JsonSyntaxException | MalformedJsonException e) {
-                respond(exchange, HttpStatus.SC_BAD_REQUEST, "M_INVALID_JSON", e.getMessage());
-            } catch (InvalidJsonException e) {
-                respond(exchange, HttpStatus.SC_BAD_REQUEST, e.getErrorCode(), e.getError());
-            } catch (InvalidCredentialsException e) {
-                log.error("Unauthorized: ", e);
-                respond(exchange, HttpStatus.SC_UNAUTHORIZED, "M_UNAUTHORIZED", e.getMessage());
-            } catch (TermsNotSignedException e) {
-                respond(exchange, HttpStatus.SC_FORBIDDEN, "M_TERMS_NOT_SIGNED", e.getMessage());
-            } catch (ObjectNotFoundException e) {
-                respond(exchange, HttpStatus.SC_NOT_FOUND, "M_NOT_FOUND", e.getMessage());
-            } catch (NotImplementedException e) {
-                respond(exchange, HttpStatus.SC_NOT_IMPLEMENTED, "M_NOT_IMPLEMENTED", e.getMessage());
-            } catch (InvalidPepperException e) {
-                respond(exchange, HttpStatus.SC_BAD_REQUEST, "M_INVALID_PEPPER", e.getMessage());
-            } catch (InvalidParamException e) {
-                respond(exchange, HttpStatus.SC_BAD_REQUEST, "M_INVALID_PARAM", e.getMessage());
-            } catch (FeatureNotAvailable e) {
-                if (StringUtils.isNotBlank(e.getInternalReason())) {
-                    log.error("Feature not available: {}", e.getInternalReason());
+                exchange.putAttachment(Key, this);
+                handle(exchange, () -> child.handleRequest(exchange));
+            } finally {
+                // An asynchronous handler dispatched the exchange and completes it itself
+                if (!exchange.isDispatched()) {
+                    exchange.endExchange();
                 }
+            }
+        }
+    }
 
-                handleException(exchange, e);
-            } catch (InternalServerError e) {
-                if (StringUtils.isNotBlank(e.getInternalReason())) {
-                    log.error("Transaction #{} - {}", e.getReference(), e.getInternalReason());
-                } else {
-                    log.error("Transaction #{}", e.getReference(), e);
+    /**
+     * Respond to an asynchronous handler failure with the same error as if it was thrown synchronously.
+     *
+     * @param exchange The exchange to respond on.
+     * @param t        The failure.
+     */
+    public void handleFailure(HttpServerExchange exchange, Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        try {
+            handle(exchange, () -> {
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
                 }
 
-                handleException(exchange, e);
-            } catch (RemoteLoginException e) {
-                if (e.getErrorBodyMsgResp() != null) {
-                    respond(exchange, e.getStatus(), e.getErrorBodyMsgResp());
-                } else {
-                    handleException(exchange, e);
-                }
-            } catch (HttpMatrixException e) {
-                respond(exchange, e.getStatus(), buildErrorBody(exchange, e.getErrorCode(), e.getError()));
-            } catch (RuntimeException e) {
-                log.error("Unknown error when handling {}", exchange.getRequestURL(), e);
-                String message = e.getMessage();
-                if (StringUtils.isBlank(message)) {
-                    message = "An internal server error occurred. Contact your administrator with reference Transaction #" + Instant.now().toEpochMilli();
-                }
-                respond(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, buildErrorBody(exchange, "M_UNKNOWN", message));
-            } finally {
+                throw new RuntimeException(cause);
+            });
+        } catch (Exception e) {
+            log.error("Unknown error when handling {}", exchange.getRequestURL(), e);
+            respond(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, buildErrorBody(exchange, "M_UNKNOWN", "An internal server error occurred"));
+        } finally {
+            if (!exchange.isResponseStarted()) {
                 exchange.endExchange();
             }
         }
     }
 
+    private void handle(HttpServerExchange exchange, Action action) throws Exception {
+        try {
+            action.run();
+        } catch (IllegalArgumentException e) {
+            respond(exchange, HttpStatus.SC_BAD_REQUEST, GsonUtil.makeObj("error", e.getMessage()));
+        } catch (BadRequestException e) {
+            respond(exchange, HttpStatus.SC_BAD_REQUEST, "M_BAD_REQUEST", e.getMessage());
+        } catch (MappingAlreadyExistsException e) {
+            respond(exchange, HttpStatus.SC_BAD_REQUEST, "M_ALREADY_EXISTS", e.getMessage());
+        } catch (JsonMemberNotFoundException e) {
+            respond(exchange, HttpStatus.SC_BAD_REQUEST, "M_JSON_MISSING_KEYS", e.getMessage());
+        } catch (InvalidResponseJsonException | JsonSyntaxException | MalformedJsonException e) {
+            respond(exchange, HttpStatus.SC_BAD_REQUEST, "M_INVALID_JSON", e.getMessage());
+        } catch (InvalidJsonException e) {
+            respond(exchange, HttpStatus.SC_BAD_REQUEST, e.getErrorCode(), e.getError());
+        } catch (InvalidCredentialsException e) {
+            log.error("Unauthorized: ", e);
+            respond(exchange, HttpStatus.SC_UNAUTHORIZED, "M_UNAUTHORIZED", e.getMessage());
+        } catch (TermsNotSignedException e) {
+            respond(exchange, HttpStatus.SC_FORBIDDEN, "M_TERMS_NOT_SIGNED", e.getMessage());
+        } catch (ObjectNotFoundException e) {
+            respond(exchange, HttpStatus.SC_NOT_FOUND, "M_NOT_FOUND", e.getMessage());
+        } catch (NotImplementedException e) {
+            respond(exchange, HttpStatus.SC_NOT_IMPLEMENTED, "M_NOT_IMPLEMENTED", e.getMessage());
+        } catch (InvalidPepperException e) {
+            respond(exchange, HttpStatus.SC_BAD_REQUEST, "M_INVALID_PEPPER", e.getMessage());
+        } catch (InvalidParamException e) {
+            respond(exchange, HttpStatus.SC_BAD_REQUEST, "M_INVALID_PARAM", e.getMessage());
+        } catch (FeatureNotAvailable e) {
+            if (StringUtils.isNotBlank(e.getInternalReason())) {
+                log.error("Feature not available: {}", e.getInternalReason());
+            }
+
+            handleException(exchange, e);
+        } catch (InternalServerError e) {
+            if (StringUtils.isNotBlank(e.getInternalReason())) {
+                log.error("Transaction #{} - {}", e.getReference(), e.getInternalReason());
+            } else {
+                log.error("Transaction #{}", e.getReference(), e);
+            }
+
+            handleException(exchange, e);
+        } catch (RemoteLoginException e) {
+            if (e.getErrorBodyMsgResp() != null) {
+                respond(exchange, e.getStatus(), e.getErrorBodyMsgResp());
+            } else {
+                handleException(exchange, e);
+            }
+        } catch (HttpMatrixException e) {
+            respond(exchange, e.getStatus(), buildErrorBody(exchange, e.getErrorCode(), e.getError()));
+        } catch (RuntimeException e) {
+            log.error("Unknown error when handling {}", exchange.getRequestURL(), e);
+            String message = e.getMessage();
+            if (StringUtils.isBlank(message)) {
+                message = "An internal server error occurred. Contact your administrator with reference Transaction #" + Instant.now().toEpochMilli();
+            }
+            respond(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, buildErrorBody(exchange, "M_UNKNOWN", message));
+        }
+    }
+
 }
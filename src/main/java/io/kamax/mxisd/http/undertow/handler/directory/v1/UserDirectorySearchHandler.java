@@ -44,7 +44,7 @@ public class UserDirectorySearchHandler extends HomeserverProxyHandler {
         String accessToken = getAccessToken(exchange);
         UserDirectorySearchRequest searchQuery = parseJsonTo(exchange, UserDirectorySearchRequest.class);
         URI target = URI.create(exchange.getRequestURL());
-        UserDirectorySearchResult result = mgr.search(target, accessToken, searchQuery.getSearchTerm());
+        UserDirectorySearchResult result = mgr.search(target, accessToken, searchQuery.getSearchTerm(), searchQuery.getLimit());
 
         respondJson(exchange, GsonUtil.get().toJson(result));
     }
@@ -38,9 +38,11 @@ public class KeyGetHandler extends BasicHttpHandler implements ApiHandler {
     private transient final Logger log = LoggerFactory.getLogger(KeyGetHandler.class);
 
     private KeyManager mgr;
+    private String cacheControl;
 
-    public KeyGetHandler(KeyManager mgr) {
+    public KeyGetHandler(KeyManager mgr, long cacheMaxAge) {
         this.mgr = mgr;
+        this.cacheControl = publicCacheControl(cacheMaxAge);
     }
 
     @Override
@@ -55,8 +57,13 @@ public class KeyGetHandler extends BasicHttpHandler implements ApiHandler {
         String keyId = v[1];
 
         log.info("Key {}:{} was requested", keyAlgo, keyId);
+        String publicKey = mgr.getPublicKeyBase64(new GenericKeyIdentifier(KeyType.Regular, keyAlgo, keyId));
+        if (respondIfNotModified(exchange, tagOf(publicKey), cacheControl)) {
+            return;
+        }
+
         JsonObject obj = new JsonObject();
-        obj.addProperty("public_key", mgr.getPublicKeyBase64(new GenericKeyIdentifier(KeyType.Regular, keyAlgo, keyId)));
+        obj.addProperty("public_key", publicKey);
         respond(exchange, obj);
     }
 
@@ -20,15 +20,22 @@
 
 package io.kamax.mxisd.http.undertow.handler.identity.share;
 
+import io.kamax.mxisd.http.io.JsonWritable;
 import io.kamax.mxisd.http.undertow.handler.BasicHttpHandler;
+import io.kamax.mxisd.http.undertow.handler.SaneHandler;
 import io.kamax.mxisd.lookup.ALookupRequest;
 import io.undertow.server.HttpServerExchange;
+import io.undertow.util.SameThreadExecutor;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public abstract class LookupHandler extends BasicHttpHandler {
 
@@ -48,4 +55,68 @@ public abstract class LookupHandler extends BasicHttpHandler {
         lookup.setUserAgent(exchange.getRequestHeaders().getFirst("User-Agent"));
     }
 
+    /**
+     * Run a lookup without holding the current thread, then respond with its result as JSON.
+     * <p>
+     * The handler must be wrapped with {@link SaneHandler#aroundAsync(io.undertow.server.HttpHandler)}.
+     *
+     * @param exchange The exchange to respond on.
+     * @param lookup   The lookup, giving the response body.
+     */
+    protected void handleAsync(HttpServerExchange exchange, Supplier<CompletableFuture<?>> lookup) {
+        exchange.dispatch(SameThreadExecutor.INSTANCE, () -> complete(exchange, start(lookup)));
+    }
+
+    /**
+     * Read the request body without blocking, then run a lookup on it the same way as {@link #handleAsync(HttpServerExchange, Supplier)}.
+     *
+     * @param exchange The exchange to respond on.
+     * @param lookup   The lookup of the raw request body, giving the response body.
+     */
+    protected void handleBodyAsync(HttpServerExchange exchange, Function<byte[], CompletableFuture<?>> lookup) {
+        exchange.dispatch(SameThreadExecutor.INSTANCE, () -> exchange.getRequestReceiver().receiveFullBytes(
+            (ex, data) -> complete(ex, start(() -> lookup.apply(data))),
+            (ex, e) -> fail(ex, e)
+        ));
+    }
+
+    private CompletableFuture<?> start(Supplier<CompletableFuture<?>> lookup) {
+        try {
+            return lookup.get();
+        } catch (RuntimeException e) {
+            CompletableFuture<Object> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private void complete(HttpServerExchange exchange, CompletableFuture<?> result) {
+        result.whenComplete((body, error) -> {
+            if (Objects.nonNull(error)) {
+                fail(exchange, error);
+                return;
+            }
+
+            try {
+                if (body instanceof JsonWritable) {
+                    respondJson(exchange, (JsonWritable) body);
+                } else {
+                    respondJson(exchange, body);
+                }
+            } catch (RuntimeException e) {
+                fail(exchange, e);
+            }
+        });
+    }
+
+    private void fail(HttpServerExchange exchange, Throwable t) {
+        SaneHandler handler = exchange.getAttachment(SaneHandler.Key);
+        if (Objects.nonNull(handler)) {
+            handler.handleFailure(exchange, t);
+        } else {
+            log.error("Unknown error when handling {}", exchange.getRequestURL(), t);
+            respond(exchange, 500, "M_UNKNOWN", "An internal server error occurred");
+        }
+    }
+
 }
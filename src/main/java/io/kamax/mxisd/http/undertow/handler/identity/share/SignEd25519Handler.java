@@ -24,7 +24,6 @@ import com.google.gson.JsonObject;
 import io.kamax.matrix.MatrixID;
 import io.kamax.matrix._MatrixID;
 import io.kamax.matrix.json.GsonUtil;
-import io.kamax.matrix.json.MatrixJson;
 import io.kamax.mxisd.config.MxisdConfig;
 import io.kamax.mxisd.crypto.SignatureManager;
 import io.kamax.mxisd.http.undertow.handler.BasicHttpHandler;
@@ -64,7 +63,7 @@ public class SignEd25519Handler extends BasicHttpHandler implements ApiHandler {
         res.addProperty("token", token);
         res.addProperty("sender", sender.getId());
         res.addProperty("mxid", mxid.getId());
-        res.add("signatures", signMgr.signMessageGson(cfg.getServer().getName(), MatrixJson.encodeCanonical(res)));
+        res.add("signatures", signMgr.signMessageGson(cfg.getServer().getName(), signMgr.sign(res)));
 
         log.info("Signed data for invite using token {}", token);
         respondJson(exchange, res);
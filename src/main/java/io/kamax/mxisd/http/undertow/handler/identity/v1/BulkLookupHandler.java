@@ -21,8 +21,8 @@
 package io.kamax.mxisd.http.undertow.handler.identity.v1;
 
 import io.kamax.mxisd.http.IsAPIv1;
-import io.kamax.mxisd.http.io.identity.ClientBulkLookupAnswer;
-import io.kamax.mxisd.http.io.identity.ClientBulkLookupRequest;
+import io.kamax.mxisd.http.io.JsonWritable;
+import io.kamax.mxisd.http.io.identity.LookupJsonCodec;
 import io.kamax.mxisd.http.undertow.handler.ApiHandler;
 import io.kamax.mxisd.http.undertow.handler.identity.share.LookupHandler;
 import io.kamax.mxisd.lookup.BulkLookupRequest;
@@ -32,7 +32,6 @@ import io.undertow.server.HttpServerExchange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class BulkLookupHandler extends LookupHandler implements ApiHandler {
@@ -42,33 +41,29 @@ public class BulkLookupHandler extends LookupHandler implements ApiHandler {
     private static final Logger log = LoggerFactory.getLogger(SingleLookupHandler.class);
 
     private LookupStrategy strategy;
+    private int maxItems;
 
-    public BulkLookupHandler(LookupStrategy strategy) {
+    public BulkLookupHandler(LookupStrategy strategy, int maxItems) {
         this.strategy = strategy;
+        this.maxItems = maxItems;
     }
 
     @Override
-    public void handleRequest(HttpServerExchange exchange) throws Exception {
-        ClientBulkLookupRequest input = parseJsonTo(exchange, ClientBulkLookupRequest.class);
+    public void handleRequest(HttpServerExchange exchange) {
         BulkLookupRequest lookupRequest = new BulkLookupRequest();
         setRequesterInfo(lookupRequest, exchange);
         log.info("Got bulk lookup request from {} with client {} - Is recursive? {}",
                 lookupRequest.getRequester(), lookupRequest.getUserAgent(), lookupRequest.isRecursive());
 
-        List<ThreePidMapping> mappings = new ArrayList<>();
-        for (List<String> mappingRaw : input.getThreepids()) {
-            ThreePidMapping mapping = new ThreePidMapping();
-            mapping.setMedium(mappingRaw.get(0));
-            mapping.setValue(mappingRaw.get(1));
-            mappings.add(mapping);
-        }
-        lookupRequest.setMappings(mappings);
+        handleBodyAsync(exchange, body -> {
+            List<ThreePidMapping> mappings = LookupJsonCodec.readBulkLookupRequest(body, maxItems);
+            lookupRequest.setMappings(mappings);
 
-        ClientBulkLookupAnswer answer = new ClientBulkLookupAnswer();
-        answer.addAll(strategy.find(lookupRequest).get());
-        log.info("Finished bulk lookup request from {}", lookupRequest.getRequester());
-
-        respondJson(exchange, answer);
+            return strategy.findAsync(lookupRequest).thenApply(found -> {
+                log.info("Finished bulk lookup request from {}", lookupRequest.getRequester());
+                return (JsonWritable) writer -> LookupJsonCodec.writeBulkLookupAnswer(writer, found);
+            });
+        });
     }
 
     @Override
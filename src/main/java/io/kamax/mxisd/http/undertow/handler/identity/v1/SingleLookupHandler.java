@@ -29,15 +29,12 @@ import io.kamax.mxisd.http.IsAPIv1;
 import io.kamax.mxisd.http.io.identity.SingeLookupReplyJson;
 import io.kamax.mxisd.http.undertow.handler.ApiHandler;
 import io.kamax.mxisd.http.undertow.handler.identity.share.LookupHandler;
-import io.kamax.mxisd.lookup.SingleLookupReply;
 import io.kamax.mxisd.lookup.SingleLookupRequest;
 import io.kamax.mxisd.lookup.strategy.LookupStrategy;
 import io.undertow.server.HttpServerExchange;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Optional;
-
 public class SingleLookupHandler extends LookupHandler implements ApiHandler {
 
     public static final String Path = IsAPIv1.Base + "/lookup";
@@ -67,16 +64,16 @@ public class SingleLookupHandler extends LookupHandler implements ApiHandler {
         log.info("Got single lookup request from {} with client {} - Is recursive? {}",
                 lookupRequest.getRequester(), lookupRequest.getUserAgent(), lookupRequest.isRecursive());
 
-        Optional<SingleLookupReply> lookupOpt = strategy.find(lookupRequest);
-        if (!lookupOpt.isPresent()) {
-            log.info("No mapping was found, return empty JSON object");
-            respondJson(exchange, "{}");
-        } else {
-            SingleLookupReply lookup = lookupOpt.get();
-            JsonObject obj = GsonUtil.makeObj(new SingeLookupReplyJson(lookup));
+        handleAsync(exchange, () -> strategy.findAsync(lookupRequest).thenApply(lookupOpt -> {
+            if (!lookupOpt.isPresent()) {
+                log.info("No mapping was found, return empty JSON object");
+                return new JsonObject();
+            }
+
+            JsonObject obj = GsonUtil.makeObj(new SingeLookupReplyJson(lookupOpt.get()));
             signMgr.signMessageGson(cfg.getName(), obj);
-            respondJson(exchange, obj);
-        }
+            return obj;
+        }));
     }
 
     @Override
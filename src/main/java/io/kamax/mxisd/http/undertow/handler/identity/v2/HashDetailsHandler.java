@@ -2,6 +2,7 @@ package io.kamax.mxisd.http.undertow.handler.identity.v2;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import io.kamax.matrix.json.GsonUtil;
 import io.kamax.mxisd.config.HashingConfig;
 import io.kamax.mxisd.hash.HashManager;
 import io.kamax.mxisd.http.undertow.handler.BasicHttpHandler;
@@ -11,7 +12,21 @@ public class HashDetailsHandler extends BasicHttpHandler {
 
     public static final String PATH = "/_matrix/identity/v2/hash_details";
 
+    private static class Details {
+
+        private final long generation;
+        private final String body;
+        private final String tag;
+
+        private Details(long generation, String body) {
+            this.generation = generation;
+            this.body = body;
+            this.tag = generation + "-" + tagOf(body);
+        }
+    }
+
     private final HashManager hashManager;
+    private volatile Details details;
 
     public HashDetailsHandler(HashManager hashManager) {
         this.hashManager = hashManager;
@@ -19,7 +34,24 @@ public class HashDetailsHandler extends BasicHttpHandler {
 
     @Override
     public void handleRequest(HttpServerExchange exchange) throws Exception {
-        respond(exchange, getResponse());
+        Details current = getDetails();
+        // Authenticated, and the pepper can rotate at any time, so clients must always revalidate
+        if (respondIfNotModified(exchange, current.tag, "private, no-cache")) {
+            return;
+        }
+
+        respondJson(exchange, current.body);
+    }
+
+    // The body only changes with the pepper, so it is only built again once a new pepper is generated
+    private Details getDetails() {
+        long generation = hashManager.getHashEngine().getPepperGeneration();
+        Details current = details;
+        if (current == null || current.generation != generation) {
+            current = new Details(generation, GsonUtil.get().toJson(getResponse()));
+            details = current;
+        }
+        return current;
     }
 
     private JsonObject getResponse() {
@@ -25,8 +25,10 @@ import io.kamax.mxisd.exception.InvalidParamException;
 import io.kamax.mxisd.exception.InvalidPepperException;
 import io.kamax.mxisd.hash.HashManager;
 import io.kamax.mxisd.http.IsAPIv2;
+import io.kamax.mxisd.http.io.JsonWritable;
 import io.kamax.mxisd.http.io.identity.ClientHashLookupAnswer;
 import io.kamax.mxisd.http.io.identity.ClientHashLookupRequest;
+import io.kamax.mxisd.http.io.identity.LookupJsonCodec;
 import io.kamax.mxisd.http.undertow.handler.ApiHandler;
 import io.kamax.mxisd.http.undertow.handler.identity.share.LookupHandler;
 import io.kamax.mxisd.lookup.BulkLookupRequest;
@@ -42,7 +44,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 public class HashLookupHandler extends LookupHandler implements ApiHandler {
 
@@ -52,55 +54,61 @@ public class HashLookupHandler extends LookupHandler implements ApiHandler {
 
     private LookupStrategy strategy;
     private HashManager hashManager;
+    private int maxItems;
 
-    public HashLookupHandler(LookupStrategy strategy, HashManager hashManager) {
+    public HashLookupHandler(LookupStrategy strategy, HashManager hashManager, int maxItems) {
         this.strategy = strategy;
         this.hashManager = hashManager;
+        this.maxItems = maxItems;
     }
 
     @Override
-    public void handleRequest(HttpServerExchange exchange) throws Exception {
-        ClientHashLookupRequest input = parseJsonTo(exchange, ClientHashLookupRequest.class);
+    public void handleRequest(HttpServerExchange exchange) {
         HashLookupRequest lookupRequest = new HashLookupRequest();
         setRequesterInfo(lookupRequest, exchange);
-        lookupRequest.setHashes(input.getAddresses());
-        log.info("Got bulk lookup request from {} with client {} - Is recursive? {}",
-            lookupRequest.getRequester(), lookupRequest.getUserAgent(), lookupRequest.isRecursive());
 
-        if (!hashManager.getHashEngine().getPepper().equals(input.getPepper())) {
-            throw new InvalidPepperException();
-        }
+        handleBodyAsync(exchange, body -> {
+            ClientHashLookupRequest input = LookupJsonCodec.readHashLookupRequest(body, maxItems);
+            lookupRequest.setHashes(input.getAddresses());
+            log.info("Got bulk lookup request from {} with client {} - Is recursive? {}",
+                lookupRequest.getRequester(), lookupRequest.getUserAgent(), lookupRequest.isRecursive());
 
-        switch (input.getAlgorithm()) {
-            case "none":
-                noneAlgorithm(exchange, lookupRequest, input);
-                break;
-            case "sha256":
-                sha256Algorithm(exchange, lookupRequest, input);
-                break;
-            default:
-                throw new InvalidParamException();
-        }
-        hashManager.getRotationStrategy().newRequest();
+            if (!hashManager.getHashEngine().getPepper().equals(input.getPepper())) {
+                throw new InvalidPepperException();
+            }
+
+            CompletableFuture<ClientHashLookupAnswer> answer;
+            switch (input.getAlgorithm()) {
+                case "none":
+                    answer = noneAlgorithm(lookupRequest, input);
+                    break;
+                case "sha256":
+                    answer = sha256Algorithm(lookupRequest);
+                    break;
+                default:
+                    throw new InvalidParamException();
+            }
+            hashManager.getRotationStrategy().newRequest();
+            return answer.thenApply(a -> (JsonWritable) writer -> LookupJsonCodec.writeHashLookupAnswer(writer, a.getMappings()));
+        });
     }
 
-    private void noneAlgorithm(HttpServerExchange exchange, HashLookupRequest request, ClientHashLookupRequest input) throws Exception {
+    private CompletableFuture<ClientHashLookupAnswer> noneAlgorithm(HashLookupRequest request, ClientHashLookupRequest input) {
         if (hashManager.getConfig().isEnabled() && !hashManager.getConfig().getAlgorithms().contains(HashingConfig.Algorithm.none)) {
             throw new InvalidParamException();
         }
 
-        ClientHashLookupAnswer answer = null;
         if (input.getAddresses() != null && input.getAddresses().size() > 0) {
             if (input.getAddresses().size() == 1) {
-                answer = noneSingleLookup(request, input);
+                return noneSingleLookup(request, input);
             } else {
-                answer = noneBulkLookup(request, input);
+                return noneBulkLookup(request, input);
             }
         }
-        respondJson(exchange, answer != null ? answer : new ClientHashLookupAnswer());
+        return CompletableFuture.completedFuture(new ClientHashLookupAnswer());
     }
 
-    private ClientHashLookupAnswer noneBulkLookup(HashLookupRequest request, ClientHashLookupRequest input) throws Exception {
+    private CompletableFuture<ClientHashLookupAnswer> noneBulkLookup(HashLookupRequest request, ClientHashLookupRequest input) {
         BulkLookupRequest bulkLookupRequest = new BulkLookupRequest();
         List<ThreePidMapping> mappings = new ArrayList<>();
         for (String address : input.getAddresses()) {
@@ -112,51 +120,55 @@ public class HashLookupHandler extends LookupHandler implements ApiHandler {
         }
         bulkLookupRequest.setMappings(mappings);
 
-        ClientHashLookupAnswer answer = new ClientHashLookupAnswer();
-
-        for (ThreePidMapping mapping : strategy.find(bulkLookupRequest).get()) {
-            answer.getMappings().put(mapping.getMedium() + " " + mapping.getValue(), mapping.getMxid());
-        }
-        log.info("Finished bulk lookup request from {}", request.getRequester());
+        return strategy.findAsync(bulkLookupRequest).thenApply(found -> {
+            ClientHashLookupAnswer answer = new ClientHashLookupAnswer();
+            for (ThreePidMapping mapping : found) {
+                answer.getMappings().put(mapping.getMedium() + " " + mapping.getValue(), mapping.getMxid());
+            }
+            log.info("Finished bulk lookup request from {}", request.getRequester());
 
-        return answer;
+            return answer;
+        });
     }
 
-    private ClientHashLookupAnswer noneSingleLookup(HashLookupRequest request, ClientHashLookupRequest input) {
+    private CompletableFuture<ClientHashLookupAnswer> noneSingleLookup(HashLookupRequest request, ClientHashLookupRequest input) {
         SingleLookupRequest singleLookupRequest = new SingleLookupRequest();
         String address = input.getAddresses().get(0);
         String[] parts = address.split(" ");
         singleLookupRequest.setThreePid(parts[0]);
         singleLookupRequest.setType(parts[1]);
 
-        ClientHashLookupAnswer answer = new ClientHashLookupAnswer();
-
-        Optional<SingleLookupReply> singleLookupReply = strategy.find(singleLookupRequest);
-        if (singleLookupReply.isPresent()) {
-            SingleLookupReply reply = singleLookupReply.get();
-            answer.getMappings().put(address, reply.getMxid().toString());
-        }
-        log.info("Finished single lookup request from {}", request.getRequester());
+        return strategy.findAsync(singleLookupRequest).thenApply(singleLookupReply -> {
+            ClientHashLookupAnswer answer = new ClientHashLookupAnswer();
+            if (singleLookupReply.isPresent()) {
+                SingleLookupReply reply = singleLookupReply.get();
+                answer.getMappings().put(address, reply.getMxid().toString());
+            }
+            log.info("Finished single lookup request from {}", request.getRequester());
 
-        return answer;
+            return answer;
+        });
     }
 
-    private void sha256Algorithm(HttpServerExchange exchange, HashLookupRequest request, ClientHashLookupRequest input) {
+    private CompletableFuture<ClientHashLookupAnswer> sha256Algorithm(HashLookupRequest request) {
         if (!hashManager.getConfig().getAlgorithms().contains(HashingConfig.Algorithm.sha256)) {
             throw new InvalidParamException();
         }
 
-        ClientHashLookupAnswer answer = new ClientHashLookupAnswer();
-        if (request.getHashes() != null && !request.getHashes().isEmpty()) {
-            for (Pair<String, ThreePidMapping> pair : hashManager.getHashStorage().find(request.getHashes())) {
+        if (request.getHashes() == null || request.getHashes().isEmpty()) {
+            log.warn("Empty request");
+            return CompletableFuture.completedFuture(new ClientHashLookupAnswer());
+        }
+
+        return strategy.findAsync(request).thenApply(found -> {
+            ClientHashLookupAnswer answer = new ClientHashLookupAnswer();
+            for (Pair<String, ThreePidMapping> pair : found) {
                 answer.getMappings().put(pair.getKey(), pair.getValue().getMxid());
             }
             log.info("Finished bulk lookup request from {}", request.getRequester());
-        } else {
-            log.warn("Empty request");
-        }
 
-        respondJson(exchange, answer);
+            return answer;
+        });
     }
 
     @Override
@@ -21,6 +21,7 @@
 package io.kamax.mxisd.http.undertow.handler.status;
 
 import com.google.gson.JsonObject;
+import io.kamax.matrix.json.GsonUtil;
 import io.kamax.mxisd.http.undertow.handler.BasicHttpHandler;
 import io.undertow.server.HttpServerExchange;
 
@@ -28,8 +29,10 @@ public class StatusHandler extends BasicHttpHandler {
 
     public static final String Path = "/status";
 
-    @Override
-    public void handleRequest(HttpServerExchange exchange) {
+    private final String body;
+    private final String tag;
+
+    public StatusHandler() {
         // TODO link to backend
         JsonObject status = new JsonObject();
         status.addProperty("health", "OK");
@@ -37,7 +40,17 @@ public class StatusHandler extends BasicHttpHandler {
         JsonObject obj = new JsonObject();
         obj.add("status", status);
 
-        respond(exchange, obj);
+        body = GsonUtil.get().toJson(obj);
+        tag = tagOf(body);
+    }
+
+    @Override
+    public void handleRequest(HttpServerExchange exchange) {
+        if (respondIfNotModified(exchange, tag, "no-cache")) {
+            return;
+        }
+
+        respondJson(exchange, body);
     }
 
 }
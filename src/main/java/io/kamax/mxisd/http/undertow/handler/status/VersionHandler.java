@@ -31,17 +31,25 @@ public class VersionHandler extends BasicHttpHandler {
     public static final String Path = "/version";
 
     private final String body;
+    private final String tag;
+    private final String cacheControl;
 
-    public VersionHandler() {
+    public VersionHandler(long cacheMaxAge) {
         JsonObject server = new JsonObject();
         server.addProperty("name", Mxisd.Name);
         server.addProperty("version", Mxisd.Version);
 
         body = GsonUtil.getPrettyForLog(GsonUtil.makeObj("server", server));
+        tag = tagOf(body);
+        cacheControl = publicCacheControl(cacheMaxAge);
     }
 
     @Override
     public void handleRequest(HttpServerExchange exchange) {
+        if (respondIfNotModified(exchange, tag, cacheControl)) {
+            return;
+        }
+
         respondJson(exchange, body);
     }
 
@@ -1,6 +1,7 @@
 package io.kamax.mxisd.http.undertow.handler.term.v2;
 
 import com.google.gson.JsonObject;
+import io.kamax.matrix.json.GsonUtil;
 import io.kamax.mxisd.config.PolicyConfig;
 import io.kamax.mxisd.http.undertow.handler.BasicHttpHandler;
 import io.undertow.server.HttpServerExchange;
@@ -11,10 +12,12 @@ public class GetTermsHandler extends BasicHttpHandler {
 
     public static final String PATH = "/_matrix/identity/v2/terms";
 
-    private final JsonObject policyResponse;
+    private final String body;
+    private final String tag;
+    private final String cacheControl;
 
-    public GetTermsHandler(PolicyConfig config) {
-        policyResponse = new JsonObject();
+    public GetTermsHandler(PolicyConfig config, long cacheMaxAge) {
+        JsonObject policyResponse = new JsonObject();
         JsonObject policies = new JsonObject();
         for (Map.Entry<String, PolicyConfig.PolicyObject> policyItem : config.getPolicies().entrySet()) {
             JsonObject policy = new JsonObject();
@@ -28,10 +31,18 @@ public class GetTermsHandler extends BasicHttpHandler {
             policies.add(policyItem.getKey(), policy);
         }
         policyResponse.add("policies", policies);
+
+        body = GsonUtil.get().toJson(policyResponse);
+        tag = tagOf(body);
+        cacheControl = publicCacheControl(cacheMaxAge);
     }
 
     @Override
     public void handleRequest(HttpServerExchange exchange) throws Exception {
-        respond(exchange, policyResponse);
+        if (respondIfNotModified(exchange, tag, cacheControl)) {
+            return;
+        }
+
+        respondJson(exchange, body);
     }
 }
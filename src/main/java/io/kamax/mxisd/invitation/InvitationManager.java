@@ -25,7 +25,6 @@ import com.google.gson.JsonObject;
 import io.kamax.matrix.MatrixID;
 import io.kamax.matrix.ThreePid;
 import io.kamax.matrix._MatrixID;
-import io.kamax.matrix.json.GsonUtil;
 import io.kamax.mxisd.config.InvitationConfig;
 import io.kamax.mxisd.config.MxisdConfig;
 import io.kamax.mxisd.config.ServerConfig;
@@ -36,13 +35,14 @@ import io.kamax.mxisd.crypto.KeyType;
 import io.kamax.mxisd.crypto.SignatureManager;
 import io.kamax.mxisd.exception.BadRequestException;
 import io.kamax.mxisd.exception.ConfigurationException;
+import io.kamax.mxisd.exception.InternalServerError;
 import io.kamax.mxisd.exception.MappingAlreadyExistsException;
 import io.kamax.mxisd.exception.ObjectNotFoundException;
 import io.kamax.mxisd.lookup.SingleLookupReply;
 import io.kamax.mxisd.lookup.ThreePidMapping;
 import io.kamax.mxisd.lookup.strategy.LookupStrategy;
+import io.kamax.mxisd.matrix.FederationClients;
 import io.kamax.mxisd.matrix.HomeserverFederationResolver;
-import io.kamax.mxisd.matrix.HomeserverVerifier;
 import io.kamax.mxisd.notification.NotificationManager;
 import io.kamax.mxisd.profile.ProfileManager;
 import io.kamax.mxisd.storage.IStorage;
@@ -54,8 +54,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -65,7 +64,6 @@ import java.time.DateTimeException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -74,13 +72,14 @@ import java.util.Optional;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 public class InvitationManager {
 
     private static final Logger log = LoggerFactory.getLogger(InvitationManager.class);
-    private static final String CreatedAtPropertyKey = "created_at";
+    static final String CreatedAtPropertyKey = "created_at";
 
     private final String defaultCreateTs = Long.toString(Instant.now().toEpochMilli());
 
@@ -91,12 +90,14 @@ public class InvitationManager {
     private KeyManager keyMgr;
     private SignatureManager signMgr;
     private HomeserverFederationResolver resolver;
+    private FederationClients clients;
     private NotificationManager notifMgr;
     private ProfileManager profileMgr;
 
     private Timer refreshTimer;
 
     private Map<String, IThreePidInviteReply> invitations = new ConcurrentHashMap<>();
+    private CountDownLatch loaded = new CountDownLatch(1);
 
     public InvitationManager(
         MxisdConfig mxisdCfg,
@@ -105,6 +106,7 @@ public class InvitationManager {
         KeyManager keyMgr,
         SignatureManager signMgr,
         HomeserverFederationResolver resolver,
+        FederationClients clients,
         NotificationManager notifMgr,
         ProfileManager profileMgr
     ) {
@@ -115,26 +117,17 @@ public class InvitationManager {
         this.keyMgr = keyMgr;
         this.signMgr = signMgr;
         this.resolver = resolver;
+        this.clients = clients;
         this.notifMgr = notifMgr;
         this.profileMgr = profileMgr;
 
-        log.debug("Loading saved invites");
-        Collection<ThreePidInviteIO> ioList = storage.getInvites();
-        ioList.forEach(io -> {
-            io.getProperties().putIfAbsent(CreatedAtPropertyKey, defaultCreateTs);
-            log.debug("Processing invite {}", GsonUtil.get().toJson(io));
-            ThreePidInvite invite = new ThreePidInvite(
-                MatrixID.asAcceptable(io.getSender()),
-                io.getMedium(),
-                io.getAddress(),
-                io.getRoomId(),
-                io.getProperties()
-            );
-
-            ThreePidInviteReply reply = new ThreePidInviteReply(io.getId(), invite, io.getToken(), "", Collections.emptyList());
-            invitations.put(reply.getId(), reply);
-        });
-        log.info("Loaded saved invites");
+        if (cfg.getLoading().isBackground()) {
+            Thread loader = new Thread(this::loadInvites, "ma1sd-invite-loader");
+            loader.setDaemon(true);
+            loader.start();
+        } else {
+            loadInvites();
+        }
 
         log.info("Setting up invitation mapping refresh timer");
         refreshTimer = new Timer();
@@ -158,6 +151,53 @@ public class InvitationManager {
         }, 5000L, TimeUnit.MILLISECONDS.convert(cfg.getResolution().getTimer(), getTimeUnit()));
     }
 
+    private void loadInvites() {
+        try {
+            log.info("Loading saved invites");
+            long pageSize = cfg.getLoading().getPageSize();
+            String lastId = null;
+            while (true) {
+                List<ThreePidInviteIO> page = storage.getInvites(lastId, pageSize);
+                for (ThreePidInviteIO io : page) {
+                    log.trace("Processing invite {}", io.getId());
+                    StoredThreePidInvite invite = new StoredThreePidInvite(io, defaultCreateTs);
+                    ThreePidInviteReply reply = new ThreePidInviteReply(io.getId(), invite, io.getToken(), "", Collections.emptyList());
+                    invitations.put(reply.getId(), reply);
+                    lastId = io.getId();
+                }
+
+                if (page.size() < pageSize) {
+                    break;
+                }
+
+                log.debug("Loaded {} invites so far", invitations.size());
+            }
+            log.info("Loaded {} saved invites", invitations.size());
+        } catch (RuntimeException e) {
+            if (!cfg.getLoading().isBackground()) {
+                throw e;
+            }
+
+            log.error("Unable to load saved invites, only {} have been loaded", invitations.size(), e);
+        } finally {
+            loaded.countDown();
+        }
+    }
+
+    private void awaitLoaded() {
+        if (loaded.getCount() == 0) {
+            return;
+        }
+
+        try {
+            log.info("Waiting for saved invites to be loaded");
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalServerError("Interrupted while waiting for saved invites to be loaded");
+        }
+    }
+
     private TimeUnit getTimeUnit() {
         switch (cfg.getResolution().getPeriod()) {
             case seconds:
@@ -178,6 +218,10 @@ public class InvitationManager {
             cfg.getInvite().getExpiration().setEnabled(true);
         }
 
+        if (cfg.getInvite().getLoading().getPageSize() < 1) {
+            throw new ConfigurationException("Invitation loading page size must be greater or equal to 1");
+        }
+
         if (cfg.getInvite().getExpiration().isEnabled()) {
             if (cfg.getInvite().getExpiration().getAfter() < 1) {
                 throw new ConfigurationException("Invitation expiration delay must be greater or equal to 1");
@@ -222,10 +266,12 @@ public class InvitationManager {
     }
 
     public List<IThreePidInviteReply> listInvites() {
+        awaitLoaded();
         return new ArrayList<>(invitations.values());
     }
 
     public IThreePidInviteReply getInvite(String id) {
+        awaitLoaded();
         IThreePidInviteReply v = invitations.get(id);
         if (Objects.isNull(v)) {
             throw new ObjectNotFoundException("Invite", id);
@@ -263,6 +309,8 @@ public class InvitationManager {
             throw new BadRequestException("Medium type " + invitation.getMedium() + " is not supported");
         }
 
+        awaitLoaded();
+
         String invId = computeId(invitation);
         log.info("Handling invite for {}:{} from {} in room {}", invitation.getMedium(), invitation.getAddress(), invitation.getSender(),
             invitation.getRoomId());
@@ -325,6 +373,7 @@ public class InvitationManager {
     }
 
     public boolean hasInvite(ThreePid tpid) {
+        awaitLoaded();
         for (IThreePidInviteReply reply : invitations.values()) {
             if (!StringUtils.equals(tpid.getMedium(), reply.getInvite().getMedium())) {
                 continue;
@@ -349,6 +398,11 @@ public class InvitationManager {
      * Trigger the periodic maintenance tasks
      */
     public void doMaintenance() {
+        if (loaded.getCount() > 0) {
+            log.info("Saved invites are still being loaded, skipping maintenance");
+            return;
+        }
+
         lookupMappingsForInvites();
         expireInvites();
     }
@@ -370,7 +424,7 @@ public class InvitationManager {
         for (IThreePidInviteReply reply : invitations.values()) {
             log.debug("Processing invite {}", reply.getId());
 
-            String tsRaw = reply.getInvite().getProperties().computeIfAbsent(CreatedAtPropertyKey, k -> defaultCreateTs);
+            String tsRaw = getCreatedAt(reply.getInvite());
             try {
                 Instant ts = Instant.ofEpochMilli(Long.parseLong(tsRaw));
                 Instant targetTs = ts.plusSeconds(cfg.getExpiration().getAfter() * 60);
@@ -385,13 +439,29 @@ public class InvitationManager {
                 publishMapping(reply, targetMxid);
             } catch (NumberFormatException | DateTimeException e) {
                 log.warn("Invite {} has an invalid creation TS, setting to default value of {}", reply.getId(), defaultCreateTs);
-                reply.getInvite().getProperties().put(CreatedAtPropertyKey, defaultCreateTs);
+                setCreatedAt(reply.getInvite(), defaultCreateTs);
             }
         }
 
         log.debug("Invite expiration: finished");
     }
 
+    private String getCreatedAt(IThreePidInvite invite) {
+        if (invite instanceof StoredThreePidInvite) {
+            return ((StoredThreePidInvite) invite).getCreatedAt();
+        }
+
+        return invite.getProperties().computeIfAbsent(CreatedAtPropertyKey, k -> defaultCreateTs);
+    }
+
+    private void setCreatedAt(IThreePidInvite invite, String ts) {
+        if (invite instanceof StoredThreePidInvite) {
+            ((StoredThreePidInvite) invite).setCreatedAt(ts);
+        } else {
+            invite.getProperties().put(CreatedAtPropertyKey, ts);
+        }
+    }
+
     public void expireInvite(String id) {
         publishMapping(getInvite(id), cfg.getExpiration().getResolveTo());
     }
@@ -408,6 +478,7 @@ public class InvitationManager {
 
     public void publishMappingIfInvited(ThreePidMapping threePid) {
         log.info("Looking up possible pending invites for {}:{}", threePid.getMedium(), threePid.getValue());
+        awaitLoaded();
         for (IThreePidInviteReply reply : invitations.values()) {
             if (StringUtils.equalsIgnoreCase(reply.getInvite().getMedium(), threePid.getMedium()) && StringUtils
                 .equalsIgnoreCase(reply.getInvite().getAddress(), threePid.getValue())) {
@@ -419,6 +490,7 @@ public class InvitationManager {
     }
 
     public IThreePidInviteReply getInvite(String token, String privKey) {
+        awaitLoaded();
         for (IThreePidInviteReply reply : invitations.values()) {
             if (StringUtils.equals(reply.getToken(), token)) {
                 String algo = reply.getInvite().getProperties().get("e_key_algo");
@@ -481,41 +553,35 @@ public class InvitationManager {
             Instant resolvedAt = Instant.now();
             boolean couldPublish = false;
             boolean shouldArchive = true;
-            try (CloseableHttpClient httpClient = HttpClients.custom().setSSLHostnameVerifier(new HomeserverVerifier(hsUrlOpt.getDomain()))
-                .build()) {
-                try {
-                    log.info("Posting onBind event to {}", req.getURI());
-                    CloseableHttpResponse response = httpClient.execute(req);
-                    int statusCode = response.getStatusLine().getStatusCode();
-                    log.info("Answer code: {}", statusCode);
-                    if (statusCode >= 300 && statusCode != 403) {
-                        log.info("Answer body: {}", IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
-                        log.warn("HS returned an error.");
-
-                        shouldArchive = statusCode != 502;
-                        if (shouldArchive) {
-                            log.info("Invite can be found in historical storage for manual re-processing");
-                        }
-                    } else {
-                        couldPublish = true;
-                        if (statusCode == 403) {
-                            log.info("Invite is obsolete or no longer under our control");
-                        }
-                    }
-                    response.close();
-                } catch (IOException e) {
-                    log.warn("Unable to tell HS {} about invite being mapped", domain, e);
-                } finally {
+            log.info("Posting onBind event to {}", req.getURI());
+            try (CloseableHttpResponse response = clients.get(hsUrlOpt).execute(req)) {
+                int statusCode = response.getStatusLine().getStatusCode();
+                log.info("Answer code: {}", statusCode);
+                if (statusCode >= 300 && statusCode != 403) {
+                    log.info("Answer body: {}", IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8));
+                    log.warn("HS returned an error.");
+
+                    shouldArchive = statusCode != 502;
                     if (shouldArchive) {
-                        synchronized (this) {
-                            storage.insertHistoricalInvite(reply, mxid, resolvedAt, couldPublish);
-                            removeInvite(reply);
-                            log.info("Moved invite {} to historical table", reply.getId());
-                        }
+                        log.info("Invite can be found in historical storage for manual re-processing");
+                    }
+                } else {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    couldPublish = true;
+                    if (statusCode == 403) {
+                        log.info("Invite is obsolete or no longer under our control");
                     }
                 }
             } catch (IOException e) {
-                log.error("Unable to create client to the " + hsUrlOpt.getUrl().toString(), e);
+                log.warn("Unable to tell HS {} about invite being mapped", domain, e);
+            } finally {
+                if (shouldArchive) {
+                    synchronized (this) {
+                        storage.insertHistoricalInvite(reply, mxid, resolvedAt, couldPublish);
+                        removeInvite(reply);
+                        log.info("Moved invite {} to historical table", reply.getId());
+                    }
+                }
             }
         }).start();
     }
@@ -0,0 +1,163 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.invitation;
+
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.kamax.matrix.MatrixID;
+import io.kamax.matrix._MatrixID;
+import io.kamax.matrix.json.GsonUtil;
+import io.kamax.mxisd.storage.ormlite.dao.ThreePidInviteIO;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact in-memory form of a pending invite loaded from the storage.
+ * <p>
+ * Nothing is parsed when loading: the properties are kept in their serialized form until first accessed, then decoded
+ * once. They are read-only, as stored invites are not written back. The creation timestamp, needed by the periodic
+ * expiration check, is read on its own the first time it is needed, without decoding the other properties.
+ */
+public class StoredThreePidInvite implements IThreePidInvite {
+
+    private static final Type PropertiesType = new TypeToken<Map<String, String>>() {
+    }.getType();
+
+    private final String sender;
+    private final String medium;
+    private final String address;
+    private final String roomId;
+    private final String defaultCreatedAt;
+    private String properties;
+    private Map<String, String> decoded;
+    private Map<String, String> view;
+    private String createdAt;
+    private boolean createdAtRead;
+
+    public StoredThreePidInvite(ThreePidInviteIO io, String defaultCreatedAt) {
+        this.sender = io.getSender();
+        this.medium = io.getMedium().intern();
+        this.address = io.getAddress();
+        this.roomId = io.getRoomId();
+        this.properties = io.getRawProperties();
+        this.defaultCreatedAt = defaultCreatedAt;
+    }
+
+    private Map<String, String> decode() {
+        if (StringUtils.isBlank(properties)) {
+            return new HashMap<>();
+        }
+
+        return GsonUtil.get().fromJson(properties, PropertiesType);
+    }
+
+    private String readCreatedAt() {
+        if (StringUtils.isBlank(properties)) {
+            return null;
+        }
+
+        // Only the creation timestamp is needed, the other properties are skipped without being decoded
+        try (JsonReader reader = new JsonReader(new StringReader(properties))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (InvitationManager.CreatedAtPropertyKey.equals(reader.nextName()) && reader.peek() == JsonToken.STRING) {
+                    return reader.nextString();
+                }
+                reader.skipValue();
+            }
+            return null;
+        } catch (IOException | IllegalStateException e) {
+            return null;
+        }
+    }
+
+    public synchronized String getCreatedAt() {
+        if (!createdAtRead) {
+            createdAt = StringUtils.defaultIfBlank(readCreatedAt(), defaultCreatedAt);
+            createdAtRead = true;
+        }
+
+        return createdAt;
+    }
+
+    public synchronized void setCreatedAt(String createdAt) {
+        this.createdAt = createdAt;
+        this.createdAtRead = true;
+        if (Objects.nonNull(decoded) && Objects.nonNull(createdAt)) {
+            decoded.put(InvitationManager.CreatedAtPropertyKey, createdAt);
+        }
+    }
+
+    @Override
+    public _MatrixID getSender() {
+        return MatrixID.asAcceptable(sender);
+    }
+
+    @Override
+    public String getMedium() {
+        return medium;
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public String getRoomId() {
+        return roomId;
+    }
+
+    @Override
+    public synchronized Map<String, String> getProperties() {
+        if (Objects.isNull(decoded)) {
+            // Concurrent, as the creation timestamp can be fixed by the expiration check while the map is read
+            Map<String, String> props = new ConcurrentHashMap<>();
+            decode().forEach((k, v) -> {
+                if (Objects.nonNull(k) && Objects.nonNull(v)) {
+                    props.put(k, v);
+                }
+            });
+            if (!createdAtRead) {
+                createdAt = StringUtils.defaultIfBlank(props.get(InvitationManager.CreatedAtPropertyKey), defaultCreatedAt);
+                createdAtRead = true;
+            }
+            if (Objects.nonNull(createdAt)) {
+                props.put(InvitationManager.CreatedAtPropertyKey, createdAt);
+            }
+            decoded = props;
+            view = Collections.unmodifiableMap(props);
+            properties = null;
+        }
+
+        return view;
+    }
+
+}
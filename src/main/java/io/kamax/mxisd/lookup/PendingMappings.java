@@ -0,0 +1,116 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.lookup;
+
+import io.kamax.matrix.ThreePidMedium;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The 3PIDs of a bulk lookup which are still without a mapping, as it goes through the providers.
+ * <p>
+ * 3PIDs are indexed by medium and normalized address, so mappings found by a provider are matched to the request in
+ * constant time, even if the provider returned the address with a different case. Not thread-safe, mappings must be
+ * reported from the thread running the lookup.
+ */
+public class PendingMappings {
+
+    private final Map<String, ThreePidMapping> pending = new LinkedHashMap<>();
+    private final List<ThreePidMapping> found = new ArrayList<>();
+    private List<ThreePidMapping> snapshot;
+
+    public PendingMappings(Collection<ThreePidMapping> mappings) {
+        for (ThreePidMapping mapping : mappings) {
+            pending.putIfAbsent(getKey(mapping.getMedium(), mapping.getValue()), mapping);
+        }
+    }
+
+    private static String getKey(String medium, String address) {
+        String value = StringUtils.trimToEmpty(address);
+        if (ThreePidMedium.Email.is(medium)) {
+            value = value.toLowerCase(Locale.ROOT);
+        }
+        return medium + "\n" + value;
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * The 3PIDs still to look up, in the order of the request.
+     * <p>
+     * The list is only built again if mappings were found since the last call.
+     *
+     * @return An unmodifiable list of the 3PIDs still to look up.
+     */
+    public List<ThreePidMapping> asList() {
+        if (Objects.isNull(snapshot)) {
+            snapshot = Collections.unmodifiableList(new ArrayList<>(pending.values()));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Record a mapping found by a provider.
+     * <p>
+     * The mapping is kept with the medium and address as they were requested. Mappings for 3PIDs which were not
+     * requested, or were already found, are ignored.
+     *
+     * @param mapping The mapping found.
+     * @return true if the mapping was for a 3PID still to look up, false otherwise.
+     */
+    public boolean found(ThreePidMapping mapping) {
+        if (StringUtils.isBlank(mapping.getMxid())) {
+            return false;
+        }
+
+        ThreePidMapping requested = pending.remove(getKey(mapping.getMedium(), mapping.getValue()));
+        if (Objects.isNull(requested)) {
+            return false;
+        }
+
+        snapshot = null;
+        if (StringUtils.equals(requested.getMedium(), mapping.getMedium()) && StringUtils.equals(requested.getValue(), mapping.getValue())) {
+            found.add(mapping);
+        } else {
+            found.add(new ThreePidMapping(requested.getMedium(), requested.getValue(), mapping.getMxid()));
+        }
+        return true;
+    }
+
+    public List<ThreePidMapping> getFound() {
+        return found;
+    }
+
+}
@@ -26,6 +26,7 @@ import io.kamax.mxisd.lookup.ThreePidMapping;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface IBridgeFetcher {
 
@@ -33,4 +34,6 @@ public interface IBridgeFetcher {
 
     List<ThreePidMapping> populate(List<ThreePidMapping> mappings);
 
+    void populate(List<ThreePidMapping> mappings, Consumer<ThreePidMapping> onFound);
+
 }
@@ -26,6 +26,7 @@ import io.kamax.mxisd.lookup.ThreePidMapping;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface IRemoteIdentityServerFetcher {
 
@@ -33,6 +34,35 @@ public interface IRemoteIdentityServerFetcher {
 
     Optional<SingleLookupReply> find(String remote, SingleLookupRequest request);
 
+    /**
+     * Look up a 3PID on a remote Identity server, giving up once the deadline is reached.
+     *
+     * @param remote   The base URL of the remote Identity server.
+     * @param request  The 3PID to look up.
+     * @param deadline The point in time after which the remote is no longer waited on, in milliseconds since the epoch.
+     * @return The mapping, or empty if none was found before the deadline.
+     */
+    Optional<SingleLookupReply> find(String remote, SingleLookupRequest request, long deadline);
+
     List<ThreePidMapping> find(String remote, List<ThreePidMapping> mappings);
 
+    /**
+     * Look up several 3PIDs on a remote Identity server, giving back mappings as soon as they are received.
+     *
+     * @param remote   The base URL of the remote Identity server.
+     * @param mappings The 3PIDs to look up.
+     * @param onFound  Called with each mapping found, from the calling thread.
+     */
+    void find(String remote, List<ThreePidMapping> mappings, Consumer<ThreePidMapping> onFound);
+
+    /**
+     * Look up several 3PIDs on a remote Identity server, giving up once the deadline is reached.
+     *
+     * @param remote   The base URL of the remote Identity server.
+     * @param mappings The 3PIDs to look up.
+     * @param deadline The point in time after which the remote is no longer waited on, in milliseconds since the epoch.
+     * @param onFound  Called with each mapping found before the deadline, from the calling thread.
+     */
+    void find(String remote, List<ThreePidMapping> mappings, long deadline, Consumer<ThreePidMapping> onFound);
+
 }
@@ -30,9 +30,12 @@ import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public class BridgeFetcher implements IBridgeFetcher {
 
@@ -66,9 +69,37 @@ public class BridgeFetcher implements IBridgeFetcher {
 
     @Override
     public List<ThreePidMapping> populate(List<ThreePidMapping> mappings) {
-        log.warn("Bulk lookup on bridge lookup requested, but not supported - returning empty list");
+        List<ThreePidMapping> mappingsFound = new ArrayList<>();
+        populate(mappings, mappingsFound::add);
+        return mappingsFound;
+    }
+
+    @Override
+    public void populate(List<ThreePidMapping> mappings, Consumer<ThreePidMapping> onFound) {
+        // Each bridge gets a single bulk lookup with all the mappings of the mediums it handles
+        Map<String, List<ThreePidMapping>> byUrl = new LinkedHashMap<>();
+        for (ThreePidMapping mapping : mappings) {
+            String url = cfg.getMappings().get(mapping.getMedium());
+            if (StringUtils.isBlank(url)) {
+                url = cfg.getServer();
+            }
+
+            if (StringUtils.isBlank(url)) {
+                continue;
+            }
+
+            byUrl.computeIfAbsent(url, k -> new ArrayList<>()).add(mapping);
+        }
 
-        return Collections.emptyList();
+        if (byUrl.isEmpty()) {
+            log.info("No bridge lookup URL found/configured, skipping");
+            return;
+        }
+
+        for (Map.Entry<String, List<ThreePidMapping>> entry : byUrl.entrySet()) {
+            log.info("Using bridge lookup URL {} for {} mappings", entry.getKey(), entry.getValue().size());
+            fetcher.find(entry.getKey(), entry.getValue(), onFound);
+        }
     }
 
 }
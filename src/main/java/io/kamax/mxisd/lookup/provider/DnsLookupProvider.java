@@ -26,14 +26,17 @@ import io.kamax.mxisd.lookup.SingleLookupReply;
 import io.kamax.mxisd.lookup.SingleLookupRequest;
 import io.kamax.mxisd.lookup.ThreePidMapping;
 import io.kamax.mxisd.lookup.fetcher.IRemoteIdentityServerFetcher;
-import io.kamax.mxisd.matrix.IdentityServerUtils;
+import io.kamax.mxisd.matrix.IdentityServerDiscovery;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 class DnsLookupProvider implements IThreePidProvider {
 
@@ -41,10 +44,14 @@ class DnsLookupProvider implements IThreePidProvider {
 
     private MatrixConfig cfg;
     private IRemoteIdentityServerFetcher fetcher;
+    private IdentityServerDiscovery discovery;
+    private RemoteLookupPool pool;
 
-    public DnsLookupProvider(MatrixConfig cfg, IRemoteIdentityServerFetcher fetcher) {
+    public DnsLookupProvider(MatrixConfig cfg, IRemoteIdentityServerFetcher fetcher, IdentityServerDiscovery discovery, RemoteLookupPool pool) {
         this.cfg = cfg;
         this.fetcher = fetcher;
+        this.discovery = discovery;
+        this.pool = pool;
     }
 
     @Override
@@ -66,14 +73,13 @@ class DnsLookupProvider implements IThreePidProvider {
         return Optional.of(email.substring(atIndex + 1));
     }
 
-    // TODO use caching mechanism
     private Optional<String> findIdentityServerForDomain(String domain) {
         if (StringUtils.equals(cfg.getDomain(), domain)) {
             log.info("We are authoritative for {}, no remote lookup", domain);
             return Optional.empty();
         }
 
-        return IdentityServerUtils.findIsUrlForDomain(domain);
+        return discovery.find(domain);
     }
 
     @Override
@@ -87,17 +93,49 @@ class DnsLookupProvider implements IThreePidProvider {
 
         String domain = request.getThreePid().substring(request.getThreePid().lastIndexOf("@") + 1);
         log.info("Domain name for {}: {}", request.getThreePid(), domain);
-        Optional<String> baseUrl = findIdentityServerForDomain(domain);
 
-        if (baseUrl.isPresent()) {
-            return fetcher.find(baseUrl.get(), request);
+        // One deadline covers the discovery, the wait for room on the server and the call itself. Discovery cannot be
+        // given the remaining time, so it runs on the pool and is only waited on until the deadline.
+        long deadline = pool.getDeadline();
+        Future<Optional<SingleLookupReply>> task = pool.submit(() -> lookupSingle(domain, request, deadline));
+        try {
+            return task.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            task.cancel(true);
+            log.warn("Timed out looking up {} in domain {}", request.getThreePid(), domain);
+            return Optional.empty();
+        } catch (ExecutionException e) {
+            log.warn("Unable to lookup {} in domain {}", request.getThreePid(), domain, e.getCause());
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+    }
+
+    private Optional<SingleLookupReply> lookupSingle(String domain, SingleLookupRequest request, long deadline) throws InterruptedException {
+        Optional<String> baseUrl = findIdentityServerForDomain(domain);
+        if (!baseUrl.isPresent()) {
+            return Optional.empty();
         }
 
-        return Optional.empty();
+        Optional<Optional<SingleLookupReply>> reply = pool.onServer(baseUrl.get(), deadline, () -> fetcher.find(baseUrl.get(), request, deadline));
+        if (!reply.isPresent()) {
+            log.warn("Timed out waiting to lookup {} on {}", request.getThreePid(), baseUrl.get());
+        }
+        return reply.flatMap(r -> r);
     }
 
     @Override
     public List<ThreePidMapping> populate(List<ThreePidMapping> mappings) {
+        List<ThreePidMapping> mappingsFound = new ArrayList<>();
+        populate(mappings, mappingsFound::add);
+        return mappingsFound;
+    }
+
+    @Override
+    public void populate(List<ThreePidMapping> mappings, Consumer<ThreePidMapping> onFound) {
         Map<String, List<ThreePidMapping>> domains = new HashMap<>();
 
         for (ThreePidMapping mapping : mappings) {
@@ -118,59 +156,54 @@ class DnsLookupProvider implements IThreePidProvider {
         }
 
         log.info("Looking mappings across {} domains", domains.keySet().size());
-        ForkJoinPool pool = ForkJoinPool.commonPool();
-        RecursiveTask<List<ThreePidMapping>> task = new RecursiveTask<List<ThreePidMapping>>() {
-
-            @Override
-            protected List<ThreePidMapping> compute() {
-                List<ThreePidMapping> mappingsFound = new ArrayList<>();
-                List<DomainBulkLookupTask> tasks = new ArrayList<>();
-
-                for (String domain : domains.keySet()) {
-                    DomainBulkLookupTask domainTask = new DomainBulkLookupTask(domain, domains.get(domain));
-                    domainTask.fork();
-                    tasks.add(domainTask);
-                }
-
-                for (DomainBulkLookupTask task : tasks) {
-                    mappingsFound.addAll(task.join());
-                }
+        long deadline = pool.getDeadline();
+        Map<String, Future<List<ThreePidMapping>>> tasks = new HashMap<>();
+        for (Map.Entry<String, List<ThreePidMapping>> domain : domains.entrySet()) {
+            tasks.put(domain.getKey(), pool.submit(() -> lookupDomain(domain.getKey(), domain.getValue(), deadline)));
+        }
 
-                return mappingsFound;
+        // Whatever is not done by the deadline is given up, and the mappings found so far are kept
+        int found = 0;
+        for (Map.Entry<String, Future<List<ThreePidMapping>>> task : tasks.entrySet()) {
+            try {
+                List<ThreePidMapping> domainFound = task.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                domainFound.forEach(onFound);
+                found += domainFound.size();
+            } catch (TimeoutException e) {
+                task.getValue().cancel(true);
+                log.warn("Timed out looking up mappings in domain {}", task.getKey());
+            } catch (ExecutionException e) {
+                log.warn("Unable to lookup mappings in domain {}", task.getKey(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                tasks.values().forEach(f -> f.cancel(true));
+                break;
             }
-        };
-        pool.submit(task);
-        pool.shutdown();
+        }
 
-        List<ThreePidMapping> mappingsFound = task.join();
-        log.info("Found {} mappings overall", mappingsFound.size());
-        return mappingsFound;
+        log.info("Found {} mappings overall", found);
     }
 
-    private class DomainBulkLookupTask extends RecursiveTask<List<ThreePidMapping>> {
-
-        private String domain;
-        private List<ThreePidMapping> mappings;
-
-        DomainBulkLookupTask(String domain, List<ThreePidMapping> mappings) {
-            this.domain = domain;
-            this.mappings = mappings;
+    private List<ThreePidMapping> lookupDomain(String domain, List<ThreePidMapping> mappings, long deadline) throws InterruptedException {
+        Optional<String> baseUrl = findIdentityServerForDomain(domain);
+        if (!baseUrl.isPresent()) {
+            log.info("No usable Identity server for domain {}", domain);
+            return Collections.emptyList();
         }
 
-        @Override
-        protected List<ThreePidMapping> compute() {
-            List<ThreePidMapping> domainMappings = new ArrayList<>();
-
-            Optional<String> baseUrl = findIdentityServerForDomain(domain);
-            if (!baseUrl.isPresent()) {
-                log.info("No usable Identity server for domain {}", domain);
-            } else {
-                domainMappings.addAll(fetcher.find(baseUrl.get(), mappings));
-                log.info("Found {} mappings in domain {}", domainMappings.size(), domain);
-            }
-
-            return domainMappings;
+        Optional<List<ThreePidMapping>> domainMappings = pool.onServer(baseUrl.get(), deadline, () -> {
+            // Cancelling the task cannot interrupt socket I/O, so the requests themselves stop at the deadline
+            List<ThreePidMapping> found = new ArrayList<>();
+            fetcher.find(baseUrl.get(), mappings, deadline, found::add);
+            return found;
+        });
+        if (!domainMappings.isPresent()) {
+            log.warn("Timed out waiting to lookup mappings of domain {} on {}", domain, baseUrl.get());
+            return Collections.emptyList();
         }
+
+        log.info("Found {} mappings in domain {}", domainMappings.get().size(), domain);
+        return domainMappings.get();
     }
 
 }
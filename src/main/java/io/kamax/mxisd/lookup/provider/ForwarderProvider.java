@@ -23,6 +23,7 @@ package io.kamax.mxisd.lookup.provider;
 import io.kamax.mxisd.config.ForwardConfig;
 import io.kamax.mxisd.config.MatrixConfig;
 import io.kamax.mxisd.config.MxisdConfig;
+import io.kamax.mxisd.lookup.PendingMappings;
 import io.kamax.mxisd.lookup.SingleLookupReply;
 import io.kamax.mxisd.lookup.SingleLookupRequest;
 import io.kamax.mxisd.lookup.ThreePidMapping;
@@ -33,6 +34,7 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public class ForwarderProvider implements IThreePidProvider {
 
@@ -79,21 +81,32 @@ public class ForwarderProvider implements IThreePidProvider {
 
     @Override
     public List<ThreePidMapping> populate(List<ThreePidMapping> mappings) {
-        List<ThreePidMapping> mappingsToDo = new ArrayList<>(mappings);
-        List<ThreePidMapping> mappingsFoundGlobal = new ArrayList<>();
+        List<ThreePidMapping> mappingsFound = new ArrayList<>();
+        populate(mappings, mappingsFound::add);
+        return mappingsFound;
+    }
+
+    @Override
+    public void populate(List<ThreePidMapping> mappings, Consumer<ThreePidMapping> onFound) {
+        PendingMappings mappingsToDo = new PendingMappings(mappings);
 
         for (String label : cfg.getServers()) {
             for (String srv : mxCfg.getIdentity().getServers(label)) {
-                log.info("{} mappings remaining: {}", mappingsToDo.size(), mappingsToDo);
+                if (mappingsToDo.isEmpty()) {
+                    return;
+                }
+
+                log.info("{} mappings remaining", mappingsToDo.size());
                 log.info("Querying {}", srv);
-                List<ThreePidMapping> mappingsFound = fetcher.find(srv, mappingsToDo);
-                log.info("{} returned {} mappings", srv, mappingsFound.size());
-                mappingsFoundGlobal.addAll(mappingsFound);
-                mappingsToDo.removeAll(mappingsFound);
+                int before = mappingsToDo.size();
+                fetcher.find(srv, mappingsToDo.asList(), mapping -> {
+                    if (mappingsToDo.found(mapping)) {
+                        onFound.accept(mapping);
+                    }
+                });
+                log.info("{} returned {} mappings", srv, before - mappingsToDo.size());
             }
         }
-
-        return mappingsFoundGlobal;
     }
 
 }
@@ -27,6 +27,7 @@ import io.kamax.mxisd.lookup.ThreePidMapping;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface IThreePidProvider {
 
@@ -41,6 +42,16 @@ public interface IThreePidProvider {
 
     List<ThreePidMapping> populate(List<ThreePidMapping> mappings);
 
+    /**
+     * Look up several 3PIDs, reporting mappings as they are found.
+     *
+     * @param mappings The 3PIDs to look up.
+     * @param onFound  Called with each mapping found, from the calling thread.
+     */
+    default void populate(List<ThreePidMapping> mappings, Consumer<ThreePidMapping> onFound) {
+        populate(mappings).forEach(onFound);
+    }
+
     default Iterable<ThreePidMapping> populateHashes() {
         return Collections.emptyList();
     }
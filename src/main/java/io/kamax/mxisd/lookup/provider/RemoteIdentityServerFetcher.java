@@ -21,22 +21,27 @@
 package io.kamax.mxisd.lookup.provider;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import io.kamax.matrix.json.GsonUtil;
-import io.kamax.mxisd.exception.InvalidResponseJsonException;
 import io.kamax.mxisd.http.IsAPIv1;
+import io.kamax.mxisd.http.IsAPIv2;
 import io.kamax.mxisd.http.io.identity.ClientBulkLookupRequest;
+import io.kamax.mxisd.http.io.identity.ClientHashLookupAnswer;
+import io.kamax.mxisd.http.io.identity.ClientHashLookupRequest;
 import io.kamax.mxisd.lookup.SingleLookupReply;
 import io.kamax.mxisd.lookup.SingleLookupRequest;
 import io.kamax.mxisd.lookup.ThreePidMapping;
 import io.kamax.mxisd.lookup.fetcher.IRemoteIdentityServerFetcher;
 import io.kamax.mxisd.matrix.IdentityServerUtils;
-import io.kamax.mxisd.util.GsonParser;
 import io.kamax.mxisd.util.RestClientUtils;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
@@ -44,23 +49,94 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class RemoteIdentityServerFetcher implements IRemoteIdentityServerFetcher {
 
     private transient final Logger log = LoggerFactory.getLogger(RemoteIdentityServerFetcher.class);
 
+    // Addresses sent per v2 lookup request, to keep each request and its answer at a reasonable size
+    private static final int HashLookupChunkSize = 1000;
+
+    // Peppers are rotated by remote servers, an invalid one is detected and refreshed on lookup anyway
+    private static final long HashDetailsTtlMillis = 10 * 60 * 1000L;
+
+    // Servers without a usable v2 API are asked again after this long, in case they were upgraded or opened
+    private static final long NoHashDetailsTtlMillis = 60 * 60 * 1000L;
+
+    private static final int MaxRemotes = 1000;
+    // Requests made without a deadline use the timeouts of the client
+    private static final long NoDeadline = Long.MAX_VALUE;
+
+    private static final Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
+
+    private static class HashDetails {
+
+        private final String pepper;
+        private final Set<String> algorithms;
+        private final long expiresAt;
+
+        private HashDetails(String pepper, Set<String> algorithms, long ttl) {
+            this.pepper = pepper;
+            this.algorithms = algorithms;
+            this.expiresAt = System.currentTimeMillis() + ttl;
+        }
+
+        private static HashDetails unsupported() {
+            return new HashDetails(null, new HashSet<>(), NoHashDetailsTtlMillis);
+        }
+
+        private boolean isExpired() {
+            return expiresAt <= System.currentTimeMillis();
+        }
+
+        private Optional<String> getAlgorithm() {
+            if (Objects.isNull(pepper)) {
+                return Optional.empty();
+            }
+
+            if (algorithms.contains("sha256")) {
+                return Optional.of("sha256");
+            }
+
+            if (algorithms.contains("none")) {
+                return Optional.of("none");
+            }
+
+            return Optional.empty();
+        }
+    }
+
     // FIXME remove
     private Gson gson = new Gson();
-    private GsonParser parser = new GsonParser(gson);
 
     private CloseableHttpClient client;
+    private final Map<String, HashDetails> hashDetails = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService aborter;
 
     public RemoteIdentityServerFetcher(CloseableHttpClient client) {
         this.client = client;
+        this.aborter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ma1sd-remote-lookup-abort");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     @Override
@@ -70,6 +146,11 @@ public class RemoteIdentityServerFetcher implements IRemoteIdentityServerFetcher
 
     @Override
     public Optional<SingleLookupReply> find(String remote, SingleLookupRequest request) {
+        return find(remote, request, NoDeadline);
+    }
+
+    @Override
+    public Optional<SingleLookupReply> find(String remote, SingleLookupRequest request, long deadline) {
         log.info("Looking up {} 3PID {} using {}", request.getType(), request.getThreePid(), remote);
 
         try {
@@ -79,7 +160,7 @@ public class RemoteIdentityServerFetcher implements IRemoteIdentityServerFetcher
             b.addParameter("address", request.getThreePid());
             HttpGet req = new HttpGet(b.build());
 
-            try (CloseableHttpResponse res = client.execute(req)) {
+            try (CloseableHttpResponse res = execute(req, deadline)) {
                 int statusCode = res.getStatusLine().getStatusCode();
                 String body = EntityUtils.toString(res.getEntity());
 
@@ -113,39 +194,233 @@ public class RemoteIdentityServerFetcher implements IRemoteIdentityServerFetcher
     @Override
     public List<ThreePidMapping> find(String remote, List<ThreePidMapping> mappings) {
         List<ThreePidMapping> mappingsFound = new ArrayList<>();
+        find(remote, mappings, mappingsFound::add);
+        return mappingsFound;
+    }
 
-        ClientBulkLookupRequest mappingRequest = new ClientBulkLookupRequest();
-        mappingRequest.setMappings(mappings);
+    @Override
+    public void find(String remote, List<ThreePidMapping> mappings, Consumer<ThreePidMapping> onFound) {
+        find(remote, mappings, NoDeadline, onFound);
+    }
+
+    @Override
+    public void find(String remote, List<ThreePidMapping> mappings, long deadline, Consumer<ThreePidMapping> onFound) {
+        if (mappings.isEmpty()) {
+            return;
+        }
 
-        String url = remote + IsAPIv1.Base + "/bulk_lookup";
         try {
-            HttpPost request = RestClientUtils.post(url, mappingRequest);
-            try (CloseableHttpResponse response = client.execute(request)) {
-                int statusCode = response.getStatusLine().getStatusCode();
-                String body = EntityUtils.toString(response.getEntity());
+            if (findHashed(remote, mappings, deadline, onFound)) {
+                return;
+            }
 
-                if (statusCode != 200) {
-                    log.warn("Could not perform lookup at {} due to HTTP return code: {}", url, statusCode);
-                    log.warn("Body: {}", body);
-                    return mappingsFound;
+            findBulk(remote, mappings, deadline, onFound);
+        } catch (IOException e) {
+            log.warn("Unable to fetch remote lookup data: {}", e.getMessage());
+        } catch (JsonParseException e) {
+            log.info("HTTP response from {} was empty/invalid", remote);
+        }
+    }
+
+    /**
+     * Execute a request which must be over once the deadline is reached.
+     * <p>
+     * The timeouts stop a request to a remote which does not answer, and the request is aborted at the deadline in case
+     * the remote keeps sending data slowly. Aborting a request which is already over does nothing.
+     */
+    private CloseableHttpResponse execute(HttpRequestBase request, long deadline) throws IOException {
+        if (deadline == NoDeadline) {
+            return client.execute(request);
+        }
+
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Lookup deadline reached before calling " + request.getURI());
+        }
+
+        int timeout = (int) Math.min(Integer.MAX_VALUE, remaining);
+        request.setConfig(RequestConfig.custom()
+                .setConnectTimeout(timeout)
+                .setConnectionRequestTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build());
+        aborter.schedule(request::abort, remaining, TimeUnit.MILLISECONDS);
+        return client.execute(request);
+    }
+
+    private HashDetails getHashDetails(String remote, boolean refresh, long deadline) throws IOException {
+        HashDetails details = hashDetails.get(remote);
+        if (!refresh && Objects.nonNull(details) && !details.isExpired()) {
+            return details;
+        }
+
+        details = fetchHashDetails(remote, deadline);
+        if (hashDetails.size() >= MaxRemotes && !hashDetails.containsKey(remote)) {
+            hashDetails.values().removeIf(HashDetails::isExpired);
+
+            Iterator<String> it = hashDetails.keySet().iterator();
+            while (hashDetails.size() >= MaxRemotes && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        hashDetails.put(remote, details);
+        return details;
+    }
+
+    private HashDetails fetchHashDetails(String remote, long deadline) throws IOException {
+        String url = remote + IsAPIv2.Base + "/hash_details";
+        try (CloseableHttpResponse res = execute(new HttpGet(url), deadline)) {
+            int statusCode = res.getStatusLine().getStatusCode();
+            String body = EntityUtils.toString(res.getEntity());
+            if (statusCode != 200) {
+                log.debug("No usable v2 lookup API at {}, got HTTP status code {}", remote, statusCode);
+                return HashDetails.unsupported();
+            }
+
+            JsonObject obj = GsonUtil.parseObj(body);
+            JsonElement pepper = obj.get("lookup_pepper");
+            JsonElement algorithms = obj.get("algorithms");
+            if (Objects.isNull(pepper) || !pepper.isJsonPrimitive() || Objects.isNull(algorithms) || !algorithms.isJsonArray()) {
+                log.info("Invalid hash details from {}, using the v1 lookup API", remote);
+                return HashDetails.unsupported();
+            }
+
+            Set<String> names = new HashSet<>();
+            for (JsonElement algorithm : algorithms.getAsJsonArray()) {
+                names.add(algorithm.getAsString());
+            }
+            return new HashDetails(pepper.getAsString(), names, HashDetailsTtlMillis);
+        } catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+            log.info("Invalid hash details from {}, using the v1 lookup API", remote);
+            return HashDetails.unsupported();
+        }
+    }
+
+    private String toAddress(ThreePidMapping mapping, String algorithm, String pepper) {
+        String address = mapping.getValue() + " " + mapping.getMedium();
+        if ("none".equals(algorithm)) {
+            return address;
+        }
+
+        return base64.encodeToString(DigestUtils.sha256(address + " " + pepper));
+    }
+
+    /**
+     * Look up the mappings over the v2 API, in chunks.
+     *
+     * @return false if the remote server has no usable v2 API, in which case nothing was looked up.
+     */
+    private boolean findHashed(String remote, List<ThreePidMapping> mappings, long deadline, Consumer<ThreePidMapping> onFound) throws IOException {
+        HashDetails details = getHashDetails(remote, false, deadline);
+        if (!details.getAlgorithm().isPresent()) {
+            return false;
+        }
+
+        for (int i = 0; i < mappings.size(); i += HashLookupChunkSize) {
+            List<ThreePidMapping> chunk = mappings.subList(i, Math.min(i + HashLookupChunkSize, mappings.size()));
+            int statusCode = lookupHashed(remote, details, chunk, deadline, onFound);
+            if (statusCode == 400) {
+                // Most likely a pepper rotated since we got it, so we try once more with the current one
+                details = getHashDetails(remote, true, deadline);
+                if (!details.getAlgorithm().isPresent()) {
+                    log.warn("Hash details of {} are gone, skipping the remaining mappings", remote);
+                    return true;
                 }
+                statusCode = lookupHashed(remote, details, chunk, deadline, onFound);
+            }
 
-                ClientBulkLookupRequest input = parser.parse(response, ClientBulkLookupRequest.class);
-                for (List<String> mappingRaw : input.getThreepids()) {
-                    ThreePidMapping mapping = new ThreePidMapping();
-                    mapping.setMedium(mappingRaw.get(0));
-                    mapping.setValue(mappingRaw.get(1));
-                    mapping.setMxid(mappingRaw.get(2));
-                    mappingsFound.add(mapping);
+            if (statusCode == 401 || statusCode == 403 || statusCode == 404) {
+                if (i == 0) {
+                    // Nothing was looked up yet, the v1 API can be used for all the mappings
+                    hashDetails.put(remote, HashDetails.unsupported());
+                    return false;
                 }
+
+                log.warn("v2 lookup API of {} is no longer usable, skipping the remaining mappings", remote);
+                return true;
             }
-        } catch (IOException e) {
-            log.warn("Unable to fetch remote lookup data: {}", e.getMessage());
-        } catch (InvalidResponseJsonException e) {
-            log.info("HTTP response from {} was empty/invalid", remote);
         }
 
-        return mappingsFound;
+        return true;
+    }
+
+    private int lookupHashed(String remote, HashDetails details, List<ThreePidMapping> chunk, long deadline, Consumer<ThreePidMapping> onFound) throws IOException {
+        String algorithm = details.getAlgorithm().orElseThrow(IllegalStateException::new);
+        Map<String, ThreePidMapping> addresses = new HashMap<>();
+        for (ThreePidMapping mapping : chunk) {
+            addresses.put(toAddress(mapping, algorithm, details.pepper), mapping);
+        }
+
+        ClientHashLookupRequest lookupRequest = new ClientHashLookupRequest();
+        lookupRequest.setAlgorithm(algorithm);
+        lookupRequest.setPepper(details.pepper);
+        lookupRequest.setAddresses(new ArrayList<>(addresses.keySet()));
+
+        String url = remote + IsAPIv2.Base + "/lookup";
+        HttpPost request = RestClientUtils.post(url, lookupRequest);
+        try (CloseableHttpResponse response = execute(request, deadline)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            String body = EntityUtils.toString(response.getEntity());
+            if (statusCode != 200) {
+                log.warn("Could not perform lookup at {} due to HTTP return code: {}", url, statusCode);
+                log.debug("Body: {}", body);
+                return statusCode;
+            }
+
+            ClientHashLookupAnswer answer = gson.fromJson(body, ClientHashLookupAnswer.class);
+            if (Objects.isNull(answer) || Objects.isNull(answer.getMappings())) {
+                log.info("HTTP response from {} was empty/invalid", remote);
+                return statusCode;
+            }
+
+            for (Map.Entry<String, String> entry : answer.getMappings().entrySet()) {
+                ThreePidMapping requested = addresses.get(entry.getKey());
+                if (Objects.isNull(requested)) {
+                    continue;
+                }
+
+                ThreePidMapping mapping = new ThreePidMapping();
+                mapping.setMedium(requested.getMedium());
+                mapping.setValue(requested.getValue());
+                mapping.setMxid(entry.getValue());
+                onFound.accept(mapping);
+            }
+
+            return statusCode;
+        }
+    }
+
+    private void findBulk(String remote, List<ThreePidMapping> mappings, long deadline, Consumer<ThreePidMapping> onFound) throws IOException {
+        ClientBulkLookupRequest mappingRequest = new ClientBulkLookupRequest();
+        mappingRequest.setMappings(mappings);
+
+        String url = remote + IsAPIv1.Base + "/bulk_lookup";
+        HttpPost request = RestClientUtils.post(url, mappingRequest);
+        try (CloseableHttpResponse response = execute(request, deadline)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            String body = EntityUtils.toString(response.getEntity());
+
+            if (statusCode != 200) {
+                log.warn("Could not perform lookup at {} due to HTTP return code: {}", url, statusCode);
+                log.warn("Body: {}", body);
+                return;
+            }
+
+            ClientBulkLookupRequest input = gson.fromJson(body, ClientBulkLookupRequest.class);
+            if (Objects.isNull(input) || Objects.isNull(input.getThreepids())) {
+                log.info("HTTP response from {} was empty/invalid", remote);
+                return;
+            }
+
+            for (List<String> mappingRaw : input.getThreepids()) {
+                ThreePidMapping mapping = new ThreePidMapping();
+                mapping.setMedium(mappingRaw.get(0));
+                mapping.setValue(mappingRaw.get(1));
+                mapping.setMxid(mappingRaw.get(2));
+                onFound.accept(mapping);
+            }
+        }
     }
 
 }
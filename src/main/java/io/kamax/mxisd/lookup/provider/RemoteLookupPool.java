@@ -0,0 +1,127 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.lookup.provider;
+
+import io.kamax.mxisd.config.RecursiveLookupConfig;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Threads and per-server limits for lookups on remote Identity servers.
+ * <p>
+ * Remote lookups block on DNS and HTTP, so they run on their own threads instead of a shared pool. Each remote server
+ * gets a limited amount of concurrent requests, so a bulk lookup spanning many domains hosted on the same server does not
+ * flood it. Servers are only tracked while calls to them are running or waiting, so the limits do not grow with every
+ * server ever queried.
+ */
+public class RemoteLookupPool {
+
+    private static class Server {
+
+        private final Semaphore permits;
+        // Calls running or waiting on the server, only changed while the map holds the entry lock
+        private int users;
+
+        private Server(int maxPerServer) {
+            this.permits = new Semaphore(maxPerServer);
+        }
+    }
+
+    private final ExecutorService executor;
+    private final int maxPerServer;
+    private final long timeoutMillis;
+    private final Map<String, Server> servers = new ConcurrentHashMap<>();
+
+    public RemoteLookupPool(RecursiveLookupConfig.Remote cfg) {
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(cfg.getThreads(), r -> {
+            Thread t = new Thread(r, "ma1sd-remote-lookup-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.maxPerServer = cfg.getMaxPerServer();
+        this.timeoutMillis = cfg.getTimeoutInSeconds() * 1000;
+    }
+
+    /**
+     * The point in time by which a remote lookup started now must be done.
+     *
+     * @return The deadline, in milliseconds since the epoch.
+     */
+    public long getDeadline() {
+        return System.currentTimeMillis() + timeoutMillis;
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Call a remote server once it has room for another request.
+     *
+     * @param server   The base URL of the server.
+     * @param deadline The point in time after which the call is given up, in milliseconds since the epoch.
+     * @param call     The call to the server.
+     * @param <T>      The type of the call result.
+     * @return The result of the call, or empty if the server had no room before the deadline.
+     * @throws InterruptedException If interrupted while waiting for room.
+     */
+    public <T> Optional<T> onServer(String server, long deadline, Supplier<T> call) throws InterruptedException {
+        Server entry = servers.compute(server, (k, v) -> {
+            Server s = Objects.isNull(v) ? new Server(maxPerServer) : v;
+            s.users++;
+            return s;
+        });
+
+        try {
+            if (!entry.permits.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                return Optional.empty();
+            }
+
+            try {
+                return Optional.ofNullable(call.get());
+            } finally {
+                entry.permits.release();
+            }
+        } finally {
+            servers.computeIfPresent(server, (k, v) -> --v.users == 0 ? null : v);
+        }
+    }
+
+    /**
+     * @return The number of servers with calls running or waiting.
+     */
+    public int getServerCount() {
+        return servers.size();
+    }
+
+}
@@ -23,12 +23,16 @@ package io.kamax.mxisd.lookup.provider;
 import io.kamax.mxisd.Mxisd;
 import io.kamax.mxisd.backend.IdentityStoreSupplier;
 import io.kamax.mxisd.lookup.ThreePidProviders;
+import io.kamax.mxisd.matrix.IdentityServerDiscovery;
 
 public class RemoteLookupProviderSupplier implements IdentityStoreSupplier {
 
     @Override
     public void accept(Mxisd mxisd) {
-        ThreePidProviders.register(() -> new DnsLookupProvider(mxisd.getConfig().getMatrix(), mxisd.getServerFetcher()));
+        // Shared by all the provider instances, so discoveries are only cached once and limits apply across them
+        IdentityServerDiscovery discovery = new IdentityServerDiscovery(mxisd.getConfig().getDns().getCache());
+        RemoteLookupPool pool = new RemoteLookupPool(mxisd.getConfig().getLookup().getRecursive().getRemote());
+        ThreePidProviders.register(() -> new DnsLookupProvider(mxisd.getConfig().getMatrix(), mxisd.getServerFetcher(), discovery, pool));
         ThreePidProviders.register(() -> new ForwarderProvider(mxisd.getConfig(), mxisd.getServerFetcher()));
     }
 
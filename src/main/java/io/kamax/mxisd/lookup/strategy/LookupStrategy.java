@@ -26,7 +26,9 @@ import io.kamax.mxisd.lookup.SingleLookupReply;
 import io.kamax.mxisd.lookup.SingleLookupRequest;
 import io.kamax.mxisd.lookup.ThreePidMapping;
 import io.kamax.mxisd.lookup.provider.IThreePidProvider;
+import org.apache.commons.lang3.tuple.Pair;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
@@ -46,4 +48,10 @@ public interface LookupStrategy {
     Optional<SingleLookupReply> findRecursive(SingleLookupRequest request);
 
     CompletableFuture<List<ThreePidMapping>> find(BulkLookupRequest requests);
+
+    CompletableFuture<Optional<SingleLookupReply>> findAsync(SingleLookupRequest request);
+
+    CompletableFuture<List<ThreePidMapping>> findAsync(BulkLookupRequest request);
+
+    CompletableFuture<Collection<Pair<String, ThreePidMapping>>> findAsync(HashLookupRequest request);
 }
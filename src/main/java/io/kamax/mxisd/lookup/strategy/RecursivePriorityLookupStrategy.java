@@ -21,30 +21,35 @@
 package io.kamax.mxisd.lookup.strategy;
 
 import edazdarevic.commons.net.CIDRUtils;
-import io.kamax.matrix.json.GsonUtil;
-import io.kamax.matrix.json.MatrixJson;
 import io.kamax.mxisd.config.MxisdConfig;
 import io.kamax.mxisd.exception.ConfigurationException;
 import io.kamax.mxisd.hash.HashManager;
 import io.kamax.mxisd.lookup.ALookupRequest;
 import io.kamax.mxisd.lookup.BulkLookupRequest;
+import io.kamax.mxisd.lookup.HashLookupRequest;
+import io.kamax.mxisd.lookup.PendingMappings;
 import io.kamax.mxisd.lookup.SingleLookupReply;
 import io.kamax.mxisd.lookup.SingleLookupRequest;
 import io.kamax.mxisd.lookup.ThreePidMapping;
 import io.kamax.mxisd.lookup.fetcher.IBridgeFetcher;
 import io.kamax.mxisd.lookup.provider.IThreePidProvider;
-import org.apache.commons.codec.digest.DigestUtils;
+import io.kamax.mxisd.util.SingleFlight;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class RecursivePriorityLookupStrategy implements LookupStrategy {
@@ -55,12 +60,17 @@ public class RecursivePriorityLookupStrategy implements LookupStrategy {
     private List<IThreePidProvider> providers;
     private IBridgeFetcher bridge;
 
-    private Map<String, CompletableFuture<List<ThreePidMapping>>> bulkLookupInProgress = new ConcurrentHashMap<>();
+    // Identical lookups running at the same time, e.g. client retries or invites of the same address, are only done once
+    private SingleFlight<List<Object>, Optional<SingleLookupReply>> singleLookups = new SingleFlight<>();
+    private SingleFlight<List<Object>, List<ThreePidMapping>> bulkLookups = new SingleFlight<>();
 
     private List<CIDRUtils> allowedCidr = new ArrayList<>();
 
     private HashManager hashManager;
 
+    // Lookups of the HTTP handlers run here, so the providers do not hold the server threads while they wait
+    private ExecutorService executor;
+
     public RecursivePriorityLookupStrategy(MxisdConfig.Lookup cfg, List<? extends IThreePidProvider> providers, IBridgeFetcher bridge,
                                            HashManager hashManager) {
         this.cfg = cfg;
@@ -68,6 +78,13 @@ public class RecursivePriorityLookupStrategy implements LookupStrategy {
         this.providers = new ArrayList<>(providers);
         this.hashManager = hashManager;
 
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(cfg.getThreads(), r -> {
+            Thread thread = new Thread(r, "ma1sd-lookup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
         try {
             log.info("Found {} providers", providers.size());
             providers.forEach(p -> log.info("  - {}", p.getClass().getName()));
@@ -161,7 +178,22 @@ public class RecursivePriorityLookupStrategy implements LookupStrategy {
     }
 
     public Optional<SingleLookupReply> find(SingleLookupRequest request, boolean forceRecursive) {
-        return find(request, listUsableProviders(request, forceRecursive));
+        // Normalized once, so the lookup is done on the same address as the one used to share it
+        request.setThreePid(StringUtils.trimToEmpty(request.getThreePid()));
+        boolean canRecurse = forceRecursive || isAllowedForRecursive(request.getRequester());
+        return singleLookups.get(getLookupKey(request, canRecurse), () -> find(request, listUsableProviders(request, canRecurse)));
+    }
+
+    private List<Object> getLookupKey(SingleLookupRequest request, boolean canRecurse) {
+        // Whatever changes the providers used, or the bridge failover, must be part of the key
+        return Arrays.asList(request.getType(), request.getThreePid(), canRecurse,
+            isBridgeAllowed(request.getRequester()));
+    }
+
+    private boolean isBridgeAllowed(String requester) {
+        return cfg.getRecursive().getBridge() != null &&
+            cfg.getRecursive().getBridge().getEnabled() &&
+            (!cfg.getRecursive().getBridge().getRecursiveOnly() || isAllowedForRecursive(requester));
     }
 
     public Optional<SingleLookupReply> find(SingleLookupRequest request, List<IThreePidProvider> providers) {
@@ -174,11 +206,7 @@ public class RecursivePriorityLookupStrategy implements LookupStrategy {
             }
         }
 
-        if (
-            cfg.getRecursive().getBridge() != null &&
-                cfg.getRecursive().getBridge().getEnabled() &&
-                (!cfg.getRecursive().getBridge().getRecursiveOnly() || isAllowedForRecursive(request.getRequester()))
-        ) {
+        if (isBridgeAllowed(request.getRequester())) {
             log.info("Using bridge failover for lookup");
             Optional<SingleLookupReply> lookupDataOpt = bridge.find(request);
             log.info("Found 3PID mapping: {medium: '{}', address: '{}', mxid: '{}'}",
@@ -202,30 +230,33 @@ public class RecursivePriorityLookupStrategy implements LookupStrategy {
 
     @Override
     public CompletableFuture<List<ThreePidMapping>> find(BulkLookupRequest request) {
+        return find(request, false);
+    }
+
+    private CompletableFuture<List<ThreePidMapping>> find(BulkLookupRequest request, boolean async) {
         if (!cfg.getBulk().getEnabled()) {
             return CompletableFuture.completedFuture(new ArrayList<>());
         }
 
-        String payloadId = DigestUtils.md5Hex(MatrixJson.encodeCanonical(GsonUtil.makeObj(request)));
-
-        log.info("Computed Payload ID: {}", payloadId);
-        synchronized (this) {
-            CompletableFuture<List<ThreePidMapping>> f = bulkLookupInProgress.get(payloadId);
-            if (Objects.nonNull(f)) {
-                log.info("Returning existing future for Payload ID {}", payloadId);
-                return f;
+        boolean canRecurse = isAllowedForRecursive(request.getRequester());
+        boolean bridgeAllowed = isBridgeAllowed(request.getRequester());
+        List<Object> key = Arrays.asList(new ArrayList<>(request.getMappings()), canRecurse, bridgeAllowed);
+        return bulkLookups.run(key, () -> {
+            Supplier<List<ThreePidMapping>> lookup = () -> populate(request.getMappings(),
+                listUsableProviders(request, canRecurse), bridgeAllowed);
+            if (async) {
+                return CompletableFuture.supplyAsync(lookup, executor);
             }
 
-            bulkLookupInProgress.put(payloadId, new CompletableFuture<>());
-        }
-
-        log.info("Processing Payload ID {}", payloadId);
+            return CompletableFuture.completedFuture(lookup.get());
+        });
+    }
 
-        CompletableFuture<List<ThreePidMapping>> result = bulkLookupInProgress.get(payloadId);
-        List<ThreePidMapping> mapToDo = new ArrayList<>(request.getMappings());
-        List<ThreePidMapping> mapFoundAll = new ArrayList<>();
+    private List<ThreePidMapping> populate(List<ThreePidMapping> mappings, List<IThreePidProvider> providers, boolean bridgeAllowed) {
+        log.info("Processing bulk lookup of {} mappings", mappings.size());
 
-        for (IThreePidProvider provider : listUsableProviders(request)) {
+        PendingMappings mapToDo = new PendingMappings(mappings);
+        for (IThreePidProvider provider : providers) {
             if (mapToDo.isEmpty()) {
                 log.info("No more mappings to lookup");
                 break;
@@ -234,14 +265,34 @@ public class RecursivePriorityLookupStrategy implements LookupStrategy {
             }
 
             log.info("Using provider {} for remaining mappings", provider.getClass().getSimpleName());
-            List<ThreePidMapping> mapFound = provider.populate(mapToDo);
-            log.info("Provider {} returned {} mappings", provider.getClass().getSimpleName(), mapFound.size());
-            mapFoundAll.addAll(mapFound);
-            mapToDo.removeAll(mapFound);
+            int before = mapToDo.size();
+            provider.populate(mapToDo.asList(), mapToDo::found);
+            log.info("Provider {} returned {} mappings", provider.getClass().getSimpleName(), before - mapToDo.size());
+        }
+
+        if (!mapToDo.isEmpty() && bridgeAllowed) {
+            log.info("Using bridge failover for {} remaining mappings", mapToDo.size());
+            bridge.populate(mapToDo.asList(), mapToDo::found);
         }
 
-        log.info("Processed Payload ID {}", payloadId);
-        result.complete(mapFoundAll);
-        return bulkLookupInProgress.remove(payloadId);
+        log.info("Processed bulk lookup of {} mappings", mappings.size());
+        return mapToDo.getFound();
+    }
+
+    @Override
+    public CompletableFuture<Optional<SingleLookupReply>> findAsync(SingleLookupRequest request) {
+        boolean canRecurse = isAllowedForRecursive(request.getRequester());
+        return singleLookups.run(getLookupKey(request, canRecurse), () -> CompletableFuture.supplyAsync(
+            () -> find(request, listUsableProviders(request, canRecurse)), executor));
+    }
+
+    @Override
+    public CompletableFuture<List<ThreePidMapping>> findAsync(BulkLookupRequest request) {
+        return find(request, true);
+    }
+
+    @Override
+    public CompletableFuture<Collection<Pair<String, ThreePidMapping>>> findAsync(HashLookupRequest request) {
+        return CompletableFuture.supplyAsync(() -> hashManager.getHashStorage().find(request.getHashes()), executor);
     }
 }
@@ -0,0 +1,229 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.matrix;
+
+import io.kamax.mxisd.Mxisd;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pooled HTTP clients to talk to homeservers over federation.
+ * <p>
+ * Each destination gets its own client, as the TLS certificate must be checked against the homeserver domain which can
+ * differ from the host being connected to. Clients are kept so connections and TLS sessions are reused between requests.
+ * <p>
+ * At most {@link #DefaultMaxClients} clients are kept: clients unused for a while are evicted, and the least recently used
+ * one is evicted when a new homeserver would go over the limit. A caller may still be using a client it just got, so evicted
+ * clients are only closed after a grace period. Idle and expired connections are closed in the background.
+ */
+public class FederationClients implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(FederationClients.class);
+
+    public static final int DefaultMaxClients = 200;
+
+    // Connections to a single homeserver, more requests wait for one to be free
+    private static final int MaxConnections = 20;
+    // Kept connections are re-opened after this, so DNS changes are picked up
+    private static final long ConnectionTtlSeconds = 300;
+    // Kept connections unused for this long are closed, remotes usually drop them anyway
+    private static final long ConnectionIdleSeconds = 60;
+    // Clients unused for this long are closed with their connections
+    private static final long ClientIdleSeconds = 600;
+    // Evicted clients are closed after this, longer than any request is allowed to take with the timeouts below
+    private static final long EvictedGraceSeconds = 120;
+    private static final long CleanupIntervalSeconds = 30;
+
+    private static final int ConnectTimeoutMillis = 5000;
+    private static final int SocketTimeoutMillis = 30000;
+    private static final int ConnectionRequestTimeoutMillis = 10000;
+
+    private static class Client {
+
+        private final String domain;
+        private final CloseableHttpClient client;
+        private final PoolingHttpClientConnectionManager connMgr;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile long evictedAt;
+
+        private Client(String domain, CloseableHttpClient client, PoolingHttpClientConnectionManager connMgr) {
+            this.domain = domain;
+            this.client = client;
+            this.connMgr = connMgr;
+        }
+
+    }
+
+    private final int maxClients;
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private final Queue<Client> evicted = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService cleaner;
+
+    public FederationClients() {
+        this(DefaultMaxClients);
+    }
+
+    public FederationClients(int maxClients) {
+        this.maxClients = maxClients;
+        this.cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ma1sd-federation-clients");
+            t.setDaemon(true);
+            return t;
+        });
+        this.cleaner.scheduleWithFixedDelay(this::cleanup, CleanupIntervalSeconds, CleanupIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private Client build(String domain) {
+        log.debug("Creating federation client for {}", domain);
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(SSLContexts.createDefault(), new HomeserverVerifier(domain)))
+                .build();
+        PoolingHttpClientConnectionManager connMgr = new PoolingHttpClientConnectionManager(registry, null, null, null, ConnectionTtlSeconds, TimeUnit.SECONDS);
+        connMgr.setMaxTotal(MaxConnections);
+        connMgr.setDefaultMaxPerRoute(MaxConnections);
+
+        CloseableHttpClient client = HttpClients.custom()
+                .setUserAgent(Mxisd.Agent)
+                .setConnectionManager(connMgr)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(ConnectTimeoutMillis)
+                        .setSocketTimeout(SocketTimeoutMillis)
+                        .setConnectionRequestTimeout(ConnectionRequestTimeoutMillis)
+                        .build())
+                .build();
+        return new Client(domain, client, connMgr);
+    }
+
+    /**
+     * Get the client for a homeserver.
+     *
+     * @param target The resolved homeserver.
+     * @return The shared client, which must not be closed by the caller.
+     */
+    public CloseableHttpClient get(HomeserverFederationResolver.HomeserverTarget target) {
+        Client client = clients.computeIfAbsent(target.getDomain().toLowerCase(), this::build);
+        client.lastUsed = System.currentTimeMillis();
+        if (clients.size() > maxClients) {
+            evictLeastRecentlyUsed(client);
+        }
+        return client.client;
+    }
+
+    /**
+     * @return The number of homeservers which currently have a client.
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    private void evictLeastRecentlyUsed(Client keep) {
+        List<Map.Entry<String, Client>> entries = new ArrayList<>(clients.entrySet());
+        entries.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+        for (Map.Entry<String, Client> entry : entries) {
+            if (clients.size() <= maxClients) {
+                break;
+            }
+
+            if (entry.getValue() != keep) {
+                evict(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void evict(String domain, Client client) {
+        if (clients.remove(domain, client)) {
+            log.debug("Evicting federation client for {}", domain);
+            client.evictedAt = System.currentTimeMillis();
+            evicted.add(client);
+        }
+    }
+
+    private void close(Client client) {
+        try {
+            client.client.close();
+        } catch (IOException e) {
+            log.warn("Unable to close federation client for {}: {}", client.domain, e.getMessage());
+        }
+    }
+
+    private void closeEvicted(long evictedBefore) {
+        // Clients are queued in eviction order
+        Client client;
+        while ((client = evicted.peek()) != null && client.evictedAt < evictedBefore) {
+            if (evicted.remove(client)) {
+                log.debug("Closing evicted federation client for {}", client.domain);
+                close(client);
+            }
+        }
+    }
+
+    private void cleanup() {
+        try {
+            long now = System.currentTimeMillis();
+            closeEvicted(now - TimeUnit.SECONDS.toMillis(EvictedGraceSeconds));
+
+            long idleBefore = now - TimeUnit.SECONDS.toMillis(ClientIdleSeconds);
+            for (Map.Entry<String, Client> entry : clients.entrySet()) {
+                Client client = entry.getValue();
+                if (client.lastUsed < idleBefore) {
+                    evict(entry.getKey(), client);
+                } else {
+                    client.connMgr.closeExpiredConnections();
+                    client.connMgr.closeIdleConnections(ConnectionIdleSeconds, TimeUnit.SECONDS);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Unable to clean up federation clients", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        cleaner.shutdownNow();
+        clients.values().forEach(this::close);
+        clients.clear();
+        closeEvicted(Long.MAX_VALUE);
+    }
+
+}
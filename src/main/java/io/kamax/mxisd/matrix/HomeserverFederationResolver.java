@@ -23,10 +23,15 @@ package io.kamax.mxisd.matrix;
 import com.google.gson.JsonObject;
 import io.kamax.matrix.json.GsonUtil;
 import io.kamax.matrix.json.InvalidJsonException;
+import io.kamax.mxisd.config.MxisdConfig;
 import io.kamax.mxisd.dns.FederationDnsOverwrite;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
@@ -36,18 +41,122 @@ import org.xbill.DNS.*;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.time.Clock;
 import java.util.*;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolve the federation endpoint of a homeserver, as per the Server-Server specification.
+ * <p>
+ * Resolutions via well-known and DNS SRV are cached for as long as the well-known response or the SRV records allow, within
+ * the configured bounds. Failing to find a well-known is cached with an exponential backoff, so slow or absent hosts are
+ * not queried on every request. Concurrent resolutions of the same domain are only performed once.
+ */
 public class HomeserverFederationResolver {
 
     private static final Logger log = LoggerFactory.getLogger(HomeserverFederationResolver.class);
 
+    // Successive failures after which the error TTL stops doubling, well past any sane maximum
+    private static final int MaxBackoffSteps = 20;
+
+    private static class Resolution {
+
+        private final URL url;
+        private final long ttl;
+
+        private Resolution(URL url, long ttl) {
+            this.url = url;
+            this.ttl = ttl;
+        }
+    }
+
+    private static class Entry {
+
+        private final HomeserverTarget target;
+        private final long expiresAt;
+        private final int failures;
+
+        private Entry(HomeserverTarget target, long expiresAt, int failures) {
+            this.target = target;
+            this.expiresAt = expiresAt;
+            this.failures = failures;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+    }
+
     private FederationDnsOverwrite dns;
     private CloseableHttpClient client;
+    private MxisdConfig.Dns.Cache cacheCfg;
+    private final Clock clock;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<HomeserverTarget>> resolving = new ConcurrentHashMap<>();
 
     public HomeserverFederationResolver(FederationDnsOverwrite dns, CloseableHttpClient client) {
+        this(dns, client, defaultCache());
+    }
+
+    public HomeserverFederationResolver(FederationDnsOverwrite dns, CloseableHttpClient client, MxisdConfig.Dns.Cache cacheCfg) {
+        this(dns, client, cacheCfg, Clock.systemUTC());
+    }
+
+    public HomeserverFederationResolver(FederationDnsOverwrite dns, CloseableHttpClient client, MxisdConfig.Dns.Cache cacheCfg, Clock clock) {
         this.dns = dns;
         this.client = client;
+        this.cacheCfg = cacheCfg;
+        this.clock = clock;
+    }
+
+    private static MxisdConfig.Dns.Cache defaultCache() {
+        MxisdConfig.Dns.Cache cfg = new MxisdConfig.Dns.Cache();
+        cfg.build();
+        return cfg;
+    }
+
+    /**
+     * Find for how long a response can be cached, from its <code>Cache-Control</code> or <code>Expires</code> header.
+     *
+     * @param response The response.
+     * @return The amount of seconds, or empty if the response does not say.
+     */
+    public static Optional<Long> getMaxAge(HttpResponse response) {
+        return getMaxAge(response, System.currentTimeMillis());
+    }
+
+    private static Optional<Long> getMaxAge(HttpResponse response, long now) {
+        for (Header header : response.getHeaders("Cache-Control")) {
+            for (HeaderElement element : header.getElements()) {
+                String name = element.getName().toLowerCase();
+                if ("no-store".equals(name) || "no-cache".equals(name)) {
+                    return Optional.of(0L);
+                }
+
+                if ("max-age".equals(name) && StringUtils.isNotBlank(element.getValue())) {
+                    try {
+                        return Optional.of(Math.max(0, Long.parseLong(element.getValue().trim())));
+                    } catch (NumberFormatException e) {
+                        log.debug("Ignoring invalid max-age: {}", element.getValue());
+                    }
+                }
+            }
+        }
+
+        Header expires = response.getFirstHeader("Expires");
+        if (Objects.nonNull(expires)) {
+            Date expiresAt = DateUtils.parseDate(expires.getValue());
+            if (Objects.isNull(expiresAt)) {
+                // An invalid date means already expired
+                return Optional.of(0L);
+            }
+
+            return Optional.of(Math.max(0, (expiresAt.getTime() - now) / 1000));
+        }
+
+        return Optional.empty();
     }
 
     private String getDefaultScheme() {
@@ -108,7 +217,16 @@ public class HomeserverFederationResolver {
         return Optional.empty();
     }
 
-    private Optional<URL> resolveWellKnown(String domain) {
+    private long clampTtl(long ttl) {
+        return Math.min(Math.max(ttl, cacheCfg.getMinTtlInSeconds()), cacheCfg.getMaxTtlInSeconds());
+    }
+
+    private long getErrorTtl(int failures) {
+        long ttl = cacheCfg.getErrorTtlInSeconds() << Math.min(failures - 1, MaxBackoffSteps);
+        return Math.min(ttl, cacheCfg.getMaxErrorTtlInSeconds());
+    }
+
+    private Optional<Resolution> resolveWellKnown(String domain) {
         log.debug("Performing Well-known lookup for {}", domain);
         HttpGet wnReq = new HttpGet("https://" + domain + "/.well-known/matrix/server");
         try (CloseableHttpResponse wnRes = client.execute(wnReq)) {
@@ -119,7 +237,9 @@ public class HomeserverFederationResolver {
                     String server = GsonUtil.getStringOrNull(body, "m.server");
                     if (StringUtils.isNotBlank(server)) {
                         log.debug("Found well-known entry: {}", server);
-                        return Optional.of(build(server));
+                        // Without caching headers, the specification recommends 24 hours, the default maximum
+                        long ttl = getMaxAge(wnRes, clock.millis()).orElse(cacheCfg.getMaxTtlInSeconds());
+                        return Optional.of(new Resolution(build(server), clampTtl(ttl)));
                     }
                 } catch (InvalidJsonException e) {
                     log.info("Could not parse well-known resource: {}", e.getMessage());
@@ -136,7 +256,7 @@ public class HomeserverFederationResolver {
         }
     }
 
-    private Optional<URL> resolveDnsSrv(String domain) {
+    private Optional<Resolution> resolveDnsSrv(String domain) {
         log.debug("Performing SRV lookup for {}", domain);
         String lookupDns = buildSrvRecordName(domain);
         log.debug("Lookup name: {}", lookupDns);
@@ -164,7 +284,8 @@ public class HomeserverFederationResolver {
 
             srvRecords.sort(Comparator.comparingInt(SRVRecord::getPriority));
             SRVRecord record = srvRecords.get(0);
-            return Optional.of(build(record.getTarget().toString(true) + ":" + record.getPort()));
+            long ttl = srvRecords.stream().mapToLong(Record::getTTL).min().orElse(0);
+            return Optional.of(new Resolution(build(record.getTarget().toString(true) + ":" + record.getPort()), clampTtl(ttl)));
         } catch (TextParseException e) {
             log.warn("Unable to perform DNS SRV query for {}: {}", lookupDns, e.getMessage());
         }
@@ -195,24 +316,80 @@ public class HomeserverFederationResolver {
             return new HomeserverTarget(dest.getHost(), dest);
         }
 
-        Optional<URL> s3 = resolveWellKnown(domain);
+        if (!cacheCfg.isEnabled()) {
+            return resolveRemote(domain, null).target;
+        }
+
+        Entry entry = cache.get(domain);
+        if (Objects.nonNull(entry) && !entry.isExpired(clock.millis())) {
+            log.debug("Resolution of {} from cache to {}", domain, entry.target.getUrl());
+            return entry.target;
+        }
+
+        CompletableFuture<HomeserverTarget> resolution = new CompletableFuture<>();
+        CompletableFuture<HomeserverTarget> ongoing = resolving.putIfAbsent(domain, resolution);
+        if (Objects.nonNull(ongoing)) {
+            log.debug("Waiting on ongoing resolution of {}", domain);
+            try {
+                return ongoing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        try {
+            Entry resolved = resolveRemote(domain, entry);
+            store(domain, resolved);
+            resolution.complete(resolved.target);
+            return resolved.target;
+        } catch (RuntimeException e) {
+            resolution.completeExceptionally(e);
+            throw e;
+        } finally {
+            resolving.remove(domain, resolution);
+        }
+    }
+
+    private Entry resolveRemote(String domain, Entry previous) {
+        long now = clock.millis();
+
+        Optional<Resolution> s3 = resolveWellKnown(domain);
         if (s3.isPresent()) {
-            URL dest = s3.get();
+            URL dest = s3.get().url;
             log.info("Resolution of {} via well-known to {}", domain, dest);
-            return new HomeserverTarget(dest.getHost(), dest);
+            return new Entry(new HomeserverTarget(dest.getHost(), dest), now + s3.get().ttl * 1000, 0);
         }
-        // The domain needs to be resolved
 
-        Optional<URL> s4 = resolveDnsSrv(domain);
+        // Without a well-known, the next resolution is attempted after a growing delay, unless the SRV record expires first
+        int failures = Objects.isNull(previous) ? 1 : previous.failures + 1;
+        long errorTtl = getErrorTtl(failures);
+
+        // The domain needs to be resolved
+        Optional<Resolution> s4 = resolveDnsSrv(domain);
         if (s4.isPresent()) {
-            URL dest = s4.get();
+            URL dest = s4.get().url;
             log.info("Resolution of {} via DNS SRV record to {}", domain, dest);
-            return new HomeserverTarget(domain, dest);
+            return new Entry(new HomeserverTarget(domain, dest), now + Math.min(errorTtl, s4.get().ttl) * 1000, failures);
         }
 
         URL dest = build(domain + ":" + getDefaultPort());
         log.info("Resolution of {} to {}", domain, dest);
-        return new HomeserverTarget(dest.getHost(), dest);
+        return new Entry(new HomeserverTarget(dest.getHost(), dest), now + errorTtl * 1000, failures);
+    }
+
+    private void store(String domain, Entry entry) {
+        if (cache.size() >= cacheCfg.getMaxSize() && !cache.containsKey(domain)) {
+            // Expired entries go first, then arbitrary ones until there is room for the new entry
+            long now = clock.millis();
+            cache.values().removeIf(e -> e.isExpired(now));
+
+            Iterator<String> it = cache.keySet().iterator();
+            while (cache.size() >= cacheCfg.getMaxSize() && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        cache.put(domain, entry);
     }
 
     public static class HomeserverTarget {
@@ -220,7 +397,7 @@ public class HomeserverFederationResolver {
         private final String domain;
         private final URL url;
 
-        HomeserverTarget(String domain, URL url) {
+        public HomeserverTarget(String domain, URL url) {
             this.domain = domain;
             this.url = url;
         }
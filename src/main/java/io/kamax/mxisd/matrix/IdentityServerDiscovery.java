@@ -0,0 +1,186 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.matrix;
+
+import io.kamax.mxisd.config.MxisdConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Cache of the Identity servers discovered for domains via DNS SRV records.
+ * <p>
+ * Found servers are kept for the TTL of their records, within the configured bounds. Domains without a usable Identity
+ * server are kept with the same exponential backoff as other resolution failures. Entries used after most of their TTL
+ * went by are refreshed in the background, so popular domains are not discovered again while a lookup waits.
+ */
+public class IdentityServerDiscovery {
+
+    private static final Logger log = LoggerFactory.getLogger(IdentityServerDiscovery.class);
+
+    // Successive failures after which the error TTL stops doubling, well past any sane maximum
+    private static final int MaxBackoffSteps = 20;
+
+    private static class Entry {
+
+        private final Optional<String> url;
+        private final long refreshAt;
+        private final long expiresAt;
+        private final int failures;
+
+        private Entry(Optional<String> url, long now, long ttl, int failures) {
+            this.url = url;
+            this.refreshAt = now + ttl * 750; // 3/4 of the TTL, in milliseconds
+            this.expiresAt = now + ttl * 1000;
+            this.failures = failures;
+        }
+
+        private boolean isExpired(long now) {
+            return expiresAt <= now;
+        }
+
+        private boolean shouldRefresh(long now) {
+            return refreshAt <= now;
+        }
+    }
+
+    private final MxisdConfig.Dns.Cache cfg;
+    private final Function<String, IdentityServerUtils.Discovery> discoverer;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> discovering = new ConcurrentHashMap<>();
+    private final ExecutorService refresher;
+
+    public IdentityServerDiscovery(MxisdConfig.Dns.Cache cfg) {
+        this(cfg, IdentityServerUtils::discover);
+    }
+
+    public IdentityServerDiscovery(MxisdConfig.Dns.Cache cfg, Function<String, IdentityServerUtils.Discovery> discoverer) {
+        this.cfg = cfg;
+        this.discoverer = discoverer;
+
+        // Refreshes are best effort, they are dropped rather than queued forever if discoveries are slow
+        AtomicInteger count = new AtomicInteger();
+        this.refresher = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1000), r -> {
+            Thread t = new Thread(r, "ma1sd-is-discovery-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Find the Identity server of a domain.
+     *
+     * @param domain The domain.
+     * @return The base URL of the Identity server, or empty if the domain has none that is usable.
+     */
+    public Optional<String> find(String domain) {
+        if (!cfg.isEnabled()) {
+            return discoverer.apply(domain).getUrl();
+        }
+
+        String id = domain.toLowerCase();
+        long now = System.currentTimeMillis();
+        Entry entry = cache.get(id);
+        if (Objects.nonNull(entry) && !entry.isExpired(now)) {
+            if (entry.shouldRefresh(now) && !discovering.containsKey(id)) {
+                log.debug("Refreshing Identity server discovery for {} in the background", id);
+                refresher.execute(() -> {
+                    try {
+                        discover(id, entry);
+                    } catch (RuntimeException e) {
+                        log.warn("Unable to refresh Identity server discovery for {}: {}", id, e.getMessage());
+                    }
+                });
+            }
+
+            return entry.url;
+        }
+
+        return discover(id, entry).url;
+    }
+
+    private Entry discover(String domain, Entry previous) {
+        CompletableFuture<Entry> discovery = new CompletableFuture<>();
+        CompletableFuture<Entry> ongoing = discovering.putIfAbsent(domain, discovery);
+        if (Objects.nonNull(ongoing)) {
+            log.debug("Waiting on ongoing Identity server discovery for {}", domain);
+            try {
+                return ongoing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        try {
+            Entry entry = discoverRemote(domain, previous);
+            store(domain, entry);
+            discovery.complete(entry);
+            return entry;
+        } catch (RuntimeException e) {
+            discovery.completeExceptionally(e);
+            throw e;
+        } finally {
+            discovering.remove(domain, discovery);
+        }
+    }
+
+    private Entry discoverRemote(String domain, Entry previous) {
+        IdentityServerUtils.Discovery result = discoverer.apply(domain);
+        long now = System.currentTimeMillis();
+        if (result.getUrl().isPresent()) {
+            long ttl = Math.min(Math.max(result.getTtl(), cfg.getMinTtlInSeconds()), cfg.getMaxTtlInSeconds());
+            return new Entry(result.getUrl(), now, ttl, 0);
+        }
+
+        int failures = Objects.isNull(previous) || previous.url.isPresent() ? 1 : previous.failures + 1;
+        long ttl = cfg.getErrorTtlInSeconds() << Math.min(failures - 1, MaxBackoffSteps);
+        return new Entry(Optional.empty(), now, Math.min(ttl, cfg.getMaxErrorTtlInSeconds()), failures);
+    }
+
+    private void store(String domain, Entry entry) {
+        if (cache.size() >= cfg.getMaxSize() && !cache.containsKey(domain)) {
+            // Expired entries go first, then arbitrary ones until there is room for the new entry
+            long now = System.currentTimeMillis();
+            cache.values().removeIf(e -> e.isExpired(now));
+
+            Iterator<String> it = cache.keySet().iterator();
+            while (cache.size() >= cfg.getMaxSize() && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        cache.put(domain, entry);
+    }
+
+}
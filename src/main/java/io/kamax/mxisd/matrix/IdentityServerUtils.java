@@ -53,6 +53,33 @@ public class IdentityServerUtils {
 
     private static CloseableHttpClient client;
 
+    /**
+     * Result of the discovery of the Identity server of a domain.
+     */
+    public static class Discovery {
+
+        private final String url;
+        private final long ttl;
+
+        public Discovery(String url, long ttl) {
+            this.url = url;
+            this.ttl = ttl;
+        }
+
+        public Optional<String> getUrl() {
+            return Optional.ofNullable(url);
+        }
+
+        /**
+         * For how long the DNS records of the discovery are valid.
+         *
+         * @return The TTL in seconds, or -1 if no record was found.
+         */
+        public long getTtl() {
+            return ttl;
+        }
+    }
+
     public static void setHttpClient(CloseableHttpClient client) {
         IdentityServerUtils.client = client;
     }
@@ -67,6 +94,7 @@ public class IdentityServerUtils {
         req.setConfig(RequestConfig.custom()
                 .setConnectTimeout(2000)
                 .setConnectionRequestTimeout(2000)
+                .setSocketTimeout(2000)
                 .build()
         );
 
@@ -95,6 +123,10 @@ public class IdentityServerUtils {
     }
 
     public static Optional<String> findIsUrlForDomain(String domainOrUrl) {
+        return discover(domainOrUrl).getUrl();
+    }
+
+    public static Discovery discover(String domainOrUrl) {
         try {
             try {
                 domainOrUrl = new URL(domainOrUrl).getHost();
@@ -111,7 +143,7 @@ public class IdentityServerUtils {
             Record[] records = new Lookup(lookupDns, Type.SRV).run();
             if (records == null || records.length == 0) {
                 log.info("No SRV record for {}", lookupDns);
-                return Optional.empty();
+                return new Discovery(null, -1);
             }
 
             for (Record record : records) {
@@ -127,22 +159,23 @@ public class IdentityServerUtils {
                 }
             }
             srvRecords.sort(Comparator.comparingInt(SRVRecord::getPriority));
+            long ttl = srvRecords.stream().mapToLong(Record::getTTL).min().orElse(-1);
 
             for (SRVRecord srvRecord : srvRecords) {
                 String baseUrl = "https://" + srvRecord.getTarget().toString(true) + ":" + srvRecord.getPort();
                 if (isUsable(baseUrl)) {
                     log.info("Found Identity Server for domain {} at {}", domainOrUrl, baseUrl);
-                    return Optional.of(baseUrl);
+                    return new Discovery(baseUrl, ttl);
                 } else {
                     log.info("Found no Identity server for domain {} at {}", domainOrUrl, baseUrl);
                 }
             }
 
             log.info("Found no Identity server for domain {}", domainOrUrl);
-            return Optional.empty();
+            return new Discovery(null, ttl);
         } catch (TextParseException e) {
             log.warn(domainOrUrl + " is not a valid domain name");
-            return Optional.empty();
+            return new Discovery(null, -1);
         }
     }
 
@@ -0,0 +1,195 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.matrix;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.kamax.matrix.json.GsonUtil;
+import io.kamax.mxisd.exception.RemoteHomeServerException;
+import net.i2p.crypto.eddsa.EdDSAPublicKey;
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the signing keys of homeservers, fetched from <code>/_matrix/key/v2/server</code>.
+ * <p>
+ * Keys are kept until their <code>valid_until_ts</code>. All the keys of a server are fetched at once, and concurrent
+ * fetches for the same server are only performed once.
+ */
+public class ServerKeyCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ServerKeyCache.class);
+
+    private static class ServerKey {
+
+        private final EdDSAPublicKey key;
+        private final long validUntilTs;
+
+        private ServerKey(EdDSAPublicKey key, long validUntilTs) {
+            this.key = key;
+            this.validUntilTs = validUntilTs;
+        }
+
+        private boolean isExpired(long now) {
+            return validUntilTs <= now;
+        }
+    }
+
+    private final FederationClients clients;
+    private final long maxSize;
+    private final Map<String, ServerKey> keys = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Map<String, ServerKey>>> fetching = new ConcurrentHashMap<>();
+
+    public ServerKeyCache(FederationClients clients, long maxSize) {
+        this.clients = clients;
+        this.maxSize = maxSize;
+    }
+
+    private String getCacheKey(String server, String keyId) {
+        return server.toLowerCase() + "/" + keyId;
+    }
+
+    /**
+     * Get a signing key of a homeserver.
+     *
+     * @param server The server name, as in the signature origin.
+     * @param target The resolved homeserver, to fetch the keys from.
+     * @param keyId  The ID of the key, e.g. <code>ed25519:abc</code>.
+     * @return The public key.
+     * @throws RemoteHomeServerException If the key is unknown to the server or expired.
+     */
+    public EdDSAPublicKey get(String server, HomeserverFederationResolver.HomeserverTarget target, String keyId) {
+        ServerKey key = keys.get(getCacheKey(server, keyId));
+        if (Objects.nonNull(key) && !key.isExpired(System.currentTimeMillis())) {
+            log.debug("Using cached key {} of {}", keyId, server);
+            return key.key;
+        }
+
+        key = fetch(server, target).get(keyId);
+        if (Objects.isNull(key)) {
+            throw new RemoteHomeServerException("Missing server key.");
+        }
+
+        if (key.isExpired(System.currentTimeMillis())) {
+            final String msg = "Key is expired";
+            log.error(msg);
+            throw new RemoteHomeServerException(msg);
+        }
+
+        return key.key;
+    }
+
+    private Map<String, ServerKey> fetch(String server, HomeserverFederationResolver.HomeserverTarget target) {
+        String id = server.toLowerCase();
+        CompletableFuture<Map<String, ServerKey>> fetch = new CompletableFuture<>();
+        CompletableFuture<Map<String, ServerKey>> ongoing = fetching.putIfAbsent(id, fetch);
+        if (Objects.nonNull(ongoing)) {
+            log.debug("Waiting on ongoing fetch of keys of {}", server);
+            try {
+                return ongoing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        try {
+            Map<String, ServerKey> fetched = fetchRemote(target);
+            fetched.forEach((keyId, key) -> store(getCacheKey(server, keyId), key));
+            fetch.complete(fetched);
+            return fetched;
+        } catch (RuntimeException e) {
+            fetch.completeExceptionally(e);
+            throw e;
+        } finally {
+            fetching.remove(id, fetch);
+        }
+    }
+
+    private Map<String, ServerKey> fetchRemote(HomeserverFederationResolver.HomeserverTarget target) {
+        String originUrl = target.getUrl().toString();
+        HttpGet request = new HttpGet(originUrl + "/_matrix/key/v2/server");
+        log.info("Get keys from the server {}", request.getURI());
+        try (CloseableHttpResponse response = clients.get(target).execute(request)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            log.info("Answer code: {}", statusCode);
+            if (statusCode != 200) {
+                throw new RemoteHomeServerException("Unable to fetch server keys.");
+            }
+
+            String content = EntityUtils.toString(response.getEntity());
+            log.info("Answer body: {}", content);
+            JsonObject body = GsonUtil.parseObj(content);
+            long validUntilTs = GsonUtil.getLong(body, "valid_until_ts");
+
+            Map<String, ServerKey> result = new HashMap<>();
+            for (Map.Entry<String, JsonElement> entry : GsonUtil.getObj(body, "verify_keys").entrySet()) {
+                if (!entry.getValue().isJsonObject()) {
+                    continue;
+                }
+
+                String publicKey = GsonUtil.getStringOrNull(entry.getValue().getAsJsonObject(), "key");
+                if (StringUtils.isBlank(publicKey)) {
+                    continue;
+                }
+
+                EdDSAPublicKeySpec spec = new EdDSAPublicKeySpec(Base64.getDecoder().decode(publicKey), EdDSANamedCurveTable.ED_25519_CURVE_SPEC);
+                result.put(entry.getKey(), new ServerKey(new EdDSAPublicKey(spec), validUntilTs));
+            }
+            return result;
+        } catch (IOException e) {
+            String message = "Unable to get server keys: " + originUrl;
+            log.error(message, e);
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    private void store(String id, ServerKey key) {
+        if (keys.size() >= maxSize && !keys.containsKey(id)) {
+            // Expired keys go first, then arbitrary ones until there is room for the new key
+            long now = System.currentTimeMillis();
+            keys.values().removeIf(k -> k.isExpired(now));
+
+            Iterator<String> it = keys.keySet().iterator();
+            while (keys.size() >= maxSize && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        keys.put(id, key);
+    }
+
+}
@@ -25,9 +25,11 @@ import com.google.gson.JsonObject;
 import io.kamax.matrix._MatrixID;
 import io.kamax.matrix._ThreePid;
 import io.kamax.matrix.json.GsonUtil;
+import io.kamax.mxisd.config.MxisdConfig;
 import io.kamax.mxisd.dns.ClientDnsOverwrite;
 import io.kamax.mxisd.exception.InternalServerError;
 import io.kamax.mxisd.proxy.Response;
+import io.kamax.mxisd.util.SingleFlight;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -38,6 +40,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -45,14 +48,35 @@ public class ProfileManager {
 
     private transient final Logger log = LoggerFactory.getLogger(ProfileManager.class);
 
+    private static class Entry {
+
+        private final UserProfile profile;
+        private final long expiresAt;
+
+        private Entry(UserProfile profile, long ttlMillis) {
+            this.profile = profile;
+            this.expiresAt = System.currentTimeMillis() + ttlMillis;
+        }
+
+        private boolean isExpired() {
+            return expiresAt <= System.currentTimeMillis();
+        }
+    }
+
     private List<ProfileProvider> providers;
     private ClientDnsOverwrite dns;
     private CloseableHttpClient client;
+    private MxisdConfig.Profile.Cache cacheCfg;
+
+    // Invites, role checks and profile requests of the same user usually come in bursts, so profiles are kept shortly
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final SingleFlight<String, UserProfile> fetches = new SingleFlight<>();
 
-    public ProfileManager(List<? extends ProfileProvider> providers, ClientDnsOverwrite dns, CloseableHttpClient client) {
+    public ProfileManager(List<? extends ProfileProvider> providers, ClientDnsOverwrite dns, CloseableHttpClient client, MxisdConfig.Profile.Cache cacheCfg) {
         this.dns = dns;
         this.client = client;
         this.providers = new ArrayList<>(providers);
+        this.cacheCfg = cacheCfg;
 
         log.info("Profile Providers:");
         providers.forEach(p -> log.info("  - {}", p.getClass().getSimpleName()));
@@ -73,16 +97,88 @@ public class ProfileManager {
                 .findFirst();
     }
 
+    /**
+     * Get the profile of a user, merged across all providers.
+     * <p>
+     * Each provider is asked once for all attributes. Attributes, or providers, which fail are left out rather than failing
+     * the whole profile. The result is cached for a short time if enabled.
+     *
+     * @param user The user.
+     * @return The merged profile.
+     */
+    public UserProfile getProfile(_MatrixID user) {
+        if (!isCacheEnabled()) {
+            return fetchProfile(user);
+        }
+
+        String id = user.getId();
+        Entry entry = cache.get(id);
+        if (Objects.nonNull(entry) && !entry.isExpired()) {
+            return entry.profile;
+        }
+
+        return fetches.get(id, () -> {
+            UserProfile profile = fetchProfile(user);
+            store(id, new Entry(profile, cacheCfg.getTtlInSeconds() * 1000));
+            return profile;
+        });
+    }
+
+    private boolean isCacheEnabled() {
+        return cacheCfg.isEnabled() && cacheCfg.getTtlInSeconds() >= 1;
+    }
+
+    private UserProfile fetchProfile(_MatrixID user) {
+        UserProfile profile = new UserProfile(null, Collections.emptyList(), Collections.emptyList());
+        for (ProfileProvider provider : providers) {
+            try {
+                profile = profile.merge(provider.getProfile(user));
+            } catch (RuntimeException e) {
+                log.warn("Unable to fetch the profile of {} from {}, skipping: {}", user.getId(),
+                        provider.getClass().getSimpleName(), e.getMessage());
+                log.debug("Profile provider error", e);
+            }
+        }
+        return profile;
+    }
+
+    private void store(String id, Entry entry) {
+        if (cache.size() >= cacheCfg.getMaxSize() && !cache.containsKey(id)) {
+            // Expired entries go first, then arbitrary ones until there is room for the new entry
+            cache.values().removeIf(Entry::isExpired);
+
+            Iterator<String> it = cache.keySet().iterator();
+            while (cache.size() >= cacheCfg.getMaxSize() && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        cache.put(id, entry);
+    }
+
     public Optional<String> getDisplayName(_MatrixID user) {
-        return getOpt(p -> p.getDisplayName(user));
+        if (!isCacheEnabled()) {
+            // A full profile would fetch the other attributes for nothing, so only the one needed is asked for
+            return getOpt(p -> p.getDisplayName(user));
+        }
+
+        return getProfile(user).getDisplayName();
     }
 
     public List<_ThreePid> getThreepids(_MatrixID user) {
-        return getList(p -> p.getThreepids(user));
+        if (!isCacheEnabled()) {
+            return getList(p -> p.getThreepids(user));
+        }
+
+        return getProfile(user).getThreepids();
     }
 
     public List<String> getRoles(_MatrixID user) {
-        return getList(p -> p.getRoles(user));
+        if (!isCacheEnabled()) {
+            return getList(p -> p.getRoles(user));
+        }
+
+        return getProfile(user).getRoles();
     }
 
     public Response enhance(_MatrixID userId, HttpRequestBase request) {
@@ -23,6 +23,7 @@ package io.kamax.mxisd.profile;
 import io.kamax.matrix._MatrixID;
 import io.kamax.matrix._ThreePid;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
@@ -34,4 +35,21 @@ public interface ProfileProvider {
 
     List<String> getRoles(_MatrixID userId);
 
+    /**
+     * Get all the profile attributes of a user at once.
+     * <p>
+     * Providers able to fetch several attributes in a single call to their backend should override this. An attribute
+     * which cannot be fetched is left empty, so it does not fail the others.
+     *
+     * @param userId The user.
+     * @return The profile of the user, empty if the provider knows nothing about it.
+     */
+    default UserProfile getProfile(_MatrixID userId) {
+        return new UserProfile(
+                UserProfile.fetchAttribute("display name", userId, () -> getDisplayName(userId).orElse(null), null),
+                UserProfile.fetchAttribute("3PIDs", userId, () -> getThreepids(userId), Collections.emptyList()),
+                UserProfile.fetchAttribute("roles", userId, () -> getRoles(userId), Collections.emptyList())
+        );
+    }
+
 }
@@ -0,0 +1,100 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.profile;
+
+import io.kamax.matrix._MatrixID;
+import io.kamax.matrix._ThreePid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * All the profile attributes of a user, as given by one or more profile providers.
+ */
+public class UserProfile {
+
+    private static final Logger log = LoggerFactory.getLogger(UserProfile.class);
+
+    /**
+     * Fetch a single attribute of a profile, so that one failing attribute does not fail the whole profile.
+     *
+     * @param name     The name of the attribute, for logging.
+     * @param user     The user.
+     * @param getter   Fetches the attribute.
+     * @param fallback The value to use if the attribute cannot be fetched.
+     * @param <T>      The type of the attribute.
+     * @return The attribute, or the fallback value if fetching it failed.
+     */
+    public static <T> T fetchAttribute(String name, _MatrixID user, Supplier<T> getter, T fallback) {
+        try {
+            return getter.get();
+        } catch (RuntimeException e) {
+            log.warn("Unable to fetch the {} of {}, leaving it empty: {}", name, user.getId(), e.getMessage());
+            log.debug("Profile attribute error", e);
+            return fallback;
+        }
+    }
+
+    private final String displayName;
+    private final List<_ThreePid> threepids;
+    private final List<String> roles;
+
+    public UserProfile(String displayName, List<? extends _ThreePid> threepids, List<String> roles) {
+        this.displayName = displayName;
+        this.threepids = Collections.unmodifiableList(new ArrayList<>(threepids));
+        this.roles = Collections.unmodifiableList(new ArrayList<>(roles));
+    }
+
+    public Optional<String> getDisplayName() {
+        return Optional.ofNullable(displayName);
+    }
+
+    public List<_ThreePid> getThreepids() {
+        return threepids;
+    }
+
+    public List<String> getRoles() {
+        return roles;
+    }
+
+    /**
+     * Merge with the profile of a provider with less priority.
+     * <p>
+     * The display name of this profile is kept if it has one, 3PIDs and roles of both profiles are added up.
+     *
+     * @param other The profile of the other provider.
+     * @return The merged profile.
+     */
+    public UserProfile merge(UserProfile other) {
+        List<_ThreePid> allThreepids = new ArrayList<>(threepids);
+        allThreepids.addAll(other.threepids);
+        List<String> allRoles = new ArrayList<>(roles);
+        allRoles.addAll(other.roles);
+        return new UserProfile(Objects.nonNull(displayName) ? displayName : other.displayName, allThreepids, allRoles);
+    }
+
+}
@@ -39,33 +39,23 @@ import io.kamax.mxisd.lookup.SingleLookupReply;
 import io.kamax.mxisd.lookup.SingleLookupRequest;
 import io.kamax.mxisd.lookup.ThreePidValidation;
 import io.kamax.mxisd.matrix.HomeserverFederationResolver;
-import io.kamax.mxisd.matrix.HomeserverVerifier;
+import io.kamax.mxisd.matrix.ServerKeyCache;
 import io.kamax.mxisd.notification.NotificationManager;
 import io.kamax.mxisd.storage.IStorage;
 import io.kamax.mxisd.storage.dao.IThreePidSessionDao;
 import io.kamax.mxisd.threepid.session.ThreePidSession;
 import net.i2p.crypto.eddsa.EdDSAPublicKey;
-import net.i2p.crypto.eddsa.spec.EdDSANamedCurveSpec;
-import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
-import net.i2p.crypto.eddsa.spec.EdDSAPublicKeySpec;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
-import java.util.Calendar;
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class SessionManager {
 
@@ -76,19 +66,41 @@ public class SessionManager {
     private NotificationManager notifMgr;
     private HomeserverFederationResolver resolver;
     private SignatureManager signatureManager;
+    private ServerKeyCache serverKeys;
+
+    // Striped locks so sessions for different 3PIDs can be created concurrently
+    private final Object[] locks = new Object[64];
 
     public SessionManager(
         MxisdConfig cfg,
         IStorage storage,
         NotificationManager notifMgr,
         HomeserverFederationResolver resolver,
-        SignatureManager signatureManager
+        SignatureManager signatureManager,
+        ServerKeyCache serverKeys
     ) {
         this.cfg = cfg;
         this.storage = storage;
         this.notifMgr = notifMgr;
         this.resolver = resolver;
         this.signatureManager = signatureManager;
+        this.serverKeys = serverKeys;
+
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private Object getLock(ThreePid tpid) {
+        return locks[Math.floorMod(tpid.hashCode(), locks.length)];
+    }
+
+    /*
+     * Session IDs are the creation time followed by random characters, so they are unique without checking the storage
+     * and still sort in creation order. The spec allows up to 255 characters from [0-9a-zA-Z.=_-].
+     */
+    private String generateSessionId() {
+        return System.currentTimeMillis() + RandomStringUtils.random(12, 0, 0, true, true, null, ThreadLocalRandom.current());
     }
 
     private ThreePidSession getSession(String sid, String secret) {
@@ -114,42 +126,68 @@ public class SessionManager {
             throw new NotAllowedException("Validating 3PID is disabled");
         }
 
-        synchronized (this) {
-            log.info("Server {} is asking to create session for {} (Attempt #{}) - Next link: {}", server, tpid, attempt, nextLink);
+        log.info("Server {} is asking to create session for {} (Attempt #{}) - Next link: {}", server, tpid, attempt, nextLink);
+
+        ThreePidSession session;
+        boolean shouldNotify;
+        synchronized (getLock(tpid)) {
             Optional<IThreePidSessionDao> dao = storage.findThreePidSession(tpid, secret);
             if (dao.isPresent()) {
-                ThreePidSession session = new ThreePidSession(dao.get());
+                session = new ThreePidSession(dao.get());
                 log.info("We already have a session for {}: {}", tpid, session.getId());
-                if (session.getAttempt() < attempt) {
+                shouldNotify = session.getAttempt() < attempt;
+                if (shouldNotify) {
                     log.info("Received attempt {} is greater than stored attempt {}, sending validation communication", attempt,
                         session.getAttempt());
-                    notifMgr.sendForValidation(session);
-                    log.info("Sent validation notification to {}", tpid);
+                    // We claim the attempt before sending so concurrent requests for the same attempt do not send twice.
+                    // The claim is released if the notification cannot be sent.
                     session.increaseAttempt();
                     storage.updateThreePidSession(session.getDao());
                 }
-
-                return session.getId();
             } else {
                 log.info("No existing session for {}", tpid);
 
-                String sessionId;
-                do {
-                    sessionId = Long.toString(System.currentTimeMillis());
-                } while (storage.getThreePidSession(sessionId).isPresent());
-
+                String sessionId = generateSessionId();
                 String token = RandomStringUtils.randomNumeric(6);
-                ThreePidSession session = new ThreePidSession(sessionId, server, tpid, secret, attempt, nextLink, token);
+                session = new ThreePidSession(sessionId, server, tpid, secret, attempt, nextLink, token);
                 log.info("Generated new session {} to validate {} from server {}", sessionId, tpid, server);
 
                 storage.insertThreePidSession(session.getDao());
                 log.info("Stored session {}", sessionId);
+                shouldNotify = true;
+            }
+        }
 
-                log.info("Session {} for {}: sending validation notification", sessionId, tpid);
+        if (shouldNotify) {
+            log.info("Session {} for {}: sending validation notification", session.getId(), tpid);
+            try {
                 notifMgr.sendForValidation(session);
+            } catch (RuntimeException e) {
+                releaseAttempt(session);
+                throw e;
+            }
+            log.info("Sent validation notification to {}", tpid);
+        }
 
-                return sessionId;
+        return session.getId();
+    }
+
+    /**
+     * Give back an attempt claimed for a notification which could not be sent, so the next request for it sends it again.
+     * Nothing is done if another request claimed a newer attempt in the meantime.
+     */
+    private void releaseAttempt(ThreePidSession claimed) {
+        synchronized (getLock(claimed.getThreePid())) {
+            Optional<IThreePidSessionDao> dao = storage.getThreePidSession(claimed.getId());
+            if (!dao.isPresent() || dao.get().getAttempt() != claimed.getAttempt()) {
+                return;
             }
+
+            ThreePidSession session = new ThreePidSession(dao.get());
+            session.decreaseAttempt();
+            storage.updateThreePidSession(session.getDao());
+            log.info("Session {}: released attempt {} after failing to send the validation notification", session.getId(),
+                    claimed.getAttempt());
         }
     }
 
@@ -309,67 +347,18 @@ public class SessionManager {
 
         HomeserverFederationResolver.HomeserverTarget homeserverTarget = resolver.resolve(origin);
 
-        validateServerKey(key, sig, canonical, homeserverTarget);
+        validateServerKey(origin, key, sig, canonical, homeserverTarget);
     }
 
     private String removeQuotes(String origin) {
         return origin.startsWith("\"") && origin.endsWith("\"") ? origin.substring(1, origin.length() - 1) : origin;
     }
 
-    private void validateServerKey(String key, String signature, String canonical,
+    private void validateServerKey(String origin, String key, String signature, String canonical,
                                    HomeserverFederationResolver.HomeserverTarget homeserverTarget) {
-        String originUrl = homeserverTarget.getUrl().toString();
-        HttpGet request = new HttpGet(originUrl + "/_matrix/key/v2/server");
-        log.info("Get keys from the server {}", request.getURI());
-        try (CloseableHttpClient httpClient = HttpClients.custom()
-            .setSSLHostnameVerifier(new HomeserverVerifier(homeserverTarget.getDomain())).build()) {
-            try (CloseableHttpResponse response = httpClient.execute(request)) {
-                int statusCode = response.getStatusLine().getStatusCode();
-                log.info("Answer code: {}", statusCode);
-                if (statusCode == 200) {
-                    verifyKey(key, signature, canonical, response);
-                } else {
-                    throw new RemoteHomeServerException("Unable to fetch server keys.");
-                }
-            } catch (IOException e) {
-                String message = "Unable to get server keys: " + originUrl;
-                log.error(message, e);
-                throw new IllegalArgumentException(message);
-            }
-        } catch (IOException e) {
-            String message = "Unable to get server keys: " + originUrl;
-            log.error(message, e);
-            throw new IllegalArgumentException(message);
-        }
-    }
-
-    private void verifyKey(String key, String signature, String canonical, CloseableHttpResponse response) throws IOException {
-        final String content = IOUtils.toString(response.getEntity().getContent(), StandardCharsets.UTF_8);
-        log.info("Answer body: {}", content);
-        final JsonObject responseObject = GsonUtil.parseObj(content);
-        final long validUntilTs = GsonUtil.getLong(responseObject, "valid_until_ts");
-
-        final Calendar calendar = Calendar.getInstance();
-        calendar.setTimeInMillis(validUntilTs);
-        if (calendar.before(Calendar.getInstance())) {
-            final String msg = "Key is expired";
-            log.error(msg);
-            throw new RemoteHomeServerException(msg);
-        }
-
-        final JsonObject verifyKeys = GsonUtil.getObj(responseObject, "verify_keys");
-        final JsonObject keyObject = GsonUtil.getObj(verifyKeys, key);
-        final String publicKey = GsonUtil.getStringOrNull(keyObject, "key");
-
-        if (StringUtils.isBlank(publicKey)) {
-            throw new RemoteHomeServerException("Missing server key.");
-        }
-
-        EdDSANamedCurveSpec ed25519CurveSpec = EdDSANamedCurveTable.ED_25519_CURVE_SPEC;
-        EdDSAPublicKeySpec publicKeySpec = new EdDSAPublicKeySpec(Base64.getDecoder().decode(publicKey), ed25519CurveSpec);
-        EdDSAPublicKey dsaPublicKey = new EdDSAPublicKey(publicKeySpec);
+        EdDSAPublicKey publicKey = serverKeys.get(origin, homeserverTarget, key);
 
-        final boolean verificationResult = signatureManager.verify(dsaPublicKey, signature, canonical.getBytes(StandardCharsets.UTF_8));
+        final boolean verificationResult = signatureManager.verify(publicKey, signature, canonical.getBytes(StandardCharsets.UTF_8));
         log.info("Verification result: {}", verificationResult);
         if (!verificationResult) {
             throw new RemoteHomeServerException("Unable to verify request.");
@@ -27,6 +27,7 @@ import io.kamax.mxisd.lookup.ThreePidMapping;
 import io.kamax.mxisd.storage.dao.IThreePidSessionDao;
 import io.kamax.mxisd.storage.ormlite.dao.ASTransactionDao;
 import io.kamax.mxisd.storage.ormlite.dao.AccountDao;
+import io.kamax.mxisd.storage.ormlite.dao.KeyDao;
 import io.kamax.mxisd.storage.ormlite.dao.ThreePidInviteIO;
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -39,6 +40,15 @@ public interface IStorage {
 
     Collection<ThreePidInviteIO> getInvites();
 
+    /**
+     * Get a page of invites, ordered by ID.
+     *
+     * @param afterId The ID of the last invite of the previous page, or null for the first page.
+     * @param limit   The maximum amount of invites to return.
+     * @return The invites with an ID strictly greater than afterId, up to limit items.
+     */
+    List<ThreePidInviteIO> getInvites(String afterId, long limit);
+
     void insertInvite(IThreePidInviteReply data);
 
     void deleteInvite(String id);
@@ -69,9 +79,94 @@ public interface IStorage {
 
     boolean isTermAccepted(String token, List<PolicyConfig.PolicyObject> policies);
 
+    /**
+     * Get the URLs of the terms accepted by a user.
+     *
+     * @param userId The Matrix ID of the user.
+     * @return The URLs of the accepted terms.
+     */
+    List<String> getAcceptedTerms(String userId);
+
     void clearHashes();
 
     void addHash(String mxid, String medium, String address, String hash);
 
     Collection<Pair<String, ThreePidMapping>> findHashes(Iterable<String> hashes);
+
+    boolean hasKey(String id);
+
+    Optional<KeyDao> getKey(String id);
+
+    List<KeyDao> getKeys(String type);
+
+    void insertKey(KeyDao key);
+
+    void updateKey(KeyDao key);
+
+    void deleteKey(String id);
+
+    /**
+     * Delete the keys of the given type which are disabled or were created before the given timestamp.
+     *
+     * @param type          The type of keys to delete.
+     * @param createdBefore The creation timestamp, in milliseconds, before which keys are deleted even if still valid.
+     *                      Use 0 to only delete disabled keys.
+     * @return The deleted keys, with only their type, algorithm and serial set.
+     */
+    List<KeyDao> purgeKeys(String type, long createdBefore);
+
+    /**
+     * Delete 3PID sessions created before the given timestamp, in batches.
+     *
+     * @param createdBefore The creation timestamp, in milliseconds.
+     * @param batchSize     The maximum amount of rows deleted by a single statement.
+     * @return The number of deleted sessions.
+     */
+    int purgeThreePidSessions(long createdBefore, long batchSize);
+
+    /**
+     * Delete Application Service transaction results completed before the given timestamp, in batches.
+     *
+     * @param completedBefore The completion timestamp, in milliseconds.
+     * @param batchSize       The maximum amount of rows deleted by a single statement.
+     * @return The number of deleted transaction results.
+     */
+    int purgeTransactionResults(long completedBefore, long batchSize);
+
+    /**
+     * Delete resolved invites from the history which were resolved before the given timestamp, in batches.
+     *
+     * @param resolvedBefore The resolution timestamp, in milliseconds.
+     * @param batchSize      The maximum amount of rows deleted by a single statement.
+     * @return The number of deleted invites.
+     */
+    int purgeHistoricalInvites(long resolvedBefore, long batchSize);
+
+    /**
+     * Delete accounts which expired before the given timestamp, in batches.
+     *
+     * @param expiredBefore The expiration timestamp, in milliseconds.
+     * @param batchSize     The maximum amount of rows deleted by a single statement.
+     * @return The number of deleted accounts.
+     */
+    int purgeAccounts(long expiredBefore, long batchSize);
+
+    /**
+     * Delete accepted terms which were accepted before the given timestamp by users without any remaining account, in
+     * batches.
+     *
+     * @param acceptedBefore The acceptance timestamp, in milliseconds.
+     * @param batchSize      The maximum amount of rows deleted by a single statement.
+     * @return The number of deleted accepted terms.
+     */
+    int purgeAccepts(long acceptedBefore, long batchSize);
+
+    /**
+     * Reclaim space and/or refresh the query planner statistics of the storage.
+     *
+     * @param vacuum  If the space of deleted rows should be reclaimed.
+     * @param analyze If the statistics should be refreshed.
+     */
+    void optimize(boolean vacuum, boolean analyze);
+
 }
@@ -0,0 +1,228 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Route reads between a primary database and its read replicas.
+ * <p>
+ * Reads are balanced across the replicas in turn, except for keys written by this node within the staleness window, which
+ * are read from the primary so a client sees its own writes. A replica which fails, or misses a result when asked to
+ * fall back, is replaced by the primary for that read. A replica which failed is then left out for a while, longer each
+ * time it fails again, so an outage does not slow down every read sent to it.
+ *
+ * @param <T> The database handle, e.g. a connection source or a set of DAOs.
+ */
+public class ReplicaRouter<T> {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicaRouter.class);
+
+    // Recently written keys are pruned once there are more than this, to bound memory on write-heavy nodes
+    private static final int PruneThreshold = 10000;
+
+    // A failed replica is left out for this long, doubled on each new failure up to the maximum
+    private static final long BackoffMillis = 5000;
+    private static final long MaxBackoffMillis = 5 * 60 * 1000;
+
+    private static class Replica<T> {
+
+        private final T target;
+        private volatile int failures;
+        private volatile long retryAt;
+
+        private Replica(T target) {
+            this.target = target;
+        }
+
+        private boolean isAvailable(long now) {
+            return retryAt <= now;
+        }
+
+        private synchronized void failed() {
+            failures++;
+            long backoff = BackoffMillis << Math.min(failures - 1, 16);
+            retryAt = System.currentTimeMillis() + Math.min(backoff, MaxBackoffMillis);
+        }
+
+        private void succeeded() {
+            if (failures > 0) {
+                synchronized (this) {
+                    failures = 0;
+                    retryAt = 0;
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface Reader<T, R> {
+
+        R read(T target) throws SQLException, IOException;
+
+    }
+
+    private final T primary;
+    private final List<Replica<T>> replicas;
+    private final long stalenessMillis;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Map<String, Long> written = new ConcurrentHashMap<>();
+
+    public ReplicaRouter(T primary) {
+        this(primary, new ArrayList<>(), 0);
+    }
+
+    public ReplicaRouter(T primary, List<T> replicas, long stalenessMillis) {
+        this.primary = primary;
+        this.replicas = replicas.stream().map(Replica::new).collect(Collectors.toList());
+        this.stalenessMillis = stalenessMillis;
+    }
+
+    public T getPrimary() {
+        return primary;
+    }
+
+    public boolean hasReplicas() {
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * Record a write, so reads of the same key go to the primary until the replicas caught up.
+     *
+     * @param key The key that was written.
+     */
+    public void written(String key) {
+        if (!hasReplicas() || stalenessMillis < 1) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (written.size() > PruneThreshold) {
+            written.values().removeIf(expiresAt -> expiresAt <= now);
+        }
+        written.put(key, now + stalenessMillis);
+    }
+
+    private boolean isRecentlyWritten(String key) {
+        Long expiresAt = written.get(key);
+        if (expiresAt == null) {
+            return false;
+        }
+
+        if (expiresAt <= System.currentTimeMillis()) {
+            written.remove(key, expiresAt);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Select the target of a read.
+     *
+     * @param key The key being read.
+     * @return The primary if there are no available replicas or the key was recently written, the next available replica
+     * otherwise.
+     */
+    public T forRead(String key) {
+        return select(key).map(r -> r.target).orElse(primary);
+    }
+
+    private Optional<Replica<T>> select(String key) {
+        if (!hasReplicas() || isRecentlyWritten(key)) {
+            return Optional.empty();
+        }
+
+        long now = System.currentTimeMillis();
+        int start = next.getAndIncrement();
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica<T> replica = replicas.get(Math.floorMod(start + i, replicas.size()));
+            if (replica.isAvailable(now)) {
+                return Optional.of(replica);
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    // Errors of the database itself, as opposed to errors of the caller such as invalid credentials
+    private static boolean isDatabaseFailure(Throwable t) {
+        for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException || cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public <R> R read(String key, Reader<T, R> reader) throws SQLException, IOException {
+        return read(key, reader, r -> false);
+    }
+
+    /**
+     * Read from the selected target, falling back to the primary if a replica fails or returns a miss.
+     *
+     * @param key    The key being read.
+     * @param reader The read to perform.
+     * @param isMiss If the result of a replica should be confirmed by the primary, e.g. when empty.
+     * @param <R>    The type of the result.
+     * @return The result of the read.
+     */
+    public <R> R read(String key, Reader<T, R> reader, Predicate<R> isMiss) throws SQLException, IOException {
+        Optional<Replica<T>> replica = select(key);
+        if (!replica.isPresent()) {
+            return reader.read(primary);
+        }
+
+        R result;
+        try {
+            result = reader.read(replica.get().target);
+            replica.get().succeeded();
+        } catch (SQLException | IOException | RuntimeException e) {
+            if (!isDatabaseFailure(e)) {
+                throw e;
+            }
+
+            replica.get().failed();
+            log.warn("Read from replica failed, using the primary: {}", e.getMessage());
+            return reader.read(primary);
+        }
+
+        if (isMiss.test(result)) {
+            return reader.read(primary);
+        }
+
+        return result;
+    }
+
+}
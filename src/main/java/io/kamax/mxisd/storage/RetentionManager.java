@@ -0,0 +1,137 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.storage;
+
+import io.kamax.mxisd.config.StorageConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Periodically delete the rows of the internal storage which are older than their configured retention.
+ * <p>
+ * The amount of purged rows per table is kept since startup and can be read with {@link #getPurged()}.
+ */
+public class RetentionManager {
+
+    private static final Logger log = LoggerFactory.getLogger(RetentionManager.class);
+
+    public static final String Sessions = "session_3pid";
+    public static final String Transactions = "as_txn";
+    public static final String InviteHistory = "invite_3pid_history";
+    public static final String Accounts = "account";
+    public static final String Accepted = "accepted";
+
+    private final StorageConfig.Retention cfg;
+    private final IStorage storage;
+    private final Map<String, AtomicLong> purged = new LinkedHashMap<>();
+    private Timer timer;
+
+    public RetentionManager(StorageConfig.Retention cfg, IStorage storage) {
+        this.cfg = cfg;
+        this.storage = storage;
+
+        purged.put(Sessions, new AtomicLong());
+        purged.put(Transactions, new AtomicLong());
+        purged.put(InviteHistory, new AtomicLong());
+        purged.put(Accounts, new AtomicLong());
+        purged.put(Accepted, new AtomicLong());
+    }
+
+    public void start() {
+        if (!cfg.isEnabled()) {
+            log.info("Storage retention is disabled");
+            return;
+        }
+
+        long delay = TimeUnit.SECONDS.toMillis(cfg.getDelayInSeconds());
+        timer = new Timer("ma1sd-storage-retention", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    purge();
+                } catch (Throwable t) {
+                    log.error("Unable to purge the storage", t);
+                }
+            }
+        }, delay, delay);
+    }
+
+    public void stop() {
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    private long purge(String table, long retentionInSeconds, LongBinaryOperator purger) {
+        if (retentionInSeconds < 1) {
+            return 0;
+        }
+
+        long before = Instant.now().minusSeconds(retentionInSeconds).toEpochMilli();
+        long count = purger.applyAsLong(before, cfg.getBatchSize());
+        purged.get(table).addAndGet(count);
+        log.info("Purged {} rows from {}", count, table);
+        return count;
+    }
+
+    /**
+     * Purge all tables once, then optimize the storage if anything was deleted.
+     *
+     * @return The total number of purged rows.
+     */
+    public long purge() {
+        long total = 0;
+        total += purge(Sessions, cfg.getSessionsInSeconds(), storage::purgeThreePidSessions);
+        total += purge(Transactions, cfg.getTransactionsInSeconds(), storage::purgeTransactionResults);
+        total += purge(InviteHistory, cfg.getInviteHistoryInSeconds(), storage::purgeHistoricalInvites);
+        total += purge(Accounts, cfg.getAccountsInSeconds(), storage::purgeAccounts);
+        total += purge(Accepted, cfg.getAcceptedInSeconds(), storage::purgeAccepts);
+
+        if (total > 0 && (cfg.isVacuum() || cfg.isAnalyze())) {
+            storage.optimize(cfg.isVacuum(), cfg.isAnalyze());
+        }
+
+        return total;
+    }
+
+    /**
+     * The number of purged rows per table since startup.
+     *
+     * @return A snapshot of the counters, by table name.
+     */
+    public Map<String, Long> getPurged() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        purged.forEach((table, count) -> snapshot.put(table, count.get()));
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+}
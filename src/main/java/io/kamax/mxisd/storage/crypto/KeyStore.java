@@ -27,6 +27,7 @@ import io.kamax.mxisd.exception.ObjectNotFoundException;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 /**
  * Store to persist signing keys and the identifier for the current long-term signing key
@@ -56,6 +57,16 @@ public interface KeyStore {
      */
     List<KeyIdentifier> list(KeyType type);
 
+    /**
+     * Get all keys of a given type within the store
+     *
+     * @param type The type to filter on
+     * @return The list of keys matching the given type
+     */
+    default List<Key> getAll(KeyType type) {
+        return list(type).stream().map(this::get).collect(Collectors.toList());
+    }
+
     /**
      * Get the key that relates to the given identifier
      *
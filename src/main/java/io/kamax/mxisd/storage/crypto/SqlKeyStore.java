@@ -0,0 +1,245 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.storage.crypto;
+
+import io.kamax.mxisd.crypto.GenericKey;
+import io.kamax.mxisd.crypto.GenericKeyIdentifier;
+import io.kamax.mxisd.crypto.Key;
+import io.kamax.mxisd.crypto.KeyIdentifier;
+import io.kamax.mxisd.crypto.KeyType;
+import io.kamax.mxisd.exception.ObjectNotFoundException;
+import io.kamax.mxisd.storage.IStorage;
+import io.kamax.mxisd.storage.ormlite.dao.KeyDao;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Key store keeping ephemeral keys in the internal database, one row per key.
+ * <p>
+ * Regular keys and the current key information are delegated to another store, typically the file-based one, so the
+ * long-term signing keys stay with the configured key path.
+ */
+public class SqlKeyStore implements KeyStore {
+
+    private static final Logger log = LoggerFactory.getLogger(SqlKeyStore.class);
+
+    private final IStorage storage;
+    private final KeyStore delegate;
+    private final List<Consumer<List<KeyIdentifier>>> purgeListeners = new CopyOnWriteArrayList<>();
+
+    public SqlKeyStore(IStorage storage, KeyStore delegate) {
+        this.storage = storage;
+        this.delegate = delegate;
+
+        migrate();
+    }
+
+    private void migrate() {
+        List<KeyIdentifier> ids = delegate.list(KeyType.Ephemeral);
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        log.info("Migrating {} ephemeral keys to the database", ids.size());
+        for (KeyIdentifier id : ids) {
+            if (!storage.hasKey(id.getId())) {
+                storage.insertKey(toDao(delegate.get(id), Instant.now().toEpochMilli()));
+            }
+            delegate.delete(id);
+        }
+        log.info("Ephemeral keys migrated to the database");
+    }
+
+    private boolean isDelegated(KeyType type) {
+        return !KeyType.Ephemeral.equals(type);
+    }
+
+    private KeyDao toDao(Key key, long createdAt) {
+        KeyIdentifier id = key.getId();
+        return new KeyDao(id.getId(), id.getType().name(), id.getAlgorithm(), id.getSerial(), key.getPrivateKeyBase64(), key.isValid(), createdAt);
+    }
+
+    private KeyIdentifier toId(KeyDao dao) {
+        return new GenericKeyIdentifier(KeyType.valueOf(dao.getType()), dao.getAlgorithm(), dao.getSerial());
+    }
+
+    private Key toKey(KeyDao dao) {
+        return new GenericKey(toId(dao), dao.isValid(), dao.getPrivateKey());
+    }
+
+    @Override
+    public boolean has(KeyIdentifier id) {
+        if (isDelegated(id.getType())) {
+            return delegate.has(id);
+        }
+
+        return storage.hasKey(id.getId());
+    }
+
+    @Override
+    public List<KeyIdentifier> list() {
+        List<KeyIdentifier> keyIds = new ArrayList<>();
+
+        for (KeyType type : KeyType.values()) {
+            keyIds.addAll(list(type));
+        }
+
+        return keyIds;
+    }
+
+    @Override
+    public List<KeyIdentifier> list(KeyType type) {
+        if (isDelegated(type)) {
+            return delegate.list(type);
+        }
+
+        return storage.getKeys(type.name()).stream().map(this::toId).collect(Collectors.toList());
+    }
+
+    @Override
+    public List<Key> getAll(KeyType type) {
+        if (isDelegated(type)) {
+            return delegate.getAll(type);
+        }
+
+        return storage.getKeys(type.name()).stream().map(this::toKey).collect(Collectors.toList());
+    }
+
+    @Override
+    public Key get(KeyIdentifier id) throws ObjectNotFoundException {
+        if (isDelegated(id.getType())) {
+            return delegate.get(id);
+        }
+
+        return storage.getKey(id.getId()).map(this::toKey).orElseThrow(() -> new ObjectNotFoundException("Key", id.getId()));
+    }
+
+    @Override
+    public void add(Key key) throws IllegalStateException {
+        if (isDelegated(key.getId().getType())) {
+            delegate.add(key);
+            return;
+        }
+
+        if (has(key.getId())) {
+            throw new IllegalStateException("Key " + key.getId().getId() + " already exists");
+        }
+
+        storage.insertKey(toDao(key, Instant.now().toEpochMilli()));
+    }
+
+    @Override
+    public void update(Key key) throws ObjectNotFoundException {
+        if (isDelegated(key.getId().getType())) {
+            delegate.update(key);
+            return;
+        }
+
+        KeyDao dao = storage.getKey(key.getId().getId()).orElseThrow(() -> new ObjectNotFoundException("Key", key.getId().getId()));
+        storage.updateKey(toDao(key, dao.getCreatedAt()));
+    }
+
+    @Override
+    public void delete(KeyIdentifier id) throws ObjectNotFoundException {
+        if (isDelegated(id.getType())) {
+            delegate.delete(id);
+            return;
+        }
+
+        if (!has(id)) {
+            throw new ObjectNotFoundException("Key", id.getId());
+        }
+
+        storage.deleteKey(id.getId());
+    }
+
+    /**
+     * Delete ephemeral keys which are disabled or older than the given timestamp.
+     *
+     * @param createdBefore The creation timestamp before which keys are deleted even if still valid, or null to only delete
+     *                      disabled keys.
+     * @return The number of deleted keys.
+     */
+    public int purge(Instant createdBefore) {
+        long before = createdBefore == null ? 0 : createdBefore.toEpochMilli();
+        List<KeyIdentifier> purged = storage.purgeKeys(KeyType.Ephemeral.name(), before).stream()
+                .map(this::toId)
+                .collect(Collectors.toList());
+
+        if (!purged.isEmpty()) {
+            purgeListeners.forEach(listener -> listener.accept(purged));
+        }
+        return purged.size();
+    }
+
+    /**
+     * Be told of the keys deleted by purges, so copies kept in memory can be dropped.
+     *
+     * @param listener Called with the IDs of the keys deleted by each purge.
+     */
+    public void addPurgeListener(Consumer<List<KeyIdentifier>> listener) {
+        purgeListeners.add(listener);
+    }
+
+    /**
+     * Periodically delete ephemeral keys which are disabled or too old.
+     *
+     * @param delaySeconds  The delay between two purges, in seconds.
+     * @param maxAgeSeconds The age after which keys are deleted even if still valid, in seconds, or 0 to keep them.
+     */
+    public void schedulePurge(long delaySeconds, long maxAgeSeconds) {
+        Timer timer = new Timer("ma1sd-key-purge", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    Instant createdBefore = maxAgeSeconds > 0 ? Instant.now().minusSeconds(maxAgeSeconds) : null;
+                    int purged = purge(createdBefore);
+                    log.info("Purged {} ephemeral keys", purged);
+                } catch (Throwable t) {
+                    log.error("Unable to purge ephemeral keys", t);
+                }
+            }
+        }, TimeUnit.SECONDS.toMillis(delaySeconds), TimeUnit.SECONDS.toMillis(delaySeconds));
+    }
+
+    @Override
+    public void setCurrentKey(KeyIdentifier id) throws IllegalArgumentException {
+        delegate.setCurrentKey(id);
+    }
+
+    @Override
+    public Optional<KeyIdentifier> getCurrentKey() {
+        return delegate.getCurrentKey();
+    }
+
+}
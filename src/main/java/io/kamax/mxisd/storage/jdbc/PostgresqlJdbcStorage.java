@@ -0,0 +1,480 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.storage.jdbc;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import io.kamax.matrix.ThreePid;
+import io.kamax.mxisd.config.PolicyConfig;
+import io.kamax.mxisd.config.PostgresqlStorageConfig;
+import io.kamax.mxisd.config.StorageConfig;
+import io.kamax.mxisd.exception.ConfigurationException;
+import io.kamax.mxisd.exception.InvalidCredentialsException;
+import io.kamax.mxisd.invitation.IThreePidInviteReply;
+import io.kamax.mxisd.lookup.ThreePidMapping;
+import io.kamax.mxisd.storage.IStorage;
+import io.kamax.mxisd.storage.ReplicaRouter;
+import io.kamax.mxisd.storage.dao.IThreePidSessionDao;
+import io.kamax.mxisd.storage.ormlite.OrmLiteSqlStorage;
+import io.kamax.mxisd.storage.ormlite.dao.ASTransactionDao;
+import io.kamax.mxisd.storage.ormlite.dao.AccountDao;
+import io.kamax.mxisd.storage.ormlite.dao.KeyDao;
+import io.kamax.mxisd.storage.ormlite.dao.ThreePidInviteIO;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * PostgreSQL storage using plain JDBC prepared statements for the hot paths: hashes, accounts and accepted terms.
+ * <p>
+ * The schema and its migrations, and all other operations, are handled by {@link OrmLiteSqlStorage} on the same database.
+ */
+public class PostgresqlJdbcStorage implements IStorage {
+
+    private static final Logger log = LoggerFactory.getLogger(PostgresqlJdbcStorage.class);
+
+    @FunctionalInterface
+    private interface SqlFunction<T> {
+
+        T run(Connection conn) throws SQLException;
+
+    }
+
+    private static final String FindHashes = "SELECT hash, medium, address, mxid FROM hashes WHERE hash = ANY(?::text[])";
+    private static final String AddHash = "INSERT INTO hashes (mxid, medium, address, hash) VALUES (?, ?, ?, ?)";
+    private static final String ClearHashes = "DELETE FROM hashes";
+    private static final String FindAccount = "SELECT \"accessToken\", \"tokenType\", \"matrixServerName\", \"expiresIn\", \"createdAt\", " +
+            "\"userId\" FROM account WHERE token = ?";
+    private static final String InsertAccount = "INSERT INTO account (token, \"accessToken\", \"tokenType\", \"matrixServerName\", " +
+            "\"expiresIn\", \"createdAt\", \"userId\") VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String DeleteAccount = "DELETE FROM account WHERE token = ?";
+    private static final String FindAccountTerms = "SELECT a.url FROM account t LEFT JOIN accepted a ON a.\"userId\" = t.\"userId\" " +
+            "WHERE t.token = ?";
+    private static final String FindUserTerms = "SELECT url FROM accepted WHERE \"userId\" = ?";
+
+    private static final String HashesKey = "hashes";
+
+    private static final int ReplicaTimeoutMillis = 2000;
+
+    private static String accountKey(String token) {
+        return "account:" + token;
+    }
+
+    private static String acceptedKey(String userId) {
+        return "accepted:" + userId;
+    }
+
+    private final OrmLiteSqlStorage delegate;
+    private final ReplicaRouter<ComboPooledDataSource> reads;
+    private final boolean missFallback;
+
+    public PostgresqlJdbcStorage(StorageConfig.Provider provider) {
+        PostgresqlStorageConfig cfg = provider.getPostgresql();
+        if (StringUtils.isBlank(cfg.getDatabase())) {
+            throw new ConfigurationException("Storage destination cannot be empty");
+        }
+
+        // Creates or migrates the schema, including the indexes used below
+        delegate = new OrmLiteSqlStorage(StorageConfig.BackendEnum.postgresql, provider);
+
+        List<ComboPooledDataSource> replicas = new ArrayList<>();
+        for (String replica : cfg.getReplicas()) {
+            if (StringUtils.isBlank(replica)) {
+                throw new ConfigurationException("storage.provider.postgresql.replicas");
+            }
+
+            replicas.add(createDataSource(cfg, replica, true));
+        }
+        reads = new ReplicaRouter<>(createDataSource(cfg, cfg.getDatabase(), false), replicas, cfg.getReplicaStalenessMillis());
+        missFallback = cfg.isReplicaMissFallback();
+        log.info("Using JDBC for hashes, accounts and accepted terms, with up to {} connections", cfg.getMaxPoolSize());
+    }
+
+    private static ComboPooledDataSource createDataSource(PostgresqlStorageConfig cfg, String database, boolean replica) {
+        ComboPooledDataSource ds = new ComboPooledDataSource();
+        ds.setJdbcUrl("jdbc:postgresql:" + database);
+        ds.setUser(cfg.getUsername());
+        ds.setPassword(cfg.getPassword());
+        ds.setMinPoolSize(1);
+        ds.setMaxPoolSize(cfg.getMaxPoolSize());
+        ds.setAcquireIncrement(2);
+        if (replica) {
+            // Reads fall back to the primary if a replica is down, so they should not wait long for it
+            ds.setAcquireRetryAttempts(1);
+            ds.setCheckoutTimeout(ReplicaTimeoutMillis);
+        } else {
+            ds.setAcquireRetryAttempts(10);
+            ds.setAcquireRetryDelay(1000);
+        }
+        ds.setMaxStatementsPerConnection(16);
+        return ds;
+    }
+
+    private static <T> T run(ComboPooledDataSource ds, SqlFunction<T> function) throws SQLException {
+        try (Connection conn = ds.getConnection()) {
+            return function.run(conn);
+        }
+    }
+
+    private <T> T withConnection(SqlFunction<T> function) {
+        try {
+            return run(reads.getPrimary(), function);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private <T> T withReadConnection(String key, SqlFunction<T> function) {
+        return withReadConnection(key, function, result -> false);
+    }
+
+    private <T> T withReadConnection(String key, SqlFunction<T> function, Predicate<T> isMiss) {
+        try {
+            return reads.read(key, ds -> run(ds, function), isMiss);
+        } catch (SQLException | IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean isMiss(Optional<?> result) {
+        return missFallback && !result.isPresent();
+    }
+
+    private static Optional<AccountDao> findAccount(Connection conn, String token) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(FindAccount)) {
+            stmt.setString(1, token);
+            try (ResultSet rSet = stmt.executeQuery()) {
+                if (!rSet.next()) {
+                    return Optional.empty();
+                }
+
+                return Optional.of(new AccountDao(
+                        rSet.getString(1),
+                        rSet.getString(2),
+                        rSet.getString(3),
+                        rSet.getLong(4),
+                        rSet.getLong(5),
+                        rSet.getString(6),
+                        token
+                ));
+            }
+        }
+    }
+
+    // Accepted terms are written by the ORMLite storage, but read here
+    private void acceptsWritten(String token) {
+        reads.written(accountKey(token));
+        if (reads.hasReplicas()) {
+            withConnection(conn -> findAccount(conn, token)).ifPresent(account -> reads.written(acceptedKey(account.getUserId())));
+        }
+    }
+
+    @Override
+    public Collection<ThreePidInviteIO> getInvites() {
+        return delegate.getInvites();
+    }
+
+    @Override
+    public List<ThreePidInviteIO> getInvites(String afterId, long limit) {
+        return delegate.getInvites(afterId, limit);
+    }
+
+    @Override
+    public void insertInvite(IThreePidInviteReply data) {
+        delegate.insertInvite(data);
+    }
+
+    @Override
+    public void deleteInvite(String id) {
+        delegate.deleteInvite(id);
+    }
+
+    @Override
+    public void insertHistoricalInvite(IThreePidInviteReply data, String resolvedTo, Instant resolvedAt, boolean couldPublish) {
+        delegate.insertHistoricalInvite(data, resolvedTo, resolvedAt, couldPublish);
+    }
+
+    @Override
+    public Optional<IThreePidSessionDao> getThreePidSession(String sid) {
+        return delegate.getThreePidSession(sid);
+    }
+
+    @Override
+    public Optional<IThreePidSessionDao> findThreePidSession(ThreePid tpid, String secret) {
+        return delegate.findThreePidSession(tpid, secret);
+    }
+
+    @Override
+    public void insertThreePidSession(IThreePidSessionDao session) {
+        delegate.insertThreePidSession(session);
+    }
+
+    @Override
+    public void updateThreePidSession(IThreePidSessionDao session) {
+        delegate.updateThreePidSession(session);
+    }
+
+    @Override
+    public void insertTransactionResult(String localpart, String txnId, Instant completion, String response) {
+        delegate.insertTransactionResult(localpart, txnId, completion, response);
+    }
+
+    @Override
+    public Optional<ASTransactionDao> getTransactionResult(String localpart, String txnId) {
+        return delegate.getTransactionResult(localpart, txnId);
+    }
+
+    @Override
+    public void insertToken(AccountDao account) {
+        withConnection(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(InsertAccount)) {
+                stmt.setString(1, account.getToken());
+                stmt.setString(2, account.getAccessToken());
+                stmt.setString(3, account.getTokenType());
+                stmt.setString(4, account.getMatrixServerName());
+                stmt.setLong(5, account.getExpiresIn());
+                stmt.setLong(6, account.getCreatedAt());
+                stmt.setString(7, account.getUserId());
+                int created = stmt.executeUpdate();
+                if (created != 1) {
+                    throw new RuntimeException("Unexpected row count after DB action: " + created);
+                }
+                return created;
+            }
+        });
+        reads.written(accountKey(account.getToken()));
+    }
+
+    @Override
+    public Optional<AccountDao> findAccount(String token) {
+        return withReadConnection(accountKey(token), conn -> findAccount(conn, token), this::isMiss);
+    }
+
+    @Override
+    public void deleteToken(String token) {
+        withConnection(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(DeleteAccount)) {
+                stmt.setString(1, token);
+                int deleted = stmt.executeUpdate();
+                if (deleted != 1) {
+                    throw new RuntimeException("Unexpected row count after DB action: " + deleted);
+                }
+                return deleted;
+            }
+        });
+        reads.written(accountKey(token));
+    }
+
+    @Override
+    public void acceptTerm(String token, String url) {
+        delegate.acceptTerm(token, url);
+        acceptsWritten(token);
+    }
+
+    @Override
+    public void deleteAccepts(String token) {
+        delegate.deleteAccepts(token);
+        acceptsWritten(token);
+    }
+
+    @Override
+    public boolean isTermAccepted(String token, List<PolicyConfig.PolicyObject> policies) {
+        // An unknown token on a replica is a miss, confirmed by the primary before being rejected
+        Set<String> accepted = withReadConnection(accountKey(token), conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(FindAccountTerms)) {
+                stmt.setString(1, token);
+                try (ResultSet rSet = stmt.executeQuery()) {
+                    if (!rSet.next()) {
+                        return Optional.<Set<String>>empty();
+                    }
+
+                    Set<String> urls = new HashSet<>();
+                    do {
+                        String url = rSet.getString(1);
+                        if (url != null) {
+                            urls.add(url.toLowerCase(Locale.ROOT));
+                        }
+                    } while (rSet.next());
+                    return Optional.of(urls);
+                }
+            }
+        }, this::isMiss).orElseThrow(InvalidCredentialsException::new);
+
+        for (PolicyConfig.PolicyObject policy : policies) {
+            for (PolicyConfig.TermObject term : policy.getTerms().values()) {
+                if (accepted.contains(term.getUrl().toLowerCase(Locale.ROOT))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public List<String> getAcceptedTerms(String userId) {
+        return withReadConnection(acceptedKey(userId), conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(FindUserTerms)) {
+                stmt.setString(1, userId);
+                try (ResultSet rSet = stmt.executeQuery()) {
+                    List<String> urls = new ArrayList<>();
+                    while (rSet.next()) {
+                        urls.add(rSet.getString(1));
+                    }
+                    return urls;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void clearHashes() {
+        withConnection(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(ClearHashes)) {
+                return stmt.executeUpdate();
+            }
+        });
+        reads.written(HashesKey);
+    }
+
+    @Override
+    public void addHash(String mxid, String medium, String address, String hash) {
+        withConnection(conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(AddHash)) {
+                stmt.setString(1, mxid);
+                stmt.setString(2, medium);
+                stmt.setString(3, address);
+                stmt.setString(4, hash);
+                return stmt.executeUpdate();
+            }
+        });
+        reads.written(HashesKey);
+    }
+
+    @Override
+    public Collection<Pair<String, ThreePidMapping>> findHashes(Iterable<String> hashes) {
+        List<String> values = new ArrayList<>();
+        hashes.forEach(values::add);
+        if (values.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        return withReadConnection(HashesKey, conn -> {
+            try (PreparedStatement stmt = conn.prepareStatement(FindHashes)) {
+                // A single array parameter keeps the same statement, whatever the amount of hashes
+                Array array = conn.createArrayOf("text", values.toArray());
+                try {
+                    stmt.setArray(1, array);
+                    try (ResultSet rSet = stmt.executeQuery()) {
+                        List<Pair<String, ThreePidMapping>> result = new ArrayList<>();
+                        while (rSet.next()) {
+                            result.add(Pair.of(rSet.getString(1), new ThreePidMapping(rSet.getString(2), rSet.getString(3), rSet.getString(4))));
+                        }
+                        return result;
+                    }
+                } finally {
+                    array.free();
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean hasKey(String id) {
+        return delegate.hasKey(id);
+    }
+
+    @Override
+    public Optional<KeyDao> getKey(String id) {
+        return delegate.getKey(id);
+    }
+
+    @Override
+    public List<KeyDao> getKeys(String type) {
+        return delegate.getKeys(type);
+    }
+
+    @Override
+    public void insertKey(KeyDao key) {
+        delegate.insertKey(key);
+    }
+
+    @Override
+    public void updateKey(KeyDao key) {
+        delegate.updateKey(key);
+    }
+
+    @Override
+    public void deleteKey(String id) {
+        delegate.deleteKey(id);
+    }
+
+    @Override
+    public List<KeyDao> purgeKeys(String type, long createdBefore) {
+        return delegate.purgeKeys(type, createdBefore);
+    }
+
+    @Override
+    public int purgeThreePidSessions(long createdBefore, long batchSize) {
+        return delegate.purgeThreePidSessions(createdBefore, batchSize);
+    }
+
+    @Override
+    public int purgeTransactionResults(long completedBefore, long batchSize) {
+        return delegate.purgeTransactionResults(completedBefore, batchSize);
+    }
+
+    @Override
+    public int purgeHistoricalInvites(long resolvedBefore, long batchSize) {
+        return delegate.purgeHistoricalInvites(resolvedBefore, batchSize);
+    }
+
+    @Override
+    public int purgeAccounts(long expiredBefore, long batchSize) {
+        return delegate.purgeAccounts(expiredBefore, batchSize);
+    }
+
+    @Override
+    public int purgeAccepts(long acceptedBefore, long batchSize) {
+        return delegate.purgeAccepts(acceptedBefore, batchSize);
+    }
+
+    @Override
+    public void optimize(boolean vacuum, boolean analyze) {
+        delegate.optimize(vacuum, analyze);
+    }
+
+}
@@ -27,7 +27,11 @@ import com.j256.ormlite.jdbc.JdbcConnectionSource;
 import com.j256.ormlite.jdbc.JdbcPooledConnectionSource;
 import com.j256.ormlite.jdbc.db.PostgresDatabaseType;
 import com.j256.ormlite.jdbc.db.SqliteDatabaseType;
+import com.j256.ormlite.stmt.DeleteBuilder;
 import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.SelectArg;
+import com.j256.ormlite.stmt.Where;
+import com.j256.ormlite.misc.TransactionManager;
 import com.j256.ormlite.support.ConnectionSource;
 import com.j256.ormlite.table.TableUtils;
 import io.kamax.matrix.ThreePid;
@@ -41,12 +45,14 @@ import io.kamax.mxisd.exception.InvalidCredentialsException;
 import io.kamax.mxisd.invitation.IThreePidInviteReply;
 import io.kamax.mxisd.lookup.ThreePidMapping;
 import io.kamax.mxisd.storage.IStorage;
+import io.kamax.mxisd.storage.ReplicaRouter;
 import io.kamax.mxisd.storage.dao.IThreePidSessionDao;
 import io.kamax.mxisd.storage.ormlite.dao.ASTransactionDao;
 import io.kamax.mxisd.storage.ormlite.dao.AccountDao;
 import io.kamax.mxisd.storage.ormlite.dao.ChangelogDao;
 import io.kamax.mxisd.storage.ormlite.dao.HashDao;
 import io.kamax.mxisd.storage.ormlite.dao.HistoricalThreePidInviteIO;
+import io.kamax.mxisd.storage.ormlite.dao.KeyDao;
 import io.kamax.mxisd.storage.ormlite.dao.AcceptedDao;
 import io.kamax.mxisd.storage.ormlite.dao.ThreePidInviteIO;
 import io.kamax.mxisd.storage.ormlite.dao.ThreePidSessionDao;
@@ -64,6 +70,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class OrmLiteSqlStorage implements IStorage {
@@ -84,11 +91,21 @@ public class OrmLiteSqlStorage implements IStorage {
 
     }
 
+    @FunctionalInterface
+    private interface Condition<T, ID> {
+
+        Where<T, ID> apply(Where<T, ID> where) throws SQLException;
+
+    }
+
     public static class Migrations {
         public static final String FIX_ACCEPTED_DAO = "2019_12_09__2254__fix_accepted_dao";
         public static final String FIX_HASH_DAO_UNIQUE_INDEX = "2020_03_22__1153__fix_hash_dao_unique_index";
         public static final String CHANGE_TYPE_TO_TEXT_INVITE = "2020_04_21__2338__change_type_table_invites";
         public static final String CHANGE_TYPE_TO_TEXT_INVITE_HISTORY = "2020_10_26__2200__change_type_table_invite_history";
+        public static final String ADD_SESSION_THREEPID_INDEX = "2026_10_19__1200__add_session_threepid_index";
+        public static final String ADD_RETENTION_INDEXES = "2026_10_19__1300__add_retention_indexes";
+        public static final String ADD_LOOKUP_INDEXES = "2026_10_19__1400__add_lookup_indexes";
     }
 
     private Dao<ThreePidInviteIO, String> invDao;
@@ -99,7 +116,72 @@ public class OrmLiteSqlStorage implements IStorage {
     private Dao<AcceptedDao, Long> acceptedDao;
     private Dao<HashDao, String> hashDao;
     private Dao<ChangelogDao, String> changelogDao;
+    private Dao<KeyDao, String> keyDao;
     private StorageConfig.BackendEnum backend;
+    private ReplicaRouter<ReadDaos> reads;
+    private boolean missFallback;
+
+    // The DAOs of the reads which can be served by a replica
+    private static class ReadDaos {
+
+        private final Dao<ThreePidInviteIO, String> invDao;
+        private final Dao<ThreePidSessionDao, String> sessionDao;
+        private final Dao<ASTransactionDao, String> asTxnDao;
+        private final Dao<AccountDao, String> accountDao;
+        private final Dao<AcceptedDao, Long> acceptedDao;
+        private final Dao<HashDao, String> hashDao;
+
+        private ReadDaos(
+            Dao<ThreePidInviteIO, String> invDao,
+            Dao<ThreePidSessionDao, String> sessionDao,
+            Dao<ASTransactionDao, String> asTxnDao,
+            Dao<AccountDao, String> accountDao,
+            Dao<AcceptedDao, Long> acceptedDao,
+            Dao<HashDao, String> hashDao
+        ) {
+            this.invDao = invDao;
+            this.sessionDao = sessionDao;
+            this.asTxnDao = asTxnDao;
+            this.accountDao = accountDao;
+            this.acceptedDao = acceptedDao;
+            this.hashDao = hashDao;
+        }
+
+        // The tables are created and migrated through the primary only
+        private static ReadDaos create(ConnectionSource connPool) throws SQLException {
+            return new ReadDaos(
+                DaoManager.createDao(connPool, ThreePidInviteIO.class),
+                DaoManager.createDao(connPool, ThreePidSessionDao.class),
+                DaoManager.createDao(connPool, ASTransactionDao.class),
+                DaoManager.createDao(connPool, AccountDao.class),
+                DaoManager.createDao(connPool, AcceptedDao.class),
+                DaoManager.createDao(connPool, HashDao.class)
+            );
+        }
+
+    }
+
+    private static final String InvitesKey = "invites";
+    private static final String HashesKey = "hashes";
+    private static final int KeyPurgeBatchSize = 500;
+
+    private static final int ReplicaConnectTimeoutSeconds = 2;
+
+    private static String sessionKey(String sid) {
+        return "session:" + sid;
+    }
+
+    private static String transactionKey(String localpart, String txnId) {
+        return "txn:" + localpart + ":" + txnId;
+    }
+
+    private static String accountKey(String token) {
+        return "account:" + token;
+    }
+
+    private static String acceptedKey(String userId) {
+        return "accepted:" + userId;
+    }
 
     public OrmLiteSqlStorage(StorageConfig.BackendEnum backend, StorageConfig.Provider provider) {
         if (backend == null) {
@@ -128,7 +210,15 @@ public class OrmLiteSqlStorage implements IStorage {
             accountDao = createDaoAndTable(connPool, AccountDao.class);
             acceptedDao = createDaoAndTable(connPool, AcceptedDao.class, true);
             hashDao = createDaoAndTable(connPool, HashDao.class, true);
+            keyDao = createDaoAndTable(connPool, KeyDao.class, true);
             runMigration(connPool);
+
+            ReadDaos primaryReads = new ReadDaos(invDao, sessionDao, asTxnDao, accountDao, acceptedDao, hashDao);
+            if (StorageConfig.BackendEnum.postgresql == backend) {
+                reads = createPostgresqlReadRouter(provider.getPostgresql(), primaryReads);
+            } else {
+                reads = new ReplicaRouter<>(primaryReads);
+            }
         });
     }
 
@@ -137,7 +227,34 @@ public class OrmLiteSqlStorage implements IStorage {
             throw new ConfigurationException("Storage destination cannot be empty");
         }
 
-        return new JdbcConnectionSource("jdbc:" + backend + ":" + config.getDatabase(), null, null, new SqliteDatabaseType());
+        String url = "jdbc:" + backend + ":" + config.getDatabase();
+
+        // An in-memory database only exists within its connection, so it cannot be shared nor tuned
+        if (StringUtils.startsWith(config.getDatabase(), ":memory:")) {
+            return new JdbcConnectionSource(url, null, null, new SqliteDatabaseType());
+        }
+
+        List<String> pragmas = new ArrayList<>();
+        if (StringUtils.isNotBlank(config.getJournalMode())) {
+            pragmas.add("journal_mode=" + config.getJournalMode());
+        }
+        if (StringUtils.isNotBlank(config.getSynchronous())) {
+            pragmas.add("synchronous=" + config.getSynchronous());
+        }
+        if (config.getBusyTimeout() > 0) {
+            pragmas.add("busy_timeout=" + config.getBusyTimeout());
+        }
+        if (!pragmas.isEmpty()) {
+            // The SQLite driver applies the parameters of the URL as pragmas on each connection
+            url += (url.contains("?") ? "&" : "?") + String.join("&", pragmas);
+        }
+
+        if (config.getReadConnections() < 1) {
+            return new JdbcConnectionSource(url, null, null, new SqliteDatabaseType());
+        }
+
+        LOGGER.info("Use {} read connections and a single write connection", config.getReadConnections());
+        return new SqliteConnectionSource(url, new SqliteDatabaseType(), config.getReadConnections());
     }
 
     private ConnectionSource createPostgresqlConnection(PostgresqlStorageConfig config) throws SQLException {
@@ -145,10 +262,14 @@ public class OrmLiteSqlStorage implements IStorage {
             throw new ConfigurationException("Storage destination cannot be empty");
         }
 
+        return createPostgresqlConnection(config, config.getDatabase());
+    }
+
+    private ConnectionSource createPostgresqlConnection(PostgresqlStorageConfig config, String database) throws SQLException {
         if (config.isPool()) {
             LOGGER.info("Enable pooling");
             JdbcPooledConnectionSource source = new JdbcPooledConnectionSource(
-                "jdbc:" + backend + ":" + config.getDatabase(), config.getUsername(), config.getPassword(),
+                "jdbc:" + backend + ":" + database, config.getUsername(), config.getPassword(),
                 new PostgresDatabaseType());
             source.setMaxConnectionsFree(config.getMaxConnectionsFree());
             source.setMaxConnectionAgeMillis(config.getMaxConnectionAgeMillis());
@@ -156,11 +277,33 @@ public class OrmLiteSqlStorage implements IStorage {
             source.setTestBeforeGet(config.isTestBeforeGetFromPool());
             return source;
         } else {
-            return new JdbcConnectionSource("jdbc:" + backend + ":" + config.getDatabase(), config.getUsername(), config.getPassword(),
+            return new JdbcConnectionSource("jdbc:" + backend + ":" + database, config.getUsername(), config.getPassword(),
                 new PostgresDatabaseType());
         }
     }
 
+    private ReplicaRouter<ReadDaos> createPostgresqlReadRouter(PostgresqlStorageConfig config, ReadDaos primaryReads) throws SQLException {
+        List<ReadDaos> replicaReads = new ArrayList<>();
+        for (String replica : config.getReplicas()) {
+            if (StringUtils.isBlank(replica)) {
+                throw new ConfigurationException("storage.provider.postgresql.replicas");
+            }
+
+            LOGGER.info("Use read replica {}", replica);
+            // Reads fall back to the primary if a replica is down, so they should not wait long for it
+            String url = replica.contains("connectTimeout=") ? replica
+                : replica + (replica.contains("?") ? "&" : "?") + "connectTimeout=" + ReplicaConnectTimeoutSeconds;
+            replicaReads.add(ReadDaos.create(createPostgresqlConnection(config, url)));
+        }
+
+        missFallback = config.isReplicaMissFallback();
+        return new ReplicaRouter<>(primaryReads, replicaReads, config.getReplicaStalenessMillis());
+    }
+
+    private boolean isMiss(Optional<?> result) {
+        return missFallback && !result.isPresent();
+    }
+
     private void runMigration(ConnectionSource connPol) throws SQLException {
         ChangelogDao fixAcceptedDao = changelogDao.queryForId(Migrations.FIX_ACCEPTED_DAO);
         if (fixAcceptedDao == null) {
@@ -183,6 +326,21 @@ public class OrmLiteSqlStorage implements IStorage {
             fixInviteHistoryTableColumnType(connPol);
             changelogDao.create(new ChangelogDao(Migrations.CHANGE_TYPE_TO_TEXT_INVITE_HISTORY, new Date(), "Modify column type to text."));
         }
+        ChangelogDao addSessionThreePidIndex = changelogDao.queryForId(Migrations.ADD_SESSION_THREEPID_INDEX);
+        if (addSessionThreePidIndex == null) {
+            addSessionThreePidIndex();
+            changelogDao.create(new ChangelogDao(Migrations.ADD_SESSION_THREEPID_INDEX, new Date(), "Add 3PID indexes on sessions."));
+        }
+        ChangelogDao addRetentionIndexes = changelogDao.queryForId(Migrations.ADD_RETENTION_INDEXES);
+        if (addRetentionIndexes == null) {
+            addRetentionIndexes();
+            changelogDao.create(new ChangelogDao(Migrations.ADD_RETENTION_INDEXES, new Date(), "Add timestamp indexes used by the retention."));
+        }
+        ChangelogDao addLookupIndexes = changelogDao.queryForId(Migrations.ADD_LOOKUP_INDEXES);
+        if (addLookupIndexes == null) {
+            addLookupIndexes();
+            changelogDao.create(new ChangelogDao(Migrations.ADD_LOOKUP_INDEXES, new Date(), "Add indexes on hashes and accepted terms."));
+        }
     }
 
     private void fixAcceptedDao(ConnectionSource connPool) throws SQLException {
@@ -224,6 +382,26 @@ public class OrmLiteSqlStorage implements IStorage {
         }
     }
 
+    private void addSessionThreePidIndex() throws SQLException {
+        LOGGER.info("Migration: {}", Migrations.ADD_SESSION_THREEPID_INDEX);
+        sessionDao.executeRawNoArgs("create index if not exists session_3pid_threepid_secret_idx on session_3pid (medium, address, secret)");
+    }
+
+    private void addRetentionIndexes() throws SQLException {
+        LOGGER.info("Migration: {}", Migrations.ADD_RETENTION_INDEXES);
+        sessionDao.executeRawNoArgs("create index if not exists session_3pid_creation_time_idx on session_3pid (\"creationTime\")");
+        asTxnDao.executeRawNoArgs("create index if not exists as_txn_timestamp_idx on as_txn (\"timestamp\")");
+        expInvDao.executeRawNoArgs("create index if not exists invite_3pid_history_resolved_at_idx on invite_3pid_history (\"resolvedAt\")");
+        accountDao.executeRawNoArgs("create index if not exists account_created_at_idx on account (\"createdAt\")");
+        acceptedDao.executeRawNoArgs("create index if not exists accepted_accepted_at_idx on accepted (\"acceptedAt\")");
+    }
+
+    private void addLookupIndexes() throws SQLException {
+        LOGGER.info("Migration: {}", Migrations.ADD_LOOKUP_INDEXES);
+        hashDao.executeRawNoArgs("create index if not exists hashes_hash_idx on hashes (hash)");
+        acceptedDao.executeRawNoArgs("create index if not exists accepted_user_id_idx on accepted (\"userId\")");
+    }
+
     private <V, K> Dao<V, K> createDaoAndTable(ConnectionSource connPool, Class<V> c) throws SQLException {
         return createDaoAndTable(connPool, c, false);
     }
@@ -279,7 +457,19 @@ public class OrmLiteSqlStorage implements IStorage {
 
     @Override
     public Collection<ThreePidInviteIO> getInvites() {
-        return forIterable(invDao.getWrappedIterable());
+        return withCatcher(() -> reads.read(InvitesKey, daos -> forIterable(daos.invDao.getWrappedIterable())));
+    }
+
+    @Override
+    public List<ThreePidInviteIO> getInvites(String afterId, long limit) {
+        return withCatcher(() -> reads.read(InvitesKey, daos -> {
+            QueryBuilder<ThreePidInviteIO, String> builder = daos.invDao.queryBuilder();
+            builder.orderBy("id", true).limit(limit);
+            if (StringUtils.isNotBlank(afterId)) {
+                builder.where().gt("id", afterId);
+            }
+            return daos.invDao.query(builder.prepare());
+        }));
     }
 
     @Override
@@ -289,6 +479,7 @@ public class OrmLiteSqlStorage implements IStorage {
             if (updated != 1) {
                 throw new RuntimeException("Unexpected row count after DB action: " + updated);
             }
+            reads.written(InvitesKey);
         });
     }
 
@@ -299,6 +490,7 @@ public class OrmLiteSqlStorage implements IStorage {
             if (updated != 1) {
                 throw new RuntimeException("Unexpected row count after DB action: " + updated);
             }
+            reads.written(InvitesKey);
         });
     }
 
@@ -322,13 +514,17 @@ public class OrmLiteSqlStorage implements IStorage {
 
     @Override
     public Optional<IThreePidSessionDao> getThreePidSession(String sid) {
-        return withCatcher(() -> Optional.ofNullable(sessionDao.queryForId(sid)));
+        return withCatcher(() -> reads.read(sessionKey(sid), daos -> Optional.ofNullable(daos.sessionDao.queryForId(sid)), this::isMiss));
     }
 
     @Override
     public Optional<IThreePidSessionDao> findThreePidSession(ThreePid tpid, String secret) {
         return withCatcher(() -> {
-            List<ThreePidSessionDao> daoList = sessionDao.queryForMatchingArgs(new ThreePidSessionDao(tpid, secret));
+            List<ThreePidSessionDao> daoList = sessionDao.queryBuilder().where()
+                .eq("medium", new SelectArg(tpid.getMedium()))
+                .and().eq("address", new SelectArg(tpid.getAddress()))
+                .and().eq("secret", new SelectArg(secret))
+                .query();
             if (daoList.size() > 1) {
                 throw new InternalServerError("Lookup for 3PID Session " +
                     tpid + " returned more than one result");
@@ -349,6 +545,7 @@ public class OrmLiteSqlStorage implements IStorage {
             if (updated != 1) {
                 throw new RuntimeException("Unexpected row count after DB action: " + updated);
             }
+            reads.written(sessionKey(session.getId()));
         });
     }
 
@@ -359,6 +556,7 @@ public class OrmLiteSqlStorage implements IStorage {
             if (updated != 1) {
                 throw new RuntimeException("Unexpected row count after DB action: " + updated);
             }
+            reads.written(sessionKey(session.getId()));
         });
     }
 
@@ -369,16 +567,17 @@ public class OrmLiteSqlStorage implements IStorage {
             if (created != 1) {
                 throw new RuntimeException("Unexpected row count after DB action: " + created);
             }
+            reads.written(transactionKey(localpart, txnId));
         });
     }
 
     @Override
     public Optional<ASTransactionDao> getTransactionResult(String localpart, String txnId) {
-        return withCatcher(() -> {
+        return withCatcher(() -> reads.read(transactionKey(localpart, txnId), daos -> {
             ASTransactionDao dao = new ASTransactionDao();
             dao.setLocalpart(localpart);
             dao.setTransactionId(txnId);
-            List<ASTransactionDao> daoList = asTxnDao.queryForMatchingArgs(dao);
+            List<ASTransactionDao> daoList = daos.asTxnDao.queryForMatchingArgs(dao);
 
             if (daoList.size() > 1) {
                 throw new InternalServerError("Lookup for Transaction " +
@@ -390,7 +589,7 @@ public class OrmLiteSqlStorage implements IStorage {
             }
 
             return Optional.of(daoList.get(0));
-        });
+        }, this::isMiss));
     }
 
     @Override
@@ -400,21 +599,24 @@ public class OrmLiteSqlStorage implements IStorage {
             if (created != 1) {
                 throw new RuntimeException("Unexpected row count after DB action: " + created);
             }
+            reads.written(accountKey(account.getToken()));
         });
     }
 
     @Override
     public Optional<AccountDao> findAccount(String token) {
-        return withCatcher(() -> {
-            List<AccountDao> accounts = accountDao.queryForEq("token", token);
-            if (accounts.isEmpty()) {
-                return Optional.empty();
-            }
-            if (accounts.size() != 1) {
-                throw new RuntimeException("Unexpected rows for access token: " + accounts.size());
-            }
-            return Optional.of(accounts.get(0));
-        });
+        return withCatcher(() -> reads.read(accountKey(token), daos -> findAccount(daos, token), this::isMiss));
+    }
+
+    private Optional<AccountDao> findAccount(ReadDaos daos, String token) throws SQLException {
+        List<AccountDao> accounts = daos.accountDao.queryForEq("token", token);
+        if (accounts.isEmpty()) {
+            return Optional.empty();
+        }
+        if (accounts.size() != 1) {
+            throw new RuntimeException("Unexpected rows for access token: " + accounts.size());
+        }
+        return Optional.of(accounts.get(0));
     }
 
     @Override
@@ -424,13 +626,14 @@ public class OrmLiteSqlStorage implements IStorage {
             if (updated != 1) {
                 throw new RuntimeException("Unexpected row count after DB action: " + updated);
             }
+            reads.written(accountKey(token));
         });
     }
 
     @Override
     public void acceptTerm(String token, String url) {
         withCatcher(() -> {
-            AccountDao account = findAccount(token).orElseThrow(InvalidCredentialsException::new);
+            AccountDao account = findAccount(reads.getPrimary(), token).orElseThrow(InvalidCredentialsException::new);
             List<AcceptedDao> acceptedTerms = acceptedDao.queryForEq("userId", account.getUserId());
             for (AcceptedDao acceptedTerm : acceptedTerms) {
                 if (acceptedTerm.getUrl().equalsIgnoreCase(url)) {
@@ -442,33 +645,48 @@ public class OrmLiteSqlStorage implements IStorage {
             if (created != 1) {
                 throw new RuntimeException("Unexpected row count after DB action: " + created);
             }
+            reads.written(accountKey(token));
+            reads.written(acceptedKey(account.getUserId()));
         });
     }
 
     @Override
     public void deleteAccepts(String token) {
         withCatcher(() -> {
-            AccountDao account = findAccount(token).orElseThrow(InvalidCredentialsException::new);
+            AccountDao account = findAccount(reads.getPrimary(), token).orElseThrow(InvalidCredentialsException::new);
             acceptedDao.delete(acceptedDao.queryForEq("userId", account.getUserId()));
+            reads.written(accountKey(token));
+            reads.written(acceptedKey(account.getUserId()));
         });
     }
 
     @Override
     public boolean isTermAccepted(String token, List<PolicyConfig.PolicyObject> policies) {
-        return withCatcher(() -> {
-            AccountDao account = findAccount(token).orElseThrow(InvalidCredentialsException::new);
-            List<AcceptedDao> acceptedTerms = acceptedDao.queryForEq("userId", account.getUserId());
+        // An unknown token on a replica is a miss, confirmed by the primary before being rejected
+        return withCatcher(() -> reads.read(accountKey(token), daos -> {
+            Optional<AccountDao> account = findAccount(daos, token);
+            if (!account.isPresent()) {
+                return Optional.<Boolean>empty();
+            }
+
+            List<AcceptedDao> acceptedTerms = daos.acceptedDao.queryForEq("userId", account.get().getUserId());
             for (AcceptedDao acceptedTerm : acceptedTerms) {
                 for (PolicyConfig.PolicyObject policy : policies) {
                     for (PolicyConfig.TermObject termObject : policy.getTerms().values()) {
                         if (termObject.getUrl().equalsIgnoreCase(acceptedTerm.getUrl())) {
-                            return true;
+                            return Optional.of(true);
                         }
                     }
                 }
             }
-            return false;
-        });
+            return Optional.of(false);
+        }, this::isMiss)).orElseThrow(InvalidCredentialsException::new);
+    }
+
+    @Override
+    public List<String> getAcceptedTerms(String userId) {
+        return withCatcher(() -> reads.read(acceptedKey(userId), daos -> daos.acceptedDao.queryBuilder().selectColumns("url").where()
+            .eq("userId", new SelectArg(userId)).query().stream().map(AcceptedDao::getUrl).collect(Collectors.toList())));
     }
 
     @Override
@@ -479,6 +697,7 @@ public class OrmLiteSqlStorage implements IStorage {
             if (deleted != allHashes.size()) {
                 throw new RuntimeException("Not all hashes deleted: " + deleted);
             }
+            reads.written(HashesKey);
         });
     }
 
@@ -486,17 +705,171 @@ public class OrmLiteSqlStorage implements IStorage {
     public void addHash(String mxid, String medium, String address, String hash) {
         withCatcher(() -> {
             hashDao.create(new HashDao(mxid, medium, address, hash));
+            reads.written(HashesKey);
         });
     }
 
     @Override
     public Collection<Pair<String, ThreePidMapping>> findHashes(Iterable<String> hashes) {
-        return withCatcher(() -> {
-            QueryBuilder<HashDao, String> builder = hashDao.queryBuilder();
+        return withCatcher(() -> reads.read(HashesKey, daos -> {
+            QueryBuilder<HashDao, String> builder = daos.hashDao.queryBuilder();
             builder.where().in("hash", hashes);
-            return hashDao.query(builder.prepare()).stream()
+            return daos.hashDao.query(builder.prepare()).stream()
                 .map(dao -> Pair.of(dao.getHash(), new ThreePidMapping(dao.getMedium(), dao.getAddress(), dao.getMxid()))).collect(
                     Collectors.toList());
+        }));
+    }
+
+    @Override
+    public boolean hasKey(String id) {
+        return withCatcher(() -> keyDao.idExists(id));
+    }
+
+    @Override
+    public Optional<KeyDao> getKey(String id) {
+        return withCatcher(() -> Optional.ofNullable(keyDao.queryForId(id)));
+    }
+
+    @Override
+    public List<KeyDao> getKeys(String type) {
+        return withCatcher(() -> keyDao.queryForEq("type", type));
+    }
+
+    @Override
+    public void insertKey(KeyDao key) {
+        withCatcher(() -> {
+            int created = keyDao.create(key);
+            if (created != 1) {
+                throw new RuntimeException("Unexpected row count after DB action: " + created);
+            }
+        });
+    }
+
+    @Override
+    public void updateKey(KeyDao key) {
+        withCatcher(() -> {
+            int updated = keyDao.update(key);
+            if (updated != 1) {
+                throw new RuntimeException("Unexpected row count after DB action: " + updated);
+            }
+        });
+    }
+
+    @Override
+    public void deleteKey(String id) {
+        withCatcher(() -> {
+            int updated = keyDao.deleteById(id);
+            if (updated != 1) {
+                throw new RuntimeException("Unexpected row count after DB action: " + updated);
+            }
+        });
+    }
+
+    @Override
+    public List<KeyDao> purgeKeys(String type, long createdBefore) {
+        return withCatcher(() -> TransactionManager.callInTransaction(keyDao.getConnectionSource(), () -> {
+            QueryBuilder<KeyDao, String> builder = keyDao.queryBuilder().selectColumns("id", "type", "algorithm", "serial");
+            Where<KeyDao, String> where = builder.where();
+            where.and(where.eq("type", type), where.or(where.eq("valid", false), where.lt("createdAt", createdBefore)));
+            List<KeyDao> purged = builder.query();
+
+            List<String> ids = purged.stream().map(KeyDao::getId).collect(Collectors.toList());
+            for (int i = 0; i < ids.size(); i += KeyPurgeBatchSize) {
+                keyDao.deleteIds(ids.subList(i, Math.min(i + KeyPurgeBatchSize, ids.size())));
+            }
+            return purged;
+        }));
+    }
+
+    /**
+     * Delete the rows matching the condition, oldest first according to the column, in batches of about batchSize rows.
+     * <p>
+     * Each batch is bounded by the column value of its last row, so rows sharing this value may exceed the batch size.
+     */
+    private <T, ID> int purgeInBatches(Dao<T, ID> dao, String column, Function<T, Long> getter, Condition<T, ID> condition, long batchSize) throws SQLException {
+        int total = 0;
+        while (true) {
+            QueryBuilder<T, ID> boundaryQuery = dao.queryBuilder().selectColumns(column).orderBy(column, true).offset(batchSize - 1).limit(1L);
+            condition.apply(boundaryQuery.where());
+            T boundary = boundaryQuery.queryForFirst();
+
+            DeleteBuilder<T, ID> builder = dao.deleteBuilder();
+            Where<T, ID> where = condition.apply(builder.where());
+            if (boundary != null) {
+                where.and().le(column, getter.apply(boundary));
+            }
+            int deleted = builder.delete();
+            total += deleted;
+
+            if (boundary == null || deleted == 0) {
+                return total;
+            }
+        }
+    }
+
+    @Override
+    public int purgeThreePidSessions(long createdBefore, long batchSize) {
+        return withCatcher(() -> purgeInBatches(sessionDao, "creationTime", ThreePidSessionDao::getCreationTime,
+            where -> where.lt("creationTime", createdBefore), batchSize));
+    }
+
+    @Override
+    public int purgeTransactionResults(long completedBefore, long batchSize) {
+        return withCatcher(() -> purgeInBatches(asTxnDao, "timestamp", ASTransactionDao::getTimestamp,
+            where -> where.lt("timestamp", completedBefore), batchSize));
+    }
+
+    @Override
+    public int purgeHistoricalInvites(long resolvedBefore, long batchSize) {
+        return withCatcher(() -> purgeInBatches(expInvDao, "resolvedAt", dao -> dao.getResolvedAt().toEpochMilli(),
+            where -> where.lt("resolvedAt", resolvedBefore), batchSize));
+    }
+
+    @Override
+    public int purgeAccounts(long expiredBefore, long batchSize) {
+        return withCatcher(() -> {
+            // Account timestamps are in seconds
+            long expiredBeforeSeconds = expiredBefore / 1000;
+
+            // The expiration is per account, so we select the candidates and check them here
+            List<String> tokens = new ArrayList<>();
+            QueryBuilder<AccountDao, String> query = accountDao.queryBuilder().selectColumns("token", "createdAt", "expiresIn");
+            query.where().lt("createdAt", expiredBeforeSeconds);
+            try (CloseableWrappedIterable<AccountDao> accounts = accountDao.getWrappedIterable(query.prepare())) {
+                for (AccountDao account : accounts) {
+                    if (account.getCreatedAt() + account.getExpiresIn() < expiredBeforeSeconds) {
+                        tokens.add(account.getToken());
+                    }
+                }
+            }
+
+            int deleted = 0;
+            for (int i = 0; i < tokens.size(); i += batchSize) {
+                deleted += accountDao.deleteIds(tokens.subList(i, (int) Math.min(tokens.size(), i + batchSize)));
+            }
+            return deleted;
+        });
+    }
+
+    @Override
+    public int purgeAccepts(long acceptedBefore, long batchSize) {
+        return withCatcher(() -> purgeInBatches(acceptedDao, "acceptedAt", AcceptedDao::getAcceptedAt,
+            where -> where.lt("acceptedAt", acceptedBefore).and().notIn("userId", accountDao.queryBuilder().selectColumns("userId")),
+            batchSize));
+    }
+
+    @Override
+    public void optimize(boolean vacuum, boolean analyze) {
+        withCatcher(() -> {
+            if (vacuum) {
+                LOGGER.info("Vacuum the database");
+                sessionDao.executeRawNoArgs("VACUUM");
+            }
+            if (analyze) {
+                LOGGER.info("Analyze the database");
+                sessionDao.executeRawNoArgs("ANALYZE");
+            }
         });
     }
+
 }
@@ -0,0 +1,165 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.storage.ormlite;
+
+import com.j256.ormlite.db.DatabaseType;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.jdbc.JdbcPooledConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SQLite connection source with a pool of read connections and a single write connection.
+ * <p>
+ * SQLite only allows one writer at a time, so writes are serialized here instead of failing with a busy database. With
+ * the WAL journal mode, readers do not block the writer and the writer does not block readers.
+ * <p>
+ * A thread holding the write connection, e.g. during a transaction, also uses it to read so it sees its own changes.
+ * <p>
+ * The pool only caps the connections kept idle, so the number of read connections open at once is capped here.
+ */
+public class SqliteConnectionSource implements ConnectionSource {
+
+    // Reads waiting longer than this for a connection fail, instead of hanging if connections are never given back
+    private static final long ReadWaitInSeconds = 30;
+
+    private final JdbcConnectionSource writer;
+    private final JdbcPooledConnectionSource readers;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Semaphore readPermits;
+    private final Set<DatabaseConnection> readConnections = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    public SqliteConnectionSource(String url, DatabaseType databaseType, int readConnections) throws SQLException {
+        this.writer = new JdbcConnectionSource(url, databaseType);
+        this.readers = new JdbcPooledConnectionSource(url, databaseType);
+        this.readers.setMaxConnectionsFree(readConnections);
+        this.readPermits = new Semaphore(readConnections, true);
+    }
+
+    @Override
+    public DatabaseConnection getReadOnlyConnection(String tableName) throws SQLException {
+        if (writeLock.isHeldByCurrentThread()) {
+            return getReadWriteConnection(tableName);
+        }
+
+        try {
+            if (!readPermits.tryAcquire(ReadWaitInSeconds, TimeUnit.SECONDS)) {
+                throw new SQLException("No read connection available after " + ReadWaitInSeconds + " seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a read connection", e);
+        }
+
+        try {
+            DatabaseConnection conn = readers.getReadOnlyConnection(tableName);
+            readConnections.add(conn);
+            return conn;
+        } catch (SQLException | RuntimeException e) {
+            readPermits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public DatabaseConnection getReadWriteConnection(String tableName) throws SQLException {
+        writeLock.lock();
+        try {
+            return writer.getReadWriteConnection(tableName);
+        } catch (SQLException | RuntimeException e) {
+            writeLock.unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public void releaseConnection(DatabaseConnection connection) throws SQLException {
+        if (readConnections.remove(connection)) {
+            try {
+                readers.releaseConnection(connection);
+            } finally {
+                readPermits.release();
+            }
+            return;
+        }
+
+        try {
+            writer.releaseConnection(connection);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean saveSpecialConnection(DatabaseConnection connection) throws SQLException {
+        return writer.saveSpecialConnection(connection);
+    }
+
+    @Override
+    public void clearSpecialConnection(DatabaseConnection connection) {
+        writer.clearSpecialConnection(connection);
+    }
+
+    @Override
+    public DatabaseConnection getSpecialConnection(String tableName) {
+        return writer.getSpecialConnection(tableName);
+    }
+
+    @Override
+    public void closeQuietly() {
+        readers.closeQuietly();
+        writer.closeQuietly();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            readers.close();
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public DatabaseType getDatabaseType() {
+        return writer.getDatabaseType();
+    }
+
+    @Override
+    public boolean isOpen(String tableName) {
+        return writer.isOpen(tableName) && readers.isOpen(tableName);
+    }
+
+    @Override
+    public boolean isSingleConnection(String tableName) {
+        return false;
+    }
+
+}
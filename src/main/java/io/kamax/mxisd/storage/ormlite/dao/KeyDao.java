@@ -0,0 +1,119 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.storage.ormlite.dao;
+
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.table.DatabaseTable;
+
+@DatabaseTable(tableName = "crypto_keys")
+public class KeyDao {
+
+    @DatabaseField(canBeNull = false, id = true)
+    private String id;
+
+    @DatabaseField(canBeNull = false, index = true)
+    private String type;
+
+    @DatabaseField(canBeNull = false)
+    private String algorithm;
+
+    @DatabaseField(canBeNull = false)
+    private String serial;
+
+    @DatabaseField(canBeNull = false)
+    private String privateKey;
+
+    @DatabaseField(canBeNull = false)
+    private boolean valid;
+
+    @DatabaseField(canBeNull = false)
+    private long createdAt;
+
+    public KeyDao() {
+        // Needed for ORMLite
+    }
+
+    public KeyDao(String id, String type, String algorithm, String serial, String privateKey, boolean valid, long createdAt) {
+        this.id = id;
+        this.type = type;
+        this.algorithm = algorithm;
+        this.serial = serial;
+        this.privateKey = privateKey;
+        this.valid = valid;
+        this.createdAt = createdAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public void setAlgorithm(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public String getSerial() {
+        return serial;
+    }
+
+    public void setSerial(String serial) {
+        this.serial = serial;
+    }
+
+    public String getPrivateKey() {
+        return privateKey;
+    }
+
+    public void setPrivateKey(String privateKey) {
+        this.privateKey = privateKey;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public void setValid(boolean valid) {
+        this.valid = valid;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+}
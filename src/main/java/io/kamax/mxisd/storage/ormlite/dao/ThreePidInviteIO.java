@@ -92,6 +92,10 @@ public class ThreePidInviteIO {
         return roomId;
     }
 
+    public String getRawProperties() {
+        return properties;
+    }
+
     public Map<String, String> getProperties() {
         if (StringUtils.isBlank(properties)) {
             return new HashMap<>();
@@ -41,6 +41,8 @@ public interface IThreePidSession {
 
     void increaseAttempt();
 
+    void decreaseAttempt();
+
     Optional<String> getNextLink();
 
     String getToken();
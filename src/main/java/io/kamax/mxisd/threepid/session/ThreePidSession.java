@@ -119,6 +119,11 @@ public class ThreePidSession implements IThreePidSession {
         attempt++;
     }
 
+    @Override
+    public void decreaseAttempt() {
+        attempt--;
+    }
+
     @Override
     public Optional<String> getNextLink() {
         return Optional.ofNullable(nextLink);
@@ -0,0 +1,109 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.util;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Share the result of a call among the callers asking for the same key while it runs.
+ * <p>
+ * The first caller for a key runs the call, others get the same future until it completes. Results are not kept once
+ * the call is done, a later caller runs it again.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the results.
+ */
+public class SingleFlight<K, V> {
+
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Start an asynchronous call, or join the one in flight for the same key.
+     *
+     * @param key  The key identifying the call.
+     * @param call The call, only invoked if none is in flight for the key.
+     * @return The future result of the call.
+     */
+    public CompletableFuture<V> run(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> ongoing = inFlight.putIfAbsent(key, flight);
+        if (Objects.nonNull(ongoing)) {
+            return ongoing;
+        }
+
+        try {
+            call.get().whenComplete((v, e) -> {
+                // Removed first, so callers coming after the completion do not get a stale result
+                inFlight.remove(key, flight);
+                if (Objects.nonNull(e)) {
+                    flight.completeExceptionally(e);
+                } else {
+                    flight.complete(v);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+        }
+
+        return flight;
+    }
+
+    /**
+     * Run a call on the current thread, or wait on the one in flight for the same key.
+     *
+     * @param key  The key identifying the call.
+     * @param call The call, only invoked if none is in flight for the key.
+     * @return The result of the call.
+     */
+    public V get(K key, Supplier<V> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> ongoing = inFlight.putIfAbsent(key, flight);
+        if (Objects.nonNull(ongoing)) {
+            try {
+                return ongoing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        try {
+            V value = call.get();
+            inFlight.remove(key, flight);
+            flight.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    public int size() {
+        return inFlight.size();
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.auth;
+
+import io.kamax.mxisd.auth.AccountManager;
+import io.kamax.mxisd.config.AccountConfig;
+import io.kamax.mxisd.config.MatrixConfig;
+import io.kamax.mxisd.config.PolicyConfig;
+import io.kamax.mxisd.config.SQLiteStorageConfig;
+import io.kamax.mxisd.config.StorageConfig;
+import io.kamax.mxisd.storage.ormlite.OrmLiteSqlStorage;
+import io.kamax.mxisd.storage.ormlite.dao.AccountDao;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AccountManagerTest {
+
+    private static final String TermsUrl = "https://example.org/terms";
+
+    private OrmLiteSqlStorage store;
+    private AccountManager accMgr;
+    private List<PolicyConfig.PolicyObject> policies;
+
+    @Before
+    public void before() {
+        StorageConfig.Provider provider = new StorageConfig.Provider();
+        SQLiteStorageConfig storageCfg = new SQLiteStorageConfig();
+        storageCfg.setDatabase(":memory:");
+        provider.setSqlite(storageCfg);
+        store = new OrmLiteSqlStorage(StorageConfig.BackendEnum.sqlite, provider);
+        store.insertToken(new AccountDao("a", "Bearer", "example.org", 3600, Instant.now().getEpochSecond(), "@john:example.org", "token"));
+
+        AccountConfig cfg = new AccountConfig();
+        cfg.build();
+        accMgr = new AccountManager(store, null, null, cfg, new MatrixConfig());
+
+        PolicyConfig.TermObject term = new PolicyConfig.TermObject();
+        term.setUrl(TermsUrl.toUpperCase());
+        PolicyConfig.PolicyObject policy = new PolicyConfig.PolicyObject();
+        policy.setTerms(Collections.singletonMap("en", term));
+        policies = Collections.singletonList(policy);
+    }
+
+    @Test
+    public void accountIsCached() {
+        assertNotNull(accMgr.findAccount("token"));
+
+        // Removed behind the manager's back, the cached account is still used
+        store.deleteToken("token");
+        assertNotNull(accMgr.findAccount("token"));
+    }
+
+    @Test
+    public void acceptingTermsInvalidatesCache() {
+        assertFalse(accMgr.isTermAccepted("token", policies));
+        accMgr.acceptTerm("token", TermsUrl);
+        assertTrue(accMgr.isTermAccepted("token", policies));
+    }
+
+    @Test
+    public void acceptingTermsInvalidatesOtherTokensOfUser() {
+        store.insertToken(new AccountDao("b", "Bearer", "example.org", 3600, Instant.now().getEpochSecond(), "@john:example.org", "token2"));
+        assertFalse(accMgr.isTermAccepted("token2", policies));
+
+        // The accepting token was never used before, so it is not in the cache
+        accMgr.acceptTerm("token", TermsUrl);
+        assertTrue(accMgr.isTermAccepted("token2", policies));
+    }
+
+    @Test
+    public void deletingAccountInvalidatesCache() {
+        assertNotNull(accMgr.findAccount("token"));
+        accMgr.deleteAccount("token");
+        assertNull(accMgr.findAccount("token"));
+    }
+
+}
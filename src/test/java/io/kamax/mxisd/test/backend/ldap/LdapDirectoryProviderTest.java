@@ -0,0 +1,120 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.backend.ldap;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.LDAPException;
+import io.kamax.mxisd.backend.ldap.LdapDirectoryProvider;
+import io.kamax.mxisd.config.MatrixConfig;
+import io.kamax.mxisd.config.ldap.LdapConfig;
+import io.kamax.mxisd.config.ldap.generic.GenericLdapConfig;
+import io.kamax.mxisd.directory.DirectoryEntry;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LdapDirectoryProviderTest {
+
+    private static final String baseDn = "dc=example,dc=org";
+    private static final int users = 1200;
+
+    private static InMemoryDirectoryServer ds;
+
+    @BeforeClass
+    public static void beforeClass() throws LDAPException {
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(baseDn);
+        config.addAdditionalBindCredentials("cn=mxisd", "mxisd");
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("localhost", 65002));
+
+        ds = new InMemoryDirectoryServer(config);
+        ds.startListening();
+        ds.add("dn: " + baseDn, "objectClass: top", "objectClass: domain", "dc: example");
+        for (int i = 0; i < users; i++) {
+            ds.add("dn: uid=user" + i + "," + baseDn,
+                    "objectClass: inetOrgPerson",
+                    "uid: user" + i,
+                    "cn: User " + i,
+                    "sn: " + i,
+                    "displayName: User " + i,
+                    "mail: user" + i + "@example.org");
+        }
+        ds.add("dn: uid=remote," + baseDn,
+                "objectClass: referral",
+                "objectClass: extensibleObject",
+                "uid: remote",
+                "ref: ldap://ldap.example.com/uid=remote,dc=example,dc=com");
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        ds.shutDown(true);
+    }
+
+    private LdapDirectoryProvider getProvider() {
+        LdapConfig cfg = new GenericLdapConfig();
+        cfg.setEnabled(true);
+        cfg.getConnection().setHost("localhost");
+        cfg.getConnection().setPort(65002);
+        cfg.getConnection().setBaseDn(baseDn);
+        cfg.getConnection().setBindDn("cn=mxisd");
+        cfg.getConnection().setBindPassword("mxisd");
+
+        LdapConfig.UID uid = new LdapConfig.UID();
+        uid.setType("uid");
+        uid.setValue("uid");
+        cfg.getAttribute().setUid(uid);
+        cfg.build();
+
+        MatrixConfig mxCfg = new MatrixConfig();
+        mxCfg.setDomain("example.org");
+        mxCfg.build();
+
+        return new LdapDirectoryProvider(cfg, mxCfg);
+    }
+
+    @Test
+    public void allUsersAreListedAcrossPages() {
+        Optional<List<DirectoryEntry>> entries = getProvider().listUsers(null);
+        assertTrue(entries.isPresent());
+        // The referral is skipped, not followed nor failing the whole list
+        assertEquals(users, entries.get().size());
+        assertTrue(entries.get().stream().anyMatch(e -> "@user0:example.org".equals(e.getUserId())));
+        assertTrue(entries.get().stream().anyMatch(e -> ("@user" + (users - 1) + ":example.org").equals(e.getUserId())));
+    }
+
+    @Test
+    public void searchStopsAtLimit() {
+        LdapDirectoryProvider provider = getProvider();
+        // User 11, User 110 to 119 and User 1100 to 1199
+        assertEquals(111, provider.searchByDisplayName("User 11").getResults().size());
+        assertEquals(5, provider.searchByDisplayName("User 11", 5).getResults().size());
+        assertEquals(1, provider.searchBy3pid("user11", 1).getResults().size());
+    }
+
+}
@@ -22,6 +22,7 @@ package io.kamax.mxisd.test.backend.rest;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import io.kamax.matrix.MatrixID;
+import io.kamax.matrix.ThreePid;
 import io.kamax.matrix._MatrixID;
 import io.kamax.matrix._ThreePid;
 import io.kamax.matrix.json.GsonUtil;
@@ -30,6 +31,7 @@ import io.kamax.mxisd.config.rest.RestBackendConfig;
 import io.kamax.mxisd.exception.InternalServerError;
 import io.kamax.mxisd.profile.JsonProfileRequest;
 import io.kamax.mxisd.profile.JsonProfileResult;
+import io.kamax.mxisd.profile.UserProfile;
 import org.apache.http.entity.ContentType;
 import org.junit.Before;
 import org.junit.Rule;
@@ -181,4 +183,36 @@ public class RestProfileProviderTest {
         assertTrue(tpids.isEmpty());
     }
 
+    @Test
+    public void forProfileOnSharedEndpoint() {
+        String profileEndpoint = "/profile";
+        ProfileEndpoints pEndpoints = new ProfileEndpoints();
+        pEndpoints.setDisplayName(profileEndpoint);
+        pEndpoints.setThreepids(profileEndpoint);
+        pEndpoints.setRoles(profileEndpoint);
+        RestBackendConfig.Endpoints endpoints = new RestBackendConfig.Endpoints();
+        endpoints.setProfile(pEndpoints);
+        RestProfileProvider p = get(getCfg(endpoints));
+
+        JsonProfileResult r = new JsonProfileResult();
+        r.setDisplayName("John");
+        r.addThreepid(new ThreePid("email", "john@example.org"));
+        r.addRole("admin");
+        stubFor(post(urlEqualTo(profileEndpoint))
+                .willReturn(aResponse()
+                        .withHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType())
+                        .withBody(GsonUtil.get().toJson(GsonUtil.makeObj("profile", r)))
+                )
+        );
+
+        UserProfile profile = p.getProfile(userId);
+
+        verify(1, postRequestedFor(urlMatching(profileEndpoint)));
+        assertEquals("John", profile.getDisplayName().orElse(null));
+        assertEquals(1, profile.getThreepids().size());
+        assertEquals("john@example.org", profile.getThreepids().get(0).getAddress());
+        assertEquals(1, profile.getRoles().size());
+        assertEquals("admin", profile.getRoles().get(0));
+    }
+
 }
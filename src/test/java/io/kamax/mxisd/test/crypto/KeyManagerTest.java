@@ -0,0 +1,156 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.crypto;
+
+import io.kamax.mxisd.crypto.GenericKey;
+import io.kamax.mxisd.crypto.Key;
+import io.kamax.mxisd.crypto.KeyIdentifier;
+import io.kamax.mxisd.crypto.KeyType;
+import io.kamax.mxisd.crypto.ed25519.Ed25519Key;
+import io.kamax.mxisd.crypto.ed25519.Ed25519KeyManager;
+import io.kamax.mxisd.crypto.ed25519.Ed25519RegularKeyIdentifier;
+import io.kamax.mxisd.storage.crypto.KeyStore;
+import io.kamax.mxisd.storage.crypto.MemoryKeyStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyManagerTest {
+
+    private KeyStore store;
+    private Ed25519KeyManager keyMgr;
+
+    @Before
+    public void before() {
+        store = new MemoryKeyStore();
+        store.add(new Ed25519Key(new Ed25519RegularKeyIdentifier("0"), KeyTest.Private));
+        keyMgr = new Ed25519KeyManager(store);
+    }
+
+    @Test
+    public void existingRegularKeyIsValid() {
+        assertTrue(keyMgr.isValid(KeyType.Regular, KeyTest.Public));
+        assertFalse(keyMgr.isValid(KeyType.Ephemeral, KeyTest.Public));
+    }
+
+    @Test
+    public void generatedKeyIsValid() {
+        // We build the index before generating to ensure it is maintained
+        assertFalse(keyMgr.isValid(KeyType.Ephemeral, "unknown"));
+
+        KeyIdentifier id = keyMgr.generateKey(KeyType.Ephemeral);
+        String pubKey = keyMgr.getPublicKeyBase64(id);
+        assertTrue(keyMgr.isValid(KeyType.Ephemeral, pubKey));
+        assertFalse(keyMgr.isValid(KeyType.Regular, pubKey));
+    }
+
+    @Test
+    public void disabledKeyIsNotValid() {
+        KeyIdentifier id = keyMgr.generateKey(KeyType.Ephemeral);
+        String pubKey = keyMgr.getPublicKeyBase64(id);
+        keyMgr.disableKey(id);
+        assertFalse(keyMgr.isValid(KeyType.Ephemeral, pubKey));
+    }
+
+    @Test
+    public void keysFromStoreAreIndexed() {
+        KeyIdentifier id = new Ed25519KeyManager(store).generateKey(KeyType.Ephemeral);
+        Ed25519KeyManager otherMgr = new Ed25519KeyManager(store);
+        assertTrue(otherMgr.isValid(KeyType.Ephemeral, otherMgr.getPublicKeyBase64(id)));
+    }
+
+    @Test
+    public void keysCreatedByOtherInstancesAreFound() throws InterruptedException {
+        // Index is built before the other instance creates its key
+        assertFalse(keyMgr.isValid(KeyType.Ephemeral, "unknown"));
+
+        Ed25519KeyManager otherMgr = new Ed25519KeyManager(store);
+        KeyIdentifier id = otherMgr.generateKey(KeyType.Ephemeral);
+        String pubKey = otherMgr.getPublicKeyBase64(id);
+
+        // Misses only go to the store once in a while
+        Thread.sleep(1100);
+        assertTrue(keyMgr.isValid(KeyType.Ephemeral, pubKey));
+    }
+
+    @Test
+    public void forgottenKeyIsNotValid() {
+        KeyIdentifier id = keyMgr.generateKey(KeyType.Ephemeral);
+        String pubKey = keyMgr.getPublicKeyBase64(id);
+        assertTrue(keyMgr.isValid(KeyType.Ephemeral, pubKey));
+        store.delete(id);
+        assertTrue(keyMgr.isValid(KeyType.Ephemeral, pubKey));
+
+        keyMgr.forget(Collections.singletonList(id));
+        assertFalse(keyMgr.isValid(KeyType.Ephemeral, pubKey));
+    }
+
+    private static KeyIdentifier plain(KeyIdentifier id) {
+        return new KeyIdentifier() {
+
+            @Override
+            public KeyType getType() {
+                return id.getType();
+            }
+
+            @Override
+            public String getAlgorithm() {
+                return id.getAlgorithm();
+            }
+
+            @Override
+            public String getSerial() {
+                return id.getSerial();
+            }
+
+        };
+    }
+
+    @Test
+    public void disablingSigningKeyWorksWithAnyIdentifier() {
+        // The store gives back its own kind of key IDs, which are not equal to the generic ones
+        KeyStore otherStore = new MemoryKeyStore() {
+
+            @Override
+            public Key get(KeyIdentifier id) {
+                Key key = super.get(id);
+                return new GenericKey(plain(key.getId()), key.isValid(), key.getPrivateKeyBase64());
+            }
+
+        };
+        otherStore.add(new Ed25519Key(new Ed25519RegularKeyIdentifier("0"), KeyTest.Private));
+        Ed25519KeyManager otherMgr = new Ed25519KeyManager(otherStore);
+
+        Key signingKey = otherMgr.getServerSigningKey();
+        assertTrue(signingKey.isValid());
+
+        otherMgr.disableKey(plain(signingKey.getId()));
+        Key reloaded = otherMgr.getServerSigningKey();
+        assertNotSame(signingKey, reloaded);
+        assertFalse(reloaded.isValid());
+    }
+
+}
@@ -36,10 +36,18 @@ import io.kamax.mxisd.storage.crypto.MemoryKeyStore;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 public class SignatureManagerTest {
 
@@ -109,6 +117,39 @@ public class SignatureManagerTest {
         testSign(value, sign);
     }
 
+    @Test
+    public void onConcurrentSigning() throws Exception {
+        String value = "{}";
+        String sign = "K8280/U9SSy9IVtjBuVeLr+HpOB4BQFWbg+UZaADMtTdGYI7Geitb76LTrr5QV/7Xg4ahLwYGYZzuHGZKM5ZAQ";
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                results.add(executor.submit(() -> signMgr.sign(value).getSignature()));
+            }
+
+            for (Future<String> result : results) {
+                assertThat(result.get(), is(equalTo(sign)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void onDisabledSigningKey() {
+        KeyStore store = new MemoryKeyStore();
+        store.add(new Ed25519Key(new Ed25519RegularKeyIdentifier("0"), KeyTest.Private));
+        Ed25519KeyManager keyMgr = new Ed25519KeyManager(store);
+
+        assertTrue(keyMgr.getServerSigningKey().isValid());
+        assertEquals(KeyTest.Public, keyMgr.getPublicKeyBase64(keyMgr.getServerSigningKey().getId()));
+
+        keyMgr.disableKey(keyMgr.getServerSigningKey().getId());
+        assertFalse(keyMgr.getServerSigningKey().isValid());
+    }
+
     @Test
     public void onIdentityLookupFull() {
         JsonObject data = GsonUtil.parseObj(lookupData);
@@ -0,0 +1,217 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.directory;
+
+import io.kamax.mxisd.directory.DirectoryEntry;
+import io.kamax.mxisd.directory.DirectoryIndex;
+import io.kamax.mxisd.directory.DirectoryProvider;
+import io.kamax.mxisd.directory.IndexedDirectory;
+import io.kamax.mxisd.http.io.UserDirectorySearchResult;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DirectoryIndexTest {
+
+    private static DirectoryEntry user(String localpart, String displayName, String... threepids) {
+        return new DirectoryEntry("@" + localpart + ":example.org", displayName, Collections.emptyList(), Arrays.asList(threepids));
+    }
+
+    private static List<String> search(DirectoryIndex index, String query) {
+        return userIds(index.search(query, 10));
+    }
+
+    private static List<String> userIds(UserDirectorySearchResult result) {
+        return result.getResults().stream().map(UserDirectorySearchResult.Result::getUserId).collect(Collectors.toList());
+    }
+
+    private static class ListingProvider implements DirectoryProvider {
+
+        private List<DirectoryEntry> all = new ArrayList<>();
+        private List<DirectoryEntry> changed = new ArrayList<>();
+        private Instant since;
+
+        @Override
+        public UserDirectorySearchResult searchByDisplayName(String query) {
+            throw new IllegalStateException("Should be answered by the index");
+        }
+
+        @Override
+        public UserDirectorySearchResult searchBy3pid(String query) {
+            throw new IllegalStateException("Should be answered by the index");
+        }
+
+        @Override
+        public Optional<List<DirectoryEntry>> listUsers(Instant changedSince) {
+            since = changedSince;
+            return Optional.of(changedSince == null ? all : changed);
+        }
+    }
+
+    private final DirectoryIndex index = DirectoryIndex.build(Arrays.asList(
+            user("john", "John Doe", "john.doe@example.org"),
+            user("jane", "Jane Doe", "jane@example.org", "+15551234567"),
+            user("jl.picard", "Jean-Luc Picard")
+    ), true);
+
+    @Test
+    public void wordsAreMatchedByPrefix() {
+        assertEquals(Arrays.asList("@john:example.org", "@jane:example.org"), search(index, "Do"));
+        assertEquals(Collections.singletonList("@jl.picard:example.org"), search(index, "luc"));
+        assertEquals(Collections.singletonList("@jl.picard:example.org"), search(index, "jean-l"));
+        assertTrue(search(index, "oe").isEmpty());
+    }
+
+    @Test
+    public void allWordsMustMatch() {
+        assertEquals(Collections.singletonList("@john:example.org"), search(index, "doe jo"));
+        assertTrue(search(index, "doe picard").isEmpty());
+        assertTrue(search(index, "  ").isEmpty());
+    }
+
+    @Test
+    public void matrixIdsAndThreepidsAreMatched() {
+        assertEquals(Collections.singletonList("@jl.picard:example.org"), search(index, "jl.picard:exa"));
+        assertEquals(Collections.singletonList("@john:example.org"), search(index, "john.doe@"));
+        assertEquals(Collections.singletonList("@jane:example.org"), search(index, "+1555"));
+    }
+
+    @Test
+    public void threepidsCanBeLeftOut() {
+        DirectoryIndex index = DirectoryIndex.build(Collections.singletonList(user("jane", "Jane", "jdoe@example.org")), false);
+        assertTrue(search(index, "jdoe").isEmpty());
+        assertEquals(Collections.singletonList("@jane:example.org"), search(index, "jane"));
+    }
+
+    @Test
+    public void resultsAreLimited() {
+        UserDirectorySearchResult result = index.search("j", 2);
+        assertTrue(result.isLimited());
+        assertEquals(2, result.getResults().size());
+
+        result = index.search("j", 3);
+        assertFalse(result.isLimited());
+        assertEquals(3, result.getResults().size());
+    }
+
+    @Test
+    public void changedUsersAreIndexed() {
+        ListingProvider provider = new ListingProvider();
+        provider.all.add(user("john", "John Doe"));
+        provider.all.add(user("jane", "Jane Doe"));
+        IndexedDirectory directory = new IndexedDirectory(provider, true, 3600);
+        assertFalse(directory.isReady());
+
+        directory.refresh();
+        assertTrue(directory.isReady());
+        assertNull(provider.since);
+        assertEquals(2, directory.search("doe", 10).getResults().size());
+
+        provider.changed.add(user("jane", "Jane Smith"));
+        provider.changed.add(user("joe", "Joe Doe"));
+        directory.refresh();
+        assertTrue(provider.since.isBefore(Instant.now()));
+        assertEquals(Arrays.asList("@joe:example.org", "@john:example.org"), userIds(directory.search("doe", 10)));
+        assertEquals(Collections.singletonList("@jane:example.org"), userIds(directory.search("smi", 10)));
+
+        UserDirectorySearchResult result = directory.search("doe", 1);
+        assertTrue(result.isLimited());
+        assertEquals(1, result.getResults().size());
+    }
+
+    @Test
+    public void manyChangesAreMerged() {
+        ListingProvider provider = new ListingProvider();
+        provider.all.add(user("john", "John Doe"));
+        provider.all.add(user("jane", "Jane Doe"));
+        IndexedDirectory directory = new IndexedDirectory(provider, true, 3600);
+        directory.refresh();
+
+        // Past the threshold of 1000 changes, they are merged into the main index
+        provider.changed.add(user("jane", "Jane Smith"));
+        for (int i = 0; i < 999; i++) {
+            provider.changed.add(user("user" + i, "User" + i + " Doe"));
+        }
+        directory.refresh();
+        assertEquals(Collections.singletonList("@jane:example.org"), userIds(directory.search("smi", 10)));
+        UserDirectorySearchResult result = directory.search("doe", 2000);
+        assertFalse(result.isLimited());
+        assertEquals(1000, result.getResults().size());
+        assertFalse(userIds(result).contains("@jane:example.org"));
+        assertTrue(userIds(result).contains("@john:example.org"));
+
+        // Changes after the merge are indexed on top of the merged users
+        provider.changed = Collections.singletonList(user("john", "John Smith"));
+        directory.refresh();
+        assertEquals(2, directory.search("smi", 10).getResults().size());
+        result = directory.search("doe", 2000);
+        assertEquals(999, result.getResults().size());
+        assertFalse(userIds(result).contains("@john:example.org"));
+    }
+
+    @Test
+    public void fullRefreshDropsRemovedUsers() {
+        ListingProvider provider = new ListingProvider();
+        provider.all.add(user("john", "John Doe"));
+        provider.all.add(user("jane", "Jane Doe"));
+        IndexedDirectory directory = new IndexedDirectory(provider, true, 0);
+        directory.refresh();
+        assertEquals(2, directory.search("doe", 10).getResults().size());
+
+        provider.all = Collections.singletonList(user("john", "John Doe"));
+        directory.refresh();
+        assertNull(provider.since);
+        assertEquals(Collections.singletonList("@john:example.org"), userIds(directory.search("doe", 10)));
+        assertTrue(directory.search("jane", 10).getResults().isEmpty());
+    }
+
+    @Test
+    public void providersNotListingUsersAreNotIndexed() {
+        IndexedDirectory directory = new IndexedDirectory(new DirectoryProvider() {
+
+            @Override
+            public UserDirectorySearchResult searchByDisplayName(String query) {
+                return UserDirectorySearchResult.empty();
+            }
+
+            @Override
+            public UserDirectorySearchResult searchBy3pid(String query) {
+                return UserDirectorySearchResult.empty();
+            }
+
+        }, true, 3600);
+
+        directory.refresh();
+        assertFalse(directory.isReady());
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.directory;
+
+import io.kamax.mxisd.config.DirectoryConfig;
+import io.kamax.mxisd.directory.DirectoryEntry;
+import io.kamax.mxisd.directory.DirectoryManager;
+import io.kamax.mxisd.directory.DirectoryProvider;
+import io.kamax.mxisd.http.io.UserDirectorySearchResult;
+import org.junit.Test;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirectoryManagerTest {
+
+    private static final URI target = URI.create("http://localhost/_matrix/client/r0/user_directory/search");
+
+    private static UserDirectorySearchResult.Result user(String localpart, String displayName) {
+        UserDirectorySearchResult.Result result = new UserDirectorySearchResult.Result();
+        result.setUserId("@" + localpart + ":example.org");
+        result.setDisplayName(displayName);
+        return result;
+    }
+
+    private static UserDirectorySearchResult results(UserDirectorySearchResult.Result... results) {
+        UserDirectorySearchResult result = new UserDirectorySearchResult();
+        Arrays.stream(results).forEach(result::addResult);
+        return result;
+    }
+
+    private static class StaticProvider implements DirectoryProvider {
+
+        private final UserDirectorySearchResult byName;
+        private final UserDirectorySearchResult by3pid;
+
+        private StaticProvider(UserDirectorySearchResult byName, UserDirectorySearchResult by3pid) {
+            this.byName = byName;
+            this.by3pid = by3pid;
+        }
+
+        @Override
+        public UserDirectorySearchResult searchByDisplayName(String query) {
+            return byName;
+        }
+
+        @Override
+        public UserDirectorySearchResult searchBy3pid(String query) {
+            return by3pid;
+        }
+    }
+
+    private DirectoryConfig getCfg() {
+        DirectoryConfig cfg = new DirectoryConfig();
+        cfg.getExclude().setHomeserver(true);
+        cfg.build();
+        return cfg;
+    }
+
+    @Test
+    public void resultsAreMergedByUser() {
+        DirectoryProvider first = new StaticProvider(results(user("john", "John Doe")), results(user("john", "john@example.org")));
+        DirectoryProvider second = new StaticProvider(results(user("john", "Johnny"), user("jane", "Jane Doe")), results());
+        DirectoryManager mgr = new DirectoryManager(getCfg(), null, null, Arrays.asList(first, second));
+
+        UserDirectorySearchResult result = mgr.search(target, "token", "jo", null);
+        assertFalse(result.isLimited());
+        assertEquals(2, result.getResults().size());
+        assertEquals(Arrays.asList("John Doe", "Jane Doe"), result.getResults().stream()
+                .map(UserDirectorySearchResult.Result::getDisplayName)
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void resultsAreLimited() {
+        DirectoryProvider provider = new StaticProvider(
+                results(user("john", "John"), user("jane", "Jane"), user("joe", "Joe")), results());
+        DirectoryManager mgr = new DirectoryManager(getCfg(), null, null, Collections.singletonList(provider));
+
+        UserDirectorySearchResult result = mgr.search(target, "token", "j", 2);
+        assertTrue(result.isLimited());
+        assertEquals(2, result.getResults().size());
+    }
+
+    @Test
+    public void providersAreAskedForOneMoreThanTheLimit() {
+        AtomicInteger limit = new AtomicInteger();
+        DirectoryProvider provider = new StaticProvider(results(user("john", "John"), user("jane", "Jane")), results()) {
+            @Override
+            public UserDirectorySearchResult searchByDisplayName(String query, int max) {
+                limit.set(max);
+                return super.searchByDisplayName(query, max);
+            }
+        };
+        DirectoryManager mgr = new DirectoryManager(getCfg(), null, null, Collections.singletonList(provider));
+
+        UserDirectorySearchResult result = mgr.search(target, "token", "j", 1);
+        assertEquals(2, limit.get());
+        assertTrue(result.isLimited());
+        assertEquals(1, result.getResults().size());
+        mgr.stop();
+    }
+
+    @Test
+    public void failingProvidersAreSkipped() {
+        DirectoryProvider failing = new StaticProvider(null, null) {
+            @Override
+            public UserDirectorySearchResult searchByDisplayName(String query) {
+                throw new IllegalStateException("Backend is down");
+            }
+        };
+        DirectoryProvider working = new StaticProvider(results(user("john", "John")), results());
+        DirectoryManager mgr = new DirectoryManager(getCfg(), null, null, Arrays.asList(failing, working));
+
+        UserDirectorySearchResult result = mgr.search(target, "token", "jo", null);
+        assertEquals(1, result.getResults().size());
+        // Results of the failing provider may be missing
+        assertTrue(result.isLimited());
+    }
+
+    @Test
+    public void indexedProvidersAreNotSearched() throws InterruptedException {
+        DirectoryProvider provider = new StaticProvider(null, null) {
+            @Override
+            public UserDirectorySearchResult searchByDisplayName(String query) {
+                throw new IllegalStateException("Should be answered by the index");
+            }
+
+            @Override
+            public Optional<List<DirectoryEntry>> listUsers(Instant changedSince) {
+                return Optional.of(Collections.singletonList(new DirectoryEntry("@john:example.org", "John Doe",
+                        Collections.emptyList(), Collections.singletonList("john@example.org"))));
+            }
+        };
+        DirectoryConfig cfg = new DirectoryConfig();
+        cfg.getExclude().setHomeserver(true);
+        cfg.getIndex().setEnabled(true);
+        cfg.build();
+        DirectoryManager mgr = new DirectoryManager(cfg, null, null, Collections.singletonList(provider));
+
+        // The index is loaded in the background
+        UserDirectorySearchResult result = mgr.search(target, "token", "doe", null);
+        for (int i = 0; i < 50 && result.getResults().isEmpty(); i++) {
+            Thread.sleep(100);
+            result = mgr.search(target, "token", "doe", null);
+        }
+        assertEquals(1, result.getResults().size());
+        assertEquals("John Doe", result.getResults().iterator().next().getDisplayName());
+    }
+
+}
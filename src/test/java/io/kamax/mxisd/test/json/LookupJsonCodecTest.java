@@ -0,0 +1,106 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.json;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonWriter;
+import io.kamax.mxisd.exception.BadRequestException;
+import io.kamax.mxisd.http.io.identity.ClientHashLookupRequest;
+import io.kamax.mxisd.http.io.identity.LookupJsonCodec;
+import io.kamax.mxisd.lookup.ThreePidMapping;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LookupJsonCodecTest {
+
+    private static byte[] utf8(String data) {
+        return data.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void readBulkLookupRequest() {
+        List<ThreePidMapping> mappings = LookupJsonCodec.readBulkLookupRequest(
+                utf8("{\"other\":{\"a\":[1]},\"threepids\":[[\"email\",\"john@example.org\"],[\"msisdn\",\"123\"]]}"), 10);
+
+        assertEquals(2, mappings.size());
+        assertEquals("email", mappings.get(0).getMedium());
+        assertEquals("john@example.org", mappings.get(0).getValue());
+        assertEquals("msisdn", mappings.get(1).getMedium());
+        assertEquals("123", mappings.get(1).getValue());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void bulkLookupRequestAboveMaxItems() {
+        LookupJsonCodec.readBulkLookupRequest(utf8("{\"threepids\":[[\"email\",\"a\"],[\"email\",\"b\"]]}"), 1);
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void bulkLookupRequestWithIncompleteItem() {
+        LookupJsonCodec.readBulkLookupRequest(utf8("{\"threepids\":[[\"email\"]]}"), 10);
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void bulkLookupRequestTruncated() {
+        LookupJsonCodec.readBulkLookupRequest(utf8("{\"threepids\":[[\"email\",\"a\"]"), 10);
+    }
+
+    @Test
+    public void readHashLookupRequest() {
+        ClientHashLookupRequest request = LookupJsonCodec.readHashLookupRequest(
+                utf8("{\"algorithm\":\"sha256\",\"pepper\":\"p\",\"addresses\":[\"h1\",\"h2\"]}"), 10);
+
+        assertEquals("sha256", request.getAlgorithm());
+        assertEquals("p", request.getPepper());
+        assertEquals(Arrays.asList("h1", "h2"), request.getAddresses());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void hashLookupRequestAboveMaxItems() {
+        LookupJsonCodec.readHashLookupRequest(utf8("{\"addresses\":[\"h1\",\"h2\",\"h3\"]}"), 2);
+    }
+
+    @Test
+    public void writeAnswers() throws IOException {
+        StringWriter bulk = new StringWriter();
+        LookupJsonCodec.writeBulkLookupAnswer(new JsonWriter(bulk),
+                Collections.singletonList(new ThreePidMapping("email", "john@example.org", "@john:example.org")));
+        assertEquals("{\"threepids\":[[\"email\",\"john@example.org\",\"@john:example.org\"]]}", bulk.toString());
+
+        StringWriter hash = new StringWriter();
+        LookupJsonCodec.writeHashLookupAnswer(new JsonWriter(hash), Collections.singletonMap("h1", "@john:example.org"));
+        assertEquals("{\"mappings\":{\"h1\":\"@john:example.org\"}}", hash.toString());
+    }
+
+    @Test
+    public void emptyBulkLookupRequest() {
+        assertTrue(LookupJsonCodec.readBulkLookupRequest(utf8("{}"), 10).isEmpty());
+    }
+
+}
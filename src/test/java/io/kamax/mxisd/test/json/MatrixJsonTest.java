@@ -0,0 +1,200 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.json;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import io.kamax.matrix.json.CanonicalJsonEncoder;
+import io.kamax.matrix.json.JsonCanonicalException;
+import io.kamax.matrix.json.MatrixJson;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MatrixJsonTest {
+
+    private static final JsonParser parser = new JsonParser();
+
+    // Reference implementation, as it was before the dedicated encoder
+    private static void legacyEncode(JsonElement el, JsonWriter writer) throws IOException {
+        if (el.isJsonObject()) {
+            writer.beginObject();
+            List<Map.Entry<String, JsonElement>> entries = el.getAsJsonObject().entrySet().stream()
+                    .sorted(Comparator.comparing(Map.Entry::getKey)).collect(Collectors.toList());
+            for (Map.Entry<String, JsonElement> entry : entries) {
+                writer.name(entry.getKey());
+                legacyEncode(entry.getValue(), writer);
+            }
+            writer.endObject();
+        } else if (el.isJsonArray()) {
+            writer.beginArray();
+            for (JsonElement item : el.getAsJsonArray()) {
+                legacyEncode(item, writer);
+            }
+            writer.endArray();
+        } else if (el.isJsonPrimitive()) {
+            writer.jsonValue(el.toString());
+        } else {
+            writer.nullValue();
+        }
+    }
+
+    private static String legacyEncode(JsonObject obj) throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        writer.setIndent("");
+        writer.setHtmlSafe(false);
+        legacyEncode(obj, writer);
+        writer.close();
+
+        // Same round-trip as the previous implementation, which replaced malformed surrogates
+        return new String(out.toString().getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    private static void assertCanonical(String expected, String input) {
+        assertEquals(expected, MatrixJson.encodeCanonical(input));
+    }
+
+    private static void assertSameAsLegacy(JsonObject obj) throws IOException {
+        String expected = legacyEncode(obj);
+        assertEquals(expected, MatrixJson.encodeCanonical(obj));
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), MatrixJson.encodeCanonicalBytes(obj));
+    }
+
+    @Test
+    public void specExamples() {
+        assertCanonical("{}", "{}");
+        assertCanonical("{\"one\":1,\"two\":\"Two\"}", "{\"one\": 1, \"two\": \"Two\"}");
+        assertCanonical("{\"a\":\"1\",\"b\":\"2\"}", "{\"b\": \"2\", \"a\": \"1\"}");
+        assertCanonical("{\"a\":\"1\",\"b\":\"2\"}", "{\"b\":\"2\",\"a\":\"1\"}");
+        assertCanonical("{\"auth\":{\"mxid\":\"@john.doe:example.com\",\"profile\":{\"display_name\":\"John Doe\",\"three_pids\":" +
+                        "[{\"address\":\"john.doe@example.org\",\"medium\":\"email\"},{\"address\":\"123456789\",\"medium\":\"msisdn\"}]}," +
+                        "\"success\":true}}",
+                "{\"auth\": {\"success\": true, \"mxid\": \"@john.doe:example.com\", \"profile\": {\"display_name\": \"John Doe\"," +
+                        "\"three_pids\": [{\"medium\": \"email\", \"address\": \"john.doe@example.org\"}," +
+                        "{\"medium\": \"msisdn\", \"address\": \"123456789\"}]}}}");
+        assertCanonical("{\"a\":\"\u65E5\u672C\u8A9E\"}", "{\"a\": \"\u65E5\u672C\u8A9E\"}");
+        assertCanonical("{\"\u65E5\":1,\"\u672C\":2}", "{\"\u672C\": 2, \"\u65E5\": 1}");
+        assertCanonical("{\"a\":\"\u65E5\"}", "{\"a\": \"\\u65E5\"}");
+        assertCanonical("{\"a\":null}", "{\"a\": null}");
+    }
+
+    @Test
+    public void sameAsLegacyForStrings() throws IOException {
+        String[] values = new String[]{
+                "",
+                "plain",
+                "quote \" and backslash \\",
+                "\t\b\n\r\f",
+                "\u0000\u0001\u001f\u007f",
+                "<html> & 'single' =",
+                "\u00e9\u00e0\u00fc",
+                "\u2028\u2029",
+                "\ud83d\ude00 emoji",
+                "lone \ud83d high",
+                "lone \ude00 low",
+                "\uffff\ufffe"
+        };
+
+        for (String value : values) {
+            JsonObject obj = new JsonObject();
+            obj.addProperty(value, value);
+            assertSameAsLegacy(obj);
+        }
+    }
+
+    @Test
+    public void sameAsLegacyForNumbers() throws IOException {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("int", 1);
+        obj.addProperty("negative", -42);
+        obj.addProperty("long", Long.MAX_VALUE);
+        obj.addProperty("double", 1.0);
+        obj.addProperty("fraction", 0.1);
+        obj.addProperty("exponent", 1e10);
+        obj.addProperty("bool", false);
+        assertSameAsLegacy(obj);
+
+        assertSameAsLegacy(parser.parse("{\"a\":1.0,\"b\":1e10,\"c\":-0,\"d\":12345678901234567890}").getAsJsonObject());
+    }
+
+    @Test(expected = JsonCanonicalException.class)
+    public void nanIsRejected() {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("value", Double.NaN);
+        MatrixJson.encodeCanonical(obj);
+    }
+
+    @Test(expected = JsonCanonicalException.class)
+    public void infinityIsRejected() {
+        JsonArray array = new JsonArray();
+        array.add(Float.NEGATIVE_INFINITY);
+        JsonObject obj = new JsonObject();
+        obj.add("values", array);
+        MatrixJson.encodeCanonicalBytes(obj);
+    }
+
+    @Test
+    public void sameAsLegacyForNested() throws IOException {
+        JsonArray array = new JsonArray();
+        array.add(1);
+        array.add("two");
+        array.add(new JsonObject());
+        array.add(new JsonArray());
+        array.add((String) null);
+
+        JsonObject inner = new JsonObject();
+        inner.add("z", array);
+        inner.addProperty("a", true);
+
+        JsonObject obj = new JsonObject();
+        obj.add("inner", inner);
+        obj.add("nothing", null);
+        assertSameAsLegacy(obj);
+    }
+
+    @Test
+    public void bufferIsReused() {
+        CanonicalJsonEncoder encoder = new CanonicalJsonEncoder(4);
+
+        JsonObject big = new JsonObject();
+        big.addProperty("key", "a value much longer than the initial capacity");
+        assertEquals("{\"key\":\"a value much longer than the initial capacity\"}", encoder.encode(big).toString());
+
+        JsonObject small = new JsonObject();
+        small.addProperty("a", 1);
+        assertEquals("{\"a\":1}", encoder.encode(small).toString());
+        assertEquals(7, encoder.size());
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.lookup;
+
+import io.kamax.mxisd.lookup.PendingMappings;
+import io.kamax.mxisd.lookup.ThreePidMapping;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PendingMappingsTest {
+
+    private static ThreePidMapping tpid(String medium, String address) {
+        ThreePidMapping mapping = new ThreePidMapping();
+        mapping.setMedium(medium);
+        mapping.setValue(address);
+        return mapping;
+    }
+
+    @Test
+    public void foundMappingsAreNoLongerPending() {
+        PendingMappings pending = new PendingMappings(Arrays.asList(
+                tpid("email", "john@example.org"),
+                tpid("msisdn", "123456789"),
+                tpid("email", "jane@example.org")));
+
+        List<ThreePidMapping> first = pending.asList();
+        assertEquals(3, first.size());
+        assertSame(first, pending.asList());
+
+        assertTrue(pending.found(new ThreePidMapping("msisdn", "123456789", "@john:example.org")));
+        assertEquals(2, pending.size());
+        assertEquals("john@example.org", pending.asList().get(0).getValue());
+        assertEquals("jane@example.org", pending.asList().get(1).getValue());
+        assertEquals(1, pending.getFound().size());
+    }
+
+    @Test
+    public void emailsAreMatchedWithoutCase() {
+        PendingMappings pending = new PendingMappings(Arrays.asList(tpid("email", "John.Doe@Example.org")));
+
+        assertTrue(pending.found(new ThreePidMapping("email", "john.doe@example.org", "@john:example.org")));
+        assertTrue(pending.isEmpty());
+
+        // The mapping is given back as it was requested
+        ThreePidMapping found = pending.getFound().get(0);
+        assertEquals("John.Doe@Example.org", found.getValue());
+        assertEquals("@john:example.org", found.getMxid());
+    }
+
+    @Test
+    public void unexpectedMappingsAreIgnored() {
+        PendingMappings pending = new PendingMappings(Arrays.asList(tpid("email", "john@example.org")));
+
+        assertFalse(pending.found(new ThreePidMapping("email", "jane@example.org", "@jane:example.org")));
+        assertFalse(pending.found(new ThreePidMapping("msisdn", "john@example.org", "@john:example.org")));
+        assertFalse(pending.found(tpid("email", "john@example.org")));
+        assertTrue(pending.found(new ThreePidMapping("email", "john@example.org", "@john:example.org")));
+        assertFalse(pending.found(new ThreePidMapping("email", "john@example.org", "@other:example.org")));
+        assertEquals(1, pending.getFound().size());
+        assertEquals("@john:example.org", pending.getFound().get(0).getMxid());
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.lookup;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.kamax.matrix.ThreePidMedium;
+import io.kamax.mxisd.lookup.SingleLookupReply;
+import io.kamax.mxisd.lookup.SingleLookupRequest;
+import io.kamax.mxisd.lookup.ThreePidMapping;
+import io.kamax.mxisd.lookup.provider.RemoteIdentityServerFetcher;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteIdentityServerFetcherTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(65000);
+
+    private final String remote = "http://localhost:65000";
+    private final String hashDetailsPath = "/_matrix/identity/v2/hash_details";
+    private final String hashLookupPath = "/_matrix/identity/v2/lookup";
+    private final String bulkLookupPath = "/_matrix/identity/api/v1/bulk_lookup";
+    private final String singleLookupPath = "/_matrix/identity/api/v1/lookup";
+
+    private RemoteIdentityServerFetcher fetcher;
+    private List<ThreePidMapping> mappings;
+
+    @Before
+    public void before() {
+        fetcher = new RemoteIdentityServerFetcher(HttpClients.createDefault());
+
+        ThreePidMapping mapping = new ThreePidMapping();
+        mapping.setMedium(ThreePidMedium.Email.getId());
+        mapping.setValue("john.doe@example.org");
+        mappings = Collections.singletonList(mapping);
+    }
+
+    private String hash(String pepper) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(DigestUtils.sha256("john.doe@example.org email " + pepper));
+    }
+
+    @Test
+    public void hashedLookup() {
+        String hash = hash("matrixrocks");
+        stubFor(get(urlEqualTo(hashDetailsPath)).willReturn(aResponse()
+                .withHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType())
+                .withBody("{\"lookup_pepper\":\"matrixrocks\",\"algorithms\":[\"none\",\"sha256\"]}")));
+        stubFor(post(urlEqualTo(hashLookupPath)).withRequestBody(containing(hash)).willReturn(aResponse()
+                .withHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType())
+                .withBody("{\"mappings\":{\"" + hash + "\":\"@john:example.org\"}}")));
+
+        List<ThreePidMapping> found = fetcher.find(remote, mappings);
+        assertEquals(1, found.size());
+        assertEquals("john.doe@example.org", found.get(0).getValue());
+        assertEquals("@john:example.org", found.get(0).getMxid());
+
+        // The pepper is reused for the next lookup
+        fetcher.find(remote, mappings);
+        verify(1, getRequestedFor(urlEqualTo(hashDetailsPath)));
+        verify(2, postRequestedFor(urlEqualTo(hashLookupPath)));
+        verify(0, postRequestedFor(urlEqualTo(bulkLookupPath)));
+    }
+
+    @Test
+    public void rotatedPepperIsRefreshed() {
+        String hash = hash("new");
+        stubFor(get(urlEqualTo(hashDetailsPath)).inScenario("rotation").whenScenarioStateIs(STARTED)
+                .willReturn(aResponse().withBody("{\"lookup_pepper\":\"old\",\"algorithms\":[\"sha256\"]}"))
+                .willSetStateTo("rotated"));
+        stubFor(get(urlEqualTo(hashDetailsPath)).inScenario("rotation").whenScenarioStateIs("rotated")
+                .willReturn(aResponse().withBody("{\"lookup_pepper\":\"new\",\"algorithms\":[\"sha256\"]}")));
+        stubFor(post(urlEqualTo(hashLookupPath)).withRequestBody(containing("\"old\"")).willReturn(aResponse()
+                .withStatus(400)
+                .withBody("{\"errcode\":\"M_INVALID_PEPPER\",\"error\":\"Invalid pepper\"}")));
+        stubFor(post(urlEqualTo(hashLookupPath)).withRequestBody(containing("\"new\"")).willReturn(aResponse()
+                .withBody("{\"mappings\":{\"" + hash + "\":\"@john:example.org\"}}")));
+
+        List<ThreePidMapping> found = fetcher.find(remote, mappings);
+        assertEquals(1, found.size());
+        assertEquals("@john:example.org", found.get(0).getMxid());
+        verify(2, getRequestedFor(urlEqualTo(hashDetailsPath)));
+    }
+
+    @Test
+    public void fallbackToBulkLookup() {
+        stubFor(get(urlEqualTo(hashDetailsPath)).willReturn(aResponse()
+                .withStatus(401)
+                .withBody("{\"errcode\":\"M_UNAUTHORIZED\",\"error\":\"Unauthorized\"}")));
+        stubFor(post(urlEqualTo(bulkLookupPath)).willReturn(aResponse()
+                .withHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType())
+                .withBody("{\"threepids\":[[\"email\",\"john.doe@example.org\",\"@john:example.org\"]]}")));
+
+        List<ThreePidMapping> found = fetcher.find(remote, mappings);
+        assertEquals(1, found.size());
+        assertEquals("@john:example.org", found.get(0).getMxid());
+
+        // Servers without the v2 API are not asked again right away
+        fetcher.find(remote, mappings);
+        verify(1, getRequestedFor(urlEqualTo(hashDetailsPath)));
+        verify(2, postRequestedFor(urlEqualTo(bulkLookupPath)));
+    }
+
+    @Test
+    public void stalledHashedLookupIsGivenUpAtDeadline() {
+        stubFor(get(urlEqualTo(hashDetailsPath)).willReturn(aResponse()
+                .withFixedDelay(5000)
+                .withBody("{\"lookup_pepper\":\"matrixrocks\",\"algorithms\":[\"sha256\"]}")));
+
+        long start = System.currentTimeMillis();
+        List<ThreePidMapping> found = new ArrayList<>();
+        fetcher.find(remote, mappings, start + 500, found::add);
+        assertTrue(found.isEmpty());
+        assertTrue(System.currentTimeMillis() - start < 3000);
+        verify(0, postRequestedFor(urlEqualTo(hashLookupPath)));
+    }
+
+    private SingleLookupRequest single() {
+        SingleLookupRequest request = new SingleLookupRequest();
+        request.setType(ThreePidMedium.Email.getId());
+        request.setThreePid("john.doe@example.org");
+        return request;
+    }
+
+    @Test
+    public void stalledRemoteIsGivenUpAtDeadline() {
+        stubFor(get(urlPathEqualTo(singleLookupPath)).willReturn(aResponse()
+                .withFixedDelay(5000)
+                .withBody("{\"medium\":\"email\",\"address\":\"john.doe@example.org\",\"mxid\":\"@john:example.org\"}")));
+
+        long start = System.currentTimeMillis();
+        Optional<SingleLookupReply> reply = fetcher.find(remote, single(), start + 500);
+        assertFalse(reply.isPresent());
+        assertTrue(System.currentTimeMillis() - start < 3000);
+    }
+
+    @Test
+    public void slowlyAnsweringRemoteIsGivenUpAtDeadline() {
+        // Each chunk comes before the socket timeout, only the overall deadline stops the request
+        stubFor(get(urlPathEqualTo(singleLookupPath)).willReturn(aResponse()
+                .withChunkedDribbleDelay(20, 5000)
+                .withBody("{\"medium\":\"email\",\"address\":\"john.doe@example.org\",\"mxid\":\"@john:example.org\"}")));
+
+        long start = System.currentTimeMillis();
+        Optional<SingleLookupReply> reply = fetcher.find(remote, single(), start + 1000);
+        assertFalse(reply.isPresent());
+        assertTrue(System.currentTimeMillis() - start < 3000);
+    }
+
+}
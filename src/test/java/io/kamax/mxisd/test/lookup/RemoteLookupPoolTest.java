@@ -0,0 +1,120 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.lookup;
+
+import io.kamax.mxisd.config.RecursiveLookupConfig;
+import io.kamax.mxisd.lookup.provider.RemoteLookupPool;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteLookupPoolTest {
+
+    private RemoteLookupPool pool;
+
+    @Before
+    public void before() {
+        RecursiveLookupConfig.Remote cfg = new RecursiveLookupConfig.Remote();
+        cfg.setThreads(8);
+        cfg.setMaxPerServer(2);
+        cfg.setTimeoutInSeconds(1);
+        pool = new RemoteLookupPool(cfg);
+    }
+
+    @Test
+    public void concurrentCallsArePerServerCapped() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        List<Future<Optional<Boolean>>> calls = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            long deadline = System.currentTimeMillis() + 5000;
+            calls.add(pool.submit(() -> pool.onServer("https://is.example.org", deadline, () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                return true;
+            })));
+        }
+
+        // Another server is not held back by the busy one
+        assertEquals(Optional.of(true), pool.onServer("https://other.example.org", pool.getDeadline(), () -> true));
+
+        Thread.sleep(200);
+        release.countDown();
+        for (Future<Optional<Boolean>> call : calls) {
+            assertEquals(Optional.of(true), call.get());
+        }
+        assertEquals(2, maxRunning.get());
+        assertEquals(0, pool.getServerCount());
+    }
+
+    @Test
+    public void busyServerIsGivenUpAtDeadline() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 2; i++) {
+            pool.submit(() -> pool.onServer("https://is.example.org", System.currentTimeMillis() + 5000, () -> {
+                try {
+                    return release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }));
+        }
+        Thread.sleep(200);
+
+        try {
+            long start = System.currentTimeMillis();
+            Optional<Boolean> result = pool.onServer("https://is.example.org", pool.getDeadline(), () -> true);
+            assertFalse(result.isPresent());
+            long waited = System.currentTimeMillis() - start;
+            assertTrue(waited >= 900 && waited < 3000);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void idleServersAreForgotten() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            pool.onServer("https://is" + i + ".example.org", pool.getDeadline(), () -> true);
+        }
+        assertEquals(0, pool.getServerCount());
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.matrix;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.kamax.mxisd.matrix.FederationClients;
+import io.kamax.mxisd.matrix.HomeserverFederationResolver.HomeserverTarget;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.URL;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class FederationClientsTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(65000);
+
+    private HomeserverTarget target(String domain) throws Exception {
+        return new HomeserverTarget(domain, new URL("https://" + domain + ":8448"));
+    }
+
+    @Test
+    public void clientIsSharedPerDomain() throws Exception {
+        try (FederationClients clients = new FederationClients(2)) {
+            CloseableHttpClient client = clients.get(target("a.example.org"));
+            assertSame(client, clients.get(target("A.example.org")));
+            assertNotSame(client, clients.get(target("b.example.org")));
+            assertEquals(2, clients.size());
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedClientIsEvicted() throws Exception {
+        try (FederationClients clients = new FederationClients(2)) {
+            CloseableHttpClient a = clients.get(target("a.example.org"));
+            Thread.sleep(5);
+            clients.get(target("b.example.org"));
+            Thread.sleep(5);
+            clients.get(target("c.example.org"));
+            assertEquals(2, clients.size());
+
+            // The oldest one was closed and dropped, a new one is created
+            assertNotSame(a, clients.get(target("a.example.org")));
+            assertEquals(2, clients.size());
+        }
+    }
+
+    @Test
+    public void evictedClientRemainsUsable() throws Exception {
+        stubFor(get(urlEqualTo("/_matrix/key/v2/server")).willReturn(aResponse().withStatus(200).withBody("{}")));
+
+        try (FederationClients clients = new FederationClients(1)) {
+            CloseableHttpClient a = clients.get(target("a.example.org"));
+            clients.get(target("b.example.org"));
+            assertEquals(1, clients.size());
+
+            // A caller which got the client just before its eviction can still complete its request
+            try (CloseableHttpResponse res = a.execute(new HttpGet("http://localhost:65000/_matrix/key/v2/server"))) {
+                assertEquals(200, res.getStatusLine().getStatusCode());
+            }
+        }
+    }
+
+}
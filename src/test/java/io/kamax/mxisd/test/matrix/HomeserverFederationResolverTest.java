@@ -24,18 +24,198 @@ import io.kamax.mxisd.Mxisd;
 import io.kamax.mxisd.config.MxisdConfig;
 import io.kamax.mxisd.dns.FederationDnsOverwrite;
 import io.kamax.mxisd.matrix.HomeserverFederationResolver;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.ResolverListener;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TSIG;
 
+import java.io.IOException;
 import java.net.URL;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class HomeserverFederationResolverTest {
 
+    private static class TestClock extends Clock {
+
+        private volatile long millis = 1_000_000;
+
+        private void advance(long seconds) {
+            millis += seconds * 1000;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+    }
+
+    private static class TestResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+        private TestResponse(int status) {
+            super(HttpVersion.HTTP_1_1, status, "");
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+
+    }
+
+    // Answers well-known requests without any network access, counting them
+    private static class WellKnownClient extends CloseableHttpClient {
+
+        private final String server;
+        private final AtomicInteger requests = new AtomicInteger();
+        private volatile CountDownLatch release = new CountDownLatch(0);
+
+        private WellKnownClient(String server) {
+            this.server = server;
+        }
+
+        @Override
+        protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+            requests.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+
+            if (server == null) {
+                return new TestResponse(404);
+            }
+
+            TestResponse response = new TestResponse(200);
+            response.addHeader("Cache-Control", "max-age=3600");
+            response.setEntity(new StringEntity("{\"m.server\":\"" + server + "\"}", ContentType.APPLICATION_JSON));
+            return response;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public HttpParams getParams() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public ClientConnectionManager getConnectionManager() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+
+    }
+
+    // Answers all DNS queries with NXDOMAIN, so SRV lookups do not depend on the network
+    private static class NxDomainResolver implements Resolver {
+
+        @Override
+        public void setPort(int port) {
+        }
+
+        @Override
+        public void setTCP(boolean flag) {
+        }
+
+        @Override
+        public void setIgnoreTruncation(boolean flag) {
+        }
+
+        @Override
+        public void setEDNS(int level) {
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public void setEDNS(int level, int payloadSize, int flags, List options) {
+        }
+
+        @Override
+        public void setTSIGKey(TSIG key) {
+        }
+
+        @Override
+        public void setTimeout(int secs, int msecs) {
+        }
+
+        @Override
+        public void setTimeout(int secs) {
+        }
+
+        @Override
+        public Message send(Message query) {
+            Message response = new Message(query.getHeader().getID());
+            response.getHeader().setFlag(Flags.QR);
+            response.getHeader().setRcode(Rcode.NXDOMAIN);
+            response.addRecord(query.getQuestion(), Section.QUESTION);
+            return response;
+        }
+
+        @Override
+        public Object sendAsync(Message query, ResolverListener listener) {
+            Object id = new Object();
+            listener.receiveMessage(id, send(query));
+            return id;
+        }
+
+    }
+
     private static HomeserverFederationResolver resolver;
+    private static Resolver dnsResolver;
 
     @BeforeClass
     public static void beforeClass() {
@@ -47,6 +227,24 @@ public class HomeserverFederationResolverTest {
 
         FederationDnsOverwrite fedDns = new FederationDnsOverwrite(new MxisdConfig().getDns().getOverwrite());
         resolver = new HomeserverFederationResolver(fedDns, client);
+
+        dnsResolver = Lookup.getDefaultResolver();
+        Lookup.setDefaultResolver(new NxDomainResolver());
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        Lookup.setDefaultResolver(dnsResolver);
+    }
+
+    private static HomeserverFederationResolver createResolver(WellKnownClient client, TestClock clock) {
+        MxisdConfig.Dns.Cache cacheCfg = new MxisdConfig.Dns.Cache();
+        cacheCfg.setErrorTtl("1m");
+        cacheCfg.setMaxErrorTtl("1h");
+        cacheCfg.build();
+
+        FederationDnsOverwrite fedDns = new FederationDnsOverwrite(new MxisdConfig().getDns().getOverwrite());
+        return new HomeserverFederationResolver(fedDns, client, cacheCfg, clock);
     }
 
     @Test
@@ -61,4 +259,102 @@ public class HomeserverFederationResolverTest {
         assertEquals("https://example.org:443", url.toString());
     }
 
+    private static HttpResponse response(String header, String value) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        if (header != null) {
+            response.addHeader(header, value);
+        }
+        return response;
+    }
+
+    @Test
+    public void maxAgeFromCacheControl() {
+        assertEquals(Optional.of(3600L), HomeserverFederationResolver.getMaxAge(response("Cache-Control", "public, max-age=3600")));
+        assertEquals(Optional.of(0L), HomeserverFederationResolver.getMaxAge(response("Cache-Control", "no-store")));
+    }
+
+    @Test
+    public void maxAgeFromExpires() {
+        Date inAnHour = new Date(System.currentTimeMillis() + 3600 * 1000);
+        long maxAge = HomeserverFederationResolver.getMaxAge(response("Expires", DateUtils.formatDate(inAnHour))).orElse(-1L);
+        assertTrue(maxAge > 3500 && maxAge <= 3600);
+
+        assertEquals(Optional.of(0L), HomeserverFederationResolver.getMaxAge(response("Expires", "0")));
+    }
+
+    @Test
+    public void cachedUntilExpired() {
+        WellKnownClient client = new WellKnownClient("matrix.example.org:443");
+        TestClock clock = new TestClock();
+        HomeserverFederationResolver resolver = createResolver(client, clock);
+
+        assertEquals("https://matrix.example.org:443", resolver.resolve("example.org").getUrl().toString());
+        assertEquals(1, client.requests.get());
+
+        clock.advance(3599);
+        assertEquals("https://matrix.example.org:443", resolver.resolve("example.org").getUrl().toString());
+        assertEquals(1, client.requests.get());
+
+        clock.advance(1);
+        resolver.resolve("example.org");
+        assertEquals(2, client.requests.get());
+    }
+
+    @Test
+    public void concurrentResolutionsAreCoalesced() throws Exception {
+        WellKnownClient client = new WellKnownClient("matrix.example.org:443");
+        client.release = new CountDownLatch(1);
+        HomeserverFederationResolver resolver = createResolver(client, new TestClock());
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<HomeserverFederationResolver.HomeserverTarget>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> resolver.resolve("example.org")));
+            }
+
+            // Let the other resolutions reach the ongoing one before it completes
+            Thread.sleep(200);
+            client.release.countDown();
+
+            for (Future<HomeserverFederationResolver.HomeserverTarget> result : results) {
+                assertEquals("https://matrix.example.org:443", result.get(10, TimeUnit.SECONDS).getUrl().toString());
+            }
+            assertEquals(1, client.requests.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failuresBackOff() {
+        WellKnownClient client = new WellKnownClient(null);
+        TestClock clock = new TestClock();
+        HomeserverFederationResolver resolver = createResolver(client, clock);
+
+        assertEquals("https://example.org:8448", resolver.resolve("example.org").getUrl().toString());
+        assertEquals(1, client.requests.get());
+
+        // The first failure is cached for the error TTL
+        clock.advance(59);
+        resolver.resolve("example.org");
+        assertEquals(1, client.requests.get());
+        clock.advance(1);
+        resolver.resolve("example.org");
+        assertEquals(2, client.requests.get());
+
+        // The second one for twice as long
+        clock.advance(119);
+        resolver.resolve("example.org");
+        assertEquals(2, client.requests.get());
+        clock.advance(1);
+        resolver.resolve("example.org");
+        assertEquals(3, client.requests.get());
+    }
+
+    @Test
+    public void maxAgeMissing() {
+        assertFalse(HomeserverFederationResolver.getMaxAge(response(null, null)).isPresent());
+    }
+
 }
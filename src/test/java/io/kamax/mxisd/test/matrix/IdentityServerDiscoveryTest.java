@@ -0,0 +1,79 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.matrix;
+
+import io.kamax.mxisd.config.MxisdConfig;
+import io.kamax.mxisd.matrix.IdentityServerDiscovery;
+import io.kamax.mxisd.matrix.IdentityServerUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class IdentityServerDiscoveryTest {
+
+    private MxisdConfig.Dns.Cache cfg;
+    private AtomicInteger discoveries;
+
+    @Before
+    public void before() {
+        cfg = new MxisdConfig.Dns.Cache();
+        cfg.build();
+        discoveries = new AtomicInteger();
+    }
+
+    private IdentityServerDiscovery create(String url, long ttl) {
+        return new IdentityServerDiscovery(cfg, domain -> {
+            discoveries.incrementAndGet();
+            return new IdentityServerUtils.Discovery(url, ttl);
+        });
+    }
+
+    @Test
+    public void foundIsCached() {
+        IdentityServerDiscovery discovery = create("https://matrix.example.org:443", 3600);
+        assertEquals(Optional.of("https://matrix.example.org:443"), discovery.find("example.org"));
+        assertEquals(Optional.of("https://matrix.example.org:443"), discovery.find("Example.org"));
+        assertEquals(1, discoveries.get());
+    }
+
+    @Test
+    public void missingIsCached() {
+        IdentityServerDiscovery discovery = create(null, -1);
+        assertFalse(discovery.find("example.org").isPresent());
+        assertFalse(discovery.find("example.org").isPresent());
+        assertEquals(1, discoveries.get());
+    }
+
+    @Test
+    public void disabledCache() {
+        cfg.setEnabled(false);
+        IdentityServerDiscovery discovery = create("https://matrix.example.org:443", 3600);
+        discovery.find("example.org");
+        discovery.find("example.org");
+        assertEquals(2, discoveries.get());
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.matrix;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import io.kamax.mxisd.matrix.FederationClients;
+import io.kamax.mxisd.matrix.HomeserverFederationResolver;
+import io.kamax.mxisd.matrix.ServerKeyCache;
+import net.i2p.crypto.eddsa.EdDSAPublicKey;
+import net.i2p.crypto.eddsa.KeyPairGenerator;
+import org.apache.http.entity.ContentType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.Assert.assertArrayEquals;
+
+public class ServerKeyCacheTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(65000);
+
+    private final String keysPath = "/_matrix/key/v2/server";
+
+    private FederationClients clients;
+    private HomeserverFederationResolver.HomeserverTarget target;
+    private EdDSAPublicKey key1;
+    private EdDSAPublicKey key2;
+
+    private EdDSAPublicKey generate() {
+        return (EdDSAPublicKey) new KeyPairGenerator().generateKeyPair().getPublic();
+    }
+
+    private String encode(EdDSAPublicKey key) {
+        return Base64.getEncoder().encodeToString(key.getAbyte());
+    }
+
+    @Before
+    public void before() throws Exception {
+        clients = new FederationClients();
+        target = new HomeserverFederationResolver.HomeserverTarget("example.org", new URL("http://localhost:65000"));
+        key1 = generate();
+        key2 = generate();
+
+        long validUntilTs = System.currentTimeMillis() + 3600000;
+        stubFor(get(urlEqualTo(keysPath)).willReturn(aResponse()
+                .withFixedDelay(200)
+                .withHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType())
+                .withBody("{\"server_name\":\"example.org\",\"valid_until_ts\":" + validUntilTs + ",\"verify_keys\":{" +
+                        "\"ed25519:1\":{\"key\":\"" + encode(key1) + "\"}," +
+                        "\"ed25519:2\":{\"key\":\"" + encode(key2) + "\"}}}")));
+    }
+
+    @After
+    public void after() {
+        clients.close();
+    }
+
+    @Test
+    public void cachedKeysAreNotFetchedAgain() {
+        ServerKeyCache cache = new ServerKeyCache(clients, 10);
+        assertArrayEquals(key1.getAbyte(), cache.get("example.org", target, "ed25519:1").getAbyte());
+        assertArrayEquals(key1.getAbyte(), cache.get("example.org", target, "ed25519:1").getAbyte());
+        // All the keys of the server were cached with the first fetch
+        assertArrayEquals(key2.getAbyte(), cache.get("EXAMPLE.org", target, "ed25519:2").getAbyte());
+        verify(1, getRequestedFor(urlEqualTo(keysPath)));
+    }
+
+    @Test
+    public void concurrentFetchesAreDoneOnce() throws Exception {
+        ServerKeyCache cache = new ServerKeyCache(clients, 10);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<EdDSAPublicKey>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(() -> {
+                    start.await();
+                    return cache.get("example.org", target, "ed25519:1");
+                }));
+            }
+            start.countDown();
+
+            for (Future<EdDSAPublicKey> result : results) {
+                assertArrayEquals(key1.getAbyte(), result.get().getAbyte());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        verify(1, getRequestedFor(urlEqualTo(keysPath)));
+    }
+
+    @Test
+    public void sizeIsBounded() {
+        stubFor(get(urlEqualTo(keysPath)).willReturn(aResponse()
+                .withHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType())
+                .withBody("{\"valid_until_ts\":" + (System.currentTimeMillis() + 3600000) + ",\"verify_keys\":{" +
+                        "\"ed25519:1\":{\"key\":\"" + encode(key1) + "\"}}}")));
+
+        // Only the key of one server fits, the other server is fetched again
+        ServerKeyCache cache = new ServerKeyCache(clients, 1);
+        cache.get("a.example.org", target, "ed25519:1");
+        cache.get("b.example.org", target, "ed25519:1");
+        cache.get("a.example.org", target, "ed25519:1");
+        verify(3, getRequestedFor(urlEqualTo(keysPath)));
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.profile;
+
+import io.kamax.matrix.MatrixID;
+import io.kamax.matrix.ThreePid;
+import io.kamax.matrix._MatrixID;
+import io.kamax.matrix._ThreePid;
+import io.kamax.mxisd.config.MxisdConfig;
+import io.kamax.mxisd.profile.ProfileManager;
+import io.kamax.mxisd.profile.ProfileProvider;
+import io.kamax.mxisd.profile.UserProfile;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProfileManagerTest {
+
+    private static class CountingProvider implements ProfileProvider {
+
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicInteger profiles = new AtomicInteger();
+        private final String displayName;
+        private final List<_ThreePid> threepids;
+        private final List<String> roles;
+
+        private CountingProvider(String displayName, List<_ThreePid> threepids, List<String> roles) {
+            this.displayName = displayName;
+            this.threepids = threepids;
+            this.roles = roles;
+        }
+
+        @Override
+        public Optional<String> getDisplayName(_MatrixID userId) {
+            calls.incrementAndGet();
+            return Optional.ofNullable(displayName);
+        }
+
+        @Override
+        public List<_ThreePid> getThreepids(_MatrixID userId) {
+            calls.incrementAndGet();
+            return threepids;
+        }
+
+        @Override
+        public List<String> getRoles(_MatrixID userId) {
+            calls.incrementAndGet();
+            return roles;
+        }
+
+        @Override
+        public UserProfile getProfile(_MatrixID userId) {
+            calls.incrementAndGet();
+            profiles.incrementAndGet();
+            return new UserProfile(displayName, threepids, roles);
+        }
+    }
+
+    // Has no role query configured, like a generic SQL profile without roles
+    private static class FailingRolesProvider implements ProfileProvider {
+
+        @Override
+        public Optional<String> getDisplayName(_MatrixID userId) {
+            return Optional.of("John");
+        }
+
+        @Override
+        public List<_ThreePid> getThreepids(_MatrixID userId) {
+            return Collections.singletonList(new ThreePid("email", "john@example.org"));
+        }
+
+        @Override
+        public List<String> getRoles(_MatrixID userId) {
+            throw new IllegalStateException("No role query");
+        }
+
+    }
+
+    private final _MatrixID user = MatrixID.asAcceptable("john", "example.org");
+
+    private MxisdConfig.Profile.Cache cache(boolean enabled) {
+        MxisdConfig.Profile.Cache cfg = new MxisdConfig.Profile.Cache();
+        cfg.setEnabled(enabled);
+        cfg.build();
+        return cfg;
+    }
+
+    @Test
+    public void profilesAreMerged() {
+        CountingProvider first = new CountingProvider(null,
+                Collections.singletonList(new ThreePid("email", "john@example.org")), Collections.singletonList("admin"));
+        CountingProvider second = new CountingProvider("John",
+                Collections.singletonList(new ThreePid("msisdn", "123456789")), Collections.emptyList());
+        ProfileManager mgr = new ProfileManager(Arrays.asList(first, second), null, null, cache(false));
+
+        UserProfile profile = mgr.getProfile(user);
+        assertEquals("John", profile.getDisplayName().orElse(null));
+        assertEquals(2, profile.getThreepids().size());
+        assertEquals(Collections.singletonList("admin"), profile.getRoles());
+        assertEquals(1, first.calls.get());
+        assertEquals(1, second.calls.get());
+    }
+
+    @Test
+    public void profilesAreCached() {
+        CountingProvider provider = new CountingProvider("John", Collections.emptyList(), Collections.singletonList("admin"));
+        ProfileManager mgr = new ProfileManager(Collections.singletonList(provider), null, null, cache(true));
+
+        assertEquals("John", mgr.getDisplayName(user).orElse(null));
+        assertEquals(Collections.singletonList("admin"), mgr.getRoles(user));
+        assertEquals(0, mgr.getThreepids(user).size());
+        assertEquals(1, provider.calls.get());
+    }
+
+    @Test
+    public void profilesAreNotCachedIfDisabled() {
+        CountingProvider provider = new CountingProvider("John", Collections.emptyList(), Collections.emptyList());
+        ProfileManager mgr = new ProfileManager(Collections.singletonList(provider), null, null, cache(false));
+
+        mgr.getDisplayName(user);
+        mgr.getRoles(user);
+        assertEquals(2, provider.calls.get());
+    }
+
+    @Test
+    public void onlyNeededAttributeIsFetchedIfNotCached() {
+        CountingProvider provider = new CountingProvider("John", Collections.emptyList(), Collections.singletonList("admin"));
+        ProfileManager mgr = new ProfileManager(Collections.singletonList(provider), null, null, cache(false));
+
+        assertEquals("John", mgr.getDisplayName(user).orElse(null));
+        assertEquals(Collections.singletonList("admin"), mgr.getRoles(user));
+        assertEquals(0, mgr.getThreepids(user).size());
+        assertEquals(3, provider.calls.get());
+        assertEquals(0, provider.profiles.get());
+    }
+
+    @Test
+    public void failingAttributeDoesNotFailProfile() {
+        CountingProvider other = new CountingProvider(null, Collections.emptyList(), Collections.singletonList("admin"));
+        ProfileManager mgr = new ProfileManager(Arrays.asList(new FailingRolesProvider(), other), null, null, cache(true));
+
+        assertEquals("John", mgr.getDisplayName(user).orElse(null));
+        assertEquals(1, mgr.getThreepids(user).size());
+        assertEquals(Collections.singletonList("admin"), mgr.getRoles(user));
+    }
+
+}
@@ -20,15 +20,38 @@
 
 package io.kamax.mxisd.test.storage;
 
+import io.kamax.matrix.ThreePid;
 import io.kamax.mxisd.config.SQLiteStorageConfig;
 import io.kamax.mxisd.config.StorageConfig;
 import io.kamax.mxisd.storage.ormlite.OrmLiteSqlStorage;
+import io.kamax.mxisd.storage.ormlite.dao.AccountDao;
+import io.kamax.mxisd.storage.ormlite.dao.ThreePidSessionDao;
+import io.kamax.mxisd.threepid.session.ThreePidSession;
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 
+import java.io.File;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class OrmLiteSqlStorageTest {
 
+    private OrmLiteSqlStorage createStorage() {
+        StorageConfig.Provider provider = new StorageConfig.Provider();
+        SQLiteStorageConfig config = new SQLiteStorageConfig();
+        config.setDatabase(":memory:");
+        provider.setSqlite(config);
+        return new OrmLiteSqlStorage(StorageConfig.BackendEnum.sqlite, provider);
+    }
+
     @Test
     public void insertAsTxnDuplicate() {
         StorageConfig.Provider provider = new StorageConfig.Provider();
@@ -51,4 +74,108 @@ public class OrmLiteSqlStorageTest {
         store.insertTransactionResult("mxisd", "1", Instant.now(), "{}");
     }
 
+    @Test
+    public void findThreePidSession() {
+        StorageConfig.Provider provider = new StorageConfig.Provider();
+        SQLiteStorageConfig config = new SQLiteStorageConfig();
+        config.setDatabase(":memory:");
+        provider.setSqlite(config);
+        OrmLiteSqlStorage store = new OrmLiteSqlStorage(StorageConfig.BackendEnum.sqlite, provider);
+
+        ThreePid tpid = new ThreePid("email", "john.doe@example.org");
+        ThreePidSession session = new ThreePidSession("1", "example.org", tpid, "secret", 1, null, "123456");
+        store.insertThreePidSession(session.getDao());
+
+        assertTrue(store.findThreePidSession(tpid, "secret").isPresent());
+        assertEquals("1", store.findThreePidSession(tpid, "secret").get().getId());
+        assertFalse(store.findThreePidSession(tpid, "other").isPresent());
+        assertFalse(store.findThreePidSession(new ThreePid("email", "jane.doe@example.org"), "secret").isPresent());
+    }
+
+    @Test
+    public void purgeThreePidSessions() {
+        OrmLiteSqlStorage store = createStorage();
+        ThreePid tpid = new ThreePid("email", "john.doe@example.org");
+        for (int i = 1; i <= 5; i++) {
+            ThreePidSessionDao dao = new ThreePidSessionDao(new ThreePidSession(Integer.toString(i), "example.org", tpid, "secret" + i, 1, null, "123456").getDao());
+            dao.setCreationTime(i * 1000L);
+            store.insertThreePidSession(dao);
+        }
+        store.insertThreePidSession(new ThreePidSession("6", "example.org", tpid, "secret6", 1, null, "123456").getDao());
+
+        assertEquals(4, store.purgeThreePidSessions(4500, 2));
+        assertFalse(store.getThreePidSession("4").isPresent());
+        assertTrue(store.getThreePidSession("5").isPresent());
+        assertTrue(store.getThreePidSession("6").isPresent());
+        assertEquals(0, store.purgeThreePidSessions(4500, 2));
+    }
+
+    @Test
+    public void purgeTransactionResults() {
+        OrmLiteSqlStorage store = createStorage();
+        for (int i = 1; i <= 5; i++) {
+            store.insertTransactionResult("mxisd", Integer.toString(i), Instant.ofEpochMilli(i * 1000L), "{}");
+        }
+        store.insertTransactionResult("mxisd", "6", Instant.now(), "{}");
+
+        assertEquals(5, store.purgeTransactionResults(Instant.now().minusSeconds(60).toEpochMilli(), 2));
+        assertEquals(0, store.purgeTransactionResults(Instant.now().minusSeconds(60).toEpochMilli(), 2));
+    }
+
+    @Test
+    public void purgeAccountsAndAccepts() {
+        OrmLiteSqlStorage store = createStorage();
+        long now = Instant.now().getEpochSecond();
+        store.insertToken(new AccountDao("a", "Bearer", "example.org", 3600, now - 7200, "@expired:example.org", "expired"));
+        store.insertToken(new AccountDao("b", "Bearer", "example.org", 3600, now - 60, "@valid:example.org", "valid"));
+        store.acceptTerm("expired", "https://example.org/terms");
+        store.acceptTerm("valid", "https://example.org/terms");
+
+        long later = Instant.now().plusSeconds(60).toEpochMilli();
+        assertEquals(0, store.purgeAccepts(later, 10));
+
+        assertEquals(1, store.purgeAccounts(Instant.now().toEpochMilli(), 10));
+        assertFalse(store.findAccount("expired").isPresent());
+        assertTrue(store.findAccount("valid").isPresent());
+
+        // Only the terms of the user without any account are deleted
+        assertEquals(1, store.purgeAccepts(later, 10));
+        assertEquals(0, store.purgeAccepts(later, 10));
+    }
+
+    @Test
+    public void fileDatabaseWithReadPool() throws Exception {
+        File dbFile = File.createTempFile("ma1sd-test-", ".db");
+        try {
+            StorageConfig.Provider provider = new StorageConfig.Provider();
+            SQLiteStorageConfig config = new SQLiteStorageConfig();
+            config.setDatabase(dbFile.getAbsolutePath());
+            config.setReadConnections(2);
+            provider.setSqlite(config);
+            OrmLiteSqlStorage store = new OrmLiteSqlStorage(StorageConfig.BackendEnum.sqlite, provider);
+
+            ThreePid tpid = new ThreePid("email", "john.doe@example.org");
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            try {
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int i = 0; i < 32; i++) {
+                    String sid = Integer.toString(i);
+                    results.add(executor.submit(() -> {
+                        store.insertThreePidSession(new ThreePidSession(sid, "example.org", tpid, "secret" + sid, 1, null, "123456").getDao());
+                        return store.findThreePidSession(tpid, "secret" + sid).isPresent();
+                    }));
+                }
+                for (Future<Boolean> result : results) {
+                    assertTrue(result.get());
+                }
+            } finally {
+                executor.shutdown();
+            }
+        } finally {
+            FileUtils.deleteQuietly(dbFile);
+            FileUtils.deleteQuietly(new File(dbFile.getAbsolutePath() + "-wal"));
+            FileUtils.deleteQuietly(new File(dbFile.getAbsolutePath() + "-shm"));
+        }
+    }
+
 }
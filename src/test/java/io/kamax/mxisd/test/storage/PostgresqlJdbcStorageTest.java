@@ -0,0 +1,204 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.storage;
+
+import io.kamax.mxisd.config.PolicyConfig;
+import io.kamax.mxisd.config.PostgresqlStorageConfig;
+import io.kamax.mxisd.config.StorageConfig;
+import io.kamax.mxisd.exception.InvalidCredentialsException;
+import io.kamax.mxisd.lookup.ThreePidMapping;
+import io.kamax.mxisd.storage.IStorage;
+import io.kamax.mxisd.storage.jdbc.PostgresqlJdbcStorage;
+import io.kamax.mxisd.storage.ormlite.OrmLiteSqlStorage;
+import io.kamax.mxisd.storage.ormlite.dao.AccountDao;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PostgresqlJdbcStorageTest {
+
+    private static EmbeddedPostgres pg;
+
+    @BeforeClass
+    public static void beforeClass() throws IOException, SQLException {
+        pg = EmbeddedPostgres.start();
+
+        // A second database stands for a replica which has not received any of the writes yet
+        try (Connection conn = pg.getPostgresDatabase().getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE DATABASE replica");
+        }
+        new OrmLiteSqlStorage(StorageConfig.BackendEnum.postgresql, createProvider("replica", Collections.emptyList(), true));
+    }
+
+    @AfterClass
+    public static void afterClass() throws IOException {
+        if (pg != null) {
+            pg.close();
+        }
+    }
+
+    private static String database(String name) {
+        return "//localhost:" + pg.getPort() + "/" + name;
+    }
+
+    private static StorageConfig.Provider createProvider(String database, Collection<String> replicas, boolean missFallback) {
+        PostgresqlStorageConfig config = new PostgresqlStorageConfig();
+        config.setDatabase(database(database));
+        config.setUsername("postgres");
+        config.setPassword("postgres");
+        config.setReplicas(new ArrayList<>(replicas));
+        config.setReplicaMissFallback(missFallback);
+
+        StorageConfig.Provider provider = new StorageConfig.Provider();
+        provider.setPostgresql(config);
+        return provider;
+    }
+
+    private static PostgresqlJdbcStorage createStorage() {
+        return new PostgresqlJdbcStorage(createProvider("postgres", Collections.emptyList(), true));
+    }
+
+    private static PostgresqlJdbcStorage createStorageWithReplica(boolean missFallback) {
+        return new PostgresqlJdbcStorage(createProvider("postgres", Collections.singletonList(database("replica")), missFallback));
+    }
+
+    private static AccountDao createAccount(String token) {
+        return new AccountDao("access-" + token, "Bearer", "example.org", 3600, System.currentTimeMillis(), "@john:example.org", token);
+    }
+
+    @Test
+    public void accountReadWrite() {
+        PostgresqlJdbcStorage storage = createStorage();
+        String token = UUID.randomUUID().toString();
+        assertFalse(storage.findAccount(token).isPresent());
+
+        storage.insertToken(createAccount(token));
+        Optional<AccountDao> account = storage.findAccount(token);
+        assertTrue(account.isPresent());
+        assertEquals("access-" + token, account.get().getAccessToken());
+        assertEquals("@john:example.org", account.get().getUserId());
+        assertEquals(3600, account.get().getExpiresIn());
+
+        storage.deleteToken(token);
+        assertFalse(storage.findAccount(token).isPresent());
+    }
+
+    @Test
+    public void hashReadWrite() {
+        PostgresqlJdbcStorage storage = createStorage();
+        storage.clearHashes();
+        storage.addHash("@john:example.org", "email", "john@example.org", "hash1");
+        storage.addHash("@jane:example.org", "email", "jane@example.org", "hash2");
+
+        Collection<Pair<String, ThreePidMapping>> found = storage.findHashes(Arrays.asList("hash1", "unknown"));
+        assertEquals(1, found.size());
+        Pair<String, ThreePidMapping> hash = found.iterator().next();
+        assertEquals("hash1", hash.getKey());
+        assertEquals("@john:example.org", hash.getValue().getMxid());
+        assertEquals("john@example.org", hash.getValue().getValue());
+
+        storage.clearHashes();
+        assertTrue(storage.findHashes(Collections.singletonList("hash1")).isEmpty());
+    }
+
+    @Test
+    public void replicaMissIsReadFromPrimary() {
+        String token = UUID.randomUUID().toString();
+        // Written by another instance, so the reading instance does not know the replica may be stale
+        createStorage().insertToken(createAccount(token));
+
+        assertTrue(createStorageWithReplica(true).findAccount(token).isPresent());
+    }
+
+    @Test
+    public void replicaMissWithoutFallback() {
+        String token = UUID.randomUUID().toString();
+        createStorage().insertToken(createAccount(token));
+
+        // Shows that reads of keys this instance did not write go to the replica first
+        assertFalse(createStorageWithReplica(false).findAccount(token).isPresent());
+    }
+
+    private static List<PolicyConfig.PolicyObject> createPolicies(String url) {
+        PolicyConfig.TermObject term = new PolicyConfig.TermObject();
+        term.setName("Terms");
+        term.setUrl(url);
+        PolicyConfig.PolicyObject policy = new PolicyConfig.PolicyObject();
+        policy.setVersion("1.0");
+        policy.setTerms(Collections.singletonMap("en", term));
+        return Collections.singletonList(policy);
+    }
+
+    private static void assertTermAcceptedFromStaleReplica(IStorage reader) {
+        String token = UUID.randomUUID().toString();
+        String url = "https://example.org/terms/" + token;
+        IStorage writer = createStorage();
+        writer.insertToken(createAccount(token));
+        writer.acceptTerm(token, url);
+
+        assertTrue(reader.isTermAccepted(token, createPolicies(url)));
+        assertFalse(reader.isTermAccepted(token, createPolicies(url + "/other")));
+    }
+
+    @Test
+    public void termAcceptedFromStaleReplica() {
+        assertTermAcceptedFromStaleReplica(createStorageWithReplica(true));
+    }
+
+    @Test
+    public void termAcceptedFromStaleReplicaWithOrmLite() {
+        StorageConfig.Provider provider = createProvider("postgres", Collections.singletonList(database("replica")), true);
+        assertTermAcceptedFromStaleReplica(new OrmLiteSqlStorage(StorageConfig.BackendEnum.postgresql, provider));
+    }
+
+    @Test(expected = InvalidCredentialsException.class)
+    public void termOfUnknownTokenIsRejected() {
+        createStorageWithReplica(true).isTermAccepted(UUID.randomUUID().toString(), createPolicies("https://example.org/terms"));
+    }
+
+    @Test
+    public void ownWriteIsReadFromPrimary() {
+        PostgresqlJdbcStorage storage = createStorageWithReplica(false);
+        String token = UUID.randomUUID().toString();
+        storage.insertToken(createAccount(token));
+
+        assertTrue(storage.findAccount(token).isPresent());
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.storage;
+
+import io.kamax.mxisd.exception.InvalidCredentialsException;
+import io.kamax.mxisd.storage.ReplicaRouter;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ReplicaRouterTest {
+
+    private final ReplicaRouter<String> router = new ReplicaRouter<>("primary", Arrays.asList("replica1", "replica2"), 60000);
+
+    @Test
+    public void readsAreBalancedAcrossReplicas() {
+        assertEquals("replica1", router.forRead("a"));
+        assertEquals("replica2", router.forRead("a"));
+        assertEquals("replica1", router.forRead("b"));
+    }
+
+    @Test
+    public void recentlyWrittenKeysAreReadFromPrimary() {
+        router.written("a");
+        assertEquals("primary", router.forRead("a"));
+        assertEquals("replica1", router.forRead("b"));
+    }
+
+    @Test
+    public void withoutReplicasReadsAreFromPrimary() throws Exception {
+        ReplicaRouter<String> single = new ReplicaRouter<>("primary");
+        single.written("a");
+        assertEquals("primary", single.forRead("a"));
+        assertEquals("primary", single.read("b", target -> target));
+    }
+
+    @Test
+    public void failedReplicaFallsBackToPrimary() throws Exception {
+        String result = router.read("a", target -> {
+            if (!"primary".equals(target)) {
+                throw new SQLException("Replica is down");
+            }
+            return target;
+        });
+        assertEquals("primary", result);
+    }
+
+    @Test
+    public void missOnReplicaFallsBackToPrimary() throws Exception {
+        Optional<String> result = router.read("a", target -> "primary".equals(target) ? Optional.of(target) : Optional.<String>empty(),
+                r -> !r.isPresent());
+        assertEquals(Optional.of("primary"), result);
+    }
+
+    @Test
+    public void failedReplicaIsLeftOut() throws Exception {
+        router.read("a", target -> {
+            if ("replica1".equals(target)) {
+                throw new SQLException("Replica is down");
+            }
+            return target;
+        });
+
+        assertEquals("replica2", router.forRead("a"));
+        assertEquals("replica2", router.forRead("a"));
+    }
+
+    @Test
+    public void callerErrorsAreNotReplicaFailures() throws Exception {
+        List<String> targets = new ArrayList<>();
+        try {
+            router.read("a", target -> {
+                targets.add(target);
+                throw new InvalidCredentialsException();
+            });
+            fail("Error of the caller was not thrown");
+        } catch (InvalidCredentialsException e) {
+            // expected
+        }
+
+        assertEquals(Arrays.asList("replica1"), targets);
+        assertEquals("replica2", router.forRead("a"));
+        assertEquals("replica1", router.forRead("a"));
+    }
+
+}
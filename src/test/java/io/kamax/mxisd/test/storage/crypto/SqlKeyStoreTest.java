@@ -0,0 +1,121 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.storage.crypto;
+
+import io.kamax.mxisd.config.SQLiteStorageConfig;
+import io.kamax.mxisd.config.StorageConfig;
+import io.kamax.mxisd.crypto.GenericKey;
+import io.kamax.mxisd.crypto.GenericKeyIdentifier;
+import io.kamax.mxisd.crypto.Key;
+import io.kamax.mxisd.crypto.KeyIdentifier;
+import io.kamax.mxisd.crypto.KeyType;
+import io.kamax.mxisd.storage.crypto.KeyStore;
+import io.kamax.mxisd.storage.crypto.MemoryKeyStore;
+import io.kamax.mxisd.storage.crypto.SqlKeyStore;
+import io.kamax.mxisd.storage.ormlite.OrmLiteSqlStorage;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SqlKeyStoreTest extends KeyStoreTest {
+
+    private static OrmLiteSqlStorage createStorage() {
+        StorageConfig.Provider provider = new StorageConfig.Provider();
+        SQLiteStorageConfig config = new SQLiteStorageConfig();
+        config.setDatabase(":memory:");
+        provider.setSqlite(config);
+        return new OrmLiteSqlStorage(StorageConfig.BackendEnum.sqlite, provider);
+    }
+
+    private static Key generateEphemeralKey(boolean valid) {
+        KeyIdentifier keyId = new GenericKeyIdentifier(KeyType.Ephemeral, "algo", RandomStringUtils.randomAlphanumeric(6));
+        return new GenericKey(keyId, valid, RandomStringUtils.randomAlphanumeric(48));
+    }
+
+    @Override
+    public KeyStore create() {
+        return new SqlKeyStore(createStorage(), new MemoryKeyStore());
+    }
+
+    @Test
+    public void ephemeralKeysAreInDatabase() {
+        MemoryKeyStore delegate = new MemoryKeyStore();
+        SqlKeyStore store = new SqlKeyStore(createStorage(), delegate);
+
+        Key key = generateEphemeralKey(true);
+        store.add(key);
+        assertTrue(store.has(key.getId()));
+        assertFalse(delegate.has(key.getId()));
+        assertEquals(key.getPrivateKeyBase64(), store.get(key.getId()).getPrivateKeyBase64());
+        assertEquals(1, store.getAll(KeyType.Ephemeral).size());
+    }
+
+    @Test
+    public void migrateFromDelegate() {
+        MemoryKeyStore delegate = new MemoryKeyStore();
+        Key key = generateEphemeralKey(true);
+        delegate.add(key);
+
+        SqlKeyStore store = new SqlKeyStore(createStorage(), delegate);
+        assertFalse(delegate.has(key.getId()));
+        assertTrue(store.has(key.getId()));
+        assertEquals(key.getPrivateKeyBase64(), store.get(key.getId()).getPrivateKeyBase64());
+    }
+
+    @Test
+    public void purge() {
+        SqlKeyStore store = new SqlKeyStore(createStorage(), new MemoryKeyStore());
+        Key valid = generateEphemeralKey(true);
+        Key disabled = generateEphemeralKey(false);
+        store.add(valid);
+        store.add(disabled);
+
+        assertEquals(1, store.purge(null));
+        assertTrue(store.has(valid.getId()));
+        assertFalse(store.has(disabled.getId()));
+
+        assertEquals(1, store.purge(Instant.now().plusSeconds(1)));
+        assertFalse(store.has(valid.getId()));
+    }
+
+    @Test
+    public void purgedKeysAreReported() {
+        SqlKeyStore store = new SqlKeyStore(createStorage(), new MemoryKeyStore());
+        List<KeyIdentifier> purged = new ArrayList<>();
+        store.addPurgeListener(purged::addAll);
+        Key valid = generateEphemeralKey(true);
+        Key disabled = generateEphemeralKey(false);
+        store.add(valid);
+        store.add(disabled);
+
+        store.purge(null);
+        assertEquals(Collections.singletonList(disabled.getId()), purged);
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * mxisd - Matrix Identity Server Daemon
+ * Copyright (C) 2017 Kamax Sarl
+ *
+ * https://www.kamax.io/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.kamax.mxisd.test.util;
+
+import io.kamax.mxisd.util.SingleFlight;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    @Test
+    public void concurrentCallsAreShared() throws InterruptedException, ExecutionException {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> flights.get("email:john@example.org", () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return "@john:example.org";
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<String> second = flights.run("email:john@example.org", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("@other:example.org");
+        });
+        release.countDown();
+
+        assertEquals("@john:example.org", first.get());
+        assertEquals("@john:example.org", second.get());
+        assertEquals(1, calls.get());
+        assertEquals(0, flights.size());
+    }
+
+    @Test
+    public void completedCallsAreNotKept() {
+        SingleFlight<String, Integer> flights = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+
+        assertEquals(1, (int) flights.get("key", calls::incrementAndGet));
+        assertEquals(2, (int) flights.get("key", calls::incrementAndGet));
+        assertEquals(0, flights.size());
+    }
+
+    @Test
+    public void failuresAreShared() throws InterruptedException {
+        SingleFlight<String, String> flights = new SingleFlight<>();
+        CompletableFuture<String> call = new CompletableFuture<>();
+        CompletableFuture<String> first = flights.run("key", () -> call);
+        CompletableFuture<String> second = flights.run("key", () -> CompletableFuture.completedFuture("other"));
+        assertSame(first, second);
+
+        IllegalStateException error = new IllegalStateException("Remote is down");
+        call.completeExceptionally(error);
+        try {
+            second.get();
+            fail("Failure was not shared");
+        } catch (ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+        assertEquals(0, flights.size());
+    }
+
+}